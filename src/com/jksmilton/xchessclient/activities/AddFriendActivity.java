@@ -1,17 +1,9 @@
 package com.jksmilton.xchessclient.activities;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.URL;
-
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.res.Resources.NotFoundException;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.util.Log;
@@ -21,7 +13,7 @@ import android.widget.EditText;
 import android.widget.Toast;
 
 import com.jksmilton.xchessclient.R;
-import com.jksmilton.xchessclient.model.URLAccessor;
+import com.jksmilton.xchessclient.model.PostURLAccessor;
 
 public class AddFriendActivity extends Activity {
 
@@ -72,59 +64,15 @@ public class AddFriendActivity extends Activity {
 		
 	}
 	
-	protected class AttemptAdd extends URLAccessor {
+	protected class AttemptAdd extends PostURLAccessor {
 
 		private Activity parentActivity;
 		
 		@Override
 		protected Object doInBackground(Object... params){
 			
-			InputStream is = null;
-			String returnStr = "Fail";
 			parentActivity = (Activity) params[1];
-			try {
-		        URL url = new URL((String) params[0]);
-		        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-		        conn.setReadTimeout(10000 /* milliseconds */);
-		        conn.setConnectTimeout(15000 /* milliseconds */);
-		        conn.setRequestMethod("POST");
-		        
-		        conn.setDoInput(true);
-		        // Starts the query
-		        conn.connect();
-		        int response = conn.getResponseCode();
-		        Log.d("Acessing " + params[0], "The response is: " + response);
-		        is = conn.getInputStream();
-
-		        // Convert the InputStream into a string
-		        returnStr = readIt(is);
-		        
-		       
-		        
-		    // Makes sure that the InputStream is closed after the app is
-		    // finished using it.
-		    } catch (MalformedURLException e) {
-				
-				returnStr = "malformed URL";
-			} catch (NotFoundException e) {
-				
-				returnStr = "not found";
-			} catch (ProtocolException e) {
-				
-				returnStr = "protocol exception";
-			} catch (IOException e) {
-				returnStr = "IO Exception: " + e.getMessage();
-			} finally {
-		        if (is != null) {
-		            try {
-						is.close();
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-		        } 
-		    }
-			return returnStr;
+			return super.doInBackground(params);
 			
 		}
 		
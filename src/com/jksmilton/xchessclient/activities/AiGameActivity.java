@@ -1,10 +1,15 @@
 package com.jksmilton.xchessclient.activities;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources.NotFoundException;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -12,30 +17,45 @@ import android.support.v4.app.FragmentActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.View;
-import android.widget.AdapterView;
-import android.widget.AdapterView.OnItemClickListener;
-import android.widget.GridView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.jksmilton.xchessclient.R;
 import com.jksmilton.xchessclient.exceptions.MoveException;
 import com.jksmilton.xchessclient.javachess.jcAISearchAgent;
+import com.jksmilton.xchessclient.javachess.jcBitbase;
 import com.jksmilton.xchessclient.javachess.jcBoard;
+import com.jksmilton.xchessclient.javachess.jcEngineExecutor;
 import com.jksmilton.xchessclient.javachess.jcMove;
+import com.jksmilton.xchessclient.javachess.jcNotation;
 import com.jksmilton.xchessclient.javachess.jcOpeningBook;
 import com.jksmilton.xchessclient.javachess.jcPlayer;
 import com.jksmilton.xchessclient.javachess.jcPlayerAI;
 import com.jksmilton.xchessclient.javachess.jcPlayerHuman;
+import com.jksmilton.xchessclient.javachess.jcSearchInfo;
 import com.jksmilton.xchessclient.listhandlers.CreatesPawnPromotion;
 import com.jksmilton.xchessclient.listhandlers.TileClickHandler.PromotePawn;
-import com.jksmilton.xchessclient.model.TileAdapter;
+import com.jksmilton.xchessclient.model.BoardView;
 
 public class AiGameActivity extends FragmentActivity {
 
+	/**
+	 * The engine's searches outlive the activity, and are found again
+	 * under this name when it is recreated.
+	 */
+	private static final String ENGINE_JOB = "ai_game";
+	
+	// The endgame tables, once loaded; they serve every game
+	private static volatile jcBitbase bitbases;
+	
 	jcBoard board = new jcBoard();
 	jcPlayer[] players = new jcPlayer[2];
+	jcPlayerAI aiPlayer;
+	
+	private boolean isWhite;
+	private BoardView boardView;
+	private boolean destroyed = false;
+	private EngineCallback engineCallback = new EngineCallback();
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -46,7 +66,7 @@ public class AiGameActivity extends FragmentActivity {
 		
 		try {
 			
-			book.Load(getResources().openRawResource(R.raw.openings));
+			book.Load(getResources().openRawResource(R.raw.book));
 			board.Load(new File(getFilesDir(), getString(R.string.jksmilton_current_game)));
 			
 		} catch (NotFoundException e) {
@@ -58,7 +78,7 @@ public class AiGameActivity extends FragmentActivity {
 		}
 		
 		SharedPreferences sharedPref = this.getSharedPreferences(getString(R.string.user_data), Context.MODE_PRIVATE);
-		boolean isWhite = sharedPref.getBoolean(getString(R.string.jksmilton_solo_side), true);
+		isWhite = sharedPref.getBoolean(getString(R.string.jksmilton_solo_side), true);
 		
 		int i = 1;
 		if(isWhite){
@@ -67,23 +87,139 @@ public class AiGameActivity extends FragmentActivity {
 		}
 
 		players[i] = new jcPlayerHuman(i);
-		players[1-i] = new jcPlayerAI(1-i, jcAISearchAgent.AISEARCH_MTDF, book);
+		jcPlayerAI ai = new jcPlayerAI(1-i, jcAISearchAgent.AISEARCH_MTDF, book);
+		players[1-i] = ai;
+		aiPlayer = ai;
+		
+		boardView = (BoardView) findViewById(R.id.chessboard);
+		boardView.setBoard(getBoard(isWhite));
+		boardView.setOnSquareClickListener(new ClickHandler(isWhite));
+	
+		TextView info = (TextView) findViewById(R.id.info);
+		info.setText("Your turn");
+		
+		jcEngineExecutor executor = jcEngineExecutor.GetInstance();
+		jcEngineExecutor.Job running = executor.Find(ENGINE_JOB);
 		if((isWhite && board.GetCurrentPlayer() == 1) || (!isWhite && board.GetCurrentPlayer() == 0)){
 			
-			jcMove move = players[board.GetCurrentPlayer()].GetMove(board);
-			board.ApplyMove(move);
+			// A search started by the activity we replace carries on with its
+			// own engine, which keeps its transposition table
+			if(running != null && running.IsFor(board)){
+				aiPlayer = running.GetPlayer();
+				players[1-i] = aiPlayer;
+			}
+			requestAiMove();
+			
+		} else {
+			
+			executor.Cancel(ENGINE_JOB);
 			
 		}
 		
+		attachBitbases();
+		
+	}
+	
+	@Override
+	protected void onDestroy(){
 		
-		TileAdapter tileAdapter = new TileAdapter(this, getBoard(isWhite));
+		destroyed = true;
+		jcEngineExecutor.GetInstance().Detach(ENGINE_JOB, engineCallback);
+		super.onDestroy();
 		
-		GridView grid =  (GridView) findViewById(R.id.chessboard);
-		grid.setAdapter(tileAdapter);
-		grid.setOnItemClickListener(new ClickHandler(isWhite));
+	}
 	
-		TextView info = (TextView) findViewById(R.id.info);
-		info.setText("Your turn");
+	/**
+	 * Hands the position to the engine's background executor; the answer
+	 * comes back through engineCallback.
+	 */
+	private void requestAiMove(){
+		
+		((TextView)findViewById(R.id.info)).setText("AI Deliberating");
+		jcEngineExecutor.GetInstance().Submit(ENGINE_JOB, aiPlayer, board, engineCallback);
+		
+	}
+	
+	private void aiMoved(jcMove result){
+		
+		board.ApplyMove(result);
+		int start = result.SourceSquare, end = result.DestinationSquare;
+		if(result.MoveType == jcMove.MOVE_RESIGN){
+			((TextView)findViewById(R.id.info)).setText("AI Resigns");
+		} else {
+			if(!isWhite){
+				start = 63-start;
+				end = 63- end;
+			}
+			
+			boardView.setSelected(-1);
+			boardView.movePiece(start, end);
+			
+			if(result.MoveType > jcMove.NO_PROMOTION_MASK){
+				boardView.promotePawn(result.MoveType, end);
+			}
+			
+			((TextView)findViewById(R.id.info)).setText("Your turn");
+		}
+		
+		
+		if(result.MoveType == jcMove.MOVE_CASTLING_KINGSIDE || result.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
+			board.ClearExtraKings(1 - board.GetCurrentPlayer());
+			
+			boardView.setBoard(getBoard(isWhite));
+			
+		}
+		
+		// Think about the next move while the player does
+		if(result.MoveType != jcMove.MOVE_RESIGN && result.MoveType != jcMove.MOVE_STALEMATE){
+			aiPlayer.StartPondering(board);
+		}
+		
+	}
+	
+	/**
+	 * Receives the engine's news on the search thread and passes it on to
+	 * the UI thread.  A result which reaches an activity already destroyed
+	 * is left for the one replacing it.
+	 */
+	private class EngineCallback implements jcEngineExecutor.Callback {
+		
+		@Override
+		public void SearchProgress(jcEngineExecutor.Job job, final jcSearchInfo info){
+			
+			runOnUiThread(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					if(destroyed || info.GetBestMove() == null)
+						return;
+					((TextView)findViewById(R.id.info)).setText("AI Deliberating (depth " + info.Depth + ", "
+							+ jcNotation.ToCoordinate(info.GetBestMove()) + ")");
+					
+				}
+			});
+			
+		}
+		
+		@Override
+		public void SearchCompleted(final jcEngineExecutor.Job job){
+			
+			runOnUiThread(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					if(destroyed)
+						return;
+					jcMove result = jcEngineExecutor.GetInstance().TakeResult(job);
+					if(result != null)
+						aiMoved(result);
+					
+				}
+			});
+			
+		}
 		
 	}
 	
@@ -96,86 +232,130 @@ public class AiGameActivity extends FragmentActivity {
 		return true;
 	}
 
-	private String[] getBoard(boolean isWhite){
+	/**
+	 * Gives the engine the endgame tables, once they are loaded; the search
+	 * runs without them until then.
+	 */
+	private void attachBitbases(){
 		
-		String[] boardStr = new String[64];
-		int i = 0;
-		if(!isWhite){
-			i = 63;
+		if(bitbases != null){
+			aiPlayer.AttachBitbases(bitbases);
+		} else {
+			new BitbaseLoader().execute(getApplicationContext());
 		}
 		
-		for(int square= 0; square< 64; square++){
-			
-			int piece = board.FindWhitePiece(i);
-			
-			if(piece == jcBoard.EMPTY_SQUARE)
-				piece = board.FindBlackPiece(i);
-			
-			switch(piece){
-			case jcBoard.BLACK_BISHOP:{
-				boardStr[square] = "black_bishop";
-			}
-			break;
+	}
+	
+	/**
+	 * Copies and opens the endgame tables off the UI thread; they are kept
+	 * for the activities started after this one.
+	 */
+	private class BitbaseLoader extends AsyncTask<Context, Void, jcBitbase>{
+		
+		@Override
+		protected jcBitbase doInBackground(Context... contexts) {
 			
-			case jcBoard.BLACK_KING:{
-				boardStr[square] = "black_king";
-			}
-			break;
+			jcBitbase tables = bitbases;
+			if(tables == null)
+				tables = loadBitbases(contexts[0]);
+			return tables;
 			
-			case jcBoard.BLACK_KNIGHT:{
-				boardStr[square] = "black_knight";
-			}
-			break;
+		}
+		
+		@Override
+		protected void onPostExecute(jcBitbase tables){
 			
-			case jcBoard.BLACK_PAWN:{
-				boardStr[square] = "black_pawn";
-			}
-			break;
+			bitbases = tables;
+			if(!destroyed)
+				aiPlayer.AttachBitbases(tables);
 			
-			case jcBoard.BLACK_QUEEN:{
-				boardStr[square] = "black_queen";
-			}
-			break;
+		}
+		
+	}
+
+	/**
+	 * The endgame tables are shipped as assets, which cannot be memory-mapped
+	 * in place, so they are copied to internal storage the first time, and
+	 * again after the app is updated. Each table is copied and opened on its
+	 * own, so that one which fails leaves the others usable.
+	 */
+	private static jcBitbase loadBitbases(Context context){
+		
+		jcBitbase tables = new jcBitbase();
+		File dir = new File(context.getFilesDir(), "bitbases");
+		dir.mkdirs();
+		
+		long installed = 0;
+		String[] names = new String[0];
+		
+		try {
 			
-			case jcBoard.BLACK_ROOK:{
-				boardStr[square] = "black_rook";
-			}
-			break;
+			installed = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+			names = context.getAssets().list("bitbases");
 			
-			case jcBoard.WHITE_PAWN:{
-				boardStr[square] = "white_pawn";
-			}
-			break;
+		} catch (NameNotFoundException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		for(String name : names){
 			
-			case jcBoard.WHITE_BISHOP:{
-				boardStr[square] = "white_bishop";
-			}
-			break;
+			File target = new File(dir, name);
 			
-			case jcBoard.WHITE_KING:{
-				boardStr[square] = "white_king";
-			}
-			break;
+			// A copy older than the installed app may hold an older table
+			if(target.exists() && target.lastModified() >= installed)
+				continue;
 			
-			case jcBoard.WHITE_KNIGHT:{
-				boardStr[square] = "white_knight";
+			try {
+				
+				File partial = new File(dir, name + ".tmp");
+				InputStream in = context.getAssets().open("bitbases/" + name);
+				OutputStream out = new FileOutputStream(partial);
+				try {
+					byte[] buffer = new byte[8192];
+					int read;
+					while((read = in.read(buffer)) > 0){
+						out.write(buffer, 0, read);
+					}
+				} finally {
+					in.close();
+					out.close();
+				}
+				target.delete();
+				partial.renameTo(target);
+				
+			} catch (IOException e) {
+				Log.d("Bitbase not copied", name + ": " + e.getMessage());
 			}
-			break;
 			
-			case jcBoard.WHITE_QUEEN:{
-				boardStr[square] = "white_queen";
-			}
-			break;
+		}
+		
+		tables.Open(dir);
+		for(String problem : tables.GetProblems()){
+			Log.d("Bitbase not opened", problem);
+		}
+		
+		return tables;
+		
+	}
+
+	private byte[] getBoard(boolean isWhite){
+		
+		byte[] boardCodes = new byte[64];
+		int i = 0;
+		if(!isWhite){
+			i = 63;
+		}
+		
+		for(int square= 0; square< 64; square++){
 			
-			case jcBoard.WHITE_ROOK:{
-				boardStr[square] = "white_rook";
-			}
-			break;
+			int piece = board.FindWhitePiece(i);
 			
-			default:
-				boardStr[square] = "";
+			if(piece == jcBoard.EMPTY_SQUARE)
+				piece = board.FindBlackPiece(i);
 			
-			}
+			boardCodes[square] = (byte) piece;
 			
 			if(isWhite)
 				i ++;
@@ -184,7 +364,7 @@ public class AiGameActivity extends FragmentActivity {
 			
 		}
 		
-		return boardStr;
+		return boardCodes;
 		
 	}
 	
@@ -195,18 +375,20 @@ public class AiGameActivity extends FragmentActivity {
 		return true;
 	}
 
-	private class ClickHandler implements OnItemClickListener, CreatesPawnPromotion {
+	private class ClickHandler implements BoardView.OnSquareClickListener, CreatesPawnPromotion {
 
 		private String player;
+		private int side;
 		private int previousPosition = -1;
-		private TileAdapter gridAdapter;
 		
 		public ClickHandler(boolean isWhite){
 			
 			if(isWhite){
 				player= "white";
+				side = jcPlayer.SIDE_WHITE;
 			} else {
 				player = "black";
+				side = jcPlayer.SIDE_BLACK;
 			}
 			
 		}
@@ -230,28 +412,25 @@ public class AiGameActivity extends FragmentActivity {
 		}
 		
 		@Override
-		public void onItemClick(AdapterView<?> parent, View view, int position,
-				long notSure) {
+		public void onSquareClick(BoardView view, int position) {
 			
-			gridAdapter = (TileAdapter) parent.getAdapter();			
-			String piece = (String) gridAdapter.getItem(position);
+			int piece = boardView.getPiece(position);
 			
 			if((player.equals("white") && board.GetCurrentPlayer() == 1) || (player.equals("black") && board.GetCurrentPlayer() == 0)){
 				
 				Toast.makeText(view.getContext(), "Not your turn", Toast.LENGTH_SHORT).show();
 				
-			} else if(piece.startsWith(player)){
+			} else if(piece != jcBoard.EMPTY_SQUARE && piece % 2 == side){
 				
 				previousPosition = position;
-				gridAdapter.setSelected(position);
-				gridAdapter.notifyDataSetChanged();
+				boardView.setSelected(position);
 				
 				
 			} else if(previousPosition >= 0){
 				
 				jcMove move = getMove(previousPosition, position);
-				piece = (String) gridAdapter.getItem(previousPosition);
-				if(piece.endsWith("pawn") && position < 8){
+				piece = boardView.getPiece(previousPosition);
+				if((piece == jcBoard.WHITE_PAWN || piece == jcBoard.BLACK_PAWN) && position < 8){
 					
 					PromotePawn pawnDialog = new PromotePawn();
 					pawnDialog.set(move, this);
@@ -273,57 +452,6 @@ public class AiGameActivity extends FragmentActivity {
 			
 		}
 		
-		private class AIEngineRunner extends AsyncTask<Object, Object, jcMove>{
-
-			
-			@Override
-			protected jcMove doInBackground(Object... arg0) {
-
-				jcMove move = players[board.GetCurrentPlayer()].GetMove(board);
-				
-				return move;
-				
-			}
-			
-			@Override
-			protected void onPostExecute(jcMove result){
-				board.ApplyMove(result);
-				int start = result.SourceSquare, end = result.DestinationSquare;
-				if(result.MoveType == jcMove.MOVE_RESIGN){
-					((TextView)findViewById(R.id.info)).setText("AI Resigns");
-				} else {
-					if(!player.equals("white")){
-						start = 63-start;
-						end = 63- end;
-					}
-					
-					gridAdapter.setSelected(-1);
-					gridAdapter.movePiece(start, end);
-					
-					if(result.MoveType > jcMove.NO_PROMOTION_MASK){
-						gridAdapter.promotePawn(result.MoveType, end);
-					}
-					
-					gridAdapter.notifyDataSetChanged();
-					((TextView)findViewById(R.id.info)).setText("Your turn");
-				}
-				
-				
-				if(result.MoveType == jcMove.MOVE_CASTLING_KINGSIDE || result.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
-					board.ClearExtraKings(1 - board.GetCurrentPlayer());
-					
-					gridAdapter.setBoard(getBoard(player.equals("white")));
-					
-				}
-				
-				
-			}
-			
-		}
-		
-	
-		
-		
 		private class EngineRunner extends AsyncTask<jcMove, Object, Boolean>{
 
 			private jcMove playerMove;
@@ -387,20 +515,17 @@ public class AiGameActivity extends FragmentActivity {
 						start = 63-start;
 						end = 63- end;
 					} 
-					gridAdapter.setSelected(-1);
-					gridAdapter.movePiece(start, end);
-					gridAdapter.notifyDataSetChanged();
+					boardView.setSelected(-1);
+					boardView.movePiece(start, end);
 					
 					if(playerMove.MoveType == jcMove.MOVE_CASTLING_KINGSIDE || playerMove.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
 						board.ClearExtraKings(1 - board.GetCurrentPlayer());
 						
-						gridAdapter.setBoard(getBoard(player.equals("white")));
+						boardView.setBoard(getBoard(player.equals("white")));
 						
 					}
 					
-					AIEngineRunner runner = new AIEngineRunner();
-					runner.execute(new Object());
-					((TextView)findViewById(R.id.info)).setText("AI Deliberating");
+					requestAiMove();
 				}
 			}
 			
@@ -414,6 +539,8 @@ public class AiGameActivity extends FragmentActivity {
 	protected void onStop(){
 		super.onStop();
 		
+		aiPlayer.StopPondering();
+		
 		File save = new File(this.getFilesDir(), getResources().getString(R.string.jksmilton_current_game));
 		
 		save.delete();
@@ -1,8 +1,11 @@
 package com.jksmilton.xchessclient.activities;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.content.Intent;
@@ -13,40 +16,56 @@ import android.support.v4.app.NavUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.widget.GridView;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import com.google.gson.Gson;
 import com.jksmilton.xchessclient.R;
-import com.jksmilton.xchessclient.exceptions.MoveException;
 import com.jksmilton.xchessclient.javachess.jcBoard;
-import com.jksmilton.xchessclient.javachess.jcMove;
-import com.jksmilton.xchessclient.javachess.jcPlayerHuman;
 import com.jksmilton.xchessclient.listhandlers.TileClickHandler;
+import com.jksmilton.xchessclient.model.BoardView;
+import com.jksmilton.xchessclient.model.JsonPayloads;
+import com.jksmilton.xchessclient.model.MoveOutbox;
+import com.jksmilton.xchessclient.model.PendingMove;
 import com.jksmilton.xchessclient.model.PostURLAccessor;
-import com.jksmilton.xchessclient.model.TileAdapter;
 import com.jksmilton.xchessclient.model.TranscriptAdapter;
+import com.jksmilton.xchessclient.model.TranscriptDelta;
+import com.jksmilton.xchessclient.model.TranscriptReplay;
 import com.jksmilton.xchessclient.model.URLAccessor;
 
-public class ChessActivity extends FragmentActivity {
+public class ChessActivity extends FragmentActivity implements MoveOutbox.Listener {
 
 	public static final String GAME_EXTRA_KEY = "get_game_obj";
 	public static final String GAME_PLAYER_COLOUR = "get_player_colour";
-	private String[][] pieces = new String[8][8];
+	private static final int CACHED_GAMES = 8;
+	private static final Map<Long, TranscriptReplay> replays = new LinkedHashMap<Long, TranscriptReplay>(CACHED_GAMES, 0.75f, true){
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, TranscriptReplay> eldest) {
+			return size() > CACHED_GAMES;
+		}
+		
+	};
+	
 	private boolean isWhite = true;
 	private String playerKey;
 	private long game;
+	private TranscriptReplay replay;
+	private BoardView boardView;
+	private TranscriptAdapter transcriptAdapter;
+	private TileClickHandler tileHandler;
+	private int shownLines = 0;
+	private boolean localMoves = false;
+	private MoveOutbox outbox;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_chess);
 		
-		jcBoard engBoard = new jcBoard();
 		// Show the Up button in the action bar.
 		setupActionBar();
-		engBoard.StartingBoard();
 		Intent intent = getIntent();
 		
 		game = intent.getLongExtra(GAME_EXTRA_KEY, -1);
@@ -54,92 +73,151 @@ public class ChessActivity extends FragmentActivity {
 		
 		SharedPreferences sharedPref = this.getSharedPreferences(getString(R.string.user_data), Context.MODE_PRIVATE);		
 		playerKey =  sharedPref.getString(getResources().getString(R.string.key), "");
+		outbox = MoveOutbox.getInstance(this);
+		
+		// Start from the position reached the last time this game was open
+		replay = replays.get(game);
+		if(replay == null || replay.isWhite() != isWhite){
+			replay = new TranscriptReplay(isWhite);
+			replays.put(game, replay);
+		}
 		
-		requestTranscript();
+		transcriptAdapter = new TranscriptAdapter(this, R.layout.child_element, new ArrayList<String>());
+		for(String s : replay.getLines()){
+			transcriptAdapter.addItem(s);
+			shownLines++;
+		}
+		ListView listView = (ListView) findViewById(R.id.transcript);
+		listView.setAdapter(transcriptAdapter);
+		
+		boardView = (BoardView) findViewById(R.id.chessboard);
+		boardView.setBoard(replay.convertToDimBoard());
+		
+		requestTranscript(false);
 			
 	}
 	
-	private void requestTranscript(){
+	/**
+	 * Ask for the moves past the ones already replayed; the server answers with
+	 * a {@link TranscriptDelta}, or the whole transcript if it cannot. A full
+	 * request asks for the whole transcript.
+	 */
+	private void requestTranscript(boolean full){
 		
 		String url = getResources().getString(R.string.jksmilton_get_game_transcript) + game + "/" + getResources().getString(R.string.appID);
 		
+		if(!full && replay.getPly() > 0){
+			url += "?from=" + replay.getPly() + "&key=" + replay.getPrefixChecksum();
+		}
+		
 		GetTranscript getGame = new GetTranscript();
 		
 		getGame.execute(url);
 		
 	}
 	
-
-	private void setUpStartBoard(){
+	@Override
+	protected void onResume() {
+		super.onResume();
 		
-		String nearSideCol, farSideCol, leftUnique, rightUnique;
+		outbox.setListener(this);
 		
-		if(isWhite){
-			nearSideCol= "white_";
-			farSideCol = "black_";
-			leftUnique = "queen";
-			rightUnique = "king";
-		} else {
-			farSideCol= "white_";
-			nearSideCol = "black_";
-			leftUnique = "king";
-			rightUnique = "queen";
+	}
+	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		
+		outbox.removeListener(this);
+		
+	}
+	
+	@Override
+	public void onMoveSent(PendingMove move) {
+		
+		Log.d("Move sent", move.getMove());
+		
+	}
+	
+	@Override
+	public void onMoveRefused(PendingMove move, String answer) {
+		
+		Toast.makeText(this, move.getMove() + ": " + answer, Toast.LENGTH_SHORT).show();
+		
+		// The board shows the move; put it back as the server has it
+		if(move.getGame() == game){
+			requestTranscript(false);
 		}
 		
-		for(int i = 2; i < 6; i++){
+	}
+	
+	/**
+	 * Match the moves of this game still in the outbox against the replayed
+	 * transcript: a move the transcript has was taken, one it contradicts was
+	 * not. Returns the moves the server has not seen yet, oldest first.
+	 */
+	private List<String> unsentMoves(){
+		
+		List<String> unsent = new ArrayList<String>();
+		List<String> played = replay.getMoves();
+		
+		for(PendingMove move : outbox.getPending(game)){
 			
-			for(int j = 0; j<8; j++){
+			if(move.getPly() < played.size() && played.get(move.getPly()).equals(move.getMove())){
+				
+				outbox.acknowledge(move);
+				
+			} else if(move.getPly() == played.size() + unsent.size()){
 				
-				pieces[i][j] = "";
+				unsent.add(move.getMove());
+				
+			} else {
+				
+				// The game went on without it: it can no longer be played
+				Toast.makeText(this, move.getMove() + " was not played", Toast.LENGTH_SHORT).show();
+				outbox.discard(move);
+				break;
 				
 			}
 			
 		}
 		
-		for (int i = 0; i< 8; i++){
-			
-			pieces[1][i] = nearSideCol + "pawn";
-			pieces[6][i] = farSideCol + "pawn";
-			
-		}
+		return unsent;
 		
-		pieces[0][0] = nearSideCol +"rook";
-		pieces[0][1] = nearSideCol +"knight";
-		pieces[0][2] = nearSideCol +"bishop";
-		
-		pieces[0][3] = nearSideCol + leftUnique;
-		pieces[0][4] = nearSideCol + rightUnique;
+	}
+	
+	// The board only takes moves once it is known to be up to date; it shows
+	// the given replay, which is the transcript with the unsent moves
+	private void showBoard(TranscriptReplay shown){
 		
-		pieces[0][5] = nearSideCol + "bishop";
-		pieces[0][6] = nearSideCol +"knight";
-		pieces[0][7] = nearSideCol +"rook";
+		boardView.setSelected(-1);
+		boardView.setBoard(shown.convertToDimBoard());
 		
-		pieces[7][0] = farSideCol +"rook";
-		pieces[7][1] = farSideCol +"knight";
-		pieces[7][2] = farSideCol +"bishop";
+		if(tileHandler == null){
+			
+			tileHandler = new TileClickHandler(isWhite, copyBoard(shown), this, playerKey, game);
+			boardView.setOnSquareClickListener(tileHandler);
+			
+		} else {
+			
+			tileHandler.setBoard(copyBoard(shown));
+			
+		}
 		
-		pieces[7][3] = farSideCol + leftUnique;
-		pieces[7][4] = farSideCol + rightUnique;
+		tileHandler.setPly(shown.getPly());
 		
-		pieces[7][5] = farSideCol + "bishop";
-		pieces[7][6] = farSideCol +"knight";
-		pieces[7][7] = farSideCol +"rook";
+	}
+	
+	// The views play the user's moves on their own copy of the position, which
+	// must not leak into the replay
+	private jcBoard copyBoard(TranscriptReplay shown){
 		
+		jcBoard copy = new jcBoard();
+		copy.Clone(shown.getBoard());
+		return copy;
 		
 	}
 	
-	private String[] convertToDimBoard(){
-		String[] dimBoard = new String[64];
-		for(int i = 0; i<8; i++){
-			for(int j = 0; j < 8; j++){
-				
-				int dim = TileAdapter.convertCoordToDim(j, i);
-				dimBoard[dim] = pieces[i][j];
-				
-			}
-		}
-		return dimBoard;
-	}
 
 	/**
 	 * Set up the {@link android.app.ActionBar}.
@@ -171,7 +249,8 @@ public class ChessActivity extends FragmentActivity {
 			NavUtils.navigateUpFromSameTask(this);
 			return true;
 		case R.id.action_refresh: 
-			requestTranscript();
+			outbox.retryNow();
+			requestTranscript(false);
 			return true;
 		case R.id.action_resign :
 			PostURLAccessor accessor = new PostURLAccessor() {
@@ -193,210 +272,114 @@ public class ChessActivity extends FragmentActivity {
 
 	private class GetTranscript extends URLAccessor{
 
+		@Override
+		protected Object readResponse(InputStream stream) throws IOException {
+			
+			return JsonPayloads.readTranscript(jsonReader(stream));
+			
+		}
+		
 		@Override
 		protected void onPostExecute(Object result) {
 			
-			String moveList = result.toString();
-			ListView listView = (ListView) ChessActivity.this.findViewById(R.id.transcript);
-			TranscriptAdapter adapter = new TranscriptAdapter(ChessActivity.this, R.layout.child_element, new ArrayList<String>());
-			listView.setAdapter(adapter);
 			Log.d("recieved transcript", result.toString());
 			
-			if(moveList.startsWith("[")){
-				
-				Gson gson = new Gson();
+			if(result instanceof TranscriptDelta){
 				
-				List<String> transcript = Arrays.asList(gson.fromJson(moveList, String[].class));
-				Log.d("convert transcript", transcript.toString());
+				TranscriptDelta delta = (TranscriptDelta) result;
 				
-				jcBoard engBoard = new jcBoard();
-				setUpStartBoard();
-				jcMove move = new jcMove();
-				
-				for(String s : transcript){
-					
-					adapter.addItem(s);
-					
-					move = new jcMove();
-					move.MoveType = jcMove.MOVE_NORMAL;
-					int[] startPos, endPos;
-					
-					if(s.equals("RESIG") && engBoard.GetCurrentPlayer() == 0){
-						
-						adapter.addItem("White Resigned");
-						break;
-						
-					} else if(s.equals("RESIG")){
-						
-						adapter.add("Black Resigned");
-						break;
-						
-					}
-					
-					String[] sections = s.split(" ");
-					startPos = parsePos(sections[0]);
-					endPos = parsePos(sections[1]);
+				if(!replay.follows(delta)){
 					
-					move.SourceSquare = TileAdapter.convertCoordToDim(startPos[1], startPos[0]);
-					move.DestinationSquare = TileAdapter.convertCoordToDim(endPos[1], endPos[0]);
-					
-					if(!isWhite){
-						
-						startPos[0] = 7 - startPos[0];
-						startPos[1] = 7 - startPos[1];
-						endPos[0] = 7 - endPos[0];
-						endPos[1] = 7 - endPos[1];
-						
-					}
-					
-					String piece = pieces[startPos[0]][startPos[1]];
-					
-					if(sections[2].equals("Q")){
-						
-						move.MoveType = jcMove.MOVE_PROMOTION_QUEEN;
-						piece = piece.substring(0, 6) + "queen";
-						
-					} else if(sections[2].equals("B")){
-						
-						move.MoveType = jcMove.MOVE_PROMOTION_BISHOP;
-						piece = piece.substring(0, 6) + "bishop";
-						
-					} else if(sections[2].equals("K")){
-						
-						move.MoveType = jcMove.MOVE_PROMOTION_KNIGHT;
-						piece = piece.substring(0, 6) + "knight";
-						
-					} else if(sections[2].equals("R")){
-						
-						move.MoveType = jcMove.MOVE_PROMOTION_ROOK;
-						piece = piece.substring(0, 6) + "rook";
-						
-					}
-					
-					
-					
-					jcPlayerHuman player = new jcPlayerHuman(engBoard.GetCurrentPlayer());
-					
-					try {
-						move = player.GetMove(engBoard, move, move.MoveType);
-					} catch (MoveException e) {
-						
-						e.printStackTrace();
-					}
-					
-					engBoard.ApplyMove(move);
-					
-					pieces[endPos[0]][endPos[1]] = piece;
-					pieces[startPos[0]][startPos[1]] = "";
-					
-					Log.d("Applied move from", "start: " + startPos[0] + ";" + startPos[1]);
-					Log.d("Applied move to", "end: " + endPos[0] + ";" + endPos[1]);
-					move.Print();
-					if((isWhite && engBoard.GetCurrentPlayer() == 1) && move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
-						
-						pieces[0][5] = pieces[0][7];
-						pieces[0][7] = "";
-						
-					} else if((isWhite && engBoard.GetCurrentPlayer() == 1) && move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
-						
-						pieces[0][3] = pieces[0][0];
-						pieces[0][0] = "";
-						
-					} else if((isWhite && engBoard.GetCurrentPlayer() != 1) && move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
-						
-						pieces[7][5] = pieces[7][7];
-						pieces[7][7] = "";
-						
-					} else if((isWhite && engBoard.GetCurrentPlayer() != 1) && move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
-						
-						pieces[7][3] = pieces[7][0];
-						pieces[7][0] = "";
-						
-					} else if((!isWhite && engBoard.GetCurrentPlayer() ==1) && move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
-						
-						pieces[7][2] = pieces[7][0];
-						pieces[7][0] = "";
-						
-					} else if((!isWhite && engBoard.GetCurrentPlayer() == 1) && move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
-						
-						pieces[7][5] = pieces[7][0];
-						pieces[7][7] = "";
-						
-					} else if((!isWhite && engBoard.GetCurrentPlayer() != 1) && move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
-						
-						pieces[0][2] = pieces[0][0];
-						pieces[0][0] = "";
-						
-					} else if((!isWhite && engBoard.GetCurrentPlayer() != 1) && move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
-						
-						pieces[0][5] = pieces[0][7];
-						pieces[0][7] = "";
-						
-					}
+					// The game went on from another position than ours
+					Log.d("transcript delta", "diverged at ply " + replay.getPly() + ", fetching the whole transcript");
+					requestTranscript(true);
+					return;
 					
 				}
 				
-				if(move.MoveType == jcMove.MOVE_STALEMATE){
+				dropLocalMoves();
+				replay.advance(delta);
+				showTranscript(false);
+				
+			} else if(result instanceof List){
+				
+				@SuppressWarnings("unchecked")
+				List<String> transcript = (List<String>) result;
+				
+				dropLocalMoves();
+				boolean reset = !replay.follows(transcript);
+				
+				if(reset){
 					
-					adapter.add("STALEMATE");
+					replay = new TranscriptReplay(isWhite);
+					replays.put(game, replay);
 					
 				}
 				
-				String[] dimBoard = convertToDimBoard();
-				
-				GridView board = (GridView) findViewById(R.id.chessboard);
-				TileAdapter tileAdapter = new TileAdapter(board.getContext(), dimBoard);
-				board.setAdapter(tileAdapter);
-				
-				board.setOnItemClickListener(new TileClickHandler(isWhite, engBoard, ChessActivity.this, playerKey, game));
+				replay.advance(transcript);
+				showTranscript(reset);
 				
 				Log.d("Creating board", "Finished");
 				
 			}
 			
 		}
-		private int[] parsePos(String move){
+		
+		// Moves played on this screen were applied to the copies held by the
+		// views, not to the replay: drop them, the transcript or the outbox
+		// has them
+		private void dropLocalMoves(){
 			
-			int pos[] = {-1,-1};
-			char[] chars = move.toCharArray();			
+			while(transcriptAdapter.getCount() > shownLines){
+				transcriptAdapter.remove(transcriptAdapter.getItem(0));
+				localMoves = true;
+			}
 			
-			pos[1] = Integer.parseInt(new String("" + chars[1])) - 1;
+		}
+		
+		private void showTranscript(boolean reset){
 			
-			if(chars[0] == 'A'){
-				
-				pos[0] = 0; 
-				
-			} else if(chars[0] == 'B'){
-				
-				pos[0] = 1;
-				
-			} else if(chars[0] == 'C'){
-				
-				pos[0] = 2;
-				
-			} else if(chars[0] == 'D'){
-				
-				pos[0] = 3;
-				
-			} else if(chars[0] == 'E'){
-				
-				pos[0] = 4;
-				
-			} else if(chars[0] == 'F'){
-				
-				pos[0] = 5;
+			boolean changed = reset || localMoves || tileHandler == null;
+			localMoves = false;
+			
+			if(reset){
 				
-			} else if(chars[0] == 'G'){
+				transcriptAdapter.clear();
+				shownLines = 0;
 				
-				pos[0] = 6;
+			}
+			
+			// The replay may also have been advanced by an earlier screen on
+			// this game, whose request completed after this one was created
+			List<String> lines = replay.getLines();
+			
+			for(; shownLines < lines.size(); shownLines++){
+				transcriptAdapter.addItem(lines.get(shownLines));
+				changed = true;
+			}
+			
+			List<String> unsent = unsentMoves();
+			
+			if(unsent.isEmpty()){
 				
-			} else if(chars[0] == 'H'){
+				if(changed){
+					showBoard(replay);
+				}
 				
-				pos[0] = 7;
+				return;
 				
 			}
 			
-			return pos;
+			// Show the moves on their way as if the server had them, as local
+			// rows which the next transcript replaces
+			TranscriptReplay shown = replay.withMoves(unsent);
+			List<String> withLocal = shown.getLines();
+			
+			for(int i = shownLines; i < withLocal.size(); i++){
+				transcriptAdapter.addItem(withLocal.get(i));
+			}
+			
+			showBoard(shown);
 			
 		}
 		
@@ -8,6 +8,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.FragmentActivity;
@@ -17,9 +18,9 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
 
-import com.google.gson.Gson;
 import com.jksmilton.xchessclient.R;
 import com.jksmilton.xchessclient.model.ChessUser;
+import com.jksmilton.xchessclient.model.LocalStore;
 import com.jksmilton.xchessclient.model.PostURLAccessor;
 
 public class CreateGameActivity extends FragmentActivity {
@@ -31,14 +32,40 @@ public class CreateGameActivity extends FragmentActivity {
 		// Show the Up button in the action bar.
 		setupActionBar();
 		
-		SharedPreferences sharedPref = getSharedPreferences(getString(R.string.user_data), Context.MODE_PRIVATE);
+		new LoadUser(LocalStore.getInstance(this)).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+	
+	/**
+	 * Reads the user and the friends from the local store; the requests wait
+	 * for it.
+	 */
+	private class LoadUser extends AsyncTask<Void, Void, ChessUser> {
+		
+		private LocalStore store;
+		
+		LoadUser(LocalStore store){
+			this.store = store;
+		}
+		
+		@Override
+		protected ChessUser doInBackground(Void... params) {
+			
+			SharedPreferences sharedPref = getSharedPreferences(getString(R.string.user_data), Context.MODE_PRIVATE);
+			String userKey = sharedPref.getString(getString(R.string.key), "");
+			
+			ChessUser stored = store.loadUser();
+			stored.setFriends(store.loadFriends());
+			stored.setXauth(userKey);
+			
+			return stored;
+			
+		}
 		
-		String userStr = sharedPref.getString(getResources().getString(R.string.userjson), "");
-		String userKey = sharedPref.getString(getResources().getString(R.string.key), "");
-		Gson gson = new Gson();
+		@Override
+		protected void onPostExecute(ChessUser result) {
+			user = result;
+		}
 		
-		user = gson.fromJson(userStr, ChessUser.class);
-		user.setXauth(userKey);
 	}
 
 	/**
@@ -69,6 +96,10 @@ public class CreateGameActivity extends FragmentActivity {
 
 	public void requestRandomGame(View v){
 		
+		if(user == null){
+			return;
+		}
+		
 		String url = getResources().getString(R.string.jksmilton_requestRandomgGame) + user.getXauth() + "/" + getResources().getString(R.string.appID);
 		
 		SendRequest requester = new SendRequest();
@@ -79,6 +110,10 @@ public class CreateGameActivity extends FragmentActivity {
 	
 	public void requestGameWithFriend(View v){
 		
+		if(user == null){
+			return;
+		}
+		
 		StartGameWithFriend newGameDialog = new StartGameWithFriend();
 		
 		newGameDialog.set(user.getFriends(), this, user.getXauth());
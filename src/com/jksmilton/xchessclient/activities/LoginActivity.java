@@ -1,18 +1,11 @@
 package com.jksmilton.xchessclient.activities;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.URL;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.res.Resources.NotFoundException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -22,6 +15,7 @@ import android.view.View;
 import android.widget.Toast;
 
 import com.jksmilton.xchessclient.R;
+import com.jksmilton.xchessclient.model.LocalStore;
 import com.jksmilton.xchessclient.model.URLAccessor;
 
 public class LoginActivity extends Activity {
@@ -93,53 +87,10 @@ public class LoginActivity extends Activity {
 		
 		@Override
 		protected Object doInBackground(Object... params) {
-			InputStream is = null;
-			String returnStr = "Fail";
 			withKey = (Boolean) params[1];
 			parentActivity = (Activity) params[2];
-			try {
-		        URL url = new URL((String) params[0]);
-		        Log.d("Connecting to : ", (String) params[0]);
-		        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-		        conn.setReadTimeout(10000 /* milliseconds */);
-		        conn.setConnectTimeout(15000 /* milliseconds */);
-		        conn.setRequestMethod("GET");
-		        conn.setDoInput(true);
-		        // Starts the query
-		        conn.connect();
-		        int response = conn.getResponseCode();
-		        Log.d("Login without key", "The response is: " + response);
-		        is = conn.getInputStream();
-
-		        // Convert the InputStream into a string
-		        returnStr = readIt(is);
-		        
-		       
-		        
-		    // Makes sure that the InputStream is closed after the app is
-		    // finished using it.
-		    } catch (MalformedURLException e) {
-				// TODO Auto-generated catch block
-				returnStr = "malformed URL";
-			} catch (NotFoundException e) {
-				// TODO Auto-generated catch block
-				returnStr = "not found";
-			} catch (ProtocolException e) {
-				// TODO Auto-generated catch block
-				returnStr = "protocol exception";
-			} catch (IOException e) {
-				returnStr = "IO Exception: " + e.getMessage();
-			} finally {
-		        if (is != null) {
-		            try {
-						is.close();
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-		        } 
-		    }
-			return returnStr;
+			Log.d("Connecting to : ", (String) params[0]);
+			return super.doInBackground(params);
 		}
 	
 		@Override
@@ -149,11 +100,7 @@ public class LoginActivity extends Activity {
 				
 				Log.d("Login json", (String) result);
 				
-				SharedPreferences sharedPref = parentActivity.getSharedPreferences(parentActivity.getResources().getString(R.string.user_data), MODE_PRIVATE);
-				SharedPreferences.Editor editor = sharedPref.edit();
-				
-				editor.putString(parentActivity.getResources().getString(R.string.userjson), (String) result);
-				editor.commit();
+				LocalStore.getInstance(parentActivity).saveUser((String) result);
 				
 				Intent startmain = new Intent(parentActivity, MainActivity.class);
 		        		        
@@ -2,11 +2,11 @@ package com.jksmilton.xchessclient.activities;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 
 import com.jksmilton.xchessclient.R;
+import com.jksmilton.xchessclient.model.LocalStore;
 
 public class LoginCallbackActivity extends Activity {
 
@@ -21,11 +21,7 @@ public class LoginCallbackActivity extends Activity {
 		
 		data = data.substring(9);
 		
-		SharedPreferences sharedPref = this.getSharedPreferences(getString(R.string.user_data), MODE_PRIVATE);
-		SharedPreferences.Editor editor = sharedPref.edit();
-		
-		editor.putString(getResources().getString(R.string.userjson), data);
-		editor.commit();
+		LocalStore.getInstance(this).saveUser(data);
 		
 		Log.d("Callback", data);
 		Intent mainIntent = new Intent(this, MainActivity.class);
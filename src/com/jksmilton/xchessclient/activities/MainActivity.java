@@ -1,7 +1,7 @@
 package com.jksmilton.xchessclient.activities;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -13,6 +13,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
@@ -29,13 +30,15 @@ import android.view.ViewGroup;
 import android.widget.ExpandableListView;
 import android.widget.Toast;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 import com.jksmilton.xchessclient.R;
 import com.jksmilton.xchessclient.listhandlers.FriendHandler;
 import com.jksmilton.xchessclient.listhandlers.GameHandler;
 import com.jksmilton.xchessclient.model.ChessUser;
 import com.jksmilton.xchessclient.model.Game;
-import com.jksmilton.xchessclient.model.URLAccessor;
+import com.jksmilton.xchessclient.model.JsonPayloads;
+import com.jksmilton.xchessclient.model.LocalStore;
+import com.jksmilton.xchessclient.model.SyncCoordinator;
 import com.jksmilton.xchessclient.model.XpandableListAdapter;
 
 public class MainActivity extends FragmentActivity implements
@@ -63,32 +66,21 @@ public class MainActivity extends FragmentActivity implements
 		super.onCreate(savedInstanceState);
 		
 		setContentView(R.layout.activity_main);
-		List<SectionFragment> fragments = new ArrayList<SectionFragment>();
 		// Set up the action bar.
-		final ActionBar actionBar = getActionBar();
-		actionBar.setNavigationMode(ActionBar.NAVIGATION_MODE_TABS);
+		getActionBar().setNavigationMode(ActionBar.NAVIGATION_MODE_TABS);
 		
-		SharedPreferences sharedPref = this.getSharedPreferences(getString(R.string.user_data), Context.MODE_PRIVATE);
+		// The sections are set up once the user is read from the local store
+		new LoadUser(LocalStore.getInstance(this)).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 		
-		String userStr =  sharedPref.getString(getResources().getString(R.string.userjson), "");
-		
-		Gson gson = new Gson();
+	}
+	
+	/**
+	 * Show the sections of a user read from the local store.
+	 */
+	private void showUser(ChessUser user){
 		
-		ChessUser user = gson.fromJson(userStr, ChessUser.class);
-				
-		if(user.getXauth().equals("xxx")) {
-			
-			String key = sharedPref.getString(getString(R.string.key), "");
-			user.setXauth(key);
-			
-		} else {
-			
-			String key = user.getXauth();
-			SharedPreferences.Editor editor = sharedPref.edit();
-			editor.putString(getString(R.string.key), key);
-			editor.commit();
-			
-		}
+		List<SectionFragment> fragments = new ArrayList<SectionFragment>();
+		final ActionBar actionBar = getActionBar();
 		
 		SectionFragment game = new GameSectionFragment();
 		SectionFragment friends = new FriendSectionFragment();
@@ -185,13 +177,94 @@ public class MainActivity extends FragmentActivity implements
 		switch(item.getItemId()){
 		
 		case R.id.action_refresh:
-			mSectionsPagerAdapter.updateFragments();
+			// Nothing to refresh until the user is read
+			if(mSectionsPagerAdapter != null)
+				mSectionsPagerAdapter.updateFragments();
 		
 		}
 		
 		return true;		
 	}
 
+	/**
+	 * Reads the user, with the games and friends, from the local store, then
+	 * sets up the sections to show them.
+	 */
+	private class LoadUser extends AsyncTask<Void, Void, ChessUser> {
+		
+		private LocalStore store;
+		
+		LoadUser(LocalStore store){
+			this.store = store;
+		}
+		
+		@Override
+		protected ChessUser doInBackground(Void... params) {
+			
+			SharedPreferences sharedPref = getSharedPreferences(getString(R.string.user_data), Context.MODE_PRIVATE);
+			ChessUser user = store.loadUser();
+			
+			if(user == null){
+				
+				// Data saved by earlier versions, before the local store; it is
+				// only dropped once the database holds the user
+				String userStr =  sharedPref.getString(getString(R.string.userjson), "");
+				
+				if(store.saveUserAndWait(userStr)){
+					sharedPref.edit().remove(getString(R.string.userjson)).commit();
+				}
+				
+				user = store.loadUser();
+				
+			}
+			
+			if(user == null){
+				return null;
+			}
+			
+			if(user.getXauth().equals("xxx")) {
+				
+				String key = sharedPref.getString(getString(R.string.key), "");
+				user.setXauth(key);
+				
+			} else {
+				
+				String key = user.getXauth();
+				SharedPreferences.Editor editor = sharedPref.edit();
+				editor.putString(getString(R.string.key), key);
+				editor.commit();
+				
+			}
+			
+			user.setGames(store.loadGames());
+			user.setFriends(store.loadFriends());
+			
+			return user;
+			
+		}
+		
+		@Override
+		protected void onPostExecute(ChessUser user) {
+			
+			if(isFinishing()){
+				return;
+			}
+			
+			// Nothing stored to show: the user has to log in again
+			if(user == null){
+				
+				startActivity(new Intent(MainActivity.this, LoginActivity.class));
+				finish();
+				return;
+				
+			}
+			
+			showUser(user);
+			
+		}
+		
+	}
+	
 	/**
 	 * A {@link FragmentPagerAdapter} that returns a fragment corresponding to
 	 * one of the sections/tabs/pages.
@@ -209,6 +282,14 @@ public class MainActivity extends FragmentActivity implements
 			activity = parentActivity;
 		}
 
+		public void redrawFragments(){
+			
+			for(SectionFragment f : fragments){
+				f.redraw();
+			}
+			
+		}
+		
 		public void updateFragments(){
 			
 			Log.d("Update Data", "Getting user data");
@@ -224,10 +305,22 @@ public class MainActivity extends FragmentActivity implements
 	        	
 	        } else {
 	        	String url = getResources().getString(R.string.login_key) + uKey + "/" + getResources().getString(R.string.appID);
-	            Updater accessor = new Updater();
 	            
-	            accessor.execute(url);
+	        	// The user and the lists of each fragment are fetched together;
+	        	// the fragments draw again when the user arrives
+	        	SyncCoordinator.getInstance().fetch(url, new SyncCoordinator.Parser() {
+					
+					@Override
+					public Object parse(JsonReader reader) throws IOException {
+						return ChessUser.read(reader);
+					}
+					
+				}, new Updater());
 	            
+	        	for(SectionFragment f : fragments){
+	        		if(f.isAdded())
+	        			f.update();
+	        	}
 	            
 	        }
 			
@@ -258,28 +351,29 @@ public class MainActivity extends FragmentActivity implements
 			return null;
 		}
 		
-		protected class Updater extends URLAccessor {
+		protected class Updater implements SyncCoordinator.Listener {
 			
 			@Override
-	        protected void onPostExecute(Object result) {
+	        public void onResult(Object result) {
 	            
-				Gson gson = new Gson();
+				if(!(result instanceof ChessUser)){
+					
+					Log.d("Update Data", result.toString());
+					return;
+					
+				}
 				
-				ChessUser user = gson.fromJson((String) result, ChessUser.class);
+				ChessUser user = (ChessUser) result;
 				user.setXauth(uKey);
 				
 				for(SectionFragment f : fragments){
 					
 					f.setUser(user);
-					f.update();
+					f.redraw();
 					
 				}
 				
-				SharedPreferences sharedPref = activity.getSharedPreferences(activity.getResources().getString(R.string.user_data), MODE_PRIVATE);
-				SharedPreferences.Editor editor = sharedPref.edit();
-				
-				editor.putString(getResources().getString(R.string.userjson), gson.toJson(user));
-				editor.commit();
+				LocalStore.getInstance(activity).saveUser(user);
 				
 	       }
 		
@@ -309,19 +403,65 @@ public class MainActivity extends FragmentActivity implements
 		}
 		
 		protected abstract View getView(LayoutInflater inflater, ViewGroup container);
+		
+		// The stored lists are shown until the fetch brings newer ones, or
+		// for good when offline
+		@Override
+		public void onViewCreated(View view, Bundle savedInstanceState) {
+			super.onViewCreated(view, savedInstanceState);
+			
+			redraw();
+			
+		}
 	
-		protected abstract void handleResult(String result);
+		protected abstract Object readResult(JsonReader reader) throws IOException;
 		
+		protected abstract void handleResult(Object result);
 		
-		protected class DataUpdater extends com.jksmilton.xchessclient.model.URLAccessor {
+		// The last list fetched, drawn again when the user changes; none is
+		// drawn as an empty list
+		private Object lastResult;
+		
+		/**
+		 * Fetch the list shown by the fragment; a fetch already under way is
+		 * joined rather than repeated.
+		 */
+		protected void fetch(String url){
 			
-			@Override
-	        protected void onPostExecute(Object result) {
-	            
-				handleResult((String) result);
+			SyncCoordinator.getInstance().fetch(url, new SyncCoordinator.Parser() {
 				
-	       }
+				@Override
+				public Object parse(JsonReader reader) throws IOException {
+					return readResult(reader);
+				}
+				
+			}, new SyncCoordinator.Listener() {
+				
+				@Override
+				public void onResult(Object result) {
+					
+					if(!(result instanceof List)){
+						return;
+					}
+					
+					lastResult = result;
+					
+					if(getView() != null){
+						handleResult(result);
+					}
+					
+				}
+				
+			});
+			
+		}
 		
+		protected void redraw(){
+			
+			if(getView() != null){
+				handleResult(lastResult != null ? lastResult : new ArrayList<Object>());
+			}
+			
 		}
 		
 		protected abstract void update();
@@ -366,13 +506,24 @@ public class MainActivity extends FragmentActivity implements
 			
 		}
 		
+		@Override
+		protected Object readResult(JsonReader reader) throws IOException {
+			
+			return JsonPayloads.readStrings(reader);
+			
+		}
+		
 		@Override		
-		protected void handleResult(String result) {
+		protected void handleResult(Object result) {
+			
+			if(!(result instanceof List)){
+				return;
+			}
 			
 			View rootView = this.getView();
-			Gson gson = new Gson();
 			
-			List<String> pendingRequests = Arrays.asList(gson.fromJson(result, String[].class));
+			@SuppressWarnings("unchecked")
+			List<String> pendingRequests = (List<String>) result;
 			
 			ExpandableListView listView = (ExpandableListView) rootView.findViewById(R.id.expandableListViewFriends);
 			
@@ -391,9 +542,8 @@ public class MainActivity extends FragmentActivity implements
 		@Override
 		protected void update() {
 
-			DataUpdater accessor = new DataUpdater();
 			String url = getResources().getString(R.string.jksmilton_pendingFriends) + user.getXauth() + "/" + getResources().getString(R.string.appID);
-			accessor.execute(url);
+			fetch(url);
 			
 		}
 		
@@ -417,12 +567,19 @@ public class MainActivity extends FragmentActivity implements
 		
 
 		@Override
-		protected void handleResult(String result) {
-			if(result.startsWith("[")){
+		protected Object readResult(JsonReader reader) throws IOException {
+			
+			return JsonPayloads.readGames(reader);
+			
+		}
+		
+		@Override
+		protected void handleResult(Object result) {
+			if(result instanceof List){
 				View rootView = this.getView();
-				Gson gson = new Gson();
 				
-				List<Game> pendingRequests = Arrays.asList(gson.fromJson(result, Game[].class));
+				@SuppressWarnings("unchecked")
+				List<Game> pendingRequests = (List<Game>) result;
 				
 				ExpandableListView listView = (ExpandableListView) rootView.findViewById(R.id.expandableListViewGames);
 				
@@ -466,9 +623,8 @@ public class MainActivity extends FragmentActivity implements
 		@Override
 		protected void update() {
 
-			DataUpdater accessor = new DataUpdater();
 			String url = getResources().getString(R.string.jksmilton_pendingGames) + user.getXauth() + "/" + getResources().getString(R.string.appID);
-			accessor.execute(url);
+			fetch(url);
 			
 		}
 
@@ -16,6 +16,8 @@ import com.jksmilton.xchessclient.javachess.jcBoard;
 import com.jksmilton.xchessclient.javachess.jcBoardEvaluator;
 import com.jksmilton.xchessclient.javachess.jcAISearchAgentMTDF;
 import com.jksmilton.xchessclient.javachess.jcTranspositionTable;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Random;
 
 
@@ -28,13 +30,17 @@ public abstract class jcAISearchAgent
   // A transposition table for this object
   jcTranspositionTable TransTable;
 
-  // A handle to the system's history table
+  // This agent's history table
   jcHistoryTable HistoryTable;
 
   // How will we assess position strengths?
   protected jcBoardEvaluator Evaluator;
   protected int FromWhosePerspective;
 
+  // Perfect knowledge of a few endgames, if available; the tables may be
+  // attached by another thread while a search runs
+  volatile jcBitbase Bitbases;
+
   // ID's for concrete subclasses; jcAISearchAgent works as a factory for its
   // concrete subclasses
   public static final int AISEARCH_ALPHABETA = 0;
@@ -59,20 +65,74 @@ public abstract class jcAISearchAgent
   // the value is equivalent to "mated by the opponent in 3 moves or less".
   protected static final int ALPHABETA_GIVEUP = -29995;
 
+  // Scores this close to the bounds are mates
+  protected static final int MATE_MARGIN = 100;
+
+  // The score of a position which the bitbases say is won, before adding
+  // the evaluation which steers the search towards mate: well above any
+  // evaluation, well below any mate score
+  protected static final int BITBASE_WIN = 10000;
+
   Random Rnd;
 
-  // Statistics
+  // Statistics, reset at the beginning of each iteration
   int NumRegularNodes;
   int NumQuiescenceNodes;
   int NumRegularTTHits;
   int NumQuiescenceTTHits;
   int NumRegularCutoffs;
+  int NumRegularFirstMoveCutoffs;
   int NumQuiescenceCutoffs;
+  int NumBitbaseHits;
+
+  // Distance from the root of the node being searched, and the greatest
+  // distance reached during the current iteration
+  int Ply;
+  int SelDepth;
+
+  // When the current iteration began, how many nodes had been searched by
+  // then, and how many the previous iteration took (0 if there was none)
+  long IterationStart;
+  long IterationStartNodes;
+  long LastIterationNodes;
+
+  // What was reported about the last completed iteration, if anything
+  jcSearchInfo LastIterationInfo;
 
   // A move counter, so that the agent knows when it can delete old stuff from
   // its transposition table
   int MoveCounter;
 
+  // Search limits.  When none has been set, each agent class decides on its
+  // own how much effort a move deserves; otherwise the search stops at the
+  // first limit reached (a value of 0 meaning "no limit")
+  protected boolean LimitsSet;
+  protected int MaxDepth;
+  protected long MaxNodes;
+  protected long MaxTime;
+
+  // The state of the current search: when it began, when it must end, how
+  // many nodes it has visited so far, and whether it has been cut short, in
+  // which case the results of the iteration in progress are worthless
+  protected long SearchStart;
+  protected long Deadline;
+  protected long NodesSearched;
+  protected boolean Aborted;
+
+  // Set by another thread to interrupt the search
+  private volatile boolean StopRequested;
+
+  // Limits are checked once every so many nodes
+  private static final int LIMIT_CHECK_INTERVAL = 1024;
+
+  // Whoever wants to follow the search's progress
+  protected jcSearchListener Listener;
+
+  // How many root moves the search must rank (1 for a normal search, more
+  // for analysis), and the ranking produced by the last search, best first
+  protected int MultiPV;
+  protected ArrayList<jcMove> RootMoves;
+
   /***************************************************************************
    * PUBLIC METHODS
    **************************************************************************/
@@ -80,11 +140,21 @@ public abstract class jcAISearchAgent
   // Construction
   public jcAISearchAgent()
   {
-    TransTable = new jcTranspositionTable();
-    HistoryTable = jcHistoryTable.GetInstance();
+    this( 0 );
+  }
+
+  // Construction with a transposition table of about the given size, in
+  // megabytes, instead of the default one; 0 for the default
+  public jcAISearchAgent( int hashMegabytes )
+  {
+    TransTable = ( hashMegabytes > 0 ) ? new jcTranspositionTable( HashEntries( hashMegabytes ) )
+                                       : new jcTranspositionTable();
+    HistoryTable = new jcHistoryTable();
     Evaluator = new jcBoardEvaluator();
     Rnd = new Random();
     MoveCounter = 0;
+    MultiPV = 1;
+    RootMoves = new ArrayList<jcMove>();
   }
 
   public jcAISearchAgent( jcBoardEvaluator eval )
@@ -103,6 +173,145 @@ public abstract class jcAISearchAgent
     return true;
   }
 
+  // boolean AttachBitbases( jcBitbase tables )
+  // Let the search look up the positions covered by a set of endgame tables
+  // instead of searching them; may be called during a search, which uses
+  // the tables from then on
+  public boolean AttachBitbases( jcBitbase tables )
+  {
+    Bitbases = tables;
+    return true;
+  }
+
+  // boolean SetSearchLimits( int maxDepth, long maxNodes, long maxTime )
+  // Bound the effort spent on the next searches: a maximum nominal depth, a
+  // number of nodes and a time in milliseconds, 0 meaning no limit (so that
+  // all zeroes means "search until stopped").  Also forgets any earlier stop
+  // request, so call it before starting the search which may be stopped
+  public boolean SetSearchLimits( int maxDepth, long maxNodes, long maxTime )
+  {
+    LimitsSet = true;
+    MaxDepth = maxDepth;
+    MaxNodes = maxNodes;
+    MaxTime = maxTime;
+    StopRequested = false;
+    return true;
+  }
+
+  // boolean ClearSearchLimits()
+  // Let the agent decide on its own effort again
+  public boolean ClearSearchLimits()
+  {
+    LimitsSet = false;
+    StopRequested = false;
+    return true;
+  }
+
+  // void Stop()
+  // Ask a search running on another thread to return as soon as possible,
+  // with the best move of the last completed iteration
+  public void Stop()
+  {
+    StopRequested = true;
+  }
+
+  // void CancelStop()
+  // Forget a stop request, so that the next search runs normally without
+  // disturbing the limits set for it
+  public void CancelStop()
+  {
+    StopRequested = false;
+  }
+
+  // jcMove GuessReply( jcBoard theBoard )
+  // The opponent's most likely answer in a position reached by the move the
+  // agent just chose, as far as the last search knows: the best move stored
+  // for it in the transposition table, if it is legal; null otherwise
+  public jcMove GuessReply( jcBoard theBoard )
+  {
+    jcMove stored = new jcMove();
+    if ( !TransTable.LookupBestMove( theBoard, stored ) )
+      return null;
+    ArrayList<jcMove> line = GetPrincipalVariation( theBoard, stored, 1 );
+    return line.isEmpty() ? null : line.get( 0 );
+  }
+
+  // boolean SetMultiPV( int lines )
+  // Ask the next searches to find the best "lines" root moves with their
+  // exact scores, instead of just the best one.  Each line is reported to
+  // the listener separately
+  public boolean SetMultiPV( int lines )
+  {
+    MultiPV = Math.max( 1, lines );
+    return true;
+  }
+
+  // ArrayList<jcMove> GetBestMoves()
+  // The root moves ranked by the last search, best first, each with its
+  // score in MoveEvaluation; as many as SetMultiPV asked for, fewer if
+  // there were not that many legal moves or if the search was stopped
+  // before it could rank them all
+  public ArrayList<jcMove> GetBestMoves()
+  {
+    return RootMoves;
+  }
+
+  // ArrayList<jcMove> PickBestMoves( jcBoard theBoard, int count )
+  // Convenience for hints and post-game analysis: search with "count"
+  // lines, and return the ranking
+  public ArrayList<jcMove> PickBestMoves( jcBoard theBoard, int count )
+  {
+    int saved = MultiPV;
+    SetMultiPV( count );
+    PickBestMove( theBoard );
+    MultiPV = saved;
+    return GetBestMoves();
+  }
+
+  // boolean SetSearchListener( jcSearchListener listener )
+  // Receive a report after each completed iteration; null to stop
+  public boolean SetSearchListener( jcSearchListener listener )
+  {
+    Listener = listener;
+    return true;
+  }
+
+  // boolean SetHashSize( int megabytes )
+  // Replace the transposition table by an empty one of about the given size
+  public boolean SetHashSize( int megabytes )
+  {
+    TransTable = null;
+    TransTable = new jcTranspositionTable( HashEntries( megabytes ) );
+    return true;
+  }
+
+  // static int HashEntries( int megabytes )
+  // The number of transposition table entries which fit in a size
+  static int HashEntries( int megabytes )
+  {
+    return (int) Math.min( Integer.MAX_VALUE, ( (long) megabytes << 20 ) / jcTranspositionTable.ENTRY_BYTES );
+  }
+
+  // boolean Reset()
+  // Forget everything learned from earlier searches, so that the agent can
+  // take on an unrelated game.  This is cheap: the transposition table is
+  // emptied by starting a new generation of entries
+  public boolean Reset()
+  {
+    TransTable.Clear();
+    HistoryTable.Forget();
+    MoveCounter = 0;
+    ClearSearchLimits();
+    Listener = null;
+    MultiPV = 1;
+    return true;
+  }
+
+  // Accessors
+  public long GetNodesSearched() { return NodesSearched; }
+  public int GetHashFull() { return TransTable.GetHashFull( MoveCounter ); }
+  public long GetHashBytes() { return TransTable.GetMemoryBytes(); }
+
   // int AlphaBeta
   // The basic alpha-beta algorithm, used in one disguise or another by
   // every search agent class
@@ -113,6 +322,10 @@ public abstract class jcAISearchAgent
 
     // Count the number of nodes visited in the full-width search
     NumRegularNodes++;
+    if ( Ply > SelDepth )
+      SelDepth = Ply;
+    if ( CountNode() )
+      return 0;
 
     // First things first: let's see if there is already something useful
     // in the transposition table, which might save us from having to search
@@ -145,6 +358,25 @@ public abstract class jcAISearchAgent
       }
     }
 
+    // Positions found in the endgame bitbases need no more search when they
+    // are drawn or mated, whatever the depth.  A won or lost position is only
+    // scored from the bitbases at the horizon, instead of by the quiescence
+    // search: above it, the search goes on, so that each iteration looks
+    // further along the way to the mate than the one before
+    jcBitbase tables = Bitbases;
+    if ( tables != null )
+    {
+      int probe = tables.Probe( theBoard );
+      if ( probe == jcBitbase.PROBE_ILLEGAL )
+        return ALPHABETA_ILLEGAL;
+      if ( ( probe == jcBitbase.PROBE_DRAW ) || ( probe == jcBitbase.PROBE_CHECKMATED ) ||
+           ( ( probe != jcBitbase.PROBE_UNKNOWN ) && ( depth == 0 ) ) )
+      {
+        NumBitbaseHits++;
+        return BitbaseScore( nodeType, theBoard, probe, depth );
+      }
+    }
+
     // If we have reached the maximum depth of the search, stop recursion
     // and begin quiescence search
     if ( depth == 0 )
@@ -171,6 +403,8 @@ public abstract class jcAISearchAgent
     // OK, now, get ready to search
     jcBoard newBoard = new jcBoard();
     int bestSoFar;
+    jcMove bestMove = null;
+    int legalMoves = 0;
 
     // Case #1: We are searching a Max Node
     if ( nodeType == jcAISearchAgent.MAXNODE )
@@ -186,11 +420,16 @@ public abstract class jcAISearchAgent
         newBoard.ApplyMove( mov );
 
         // And search it in turn
+        Ply++;
         int movScore = AlphaBeta( !nodeType, newBoard, depth - 1, currentAlpha,
                                   beta );
+        Ply--;
+        if ( Aborted )
+          return 0;
         // Ignore illegal moves in the alphabeta evaluation
         if ( movScore == ALPHABETA_ILLEGAL )
           continue;
+        legalMoves++;
 
         currentAlpha = Math.max( currentAlpha, movScore );
 
@@ -198,15 +437,18 @@ public abstract class jcAISearchAgent
         if ( movScore > bestSoFar )
         {
           bestSoFar = movScore;
+          bestMove = mov;
           // Can we cutoff now?
           if ( bestSoFar >= beta )
           {
             // Store this best move in the TransTable
-            TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_UPPERBOUND, depth, MoveCounter );
+            TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_UPPERBOUND, depth, MoveCounter, mov );
 
             // Add this move's efficiency in the HistoryTable
             HistoryTable.AddCount( theBoard.GetCurrentPlayer(), mov );
             NumRegularCutoffs++;
+            if ( legalMoves == 1 )
+              NumRegularFirstMoveCutoffs++;
             return bestSoFar;
           }
         }
@@ -246,20 +488,28 @@ public abstract class jcAISearchAgent
         newBoard.Clone( theBoard );
         newBoard.ApplyMove( mov );
 
+        Ply++;
         int movScore = AlphaBeta( !nodeType, newBoard, depth - 1, alpha,
                                   currentBeta );
+        Ply--;
+        if ( Aborted )
+          return 0;
         if ( movScore == ALPHABETA_ILLEGAL )
           continue;
+        legalMoves++;
         currentBeta = Math.min( currentBeta, movScore );
         if ( movScore < bestSoFar )
         {
           bestSoFar = movScore;
+          bestMove = mov;
           // Cutoff?
           if ( bestSoFar <= alpha )
           {
-            TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_UPPERBOUND, depth, MoveCounter );
+            TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_UPPERBOUND, depth, MoveCounter, mov );
             HistoryTable.AddCount( theBoard.GetCurrentPlayer(), mov );
             NumRegularCutoffs++;
+            if ( legalMoves == 1 )
+              NumRegularFirstMoveCutoffs++;
             return bestSoFar;
           }
         }
@@ -280,7 +530,7 @@ public abstract class jcAISearchAgent
 
     // If we haven't returned yet, we have found an accurate minimax score
     // for a position which is neither a checkmate nor a stalemate
-    TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_ACCURATE, depth, MoveCounter );
+    TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_ACCURATE, depth, MoveCounter, bestMove );
     return bestSoFar;
   }
 
@@ -296,6 +546,10 @@ public abstract class jcAISearchAgent
   {
     jcMove mov = new jcMove();
     NumQuiescenceNodes++;
+    if ( Ply > SelDepth )
+      SelDepth = Ply;
+    if ( CountNode() )
+      return 0;
 
     // First things first: let's see if there is already something useful
     // in the transposition table, which might save us from having to search
@@ -364,7 +618,11 @@ public abstract class jcAISearchAgent
         newBoard.ApplyMove( mov );
 
         // And search it in turn
+        Ply++;
         int movScore = QuiescenceSearch( !nodeType, newBoard, currentAlpha, beta );
+        Ply--;
+        if ( Aborted )
+          return 0;
         // Ignore illegal moves in the alphabeta evaluation
         if ( movScore == ALPHABETA_ILLEGAL )
           continue;
@@ -418,7 +676,11 @@ public abstract class jcAISearchAgent
         newBoard.Clone( theBoard );
         newBoard.ApplyMove( mov );
 
+        Ply++;
         int movScore = QuiescenceSearch( !nodeType, newBoard, alpha, currentBeta );
+        Ply--;
+        if ( Aborted )
+          return 0;
         if ( movScore == ALPHABETA_ILLEGAL )
           continue;
         currentBeta = Math.min( currentBeta, movScore );
@@ -456,15 +718,240 @@ public abstract class jcAISearchAgent
   }
 
 
+  // void StartSearch()
+  // Reset the per-search counters and compute the deadline; to be called by
+  // PickBestMove before the first iteration
+  protected void StartSearch()
+  {
+    SearchStart = System.currentTimeMillis();
+    Deadline = ( LimitsSet && MaxTime > 0 ) ? SearchStart + MaxTime : Long.MAX_VALUE;
+    NodesSearched = 0;
+    IterationStartNodes = 0;
+    LastIterationInfo = null;
+    RootMoves = new ArrayList<jcMove>();
+    Aborted = false;
+  }
+
+  // void StartIteration()
+  // Reset the per-iteration statistics; to be called by PickBestMove before
+  // each iteration
+  protected void StartIteration()
+  {
+    NumRegularNodes = 0; NumQuiescenceNodes = 0;
+    NumRegularTTHits = 0; NumQuiescenceTTHits = 0;
+    NumRegularCutoffs = 0; NumRegularFirstMoveCutoffs = 0;
+    NumQuiescenceCutoffs = 0; NumBitbaseHits = 0;
+    Ply = 0;
+    SelDepth = 0;
+    IterationStart = System.currentTimeMillis();
+    LastIterationNodes = NodesSearched - IterationStartNodes;
+    IterationStartNodes = NodesSearched;
+  }
+
+  // boolean CountNode()
+  // Count a node, check the limits every so often, and return true if the
+  // search must be abandoned
+  protected boolean CountNode()
+  {
+    if ( ( ++NodesSearched % LIMIT_CHECK_INTERVAL ) == 0 )
+    {
+      if ( StopRequested ||
+           ( LimitsSet && MaxNodes > 0 && NodesSearched >= MaxNodes ) ||
+           ( System.currentTimeMillis() >= Deadline ) )
+        Aborted = true;
+    }
+    return Aborted;
+  }
+
+  // ArrayList<jcMove> GetPrincipalVariation( jcBoard theBoard, jcMove first, int maxLength )
+  // Follow the best moves stored in the transposition table, starting with
+  // a given move, as long as they are legal and do not repeat a position
+  public ArrayList<jcMove> GetPrincipalVariation( jcBoard theBoard, jcMove first, int maxLength )
+  {
+    ArrayList<jcMove> pv = new ArrayList<jcMove>();
+    jcBoard board = new jcBoard();
+    board.Clone( theBoard );
+    jcMoveListGenerator successors = new jcMoveListGenerator();
+    HashSet<Long> seen = new HashSet<Long>();
+    jcMove wanted = first;
+    jcMove stored = new jcMove();
+    while ( wanted != null && pv.size() < maxLength )
+    {
+      // Find the legal move matching the stored one
+      jcMove found = null;
+      if ( successors.ComputeStrictlyLegalMoves( board ) )
+      {
+        jcMove mov;
+        while( ( mov = successors.Next() ) != null )
+        {
+          if ( mov.SourceSquare == wanted.SourceSquare && mov.DestinationSquare == wanted.DestinationSquare &&
+               mov.MoveType == wanted.MoveType )
+          {
+            found = mov;
+            break;
+          }
+        }
+      }
+      if ( found == null )
+        break;
+      pv.add( found );
+      board.ApplyMove( found );
+      if ( !seen.add( ( (long) board.HashKey() << 32 ) | ( board.HashLock() & 0xFFFFFFFFL ) ) )
+        break;
+      wanted = TransTable.LookupBestMove( board, stored ) ? stored : null;
+    }
+    return pv;
+  }
+
+  // void ReportProgress( jcBoard theBoard, jcMove best, int depth )
+  // Tell the listener, if any, about a completed iteration
+  protected void ReportProgress( jcBoard theBoard, jcMove best, int depth )
+  {
+    ReportProgress( theBoard, best, depth, 1 );
+  }
+
+  // void ReportProgress( jcBoard theBoard, jcMove best, int depth, int line )
+  // The same, for one of the lines of a MultiPV search (1 for the best)
+  protected void ReportProgress( jcBoard theBoard, jcMove best, int depth, int line )
+  {
+    if ( Listener == null )
+      return;
+    long iterationNodes = NodesSearched - IterationStartNodes;
+    jcSearchInfo info = new jcSearchInfo();
+    info.MultiPV = line;
+    info.Depth = depth;
+    info.SelDepth = Math.max( depth, SelDepth );
+    info.Score = best.MoveEvaluation;
+    if ( Math.abs( info.Score ) >= ALPHABETA_MAXVAL - MATE_MARGIN )
+    {
+      // Mate scores carry the remaining depth at which the mate was seen,
+      // added to MAXVAL for a win and to MINVAL for a loss
+      int remaining = ( info.Score > 0 ) ? info.Score - ALPHABETA_MAXVAL : info.Score - ALPHABETA_MINVAL;
+      int plies = Math.max( 1, depth - Math.max( 0, remaining ) );
+      info.MateIn = ( info.Score > 0 ) ? ( plies + 1 ) / 2 : -( plies / 2 );
+    }
+    info.Nodes = NodesSearched;
+    info.TimeMillis = System.currentTimeMillis() - SearchStart;
+    info.NodesPerSecond = NodesSearched * 1000 / Math.max( 1, info.TimeMillis );
+    info.HashFull = GetHashFull();
+    info.RegularNodes = NumRegularNodes;
+    info.QuiescenceNodes = NumQuiescenceNodes;
+    info.IterationMillis = System.currentTimeMillis() - IterationStart;
+    info.BranchingFactor = ( LastIterationNodes > 0 ) ? (double) iterationNodes / LastIterationNodes : 0;
+    info.TTHitRate = Ratio( NumRegularTTHits + NumQuiescenceTTHits, NumRegularNodes + NumQuiescenceNodes );
+    info.CutoffRate = Ratio( NumRegularCutoffs, NumRegularNodes );
+    info.FirstMoveCutoffRate = Ratio( NumRegularFirstMoveCutoffs, NumRegularCutoffs );
+    info.BitbaseHits = NumBitbaseHits;
+    info.PrincipalVariation = GetPrincipalVariation( theBoard, best, Math.max( depth, 1 ) * 2 );
+    if ( line == 1 )
+      LastIterationInfo = info;
+    Listener.SearchProgress( info );
+  }
+
+  // void ReportCompletion( jcBoard theBoard, jcMove played )
+  // Tell the listener, if any, that the search is over: the last completed
+  // iteration, brought up to date with the totals for the whole search
+  protected void ReportCompletion( jcBoard theBoard, jcMove played )
+  {
+    if ( Listener == null )
+      return;
+    jcSearchInfo info;
+    if ( LastIterationInfo != null )
+      info = new jcSearchInfo( LastIterationInfo );
+    else
+    {
+      info = new jcSearchInfo();
+      if ( played != null )
+        info.PrincipalVariation.add( played );
+    }
+    info.Nodes = NodesSearched;
+    info.TimeMillis = System.currentTimeMillis() - SearchStart;
+    info.NodesPerSecond = NodesSearched * 1000 / Math.max( 1, info.TimeMillis );
+    info.HashFull = GetHashFull();
+    Listener.SearchFinished( info );
+  }
+
+  // double Ratio( long part, long whole )
+  // A fraction which is 0 rather than NaN when there is nothing to divide
+  private static double Ratio( long part, long whole )
+  {
+    return ( whole > 0 ) ? (double) part / whole : 0;
+  }
+
+  // jcMove FallbackMove( jcBoard theBoard )
+  // Some legal move, for when a search is stopped before its first
+  // iteration completes; null if there is none
+  protected jcMove FallbackMove( jcBoard theBoard )
+  {
+    jcBoard board = new jcBoard();
+    board.Clone( theBoard );
+    jcMoveListGenerator successors = new jcMoveListGenerator();
+    if ( !successors.ComputeStrictlyLegalMoves( board ) )
+      return null;
+    HistoryTable.SortMoveList( successors, theBoard.GetCurrentPlayer() );
+    return successors.Next();
+  }
+
+  // int BitbaseScore
+  // Turn a bitbase probe result into a search score.  Mates are scored the
+  // way AlphaBeta scores them, draws are worth 0, and other wins are worth
+  // BITBASE_WIN plus a "mop-up" term which rewards pushing the defending
+  // king to the edge and approaching it, so that the search makes progress
+  // towards an actual mate instead of shuffling between won positions
+  private int BitbaseScore( boolean nodeType, jcBoard theBoard, int probe, int depth )
+  {
+    if ( probe == jcBitbase.PROBE_DRAW )
+      return 0;
+    if ( probe == jcBitbase.PROBE_CHECKMATED )
+      return ( ( nodeType == MAXNODE ) ? ALPHABETA_MINVAL : ALPHABETA_MAXVAL ) + depth;
+
+    int toMove = theBoard.GetCurrentPlayer();
+    int winner = ( probe == jcBitbase.PROBE_WIN ) ? toMove : ( toMove ^ 1 );
+    int winnerKing = Long.numberOfTrailingZeros( theBoard.GetBitBoard( jcBoard.KING + winner ) );
+    int loserKing = Long.numberOfTrailingZeros( theBoard.GetBitBoard( jcBoard.KING + ( winner ^ 1 ) ) );
+    int loserRank = loserKing >> 3, loserFile = loserKing & 7;
+    int edge = Math.max( 3 - loserRank, loserRank - 4 ) + Math.max( 3 - loserFile, loserFile - 4 );
+    int distance = Math.max( Math.abs( loserRank - ( winnerKing >> 3 ) ), Math.abs( loserFile - ( winnerKing & 7 ) ) );
+    int score = BITBASE_WIN + 20 * edge - 10 * distance +
+                Evaluator.EvaluateComplete( theBoard, winner );
+    return ( winner == FromWhosePerspective ) ? score : -score;
+  }
+
+  // boolean IsExactRootScore
+  // Whether a score found for the root position cannot change with a deeper
+  // search: the bitbases know the position, and it is a draw or the score is
+  // a mate.  Iterative deepening stops there, since the following
+  // iterations, however deep, would find the same answer
+  protected boolean IsExactRootScore( jcBoard theBoard, int score )
+  {
+    jcBitbase tables = Bitbases;
+    if ( tables == null )
+      return false;
+    int probe = tables.Probe( theBoard );
+    if ( ( probe == jcBitbase.PROBE_UNKNOWN ) || ( probe == jcBitbase.PROBE_ILLEGAL ) )
+      return false;
+    return ( probe == jcBitbase.PROBE_DRAW ) || ( probe == jcBitbase.PROBE_CHECKMATED ) ||
+           ( Math.abs( score ) >= ALPHABETA_MAXVAL - MATE_MARGIN );
+  }
+
   // jcAISearchAgent MakeNewAgent
   // Standard "subclass factory" design pattern
   public static jcAISearchAgent MakeNewAgent( int type, jcOpeningBook ref )
+  {
+    return MakeNewAgent( type, ref, 0 );
+  }
+
+  // jcAISearchAgent MakeNewAgent
+  // The same, with a transposition table of about the given size, in
+  // megabytes (0 for the default), allocated once rather than replaced by
+  // a later call to SetHashSize
+  public static jcAISearchAgent MakeNewAgent( int type, jcOpeningBook ref, int hashMegabytes )
   {
     switch( type )
     {
       
       case AISEARCH_MTDF:
-        return( new jcAISearchAgentMTDF( ref ) );
+        return( new jcAISearchAgentMTDF( ref, hashMegabytes ) );
       default:
         return null;
     }
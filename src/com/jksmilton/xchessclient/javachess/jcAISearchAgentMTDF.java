@@ -5,12 +5,18 @@
  * techniques like the iterative-deepening MTDF search algorithm, transposition
  * table, opening book and history table.
  *
+ * In MultiPV mode, each iteration runs MTDF once per line, starting from the
+ * line's score in the previous iteration, with the root moves of the lines
+ * already found excluded; the transposition table filled by the first line
+ * makes the following ones much cheaper than separate searches.
+ *
  * History:
  * 05.10.00 Completed initial version
  **************************************************************************/
 
 package com.jksmilton.xchessclient.javachess;
 
+import java.util.ArrayList;
 import com.jksmilton.xchessclient.javachess.jcAISearchAgent;
 import com.jksmilton.xchessclient.javachess.jcBoard;
 import com.jksmilton.xchessclient.javachess.jcOpeningBook;
@@ -23,11 +29,27 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
   // A measure of the effort we are willing to expend on search
   private static final int MaxSearchSize = 50000;
 
+  // The deepest iteration ever started, even when the limits allow more:
+  // past it, iterations only repeat what the previous ones found
+  private static final int MaxIterationDepth = 64;
+
+  // Root moves which the search must ignore, because they belong to lines
+  // already found during the current MultiPV iteration
+  private ArrayList<jcMove> Excluded;
+
   // Construction
   public jcAISearchAgentMTDF( jcOpeningBook ref )
   {
-    super();
+    this( ref, 0 );
+  }
+
+  // Construction with a transposition table of about the given size, in
+  // megabytes; 0 for the default
+  public jcAISearchAgentMTDF( jcOpeningBook ref, int hashMegabytes )
+  {
+    super( hashMegabytes );
     Openings = ref;
+    Excluded = new ArrayList<jcMove>();
   }
 
   /****************************************************************************
@@ -38,12 +60,20 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
   public jcMove PickBestMove( jcBoard theBoard )
   {
     // First things first: look in the Opening Book, and if it contains a
-    // move for this position, don't search anything
+    // move for this position, don't search anything (unless we are asked
+    // for several lines, which the book cannot score)
     MoveCounter++;
     jcMove Mov = null;
-    Mov = Openings.Query( theBoard );
-    if ( Mov != null )
-      return Mov;
+    if ( Openings != null && MultiPV <= 1 )
+    {
+      Mov = Openings.Query( theBoard );
+      if ( Mov != null )
+      {
+        RootMoves = new ArrayList<jcMove>();
+        RootMoves.add( Mov );
+        return Mov;
+      }
+    }
 
     // Store the identity of the moving side, so that we can tell Evaluator
     // from whose perspective we need to evaluate positions
@@ -56,8 +86,13 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
     // Begin search.  The search's maximum depth is determined on the fly,
     // according to how much effort has been spent; if it's possible to search
     // to depth 8 in 5 seconds, then by all means, do it!
-    int bestGuess = 0;
+    // In MultiPV mode there cannot be more lines than legal moves; with
+    // no legal move at all, a single line finds the mate or stalemate
+    int lines = ( MultiPV > 1 ) ? Math.max( 1, Math.min( MultiPV, CountLegalMoves( theBoard ) ) ) : 1;
+    int bestGuess[] = new int[ lines ];
     int iterdepth = 1;
+    jcMove completed = null;
+    StartSearch();
 
     while( true )
     {
@@ -65,23 +100,63 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
       iterdepth++;
 
       // Compute efficiency statistics
-      NumRegularNodes = 0; NumQuiescenceNodes = 0;
-      NumRegularTTHits = 0; NumQuiescenceTTHits = 0;
-      NumRegularCutoffs = 0; NumQuiescenceCutoffs = 0;
-
-      // Look for a move at the current depth
-      Mov = MTDF( theBoard, bestGuess, iterdepth );
-      bestGuess = Mov.MoveEvaluation;
-
-      // Feedback!
-      System.out.print( "Iteration of depth " + iterdepth + "; best move = " );
-      Mov.Print();
-      System.out.print( "  --> Transposition Table hits for regular nodes: " );
-      System.out.println( NumRegularTTHits + " of " + NumRegularNodes );
-      System.out.print( "  --> Transposition Table hits for quiescence nodes: " );
-      System.out.println( NumQuiescenceTTHits + " of " + NumQuiescenceNodes );
-      System.out.println( "  --> Number of cutoffs for regular nodes: " + NumRegularCutoffs );
-      System.out.println( "  --> Number of cutoffs in quiescence search: " + NumQuiescenceCutoffs );
+      StartIteration();
+
+      // Look for a move at the current depth; if the search was interrupted,
+      // keep the result of the previous iteration
+      ArrayList<jcMove> found = new ArrayList<jcMove>();
+      for( int line = 0; line < lines; line++ )
+      {
+        // A new line's first guess is the score of the line above it
+        int guess = ( iterdepth == 2 && line > 0 ) ? bestGuess[ line - 1 ] : bestGuess[ line ];
+        Mov = MTDF( theBoard, guess, iterdepth );
+        if ( Aborted )
+          break;
+        bestGuess[ line ] = Mov.MoveEvaluation;
+        found.add( Mov );
+        Excluded.add( Mov );
+        if ( line == 0 )
+          completed = Mov;
+
+        // Feedback!
+        ReportProgress( theBoard, Mov, iterdepth, line + 1 );
+
+        // When the best move is to give up, there are no alternatives
+        if ( ( Mov.MoveType == jcMove.MOVE_RESIGN ) || ( Mov.MoveType == jcMove.MOVE_STALEMATE ) )
+          break;
+      }
+      Excluded.clear();
+
+      // The lines found by an interrupted iteration are better informed than
+      // those of the previous one, which only fill in the rest of the ranking
+      if ( Aborted )
+      {
+        for( int i = 0; i < RootMoves.size(); i++ )
+        {
+          if ( IndexOfRootMove( found, RootMoves.get( i ) ) < 0 )
+            found.add( RootMoves.get( i ) );
+        }
+      }
+      RootMoves = found;
+      if ( Aborted )
+        break;
+      Mov = completed;
+
+      // With explicit limits, go on until one of them is reached, or until
+      // there is nothing left to decide; the next iteration is unlikely to
+      // complete if half of the time is already spent
+      if ( LimitsSet )
+      {
+        if ( ( MaxDepth > 0 ) && ( iterdepth >= MaxDepth ) )
+          break;
+        if ( ( Mov.MoveType == jcMove.MOVE_RESIGN ) || ( Mov.MoveType == jcMove.MOVE_STALEMATE ) )
+          break;
+        if ( ( iterdepth >= MaxIterationDepth ) || IsExactRootScore( theBoard, Mov.MoveEvaluation ) )
+          break;
+        if ( ( MaxTime > 0 ) && ( System.currentTimeMillis() - SearchStart > MaxTime / 2 ) )
+          break;
+        continue;
+      }
 
       // Get out if we have searched deep enough
       if ( ( NumRegularNodes + NumQuiescenceNodes ) > MaxSearchSize )
@@ -90,13 +165,46 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
         break;
     }
 
-    return Mov;
+    if ( completed == null )
+    {
+      completed = FallbackMove( theBoard );
+      if ( completed != null && RootMoves.isEmpty() )
+        RootMoves.add( completed );
+    }
+    ReportCompletion( theBoard, completed );
+    return completed;
   }
 
   /***************************************************************************
    * PRIVATE METHODS
    **************************************************************************/
 
+  // private int CountLegalMoves
+  // The number of legal moves in a position
+  private int CountLegalMoves( jcBoard theBoard )
+  {
+    jcBoard board = new jcBoard();
+    board.Clone( theBoard );
+    jcMoveListGenerator successors = new jcMoveListGenerator();
+    if ( !successors.ComputeStrictlyLegalMoves( board ) )
+      return 0;
+    return successors.Size();
+  }
+
+  // private int IndexOfRootMove
+  // Where a root move appears in a list, or -1 if it does not
+  private static int IndexOfRootMove( ArrayList<jcMove> moves, jcMove target )
+  {
+    for( int i = 0; i < moves.size(); i++ )
+    {
+      jcMove mov = moves.get( i );
+      if ( mov.SourceSquare == target.SourceSquare && mov.DestinationSquare == target.DestinationSquare &&
+           mov.MoveType == target.MoveType )
+        return i;
+    }
+    return -1;
+  }
+
   // private jcMove MTDF
   // Use the MTDF algorithm to find a good move.  MTDF repeatedly calls
   // alphabeta with a zero-width search window, which creates very many quick
@@ -120,6 +228,8 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
         beta = currentEstimate;
 
       Mov = UnrolledAlphabeta( theBoard, depth, beta - 1, beta );
+      if ( Aborted )
+        break;
       currentEstimate = Mov.MoveEvaluation;
 
       if ( currentEstimate < beta )
@@ -152,15 +262,22 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
     int currentAlpha = alpha;
     jcMove mov;
 
-    // Loop on the successors
+    // Loop on the successors, skipping those which other lines own
     while( ( mov = movegen.Next() ) != null )
     {
+      if ( !Excluded.isEmpty() && IndexOfRootMove( Excluded, mov ) >= 0 )
+        continue;
+
       // Compute a board position resulting from the current successor
       newBoard.Clone( theBoard );
       newBoard.ApplyMove( mov );
 
       // And search it in turn
+      Ply++;
       int movScore = AlphaBeta( MINNODE, newBoard, depth - 1, currentAlpha, beta );
+      Ply--;
+      if ( Aborted )
+        return BestMov;
 
       // Ignore illegal moves in the alphabeta evaluation
       if ( movScore == ALPHABETA_ILLEGAL )
@@ -177,7 +294,9 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
         // Can we cutoff now?
         if ( bestSoFar >= beta )
         {
-          TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_UPPERBOUND, depth, MoveCounter );
+          // (Not when moves are excluded: the score is not the position's)
+          if ( Excluded.isEmpty() )
+            TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_UPPERBOUND, depth, MoveCounter, BestMov );
 
           // Add this move's efficiency in the HistoryTable
           HistoryTable.AddCount( theBoard.GetCurrentPlayer(), mov );
@@ -186,6 +305,11 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
       }
     }
 
+    // The remaining lines of a MultiPV search keep their moves, however
+    // bad: only the best line decides whether to give up
+    if ( !Excluded.isEmpty() )
+      return BestMov;
+
     // Test for checkmate or stalemate
     if ( bestSoFar <= ALPHABETA_GIVEUP )
     {
@@ -220,7 +344,8 @@ public class jcAISearchAgentMTDF extends jcAISearchAgent
 
     // If we haven't returned yet, we have found an accurate minimax score
     // for a position which is neither a checkmate nor a stalemate
-    TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_ACCURATE, depth, MoveCounter );
+    TransTable.StoreBoard( theBoard, bestSoFar, jcMove.EVALTYPE_ACCURATE, depth, MoveCounter,
+                           ( BestMov.MoveType < jcMove.MOVE_RESIGN || BestMov.MoveType > jcMove.MOVE_STALEMATE ) ? BestMov : null );
 
     return BestMov;
   }
@@ -0,0 +1,355 @@
+/****************************************************************************
+ * jcBitbase - Perfect knowledge of a few elementary endgames
+ *
+ * A bitbase holds one bit per position of an endgame with a lone defending
+ * king: set if the stronger side wins with best play, clear if the game is
+ * drawn.  The tables are computed once by jcBitbaseGenerator and stored in
+ * files, which are memory-mapped here; a probe reads a single byte, so the
+ * same tables may be shared by any number of searching threads without any
+ * locking.
+ *
+ * Positions are always stored with the stronger side as White (a position
+ * where Black is stronger is flipped vertically before the lookup), and with
+ * the stronger king on files a-d (the board is mirrored left-right when it
+ * is not; neither castling nor en passant is possible in these endings).
+ * The index of a position is then, from the most significant "digit" down:
+ * side to move (0 = stronger side, 1 = defender), stronger king square (one
+ * of 32), defending king square, and the square of each remaining piece.
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+
+/*****************************************************************************
+ * PUBLIC class jcBitbase
+ * A set of memory-mapped endgame tables, and the probing code
+ ****************************************************************************/
+
+public class jcBitbase
+{
+  // Probe results, from the point of view of the side to move
+  public static final int PROBE_UNKNOWN = -1;
+  public static final int PROBE_LOSS = 0;
+  public static final int PROBE_DRAW = 1;
+  public static final int PROBE_WIN = 2;
+  // A loss which has already happened: the side to move is checkmated
+  public static final int PROBE_CHECKMATED = 3;
+  // A position covered by the tables which cannot arise in a game, since the
+  // side to move could capture the enemy king
+  public static final int PROBE_ILLEGAL = 4;
+
+  // The endgames covered, in the order in which they must be generated:
+  // KPK relies on KQK and KRK to score promotions
+  public static final int CLASS_KQK = 0;
+  public static final int CLASS_KRK = 1;
+  public static final int CLASS_KBNK = 2;
+  public static final int CLASS_KPK = 3;
+  public static final int NUM_CLASSES = 4;
+
+  // File names, and the pieces which accompany the stronger king
+  static final String ClassNames[] = { "kqk", "krk", "kbnk", "kpk" };
+  static final int ClassPieces[][] = {
+    { jcBoard.QUEEN }, { jcBoard.ROOK }, { jcBoard.BISHOP, jcBoard.KNIGHT }, { jcBoard.PAWN } };
+
+  // File layout: a 16-byte header (magic number, format version, endgame
+  // class and number of positions, as big-endian ints) followed by the bits,
+  // eight positions per byte, lowest index in the lowest bit
+  static final int FILE_MAGIC = 0x4A434242;
+  static final int FILE_VERSION = 1;
+  static final int HEADER_SIZE = 16;
+
+  // Attack tables shared with the generator
+  static final long KingAttacks[] = new long[ 64 ];
+  static final long KnightAttacks[] = new long[ 64 ];
+  // Squares strictly between two squares on the same line, and what sort of
+  // line joins them: 0 for none, LINE_ORTHOGONAL or LINE_DIAGONAL
+  static final long Between[][] = new long[ 64 ][ 64 ];
+  static final byte LineType[][] = new byte[ 64 ][ 64 ];
+  static final byte LINE_ORTHOGONAL = 1;
+  static final byte LINE_DIAGONAL = 2;
+
+  static
+  {
+    for( int from = 0; from < 64; from++ )
+    {
+      int rank = from >> 3, file = from & 7;
+      for( int dr = -2; dr <= 2; dr++ )
+      {
+        for( int df = -2; df <= 2; df++ )
+        {
+          int r = rank + dr, f = file + df;
+          if ( r < 0 || r > 7 || f < 0 || f > 7 )
+            continue;
+          int adr = Math.abs( dr ), adf = Math.abs( df );
+          if ( adr <= 1 && adf <= 1 && ( adr + adf ) > 0 )
+            KingAttacks[ from ] |= 1L << ( r * 8 + f );
+          if ( adr + adf == 3 && adr > 0 && adf > 0 )
+            KnightAttacks[ from ] |= 1L << ( r * 8 + f );
+        }
+      }
+
+      // Walk the eight rays, accumulating the squares crossed on the way
+      for( int dir = 0; dir < 8; dir++ )
+      {
+        int dr = ( dir < 3 ) ? -1 : ( ( dir < 5 ) ? 0 : 1 );
+        int df = ( dir == 0 || dir == 3 || dir == 5 ) ? -1 : ( ( dir == 1 || dir == 6 ) ? 0 : 1 );
+        byte type = ( dr == 0 || df == 0 ) ? LINE_ORTHOGONAL : LINE_DIAGONAL;
+        long crossed = 0;
+        for( int r = rank + dr, f = file + df; r >= 0 && r < 8 && f >= 0 && f < 8; r += dr, f += df )
+        {
+          int to = r * 8 + f;
+          Between[ from ][ to ] = crossed;
+          LineType[ from ][ to ] = type;
+          crossed |= 1L << to;
+        }
+      }
+    }
+  }
+
+  // The mapped tables, null where no usable file was found
+  private ByteBuffer Tables[];
+
+  // Why the tables which could not be opened were left out
+  private ArrayList<String> Problems;
+
+  // The squares of the pieces of a probed position, one array per endgame
+  // class and per probing thread, so that a probe allocates nothing
+  private static final ThreadLocal<int[][]> PieceSquares = new ThreadLocal<int[][]>()
+  {
+    protected int[][] initialValue()
+    {
+      int squares[][] = new int[ NUM_CLASSES ][];
+      for( int cls = 0; cls < NUM_CLASSES; cls++ )
+        squares[ cls ] = new int[ ClassPieces[ cls ].length ];
+      return squares;
+    }
+  };
+
+  // Construction: no tables until Open is called
+  public jcBitbase()
+  {
+    Tables = new ByteBuffer[ NUM_CLASSES ];
+    Problems = new ArrayList<String>();
+  }
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // public int Open
+  // Map every table file found in a directory; return the number of tables
+  // available afterwards.  Each table is opened on its own: one which is
+  // missing or corrupt is left out, and the reason recorded in GetProblems,
+  // without keeping the others from being used
+  public int Open( File directory )
+  {
+    int found = 0;
+    for( int cls = 0; cls < NUM_CLASSES; cls++ )
+    {
+      File file = new File( directory, ClassNames[ cls ] + ".bb" );
+      if ( !file.exists() )
+        continue;
+      try
+      {
+        Tables[ cls ] = Map( file, cls );
+        found++;
+      }
+      catch( Exception e )
+      {
+        Problems.add( file + ": " + e.getMessage() );
+      }
+    }
+    return found;
+  }
+
+  // public ArrayList GetProblems
+  // The tables the last calls to Open had to leave out, and why
+  public ArrayList<String> GetProblems()
+  {
+    return Problems;
+  }
+
+  // public int Probe
+  // Look up a position.  Return PROBE_UNKNOWN if it is not covered by any
+  // of the tables, PROBE_ILLEGAL if it is but the side to move could capture
+  // the enemy king, otherwise the result for the side to move
+  public int Probe( jcBoard theBoard )
+  {
+    long white = theBoard.GetBitBoard( jcBoard.ALL_WHITE_PIECES );
+    long black = theBoard.GetBitBoard( jcBoard.ALL_BLACK_PIECES );
+    int count = Long.bitCount( white | black );
+    if ( count > 4 || count < 3 )
+      return PROBE_UNKNOWN;
+    if ( ( theBoard.GetExtraKings( jcPlayer.SIDE_WHITE ) | theBoard.GetExtraKings( jcPlayer.SIDE_BLACK ) ) != 0 )
+      return PROBE_UNKNOWN;
+
+    // Which side has the extra material?
+    int strong;
+    if ( Long.bitCount( black ) == 1 )
+      strong = jcPlayer.SIDE_WHITE;
+    else if ( Long.bitCount( white ) == 1 )
+      strong = jcPlayer.SIDE_BLACK;
+    else
+      return PROBE_UNKNOWN;
+
+    // Which table covers its pieces?
+    int cls = -1;
+    for( int c = 0; c < NUM_CLASSES && cls < 0; c++ )
+    {
+      if ( ClassPieces[ c ].length != count - 2 || Tables[ c ] == null )
+        continue;
+      cls = c;
+      for( int i = 0; i < ClassPieces[ c ].length; i++ )
+      {
+        if ( theBoard.GetBitBoard( ClassPieces[ c ][ i ] + strong ) == 0 )
+          cls = -1;
+      }
+    }
+    if ( cls < 0 )
+      return PROBE_UNKNOWN;
+
+    // Gather the squares, flipped so that the stronger side plays "up"
+    int flip = ( strong == jcPlayer.SIDE_WHITE ) ? 0 : 56;
+    int strongKing = Long.numberOfTrailingZeros( theBoard.GetBitBoard( jcBoard.KING + strong ) ) ^ flip;
+    int weakKing = Long.numberOfTrailingZeros( theBoard.GetBitBoard( jcBoard.KING + ( strong ^ 1 ) ) ) ^ flip;
+    int pieces[] = PieceSquares.get()[ cls ];
+    for( int i = 0; i < pieces.length; i++ )
+      pieces[ i ] = Long.numberOfTrailingZeros( theBoard.GetBitBoard( ClassPieces[ cls ][ i ] + strong ) ) ^ flip;
+    int stm = ( theBoard.GetCurrentPlayer() == strong ) ? 0 : 1;
+
+    // The tables do not cover positions where the side to move could
+    // capture the enemy king
+    if ( ( KingAttacks[ strongKing ] & ( 1L << weakKing ) ) != 0 )
+      return PROBE_ILLEGAL;
+    long occupied = ( 1L << strongKing ) | ( 1L << weakKing );
+    for( int i = 0; i < pieces.length; i++ )
+      occupied |= 1L << pieces[ i ];
+    boolean weakInCheck = IsAttacked( cls, pieces, weakKing, occupied );
+    if ( stm == 0 && weakInCheck )
+      return PROBE_ILLEGAL;
+
+    int index = Index( cls, stm, strongKing, weakKing, pieces );
+    int bit = Tables[ cls ].get( HEADER_SIZE + ( index >>> 3 ) ) & ( 1 << ( index & 7 ) );
+    if ( bit == 0 )
+      return PROBE_DRAW;
+    if ( stm == 0 )
+      return PROBE_WIN;
+
+    // The defender is lost; is it already mated?
+    if ( weakInCheck && !HasKingMove( cls, pieces, strongKing, weakKing, occupied ) )
+      return PROBE_CHECKMATED;
+    return PROBE_LOSS;
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  // private ByteBuffer Map
+  // Map a table file, after checking that it holds the expected table
+  private static ByteBuffer Map( File file, int cls ) throws Exception
+  {
+    RandomAccessFile raf = new RandomAccessFile( file, "r" );
+    try
+    {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer table = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+      if ( table.limit() < HEADER_SIZE + ( Size( cls ) + 7 ) / 8 ||
+           table.getInt( 0 ) != FILE_MAGIC || table.getInt( 4 ) != FILE_VERSION ||
+           table.getInt( 8 ) != cls || table.getInt( 12 ) != Size( cls ) )
+        throw new Exception( "Corrupt bitbase " + file );
+      return table;
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  /***************************************************************************
+   * PACKAGE METHODS
+   * Shared with the generator
+   **************************************************************************/
+
+  // static int Size
+  // The number of positions in a table
+  static int Size( int cls )
+  {
+    int size = 2 * 32 * 64;
+    for( int i = 0; i < ClassPieces[ cls ].length; i++ )
+      size *= 64;
+    return size;
+  }
+
+  // static int Index
+  // The index of a position, with the stronger side as White; mirrors the
+  // board left-right as needed
+  static int Index( int cls, int stm, int strongKing, int weakKing, int pieces[] )
+  {
+    int mirror = ( ( strongKing & 7 ) >= 4 ) ? 7 : 0;
+    strongKing ^= mirror;
+    int index = ( stm * 32 + ( strongKing >> 3 ) * 4 + ( strongKing & 7 ) ) * 64 + ( weakKing ^ mirror );
+    for( int i = 0; i < pieces.length; i++ )
+      index = index * 64 + ( pieces[ i ] ^ mirror );
+    return index;
+  }
+
+  // static boolean Attacks
+  // Whether a piece of the stronger side (playing "up" the board) attacks a
+  // square, given the occupied squares
+  static boolean Attacks( int pieceType, int from, int target, long occupied )
+  {
+    switch( pieceType )
+    {
+      case jcBoard.KNIGHT:
+        return ( KnightAttacks[ from ] & ( 1L << target ) ) != 0;
+      case jcBoard.BISHOP:
+        return ( LineType[ from ][ target ] == LINE_DIAGONAL ) && ( ( Between[ from ][ target ] & occupied ) == 0 );
+      case jcBoard.ROOK:
+        return ( LineType[ from ][ target ] == LINE_ORTHOGONAL ) && ( ( Between[ from ][ target ] & occupied ) == 0 );
+      case jcBoard.QUEEN:
+        return ( LineType[ from ][ target ] != 0 ) && ( ( Between[ from ][ target ] & occupied ) == 0 );
+      case jcBoard.PAWN:
+        return ( ( target == from - 9 ) && ( ( from & 7 ) != 0 ) ) ||
+               ( ( target == from - 7 ) && ( ( from & 7 ) != 7 ) );
+      default:
+        return ( KingAttacks[ from ] & ( 1L << target ) ) != 0;
+    }
+  }
+
+  // static boolean IsAttacked
+  // Whether any of the stronger side's pieces, other than the king, attacks
+  // a square; a piece standing on the square itself is ignored, since it
+  // would be the one captured there
+  static boolean IsAttacked( int cls, int pieces[], int target, long occupied )
+  {
+    for( int i = 0; i < pieces.length; i++ )
+    {
+      if ( pieces[ i ] != target && Attacks( ClassPieces[ cls ][ i ], pieces[ i ], target, occupied ) )
+        return true;
+    }
+    return false;
+  }
+
+  // static boolean HasKingMove
+  // Whether the defending king has any legal move, capture or not
+  static boolean HasKingMove( int cls, int pieces[], int strongKing, int weakKing, long occupied )
+  {
+    long targets = KingAttacks[ weakKing ] & ~KingAttacks[ strongKing ] & ~( 1L << strongKing );
+    long vacated = occupied & ~( 1L << weakKing );
+    while ( targets != 0 )
+    {
+      int to = Long.numberOfTrailingZeros( targets );
+      targets &= targets - 1;
+      if ( !IsAttacked( cls, pieces, to, vacated ) )
+        return true;
+    }
+    return false;
+  }
+}
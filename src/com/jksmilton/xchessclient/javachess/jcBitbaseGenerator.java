@@ -0,0 +1,363 @@
+/****************************************************************************
+ * jcBitbaseGenerator - Computes the endgame tables probed by jcBitbase
+ *
+ * A command-line tool: it solves each endgame by retrograde analysis, i.e.
+ * by starting from the positions whose outcome is known outright (mates,
+ * stalemates, defender captures a piece, promotions) and repeatedly sweeping
+ * the table, marking as won every position where the stronger side has a
+ * move to a won position, or where every move of the defender leads to one,
+ * until a sweep changes nothing.  Whatever is left unmarked is a draw.
+ *
+ * Each sweep is split in slices which are processed in parallel.  Slices
+ * may read positions which another thread is updating at the same moment;
+ * this is harmless, because a position only ever goes from "unknown" to a
+ * final value, so a stale read merely postpones a result to the next sweep.
+ *
+ * Usage:
+ *   jcBitbaseGenerator outputDirectory [threads]
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/*****************************************************************************
+ * PUBLIC class jcBitbaseGenerator
+ ****************************************************************************/
+
+public class jcBitbaseGenerator
+{
+  // Position states during generation
+  private static final byte STATE_UNKNOWN = 0;
+  private static final byte STATE_WIN = 1;
+  private static final byte STATE_DRAW = 2;
+
+  // Number of slices per sweep, per thread, for load balancing
+  private static final int SLICES_PER_THREAD = 8;
+
+  // The threads doing the work
+  private ExecutorService Workers;
+  private int NumThreads;
+
+  // The tables solved so far, kept to score the promotions in KPK
+  private byte Solved[][];
+
+  // Construction
+  public jcBitbaseGenerator( int numThreads )
+  {
+    NumThreads = numThreads;
+    Workers = Executors.newFixedThreadPool( numThreads );
+    Solved = new byte[ jcBitbase.NUM_CLASSES ][];
+  }
+
+  public static void main( String args[] ) throws Exception
+  {
+    if ( args.length < 1 )
+    {
+      System.err.println( "Usage: jcBitbaseGenerator outputDirectory [threads]" );
+      System.exit( 1 );
+    }
+    File directory = new File( args[ 0 ] );
+    directory.mkdirs();
+    int threads = ( args.length > 1 ) ? Integer.parseInt( args[ 1 ] ) : Runtime.getRuntime().availableProcessors();
+
+    jcBitbaseGenerator generator = new jcBitbaseGenerator( threads );
+    try
+    {
+      for( int cls = 0; cls < jcBitbase.NUM_CLASSES; cls++ )
+      {
+        long start = System.currentTimeMillis();
+        int wins = generator.Generate( cls );
+        generator.Write( cls, new File( directory, jcBitbase.ClassNames[ cls ] + ".bb" ) );
+        System.out.println( jcBitbase.ClassNames[ cls ] + ": " + wins + " wins out of " +
+                            jcBitbase.Size( cls ) + " positions in " +
+                            ( System.currentTimeMillis() - start ) + " ms" );
+      }
+    }
+    finally
+    {
+      generator.Shutdown();
+    }
+  }
+
+  // public int Generate
+  // Solve one endgame; return the number of won positions
+  public int Generate( final int cls ) throws Exception
+  {
+    final byte state[] = new byte[ jcBitbase.Size( cls ) ];
+    Solved[ cls ] = state;
+
+    // First, the positions which can be decided without looking ahead
+    Sweep( cls, state, true );
+
+    // Then propagate the wins until nothing moves
+    while( Sweep( cls, state, false ) > 0 )
+      ;
+
+    int wins = 0;
+    for( int i = 0; i < state.length; i++ )
+    {
+      if ( state[ i ] == STATE_WIN )
+        wins++;
+    }
+    return wins;
+  }
+
+  // public void Write
+  // Save a solved table in the format expected by jcBitbase
+  public void Write( int cls, File fileName ) throws Exception
+  {
+    byte state[] = Solved[ cls ];
+    byte bits[] = new byte[ ( state.length + 7 ) / 8 ];
+    for( int i = 0; i < state.length; i++ )
+    {
+      if ( state[ i ] == STATE_WIN )
+        bits[ i >>> 3 ] |= (byte) ( 1 << ( i & 7 ) );
+    }
+    DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( fileName ) ) );
+    out.writeInt( jcBitbase.FILE_MAGIC );
+    out.writeInt( jcBitbase.FILE_VERSION );
+    out.writeInt( cls );
+    out.writeInt( state.length );
+    out.write( bits );
+    out.close();
+  }
+
+  public void Shutdown()
+  {
+    Workers.shutdown();
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  // private int Sweep
+  // Visit every undecided position of a table, in parallel slices; return
+  // the number of positions decided
+  private int Sweep( final int cls, final byte state[], final boolean initial ) throws Exception
+  {
+    int numSlices = NumThreads * SLICES_PER_THREAD;
+    final int sliceSize = ( state.length + numSlices - 1 ) / numSlices;
+    List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for( int s = 0; s < numSlices; s++ )
+    {
+      final int first = s * sliceSize;
+      final int last = Math.min( state.length, first + sliceSize );
+      tasks.add( new Callable<Integer>()
+      {
+        public Integer call()
+        {
+          int changed = 0;
+          int kings[] = new int[ 2 ];
+          int pieces[] = new int[ jcBitbase.ClassPieces[ cls ].length ];
+          for( int index = first; index < last; index++ )
+          {
+            if ( state[ index ] != STATE_UNKNOWN )
+              continue;
+            byte result = initial ? Classify( cls, index, kings, pieces ) :
+                                    Propagate( cls, state, index, kings, pieces );
+            if ( result != STATE_UNKNOWN )
+            {
+              state[ index ] = result;
+              changed++;
+            }
+          }
+          return changed;
+        }
+      } );
+    }
+    int changed = 0;
+    for( Future<Integer> result : Workers.invokeAll( tasks ) )
+      changed += result.get();
+    return changed;
+  }
+
+  // private byte Classify
+  // The outcome of a position, if it is obvious without looking ahead:
+  // illegal positions, mates, stalemates and captures of a stronger piece
+  // (all of which leave a draw), plus the promotions of KPK
+  private byte Classify( int cls, int index, int kings[], int pieces[] )
+  {
+    int stm = Decode( index, kings, pieces );
+    int strongKing = kings[ 0 ], weakKing = kings[ 1 ];
+
+    // Stray or overlapping pieces, or kings in contact
+    long occupied = ( 1L << strongKing ) | ( 1L << weakKing );
+    for( int i = 0; i < pieces.length; i++ )
+    {
+      if ( ( occupied & ( 1L << pieces[ i ] ) ) != 0 )
+        return STATE_DRAW;
+      if ( jcBitbase.ClassPieces[ cls ][ i ] == jcBoard.PAWN && ( pieces[ i ] < 8 || pieces[ i ] >= 56 ) )
+        return STATE_DRAW;
+      occupied |= 1L << pieces[ i ];
+    }
+    if ( strongKing == weakKing || ( jcBitbase.KingAttacks[ strongKing ] & ( 1L << weakKing ) ) != 0 )
+      return STATE_DRAW;
+    boolean weakInCheck = jcBitbase.IsAttacked( cls, pieces, weakKing, occupied );
+
+    if ( stm == 0 )
+    {
+      // The defender cannot be in check with the stronger side to move
+      if ( weakInCheck )
+        return STATE_DRAW;
+      if ( !HasStrongMove( cls, pieces, strongKing, weakKing, occupied ) )
+        return STATE_DRAW;
+      if ( cls == jcBitbase.CLASS_KPK && PromotionWins( pieces[ 0 ], strongKing, weakKing, occupied ) )
+        return STATE_WIN;
+      return STATE_UNKNOWN;
+    }
+
+    // The defender to move: can it take a piece?  None of these endings can
+    // be won with a piece less
+    long targets = jcBitbase.KingAttacks[ weakKing ] & ~jcBitbase.KingAttacks[ strongKing ];
+    long vacated = occupied & ~( 1L << weakKing );
+    for( int i = 0; i < pieces.length; i++ )
+    {
+      if ( ( targets & ( 1L << pieces[ i ] ) ) != 0 &&
+           !jcBitbase.IsAttacked( cls, pieces, pieces[ i ], vacated ) )
+        return STATE_DRAW;
+    }
+    if ( !jcBitbase.HasKingMove( cls, pieces, strongKing, weakKing, occupied ) )
+      return weakInCheck ? STATE_WIN : STATE_DRAW;
+    return STATE_UNKNOWN;
+  }
+
+  // private byte Propagate
+  // Decide a position from the current state of its successors
+  private byte Propagate( int cls, byte state[], int index, int kings[], int pieces[] )
+  {
+    int stm = Decode( index, kings, pieces );
+    int strongKing = kings[ 0 ], weakKing = kings[ 1 ];
+    long occupied = ( 1L << strongKing ) | ( 1L << weakKing );
+    for( int i = 0; i < pieces.length; i++ )
+      occupied |= 1L << pieces[ i ];
+
+    if ( stm == 1 )
+    {
+      // Every legal defender move must lead to a win; captures were dealt
+      // with in the first sweep, so only quiet king moves are left
+      long targets = jcBitbase.KingAttacks[ weakKing ] & ~jcBitbase.KingAttacks[ strongKing ] & ~occupied;
+      long vacated = occupied & ~( 1L << weakKing );
+      while ( targets != 0 )
+      {
+        int to = Long.numberOfTrailingZeros( targets );
+        targets &= targets - 1;
+        if ( jcBitbase.IsAttacked( cls, pieces, to, vacated ) )
+          continue;
+        if ( state[ jcBitbase.Index( cls, 0, strongKing, to, pieces ) ] != STATE_WIN )
+          return STATE_UNKNOWN;
+      }
+      return STATE_WIN;
+    }
+
+    // Stronger side to move: any move to a won position will do.  King
+    // moves first
+    long targets = jcBitbase.KingAttacks[ strongKing ] & ~jcBitbase.KingAttacks[ weakKing ] & ~occupied;
+    while ( targets != 0 )
+    {
+      int to = Long.numberOfTrailingZeros( targets );
+      targets &= targets - 1;
+      if ( state[ jcBitbase.Index( cls, 1, to, weakKing, pieces ) ] == STATE_WIN )
+        return STATE_WIN;
+    }
+
+    // Then the other pieces
+    for( int i = 0; i < pieces.length; i++ )
+    {
+      int from = pieces[ i ];
+      long moves = PieceMoves( jcBitbase.ClassPieces[ cls ][ i ], from, occupied );
+      while ( moves != 0 )
+      {
+        int to = Long.numberOfTrailingZeros( moves );
+        moves &= moves - 1;
+        pieces[ i ] = to;
+        boolean won = ( state[ jcBitbase.Index( cls, 1, strongKing, weakKing, pieces ) ] == STATE_WIN );
+        pieces[ i ] = from;
+        if ( won )
+          return STATE_WIN;
+      }
+    }
+    return STATE_UNKNOWN;
+  }
+
+  // The non-capturing destinations of a piece of the stronger side; pawn
+  // promotions are left out, since Classify scores them
+  private static long PieceMoves( int pieceType, int from, long occupied )
+  {
+    long moves = 0;
+    switch( pieceType )
+    {
+      case jcBoard.KNIGHT:
+        return jcBitbase.KnightAttacks[ from ] & ~occupied;
+      case jcBoard.PAWN:
+        if ( from >= 16 && ( occupied & ( 1L << ( from - 8 ) ) ) == 0 )
+        {
+          moves |= 1L << ( from - 8 );
+          if ( from >= 48 && ( occupied & ( 1L << ( from - 16 ) ) ) == 0 )
+            moves |= 1L << ( from - 16 );
+        }
+        return moves;
+      default:
+        for( int to = 0; to < 64; to++ )
+        {
+          if ( ( occupied & ( 1L << to ) ) == 0 && jcBitbase.Attacks( pieceType, from, to, occupied ) )
+            moves |= 1L << to;
+        }
+        return moves;
+    }
+  }
+
+  // Whether the stronger side has any legal move at all
+  private static boolean HasStrongMove( int cls, int pieces[], int strongKing, int weakKing, long occupied )
+  {
+    if ( ( jcBitbase.KingAttacks[ strongKing ] & ~jcBitbase.KingAttacks[ weakKing ] & ~occupied ) != 0 )
+      return true;
+    for( int i = 0; i < pieces.length; i++ )
+    {
+      int pieceType = jcBitbase.ClassPieces[ cls ][ i ];
+      if ( PieceMoves( pieceType, pieces[ i ], occupied ) != 0 )
+        return true;
+      if ( pieceType == jcBoard.PAWN && pieces[ i ] < 16 && ( occupied & ( 1L << ( pieces[ i ] - 8 ) ) ) == 0 )
+        return true;
+    }
+    return false;
+  }
+
+  // Whether promoting the pawn, to a queen or a rook, wins in KPK
+  private boolean PromotionWins( int pawn, int strongKing, int weakKing, long occupied )
+  {
+    if ( pawn >= 16 || ( occupied & ( 1L << ( pawn - 8 ) ) ) != 0 )
+      return false;
+    int promoted[] = { pawn - 8 };
+    return ( Solved[ jcBitbase.CLASS_KQK ][ jcBitbase.Index( jcBitbase.CLASS_KQK, 1, strongKing, weakKing, promoted ) ] == STATE_WIN ) ||
+           ( Solved[ jcBitbase.CLASS_KRK ][ jcBitbase.Index( jcBitbase.CLASS_KRK, 1, strongKing, weakKing, promoted ) ] == STATE_WIN );
+  }
+
+  // Decoding an index: the side to move is returned, the stronger and the
+  // defending king are stored in kings[ 0 ] and kings[ 1 ], and the other
+  // pieces in their own array
+  private static int Decode( int index, int kings[], int pieces[] )
+  {
+    for( int i = pieces.length - 1; i >= 0; i-- )
+    {
+      pieces[ i ] = index & 63;
+      index >>>= 6;
+    }
+    kings[ 1 ] = index & 63;
+    index >>>= 6;
+    int strongKing = index & 31;
+    kings[ 0 ] = ( strongKing >> 2 ) * 8 + ( strongKing & 3 );
+    return index >>> 5;
+  }
+}
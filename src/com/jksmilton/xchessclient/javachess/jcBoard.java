@@ -14,11 +14,13 @@
  ***************************************************************************/
 
 package com.jksmilton.xchessclient.javachess;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.StreamTokenizer;
+import java.io.StringReader;
 import java.util.Random;
 
 /****************************************************************************
@@ -75,6 +77,14 @@ public class jcBoard
   public static final int CASTLE_KINGSIDE = 0;
   public static final int CASTLE_QUEENSIDE = 2;
 
+  // Size, in bytes, of the binary encoding produced by Encode: an occupancy
+  // bitboard (8 bytes), one 4-bit piece code per occupied square in square
+  // order (16 bytes, enough for 32 pieces), a flags byte (side to move,
+  // castling rights and history), the en passant square, and the half-move
+  // clock and full-move number in two bytes each, padded to 32 bytes
+  public static final int ENCODED_SIZE = 32;
+  private static final int ENCODED_NO_SQUARE = 0xFF;
+
 /***************************************************************************
  * DATA MEMBERS
  **************************************************************************/
@@ -88,8 +98,20 @@ public class jcBoard
   private static int HashKeyComponents[][];
   private static int HashLockComponents[][];
 
+  // Table of 64-bit components for the opening book key: 768 piece/square
+  // entries, 4 castling rights, 8 en passant files and the side to move.
+  // Unlike the search hash tables, these must be identical from one run to
+  // the next, since book files are built ahead of time; they come from a
+  // fixed-seed generator of our own, so the keys are only meaningful to books
+  // built by jcBookCompiler, not to those of other programs.
+  private static long BookKeyComponents[];
+  private static final int BOOKKEY_CASTLING = 768;
+  private static final int BOOKKEY_EN_PASSANT = 772;
+  private static final int BOOKKEY_TURN = 780;
+
   // Private table of tokens (string representations) for all pieces
   public static String PieceStrings[];
+  private static String FENPieceChars;
 
   // Data needed to compute the evaluation function
   private int MaterialValue[ ];
@@ -148,6 +170,18 @@ public class jcBoard
       }
     }
 
+    // Build the opening book key table, with a SplitMix64 sequence
+    BookKeyComponents = new long[ 781 ];
+    long seed = 0x4A43484553534BL;
+    for( int i = 0; i < BookKeyComponents.length; i++ )
+    {
+      seed += 0x9E3779B97F4A7C15L;
+      long z = seed;
+      z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+      z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+      BookKeyComponents[ i ] = z ^ ( z >>> 31 );
+    }
+
     // Tokens representing the various concepts in the game, for printint
     // and file i/o purposes
     // PieceStrings contains an extra string representing empty squares
@@ -166,6 +200,9 @@ public class jcBoard
     PieceStrings[ BLACK_KING ] = "BK";
     PieceStrings[ ALL_PIECES ] = "  ";
 
+    // The FEN letters for each piece, indexed by piece code
+    FENPieceChars = "PpNnBbRrQqKk";
+
     // Numerical evaluation of piece material values
     PieceValues = new int[ ALL_PIECES ];
     PieceValues[ WHITE_PAWN ] = 100;
@@ -195,6 +232,13 @@ public class jcBoard
   // Whose turn is it?
   int CurrentPlayer;
 
+  // Move counters, as defined by the FEN standard: the number of plies since
+  // the last capture or pawn move (for the fifty-move rule), and the number
+  // of the full move about to be played, starting at 1 and incremented after
+  // each of Black's moves
+  private int HalfMoveClock;
+  private int FullMoveNumber;
+
 /**************************************************************************
  * METHODS
  **************************************************************************/
@@ -224,6 +268,8 @@ public class jcBoard
   }
   public int GetCurrentPlayer()  { return CurrentPlayer; }
   public long GetBitBoard( int which ) { return BitBoards[ which ]; }
+  public int GetHalfMoveClock() { return HalfMoveClock; }
+  public int GetFullMoveNumber() { return FullMoveNumber; }
 
   // Look for the piece located on a specific square
   public int FindBlackPiece( int square )
@@ -262,6 +308,27 @@ public class jcBoard
     return EMPTY_SQUARE;
   }
 
+  // public int FindPiece
+  // Look for a piece of either color on a specific square.  Unlike the
+  // FindBlackPiece and FindWhitePiece methods, the "phantom kings" used to
+  // detect illegal castling are ignored, so that the rook sharing a square
+  // with one of them is reported instead
+  public int FindPiece( int square )
+  {
+    long bits = SquareBits[ square ];
+    if ( ( ( BitBoards[ ALL_WHITE_PIECES ] | BitBoards[ ALL_BLACK_PIECES ] ) & bits ) == 0 )
+      return EMPTY_SQUARE;
+    for( int piece = 0; piece < ALL_PIECES; piece++ )
+    {
+      long board = BitBoards[ piece ];
+      if ( piece >= KING )
+        board &= ~ExtraKings[ piece % 2 ];
+      if ( ( board & bits ) != 0 )
+        return piece;
+    }
+    return EMPTY_SQUARE;
+  }
+
 
   // Constructor
   public jcBoard()
@@ -299,6 +366,8 @@ public class jcBoard
     HasCastled[ 0 ] = target.HasCastled[ 0 ];
     HasCastled[ 1 ] = target.HasCastled[ 1 ];
     CurrentPlayer = target.CurrentPlayer;
+    HalfMoveClock = target.HalfMoveClock;
+    FullMoveNumber = target.FullMoveNumber;
     return true;
   }
 
@@ -397,6 +466,60 @@ public class jcBoard
     return hash;
   }
 
+  // public long BookKey
+  // Compute the 64-bit key under which the position is filed in opening
+  // books.  Squares are numbered from a1, pieces alternate black/white, and
+  // the en passant file only counts if a pawn of the side to move is
+  // actually able to capture
+  public long BookKey()
+  {
+    long key = 0;
+    for( int piece = 0; piece < ALL_PIECES; piece++ )
+    {
+      long bits = BitBoards[ piece ];
+      if ( piece >= KING )
+        bits &= ~ExtraKings[ piece % 2 ];
+
+      // Our piece codes have white on the even numbers; the key table has
+      // black
+      int kind = ( piece ^ 1 ) << 6;
+      while ( bits != 0 )
+      {
+        int square = Long.numberOfTrailingZeros( bits );
+        bits &= bits - 1;
+        key ^= BookKeyComponents[ kind + ( square ^ 56 ) ];
+      }
+    }
+
+    if ( CastlingStatus[ CASTLE_KINGSIDE + jcPlayer.SIDE_WHITE ] )
+      key ^= BookKeyComponents[ BOOKKEY_CASTLING ];
+    if ( CastlingStatus[ CASTLE_QUEENSIDE + jcPlayer.SIDE_WHITE ] )
+      key ^= BookKeyComponents[ BOOKKEY_CASTLING + 1 ];
+    if ( CastlingStatus[ CASTLE_KINGSIDE + jcPlayer.SIDE_BLACK ] )
+      key ^= BookKeyComponents[ BOOKKEY_CASTLING + 2 ];
+    if ( CastlingStatus[ CASTLE_QUEENSIDE + jcPlayer.SIDE_BLACK ] )
+      key ^= BookKeyComponents[ BOOKKEY_CASTLING + 3 ];
+
+    if ( EnPassantPawn != 0 )
+    {
+      // The capturing pawns would stand beside the pawn which just moved
+      int target = Long.numberOfTrailingZeros( EnPassantPawn );
+      int file = target & 7;
+      int besideRow = ( CurrentPlayer == jcPlayer.SIDE_WHITE ) ? target + 8 : target - 8;
+      long capturers = 0;
+      if ( file > 0 )
+        capturers |= SquareBits[ besideRow - 1 ];
+      if ( file < 7 )
+        capturers |= SquareBits[ besideRow + 1 ];
+      if ( ( capturers & BitBoards[ PAWN + CurrentPlayer ] ) != 0 )
+        key ^= BookKeyComponents[ BOOKKEY_EN_PASSANT + file ];
+    }
+
+    if ( CurrentPlayer == jcPlayer.SIDE_WHITE )
+      key ^= BookKeyComponents[ BOOKKEY_TURN ];
+    return key;
+  }
+
   // public boolean ApplyMove
   // Change the jcBoard's internal representation to reflect the move
   // received as a parameter
@@ -480,7 +603,7 @@ public class jcBoard
         // FDL Later, ask the AI player who resigned to print the continuation
         break;
       case jcMove.MOVE_STALEMATE:
-        System.out.println( "Stalemate - Game is a draw." );
+        // The game is a draw; telling the players is up to the caller
         break;
     }
 
@@ -538,10 +661,34 @@ public class jcBoard
         break;
     }
 
-    // Or, if ANYTHING moves from a corner, castling becomes impossible on
-    // that side (either because it's the rook that is moving, or because
+    // Or, if ANYTHING moves from or to a corner, castling becomes impossible
+    // on that side (either because it's the rook that is moving, or because
     // it has been captured by whatever moves, or because it is already gone)
-    switch( theMove.SourceSquare )
+    ClearCornerCastling( theMove.SourceSquare );
+    ClearCornerCastling( theMove.DestinationSquare );
+
+    // Keep the move counters up to date: captures and pawn moves reset the
+    // fifty-move clock, and a full move is complete once Black has played
+    if ( ( moveWithoutPromotion == jcMove.MOVE_CAPTURE_ORDINARY ) ||
+         ( moveWithoutPromotion == jcMove.MOVE_CAPTURE_EN_PASSANT ) ||
+         ( theMove.MovingPiece == WHITE_PAWN ) ||
+         ( theMove.MovingPiece == BLACK_PAWN ) )
+      HalfMoveClock = 0;
+    else
+      HalfMoveClock++;
+    if ( side == jcPlayer.SIDE_BLACK )
+      FullMoveNumber++;
+
+    // All that remains to do is switch sides
+    SetCurrentPlayer( ( GetCurrentPlayer() + 1 ) % 2 );
+    return true;
+  }
+
+  // private void ClearCornerCastling
+  // Castling with the rook of a given corner is no longer possible
+  private void ClearCornerCastling( int square )
+  {
+    switch( square )
     {
       case 0:
         SetCastlingStatus( CASTLE_QUEENSIDE + jcPlayer.SIDE_BLACK, false );
@@ -558,124 +705,366 @@ public class jcBoard
       default:
         break;
     }
-
-    // All that remains to do is switch sides
-    SetCurrentPlayer( ( GetCurrentPlayer() + 1 ) % 2 );
-    return true;
   }
 
   // public boolean Load
-  // Load a board from a file
+  // Load a board from a file.  Games are saved in Forsyth-Edwards Notation,
+  // but files written by older versions of the program, which begin with the
+  // name of the player to move, are still understood
   public boolean Load( File fileName ) throws Exception
   {
-    // Clean the board first
-    EmptyBoard();
+    BufferedReader br = new BufferedReader( new FileReader( fileName ) );
+    StringBuilder contents = new StringBuilder();
+    String line;
+    while ( ( line = br.readLine() ) != null )
+    {
+      contents.append( line ).append( '\n' );
+    }
+    br.close();
 
-    // Open the file as a Java tokenizer
-    FileReader fr = new FileReader( fileName );
-    StreamTokenizer tok = new StreamTokenizer( fr );
-    tok.eolIsSignificant( false );
-    tok.lowerCaseMode( false );
+    String text = contents.toString().trim();
+    if ( text.regionMatches( true, 0, jcPlayer.PlayerStrings[ jcPlayer.SIDE_WHITE ], 0, 5 ) ||
+         text.regionMatches( true, 0, jcPlayer.PlayerStrings[ jcPlayer.SIDE_BLACK ], 0, 5 ) )
+      return LoadLegacy( text );
 
-    // Whose turn is it to play?
-    tok.nextToken();
-    if ( tok.sval.equalsIgnoreCase( jcPlayer.PlayerStrings[ jcPlayer.SIDE_WHITE ] ) )
-      SetCurrentPlayer( jcPlayer.SIDE_WHITE );
-    else
-      SetCurrentPlayer( jcPlayer.SIDE_BLACK );
+    if ( !FromFEN( text ) )
+      throw new Exception( "Malformed position in " + fileName.getName() + ": " + text );
+    return true;
+  }
 
-    // Read the positions of all the pieces
-    // First, look for the number of pieces on the board
-    tok.nextToken();
-    int numPieces = (int) tok.nval;
+  // public boolean Save
+  // Save the state of the game to a file, as a single FEN record
+  public boolean Save( File fileName ) throws Exception
+  {
+    BufferedWriter bw = new BufferedWriter( new FileWriter( fileName ) );
+    bw.write( ToFEN() );
+    bw.newLine();
+    bw.close();
+    return true;
+  }
 
-    // Now, loop on the pieces in question
-    for( int i = 0; i < numPieces; i++ )
-    {
-      // What kind of piece is this, and where does it go?
-      tok.nextToken();
-      String whichPieceStr = tok.sval;
+  // public boolean FromFEN
+  // Set up the board from a position in Forsyth-Edwards Notation.  The move
+  // counters may be omitted (as in EPD records), in which case they default
+  // to 0 and 1.  Returns false if the record is malformed, in which case the
+  // contents of the board are undefined.
+  public boolean FromFEN( String fen )
+  {
+    int pos = ParseFEN( fen, 0 );
+    if ( pos < 0 )
+      return false;
 
-      int whichPiece = 0;
-      while ( !whichPieceStr.equalsIgnoreCase( PieceStrings[ whichPiece ] ) )
-        whichPiece++;
+    // Nothing but whitespace may follow a FEN record
+    while ( pos < fen.length() )
+    {
+      if ( fen.charAt( pos ) > ' ' )
+        return false;
+      pos++;
+    }
+    return true;
+  }
 
-      tok.nextToken();
-      int whichSquare = (int) tok.nval;
+  // public String ToFEN
+  // Describe the board in Forsyth-Edwards Notation
+  public String ToFEN()
+  {
+    StringBuilder fen = new StringBuilder( 90 );
 
-      // Add the piece to the board
-      AddPiece( whichSquare, whichPiece );
+    // Piece placement, from Black's back rank down, which happens to be
+    // the order in which our squares are numbered
+    for( int rank = 0; rank < 8; rank++ )
+    {
+      int empty = 0;
+      for( int file = 0; file < 8; file++ )
+      {
+        int piece = FindPiece( ( rank << 3 ) + file );
+        if ( piece == EMPTY_SQUARE )
+        {
+          empty++;
+          continue;
+        }
+        if ( empty > 0 )
+        {
+          fen.append( (char) ( '0' + empty ) );
+          empty = 0;
+        }
+        fen.append( FENPieceChars.charAt( piece ) );
+      }
+      if ( empty > 0 )
+        fen.append( (char) ( '0' + empty ) );
+      if ( rank < 7 )
+        fen.append( '/' );
     }
 
-    // Now, read the castling status flags
-    for( int i = 0; i < 4; i++ )
+    // Side to move
+    fen.append( ( CurrentPlayer == jcPlayer.SIDE_WHITE ) ? " w " : " b " );
+
+    // Castling rights
+    int len = fen.length();
+    if ( CastlingStatus[ CASTLE_KINGSIDE + jcPlayer.SIDE_WHITE ] )
+      fen.append( 'K' );
+    if ( CastlingStatus[ CASTLE_QUEENSIDE + jcPlayer.SIDE_WHITE ] )
+      fen.append( 'Q' );
+    if ( CastlingStatus[ CASTLE_KINGSIDE + jcPlayer.SIDE_BLACK ] )
+      fen.append( 'k' );
+    if ( CastlingStatus[ CASTLE_QUEENSIDE + jcPlayer.SIDE_BLACK ] )
+      fen.append( 'q' );
+    if ( fen.length() == len )
+      fen.append( '-' );
+
+    // En passant target square
+    fen.append( ' ' );
+    if ( EnPassantPawn == 0 )
+      fen.append( '-' );
+    else
     {
-      tok.nextToken();
-      if ( "TRUE".equalsIgnoreCase( tok.sval ) )
-        SetCastlingStatus( i, true );
-      else
-        SetCastlingStatus( i, false );
+      int square = Long.numberOfTrailingZeros( EnPassantPawn );
+      fen.append( (char) ( 'a' + ( square & 7 ) ) );
+      fen.append( (char) ( '8' - ( square >> 3 ) ) );
     }
 
-    // And finally, read the bitboard representing the position of the en
-    // passant pawn, if any
-    tok.nextToken();
-    SetEnPassantPawn( (long) tok.nval );
-
-    fr.close();
-    return true;
+    // And the move counters
+    fen.append( ' ' ).append( HalfMoveClock );
+    fen.append( ' ' ).append( FullMoveNumber );
+    return fen.toString();
   }
 
-  // public boolean Save
-  // Save the state of the game to a file
-  public boolean Save( File fileName ) throws Exception
+  // int ParseFEN
+  // The FEN parser proper.  Starts reading at "pos" and returns the index of
+  // the first character following the record, or -1 if the record is
+  // malformed.  Exposed to the package so that EPD readers can pick up the
+  // operations following the position
+  int ParseFEN( String fen, int pos )
   {
-    // Open the file for business
-    FileWriter fr = new FileWriter( fileName );
-    BufferedWriter bw = new BufferedWriter( fr );
-
-    // Whose turn is it?
-    bw.write( jcPlayer.PlayerStrings[ CurrentPlayer ] );
-    bw.newLine();
-    
-    // Count the pieces on the board
-    int numPieces = 0;
-    for( int i = 0; i < ALL_SQUARES; i++ )
+    EmptyBoard();
+    HasCastled[ 0 ] = false;
+    HasCastled[ 1 ] = false;
+    int len = fen.length();
+    while ( ( pos < len ) && ( fen.charAt( pos ) <= ' ' ) )
+      pos++;
+
+    // Piece placement
+    int square = 0;
+    int file = 0;
+    while ( ( pos < len ) && ( fen.charAt( pos ) > ' ' ) )
     {
-      if ( ( SquareBits[ i ] & BitBoards[ ALL_WHITE_PIECES ] ) != 0 )
-        numPieces++;
-      if ( ( SquareBits[ i ] & BitBoards[ ALL_BLACK_PIECES ] ) != 0 )
-        numPieces++;
+      char c = fen.charAt( pos++ );
+      if ( c == '/' )
+      {
+        if ( ( file != 8 ) || ( square >= ALL_SQUARES ) )
+          return -1;
+        file = 0;
+      }
+      else if ( ( c >= '1' ) && ( c <= '8' ) )
+      {
+        file += c - '0';
+        square += c - '0';
+        if ( file > 8 )
+          return -1;
+      }
+      else
+      {
+        int piece = FENPieceChars.indexOf( c );
+        if ( ( piece < 0 ) || ( file >= 8 ) )
+          return -1;
+        AddPiece( square, piece );
+        file++;
+        square++;
+      }
     }
-    bw.write( String.valueOf( numPieces ) );
-    bw.newLine();
+    if ( ( square != ALL_SQUARES ) || ( file != 8 ) )
+      return -1;
+    if ( ( Long.bitCount( BitBoards[ WHITE_KING ] ) != 1 ) ||
+         ( Long.bitCount( BitBoards[ BLACK_KING ] ) != 1 ) )
+      return -1;
+
+    // Side to move
+    pos = SkipFENSpaces( fen, pos );
+    if ( pos >= len )
+      return -1;
+    char c = fen.charAt( pos++ );
+    if ( c == 'w' )
+      SetCurrentPlayer( jcPlayer.SIDE_WHITE );
+    else if ( c == 'b' )
+      SetCurrentPlayer( jcPlayer.SIDE_BLACK );
+    else
+      return -1;
 
-    // Dump the pieces, one by one
-    for( int piece = 0; piece < ALL_PIECES; piece++ )
+    // Castling rights.  A right is only granted if the king and rook are on
+    // their original squares, since ApplyMove relies on it
+    pos = SkipFENSpaces( fen, pos );
+    for( int i = 0; i < 4; i++ )
+      CastlingStatus[ i ] = false;
+    if ( ( pos < len ) && ( fen.charAt( pos ) == '-' ) )
+      pos++;
+    else
     {
-      for( int square = 0; square < ALL_SQUARES; square++ )
+      while ( ( pos < len ) && ( fen.charAt( pos ) > ' ' ) )
       {
-        if ( ( BitBoards[ piece ] & SquareBits[ square ] ) != 0 )
+        switch( fen.charAt( pos++ ) )
         {
-          bw.write( PieceStrings[ piece ] + " " + String.valueOf( square ) );
-          bw.newLine();
+          case 'K':
+            CastlingStatus[ CASTLE_KINGSIDE + jcPlayer.SIDE_WHITE ] =
+              HasPieceOn( WHITE_KING, 60 ) && HasPieceOn( WHITE_ROOK, 63 );
+            break;
+          case 'Q':
+            CastlingStatus[ CASTLE_QUEENSIDE + jcPlayer.SIDE_WHITE ] =
+              HasPieceOn( WHITE_KING, 60 ) && HasPieceOn( WHITE_ROOK, 56 );
+            break;
+          case 'k':
+            CastlingStatus[ CASTLE_KINGSIDE + jcPlayer.SIDE_BLACK ] =
+              HasPieceOn( BLACK_KING, 4 ) && HasPieceOn( BLACK_ROOK, 7 );
+            break;
+          case 'q':
+            CastlingStatus[ CASTLE_QUEENSIDE + jcPlayer.SIDE_BLACK ] =
+              HasPieceOn( BLACK_KING, 4 ) && HasPieceOn( BLACK_ROOK, 0 );
+            break;
+          default:
+            return -1;
         }
       }
     }
 
-    // And finally, dump the castling status and the en passant pawn
+    // En passant target square
+    pos = SkipFENSpaces( fen, pos );
+    if ( pos >= len )
+      return -1;
+    if ( fen.charAt( pos ) == '-' )
+      pos++;
+    else
+    {
+      if ( pos + 1 >= len )
+        return -1;
+      int epFile = fen.charAt( pos ) - 'a';
+      int epRank = fen.charAt( pos + 1 ) - '1';
+      if ( ( epFile < 0 ) || ( epFile > 7 ) || ( ( epRank != 2 ) && ( epRank != 5 ) ) )
+        return -1;
+      SetEnPassantPawn( ( ( 7 - epRank ) << 3 ) + epFile );
+      pos += 2;
+    }
+
+    // The move counters are optional; only consume them if they are there
+    HalfMoveClock = 0;
+    FullMoveNumber = 1;
+    int next = SkipFENSpaces( fen, pos );
+    if ( ( next < len ) && Character.isDigit( fen.charAt( next ) ) )
+    {
+      int value = 0;
+      while ( ( next < len ) && Character.isDigit( fen.charAt( next ) ) )
+        value = value * 10 + ( fen.charAt( next++ ) - '0' );
+      HalfMoveClock = value;
+      pos = next;
+
+      next = SkipFENSpaces( fen, pos );
+      if ( ( next < len ) && Character.isDigit( fen.charAt( next ) ) )
+      {
+        value = 0;
+        while ( ( next < len ) && Character.isDigit( fen.charAt( next ) ) )
+          value = value * 10 + ( fen.charAt( next++ ) - '0' );
+        FullMoveNumber = Math.max( 1, value );
+        pos = next;
+      }
+    }
+    return pos;
+  }
+
+  // public boolean Encode
+  // Write a compact binary image of the board into a caller-supplied buffer,
+  // which must have ENCODED_SIZE bytes available at "offset".  Returns false
+  // if the position holds more than 32 pieces, or a move counter above 65535,
+  // and cannot be represented.
+  public boolean Encode( byte buf[], int offset )
+  {
+    if ( ( HalfMoveClock > 0xFFFF ) || ( FullMoveNumber > 0xFFFF ) )
+      return false;
+
+    // Leave out the phantom kings, but not the castled rook which shares a
+    // square with one of them
+    long occupied = ( BitBoards[ ALL_WHITE_PIECES ] | BitBoards[ ALL_BLACK_PIECES ] ) &
+                    ~( ExtraKings[ jcPlayer.SIDE_WHITE ] | ExtraKings[ jcPlayer.SIDE_BLACK ] );
+    occupied |= BitBoards[ WHITE_ROOK ] | BitBoards[ BLACK_ROOK ];
+    if ( Long.bitCount( occupied ) > 32 )
+      return false;
+
+    for( int i = 0; i < 8; i++ )
+      buf[ offset + i ] = (byte) ( occupied >>> ( 56 - ( i << 3 ) ) );
+
+    // Piece codes, two per byte, high nibble first
+    for( int i = 8; i < 24; i++ )
+      buf[ offset + i ] = 0;
+    int nibble = 0;
+    long bits = occupied;
+    while ( bits != 0 )
+    {
+      int square = Long.numberOfTrailingZeros( bits );
+      bits &= bits - 1;
+      int piece = FindPiece( square );
+      int index = offset + 8 + ( nibble >> 1 );
+      if ( ( nibble & 1 ) == 0 )
+        buf[ index ] = (byte) ( piece << 4 );
+      else
+        buf[ index ] |= (byte) piece;
+      nibble++;
+    }
+
+    int flags = CurrentPlayer;
     for( int i = 0; i < 4; i++ )
     {
       if ( CastlingStatus[ i ] )
-        bw.write( "TRUE" );
-      else
-        bw.write( "FALSE" );
-      bw.newLine();
+        flags |= ( 2 << i );
     }
+    if ( HasCastled[ 0 ] )
+      flags |= 0x20;
+    if ( HasCastled[ 1 ] )
+      flags |= 0x40;
+    buf[ offset + 24 ] = (byte) flags;
+    buf[ offset + 25 ] = (byte) ( ( EnPassantPawn == 0 ) ? ENCODED_NO_SQUARE : Long.numberOfTrailingZeros( EnPassantPawn ) );
+    buf[ offset + 26 ] = (byte) ( HalfMoveClock >>> 8 );
+    buf[ offset + 27 ] = (byte) HalfMoveClock;
+    buf[ offset + 28 ] = (byte) ( FullMoveNumber >>> 8 );
+    buf[ offset + 29 ] = (byte) FullMoveNumber;
+    buf[ offset + 30 ] = 0;
+    buf[ offset + 31 ] = 0;
+    return true;
+  }
 
-    bw.write( String.valueOf( EnPassantPawn ) );
+  // public boolean Decode
+  // Restore a board from an image written by Encode.  Nothing is allocated,
+  // so this is suitable for scanning large position files.  Returns false if
+  // the image contains an invalid piece code.
+  public boolean Decode( byte buf[], int offset )
+  {
+    EmptyBoard();
+    long occupied = 0;
+    for( int i = 0; i < 8; i++ )
+      occupied = ( occupied << 8 ) | ( buf[ offset + i ] & 0xFF );
 
-    bw.close();
+    int nibble = 0;
+    while ( occupied != 0 )
+    {
+      int square = Long.numberOfTrailingZeros( occupied );
+      occupied &= occupied - 1;
+      int packed = buf[ offset + 8 + ( nibble >> 1 ) ];
+      int piece = ( ( nibble & 1 ) == 0 ) ? ( ( packed >> 4 ) & 0x0F ) : ( packed & 0x0F );
+      if ( piece >= ALL_PIECES )
+        return false;
+      AddPiece( square, piece );
+      nibble++;
+    }
+
+    int flags = buf[ offset + 24 ];
+    SetCurrentPlayer( flags & 1 );
+    for( int i = 0; i < 4; i++ )
+      CastlingStatus[ i ] = ( ( flags & ( 2 << i ) ) != 0 );
+    HasCastled[ 0 ] = ( ( flags & 0x20 ) != 0 );
+    HasCastled[ 1 ] = ( ( flags & 0x40 ) != 0 );
+    int epSquare = buf[ offset + 25 ] & 0xFF;
+    if ( epSquare == ENCODED_NO_SQUARE )
+      ClearEnPassantPawn();
+    else
+      SetEnPassantPawn( epSquare & 63 );
+    HalfMoveClock = ( ( buf[ offset + 26 ] & 0xFF ) << 8 ) | ( buf[ offset + 27 ] & 0xFF );
+    FullMoveNumber = ( ( buf[ offset + 28 ] & 0xFF ) << 8 ) | ( buf[ offset + 29 ] & 0xFF );
     return true;
   }
 
@@ -684,41 +1073,38 @@ public class jcBoard
   // player.  This is an exact clone of the eval function in CHESS 4.5
   public int EvalMaterial( int side )
   {
-    // If both sides are equal, no need to compute anything!
-    if ( MaterialValue[ jcPlayer.SIDE_BLACK ] == MaterialValue[ jcPlayer.SIDE_WHITE ] )
-      return 0;
-
-    int otherSide = ( side + 1 ) % 2;
-    int matTotal = MaterialValue[ side ] + MaterialValue[ otherSide ];
+    return MaterialBalance( side, MaterialValue[ jcPlayer.SIDE_WHITE ], MaterialValue[ jcPlayer.SIDE_BLACK ],
+                            NumPawns[ jcPlayer.SIDE_WHITE ], NumPawns[ jcPlayer.SIDE_BLACK ] );
+  }
 
-    // Who is leading the game, material-wise?
-    if ( MaterialValue[ jcPlayer.SIDE_BLACK ] > MaterialValue[ jcPlayer.SIDE_WHITE ] )
+  // public int EvalMaterial
+  // The same, with piece values other than the standard ones, indexed by
+  // piece code like PieceValues.  Slower, since the material totals must be
+  // recounted instead of being read from the incrementally updated ones
+  public int EvalMaterial( int side, int pieceValues[] )
+  {
+    // White pieces have even codes, their black counterparts the next ones
+    int whiteMaterial = 0, blackMaterial = 0;
+    for( int piece = 0; piece < ALL_PIECES; piece += 2 )
     {
-      // Black leading
-      int matDiff = MaterialValue[ jcPlayer.SIDE_BLACK ] - MaterialValue[ jcPlayer.SIDE_WHITE ];
-      int val = Math.min( 2400, matDiff ) +
-                  ( matDiff * ( 12000 - matTotal ) * NumPawns[ jcPlayer.SIDE_BLACK ] )
-                  / ( 6400 * ( NumPawns[ jcPlayer.SIDE_BLACK ] + 1 ) );
-      if ( side == jcPlayer.SIDE_BLACK )
-        return val;
-      else
-        return -val;
+      long white = BitBoards[ piece ];
+      long black = BitBoards[ piece + 1 ];
+      if ( piece == KING )
+      {
+        white &= ~ExtraKings[ jcPlayer.SIDE_WHITE ];
+        black &= ~ExtraKings[ jcPlayer.SIDE_BLACK ];
+      }
+      whiteMaterial += Long.bitCount( white ) * pieceValues[ piece ];
+      blackMaterial += Long.bitCount( black ) * pieceValues[ piece + 1 ];
     }
-    else
-    {
-      // White leading
-      int matDiff = MaterialValue[ jcPlayer.SIDE_WHITE ] - MaterialValue[ jcPlayer.SIDE_BLACK ];
-      int val = Math.min( 2400, matDiff ) +
-                  ( matDiff * ( 12000 - matTotal ) * NumPawns[ jcPlayer.SIDE_WHITE ] )
-                  / ( 6400 * ( NumPawns[ jcPlayer.SIDE_WHITE ] + 1 ) );
-
-      if ( side == jcPlayer.SIDE_WHITE )
-        return val;
-      else
-        return -val;
-   }
+    return MaterialBalance( side, whiteMaterial, blackMaterial,
+                            Long.bitCount( BitBoards[ WHITE_PAWN ] ), Long.bitCount( BitBoards[ BLACK_PAWN ] ) );
   }
 
+  // public static int GetPieceValue
+  // The standard material value of a piece
+  public static int GetPieceValue( int piece ) { return PieceValues[ piece ]; }
+
   // public boolean StartingBoard
   // Restore the board to a game-start position
   public boolean StartingBoard()
@@ -759,6 +1145,8 @@ public class jcBoard
     HasCastled[ 0 ] = false;
     HasCastled[ 1 ] = false;
     ClearEnPassantPawn();
+    HalfMoveClock = 0;
+    FullMoveNumber = 1;
 
     // And ask White to play the first move
     SetCurrentPlayer( jcPlayer.SIDE_WHITE );
@@ -769,6 +1157,46 @@ public class jcBoard
  * PRIVATE METHODS
  *****************************************************************************/
 
+  // private static int MaterialBalance
+  // The CHESS 4.5 formula: the material difference, plus a bonus for trading
+  // down when ahead, which grows with the leading side's number of pawns
+  private static int MaterialBalance( int side, int whiteMaterial, int blackMaterial,
+                                      int whitePawns, int blackPawns )
+  {
+    // If both sides are equal, no need to compute anything!
+    if ( blackMaterial == whiteMaterial )
+      return 0;
+
+    int matTotal = whiteMaterial + blackMaterial;
+
+    // Who is leading the game, material-wise?
+    if ( blackMaterial > whiteMaterial )
+    {
+      // Black leading
+      int matDiff = blackMaterial - whiteMaterial;
+      int val = Math.min( 2400, matDiff ) +
+                  ( matDiff * ( 12000 - matTotal ) * blackPawns )
+                  / ( 6400 * ( blackPawns + 1 ) );
+      if ( side == jcPlayer.SIDE_BLACK )
+        return val;
+      else
+        return -val;
+    }
+    else
+    {
+      // White leading
+      int matDiff = whiteMaterial - blackMaterial;
+      int val = Math.min( 2400, matDiff ) +
+                  ( matDiff * ( 12000 - matTotal ) * whitePawns )
+                  / ( 6400 * ( whitePawns + 1 ) );
+
+      if ( side == jcPlayer.SIDE_WHITE )
+        return val;
+      else
+        return -val;
+    }
+  }
+
   // private boolean AddPiece
   // Place a specific piece on a specific board square
   private boolean AddPiece( int whichSquare, int whichPiece )
@@ -812,6 +1240,67 @@ public class jcBoard
   }
 
 
+  // private boolean LoadLegacy
+  // Read a board saved in the pre-FEN format: the player to move, a count of
+  // pieces followed by one piece token and square per piece, the four
+  // castling flags and the en passant bitboard
+  private boolean LoadLegacy( String text ) throws Exception
+  {
+    EmptyBoard();
+    StreamTokenizer tok = new StreamTokenizer( new StringReader( text ) );
+    tok.eolIsSignificant( false );
+    tok.lowerCaseMode( false );
+
+    tok.nextToken();
+    if ( tok.sval.equalsIgnoreCase( jcPlayer.PlayerStrings[ jcPlayer.SIDE_WHITE ] ) )
+      SetCurrentPlayer( jcPlayer.SIDE_WHITE );
+    else
+      SetCurrentPlayer( jcPlayer.SIDE_BLACK );
+
+    tok.nextToken();
+    int numPieces = (int) tok.nval;
+    for( int i = 0; i < numPieces; i++ )
+    {
+      tok.nextToken();
+      String whichPieceStr = tok.sval;
+
+      int whichPiece = 0;
+      while ( !whichPieceStr.equalsIgnoreCase( PieceStrings[ whichPiece ] ) )
+        whichPiece++;
+
+      tok.nextToken();
+      AddPiece( (int) tok.nval, whichPiece );
+    }
+
+    for( int i = 0; i < 4; i++ )
+    {
+      tok.nextToken();
+      SetCastlingStatus( i, "TRUE".equalsIgnoreCase( tok.sval ) );
+    }
+
+    tok.nextToken();
+    SetEnPassantPawn( (long) tok.nval );
+    HalfMoveClock = 0;
+    FullMoveNumber = 1;
+    return true;
+  }
+
+  // private boolean HasPieceOn
+  // Is a specific piece located on a specific square?
+  private boolean HasPieceOn( int whichPiece, int whichSquare )
+  {
+    return ( ( BitBoards[ whichPiece ] & SquareBits[ whichSquare ] ) != 0 );
+  }
+
+  // private static int SkipFENSpaces
+  // Move past the whitespace separating two FEN fields
+  private static int SkipFENSpaces( String fen, int pos )
+  {
+    while ( ( pos < fen.length() ) && ( fen.charAt( pos ) <= ' ' ) )
+      pos++;
+    return pos;
+  }
+
   // private boolean EmptyBoard
   // Remove every piece from the board
   private boolean EmptyBoard()
@@ -8,6 +8,13 @@
 
 package com.jksmilton.xchessclient.javachess;
 
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.StringTokenizer;
+
 import com.jksmilton.xchessclient.javachess.jcBoard;
 
 public class jcBoardEvaluator
@@ -31,6 +38,61 @@ public class jcBoardEvaluator
   // evaluation is relatively coarse
   private static final int Grain = 3;
 
+  // The weights of the evaluation terms, so that they can be tuned and
+  // loaded from a file instead of being fixed in the code.  Each evaluator
+  // has its own copy; the defaults are the values the engine was written
+  // with.  Passed pawns are worth PassedPawn/4 times the square of their
+  // advancement, and the other terms are plain bonuses and penalties
+  public static final int WEIGHT_PAWN_VALUE = 0;
+  public static final int WEIGHT_KNIGHT_VALUE = 1;
+  public static final int WEIGHT_BISHOP_VALUE = 2;
+  public static final int WEIGHT_ROOK_VALUE = 3;
+  public static final int WEIGHT_QUEEN_VALUE = 4;
+  public static final int WEIGHT_DOUBLED_PAWN = 5;
+  public static final int WEIGHT_ISOLATED_PAWN = 6;
+  public static final int WEIGHT_ALL_PAWNS = 7;
+  public static final int WEIGHT_PAWN_RAM = 8;
+  public static final int WEIGHT_PASSED_PAWN = 9;
+  public static final int WEIGHT_BAD_BISHOP_PAWN = 10;
+  public static final int WEIGHT_CENTER_PAWN_UNMOVED = 11;
+  public static final int WEIGHT_UNDEVELOPED_MINOR = 12;
+  public static final int WEIGHT_EARLY_QUEEN = 13;
+  public static final int WEIGHT_CASTLED = 14;
+  public static final int WEIGHT_CASTLE_BOTH_SIDES = 15;
+  public static final int WEIGHT_CASTLE_KINGSIDE_ONLY = 16;
+  public static final int WEIGHT_CASTLE_QUEENSIDE_ONLY = 17;
+  public static final int WEIGHT_CANNOT_CASTLE = 18;
+  public static final int WEIGHT_ROOK_ON_SEVENTH = 19;
+  public static final int WEIGHT_ROOK_OPEN_FILE = 20;
+  public static final int WEIGHT_ROOK_SEMI_OPEN_FILE = 21;
+  public static final int WEIGHT_ROOK_BEHIND_PASSER = 22;
+  public static final int WEIGHT_TROPISM_ROOK = 23;
+  public static final int WEIGHT_TROPISM_KNIGHT = 24;
+  public static final int WEIGHT_TROPISM_QUEEN = 25;
+  public static final int NUM_WEIGHTS = 26;
+
+  private static final String WeightNames[] = {
+    "PawnValue", "KnightValue", "BishopValue", "RookValue", "QueenValue",
+    "DoubledPawn", "IsolatedPawn", "AllPawns", "PawnRam", "PassedPawn",
+    "BadBishopPawn", "CenterPawnUnmoved", "UndevelopedMinor", "EarlyQueen",
+    "Castled", "CastleBothSides", "CastleKingsideOnly", "CastleQueensideOnly",
+    "CannotCastle", "RookOnSeventh", "RookOpenFile", "RookSemiOpenFile",
+    "RookBehindPasser", "TropismRook", "TropismKnight", "TropismQueen" };
+  private static final int DefaultWeights[] = {
+    100, 300, 350, 500, 900,
+    8, 15, 10, 8, 4,
+    8, 15, 10, 8,
+    10, 24, 40, 80, 120,
+    22, 10, 4, 25,
+    2, 1, 1 };
+
+  private int Weights[];
+
+  // Piece values by piece code, for jcBoard.EvalMaterial, and whether they
+  // are the standard ones, in which case the board's running totals serve
+  private int PieceValues[];
+  private boolean StandardMaterial;
+
   /**********************************************************************
    * PUBLIC METHODS
    *********************************************************************/
@@ -44,6 +106,86 @@ public class jcBoardEvaluator
     MaxPassedPawns = new int[ 8 ];
     MinPawnFileBins = new int[ 8 ];
     MinMostBackward = new int[ 8 ];
+    PieceValues = new int[ jcBoard.ALL_PIECES ];
+    SetWeights( DefaultWeights );
+  }
+
+  // static int GetDefaultWeight / String GetWeightName
+  public static int GetDefaultWeight( int which ) { return DefaultWeights[ which ]; }
+  public static String GetWeightName( int which ) { return WeightNames[ which ]; }
+
+  // int[] GetWeights()
+  // A copy of the weights in use
+  public int[] GetWeights()
+  {
+    return Weights.clone();
+  }
+
+  // boolean SetWeights( int weights[] )
+  // Use another set of weights, which must have NUM_WEIGHTS entries
+  public boolean SetWeights( int weights[] )
+  {
+    if ( weights.length != NUM_WEIGHTS )
+      return false;
+    Weights = weights.clone();
+    for( int side = 0; side < 2; side++ )
+    {
+      PieceValues[ jcBoard.PAWN + side ] = Weights[ WEIGHT_PAWN_VALUE ];
+      PieceValues[ jcBoard.KNIGHT + side ] = Weights[ WEIGHT_KNIGHT_VALUE ];
+      PieceValues[ jcBoard.BISHOP + side ] = Weights[ WEIGHT_BISHOP_VALUE ];
+      PieceValues[ jcBoard.ROOK + side ] = Weights[ WEIGHT_ROOK_VALUE ];
+      PieceValues[ jcBoard.QUEEN + side ] = Weights[ WEIGHT_QUEEN_VALUE ];
+      PieceValues[ jcBoard.KING + side ] = jcBoard.GetPieceValue( jcBoard.KING + side );
+    }
+    StandardMaterial = true;
+    for( int piece = 0; piece < jcBoard.ALL_PIECES; piece++ )
+    {
+      if ( PieceValues[ piece ] != jcBoard.GetPieceValue( piece ) )
+        StandardMaterial = false;
+    }
+    return true;
+  }
+
+  // boolean LoadWeights( InputStream stream )
+  // Read weights written by SaveWeights: one "name value" pair per line,
+  // with # starting a comment.  Weights which are not mentioned keep their
+  // current value
+  public boolean LoadWeights( InputStream stream ) throws Exception
+  {
+    int weights[] = GetWeights();
+    BufferedReader in = new BufferedReader( new InputStreamReader( stream ) );
+    String line;
+    while ( ( line = in.readLine() ) != null )
+    {
+      int comment = line.indexOf( '#' );
+      if ( comment >= 0 )
+        line = line.substring( 0, comment );
+      StringTokenizer tokens = new StringTokenizer( line );
+      if ( !tokens.hasMoreTokens() )
+        continue;
+      String name = tokens.nextToken();
+      if ( !tokens.hasMoreTokens() )
+        throw new Exception( "No value for evaluation weight " + name );
+      int value = Integer.parseInt( tokens.nextToken() );
+      int which = 0;
+      while ( which < NUM_WEIGHTS && !WeightNames[ which ].equals( name ) )
+        which++;
+      if ( which == NUM_WEIGHTS )
+        throw new Exception( "Unknown evaluation weight " + name );
+      weights[ which ] = value;
+    }
+    return SetWeights( weights );
+  }
+
+  // boolean SaveWeights( OutputStream stream )
+  // Write the weights in the format read by LoadWeights
+  public boolean SaveWeights( OutputStream stream )
+  {
+    PrintWriter out = new PrintWriter( stream );
+    for( int which = 0; which < NUM_WEIGHTS; which++ )
+      out.println( WeightNames[ which ] + " " + Weights[ which ] );
+    out.flush();
+    return !out.checkError();
   }
 
   // int EvaluateQuickie( jcBoard theBoard, int FromWhosePerspective )
@@ -54,27 +196,44 @@ public class jcBoardEvaluator
   // won't be enough to tip the scales the other way, so to speak.
   public int EvaluateQuickie( jcBoard theBoard, int fromWhosePerspective )
   {
-    return ( ( theBoard.EvalMaterial( fromWhosePerspective ) >> Grain ) << Grain );
+    return ( ( EvalMaterial( theBoard, fromWhosePerspective ) >> Grain ) << Grain );
   }
 
   // int EvaluateComplete( jcBoard theBoard )
   // A detailed evaluation function, taking into account several positional
   // factors
   public int EvaluateComplete( jcBoard theBoard, int fromWhosePerspective )
+  {
+    return ( ( EvaluateUnrounded( theBoard, fromWhosePerspective ) >> Grain ) << Grain );
+  }
+
+  // int EvaluateUnrounded( jcBoard theBoard, int FromWhosePerspective )
+  // The detailed evaluation before it is made coarse; for tuning, where the
+  // small changes which the rounding would hide are what matters
+  public int EvaluateUnrounded( jcBoard theBoard, int fromWhosePerspective )
   {
     AnalyzePawnStructure( theBoard, fromWhosePerspective );
-    return(((theBoard.EvalMaterial( fromWhosePerspective ) +
-             EvalPawnStructure( fromWhosePerspective ) +
-             EvalBadBishops( theBoard, fromWhosePerspective ) +
-             EvalDevelopment( theBoard, fromWhosePerspective ) +
-             EvalRookBonus( theBoard, fromWhosePerspective ) +
-             EvalKingTropism( theBoard, fromWhosePerspective ) ) >> Grain ) << Grain );
+    return( EvalMaterial( theBoard, fromWhosePerspective ) +
+            EvalPawnStructure( fromWhosePerspective ) +
+            EvalBadBishops( theBoard, fromWhosePerspective ) +
+            EvalDevelopment( theBoard, fromWhosePerspective ) +
+            EvalRookBonus( theBoard, fromWhosePerspective ) +
+            EvalKingTropism( theBoard, fromWhosePerspective ) );
   }
 
   /***************************************************************************
    * PRIVATE METHODS
    **************************************************************************/
 
+  // private EvalMaterial
+  // The material balance, with this evaluator's piece values
+  private int EvalMaterial( jcBoard theBoard, int fromWhosePerspective )
+  {
+    if ( StandardMaterial )
+      return theBoard.EvalMaterial( fromWhosePerspective );
+    return theBoard.EvalMaterial( fromWhosePerspective, PieceValues );
+  }
+
   // private EvalKingTropism
   // All other things being equal, having your Knights, Queens and Rooks close
   // to the opponent's king is a good thing
@@ -108,15 +267,18 @@ public class jcBoardEvaluator
         switch( theBoard.FindWhitePiece( i ) )
         {
           case jcBoard.WHITE_ROOK:
-            score -= ( Math.min( Math.abs( kingRank - pieceRank ),
-                                 Math.abs( kingFile - pieceFile ) ) << 1 );
+            score -= Weights[ WEIGHT_TROPISM_ROOK ] *
+                     Math.min( Math.abs( kingRank - pieceRank ),
+                               Math.abs( kingFile - pieceFile ) );
             break;
           case jcBoard.WHITE_KNIGHT:
-            score += 5 - Math.abs( kingRank - pieceRank ) -
-                         Math.abs( kingFile - pieceFile );
+            score += Weights[ WEIGHT_TROPISM_KNIGHT ] *
+                     ( 5 - Math.abs( kingRank - pieceRank ) -
+                           Math.abs( kingFile - pieceFile ) );
             break;
           case jcBoard.WHITE_QUEEN:
-            score -= Math.min( Math.abs( kingRank - pieceRank ),
+            score -= Weights[ WEIGHT_TROPISM_QUEEN ] *
+                     Math.min( Math.abs( kingRank - pieceRank ),
                                Math.abs( kingFile - pieceFile ) );
             break;
           default:
@@ -145,15 +307,18 @@ public class jcBoardEvaluator
         switch( theBoard.FindBlackPiece( i ) )
         {
           case jcBoard.BLACK_ROOK:
-            score -= ( Math.min( Math.abs( kingRank - pieceRank ),
-                                 Math.abs( kingFile - pieceFile ) ) << 1 );
+            score -= Weights[ WEIGHT_TROPISM_ROOK ] *
+                     Math.min( Math.abs( kingRank - pieceRank ),
+                               Math.abs( kingFile - pieceFile ) );
             break;
           case jcBoard.BLACK_KNIGHT:
-            score += 5 - Math.abs( kingRank - pieceRank ) -
-                         Math.abs( kingFile - pieceFile );
+            score += Weights[ WEIGHT_TROPISM_KNIGHT ] *
+                     ( 5 - Math.abs( kingRank - pieceRank ) -
+                           Math.abs( kingFile - pieceFile ) );
             break;
           case jcBoard.BLACK_QUEEN:
-            score -= Math.min( Math.abs( kingRank - pieceRank ),
+            score -= Weights[ WEIGHT_TROPISM_QUEEN ] *
+                     Math.min( Math.abs( kingRank - pieceRank ),
                                Math.abs( kingFile - pieceFile ) );
             break;
           default:
@@ -184,27 +349,27 @@ public class jcBoardEvaluator
         int file = ( square % 8 );
         if ( ( fromWhosePerspective == jcPlayer.SIDE_WHITE ) &&
              ( rank == 1 ) )
-          score += 22;
+          score += Weights[ WEIGHT_ROOK_ON_SEVENTH ];
         if ( ( fromWhosePerspective == jcPlayer.SIDE_BLACK ) &&
              ( rank == 7 ) )
-          score += 22;
+          score += Weights[ WEIGHT_ROOK_ON_SEVENTH ];
 
         // Is this rook on a semi- or completely open file?
         if ( MaxPawnFileBins[ file ] == 0 )
         {
           if ( MinPawnFileBins[ file ] == 0 )
-            score += 10;
+            score += Weights[ WEIGHT_ROOK_OPEN_FILE ];
           else
-            score += 4;
+            score += Weights[ WEIGHT_ROOK_SEMI_OPEN_FILE ];
         }
 
         // Is this rook behind a passed pawn?
         if ( ( fromWhosePerspective == jcPlayer.SIDE_WHITE ) &&
              ( MaxPassedPawns[ file ] < square ) )
-            score += 25;
+            score += Weights[ WEIGHT_ROOK_BEHIND_PASSER ];
         if ( ( fromWhosePerspective == jcPlayer.SIDE_BLACK ) &&
              ( MaxPassedPawns[ file ] > square ) )
-            score += 25;
+            score += Weights[ WEIGHT_ROOK_BEHIND_PASSER ];
 
         // Use the bitboard erasure trick to avoid looking for additional
         // rooks once they have all been seen
@@ -229,16 +394,16 @@ public class jcBoardEvaluator
     {
       // Has the machine advanced its center pawns?
       if ( theBoard.FindWhitePiece( 51 ) == jcBoard.WHITE_PAWN )
-        score -= 15;
+        score -= Weights[ WEIGHT_CENTER_PAWN_UNMOVED ];
       if ( theBoard.FindWhitePiece( 52 ) == jcBoard.WHITE_PAWN )
-        score -= 15;
+        score -= Weights[ WEIGHT_CENTER_PAWN_UNMOVED ];
 
       // Penalize bishops and knights on the back rank
       for( int square = 56; square < 64; square++ )
       {
         if ( ( theBoard.FindWhitePiece( square ) == jcBoard.WHITE_KNIGHT ) ||
              ( theBoard.FindWhitePiece( square ) == jcBoard.WHITE_BISHOP ) )
-          score -= 10;
+          score -= Weights[ WEIGHT_UNDEVELOPED_MINOR ];
       }
 
       // Penalize too-early queen movement
@@ -261,7 +426,7 @@ public class jcBoardEvaluator
           cnt++;
         if ( ( theBoard.GetBitBoard( jcBoard.WHITE_KING ) & jcBoard.SquareBits[ 60 ] ) != 0 )
           cnt++;
-        score -= ( cnt << 3 );
+        score -= cnt * Weights[ WEIGHT_EARLY_QUEEN ];
       }
 
       // And finally, incite castling when the enemy has a queen on the board
@@ -270,36 +435,36 @@ public class jcBoardEvaluator
       {
         // Being castled deserves a bonus
         if ( theBoard.GetHasCastled( jcPlayer.SIDE_WHITE ) )
-          score += 10;
+          score += Weights[ WEIGHT_CASTLED ];
         // small penalty if you can still castle on both sides
         else if ( theBoard.GetCastlingStatus( jcPlayer.SIDE_WHITE + jcBoard.CASTLE_QUEENSIDE ) &&
                   theBoard.GetCastlingStatus( jcPlayer.SIDE_WHITE + jcBoard.CASTLE_QUEENSIDE ) )
-          score -= 24;
+          score -= Weights[ WEIGHT_CASTLE_BOTH_SIDES ];
         // bigger penalty if you can only castle kingside
         else if ( theBoard.GetCastlingStatus( jcPlayer.SIDE_WHITE + jcBoard.CASTLE_KINGSIDE ) )
-          score -= 40;
+          score -= Weights[ WEIGHT_CASTLE_KINGSIDE_ONLY ];
         // bigger penalty if you can only castle queenside
         else if ( theBoard.GetCastlingStatus( jcPlayer.SIDE_WHITE + jcBoard.CASTLE_QUEENSIDE ) )
-          score -= 80;
+          score -= Weights[ WEIGHT_CASTLE_QUEENSIDE_ONLY ];
         // biggest penalty if you can't castle at all
         else
-          score -= 120;
+          score -= Weights[ WEIGHT_CANNOT_CASTLE ];
       }
     }
     else // from black's perspective
     {
       // Has the machine advanced its center pawns?
       if ( theBoard.FindBlackPiece( 11 ) == jcBoard.BLACK_PAWN )
-        score -= 15;
+        score -= Weights[ WEIGHT_CENTER_PAWN_UNMOVED ];
       if ( theBoard.FindBlackPiece( 12 ) == jcBoard.BLACK_PAWN )
-        score -= 15;
+        score -= Weights[ WEIGHT_CENTER_PAWN_UNMOVED ];
 
       // Penalize bishops and knights on the back rank
       for( int square = 0; square < 8; square++ )
       {
         if ( ( theBoard.FindBlackPiece( square ) == jcBoard.BLACK_KNIGHT ) ||
              ( theBoard.FindBlackPiece( square ) == jcBoard.BLACK_BISHOP ) )
-          score -= 10;
+          score -= Weights[ WEIGHT_UNDEVELOPED_MINOR ];
       }
 
       // Penalize too-early queen movement
@@ -322,7 +487,7 @@ public class jcBoardEvaluator
           cnt++;
         if ( ( theBoard.GetBitBoard( jcBoard.BLACK_KING ) & jcBoard.SquareBits[ 4 ] ) != 0 )
           cnt++;
-        score -= ( cnt << 3 );
+        score -= cnt * Weights[ WEIGHT_EARLY_QUEEN ];
       }
 
       // And finally, incite castling when the enemy has a queen on the board
@@ -331,20 +496,20 @@ public class jcBoardEvaluator
       {
         // Being castled deserves a bonus
         if ( theBoard.GetHasCastled( jcPlayer.SIDE_BLACK ) )
-          score += 10;
+          score += Weights[ WEIGHT_CASTLED ];
         // small penalty if you can still castle on both sides
         else if ( theBoard.GetCastlingStatus( jcPlayer.SIDE_BLACK + jcBoard.CASTLE_QUEENSIDE ) &&
                   theBoard.GetCastlingStatus( jcPlayer.SIDE_BLACK + jcBoard.CASTLE_QUEENSIDE ) )
-          score -= 24;
+          score -= Weights[ WEIGHT_CASTLE_BOTH_SIDES ];
         // bigger penalty if you can only castle kingside
         else if ( theBoard.GetCastlingStatus( jcPlayer.SIDE_BLACK + jcBoard.CASTLE_KINGSIDE ) )
-          score -= 40;
+          score -= Weights[ WEIGHT_CASTLE_KINGSIDE_ONLY ];
         // bigger penalty if you can only castle queenside
         else if ( theBoard.GetCastlingStatus( jcPlayer.SIDE_BLACK + jcBoard.CASTLE_QUEENSIDE ) )
-          score -= 80;
+          score -= Weights[ WEIGHT_CASTLE_QUEENSIDE_ONLY ];
         // biggest penalty if you can't castle at all
         else
-          score -= 120;
+          score -= Weights[ WEIGHT_CANNOT_CASTLE ];
       }
     }
     return score;
@@ -369,9 +534,9 @@ public class jcBoardEvaluator
         int rank = ( square >> 3 );
         int file = ( square % 8 );
         if ( ( rank % 2 ) == ( file % 2 ) )
-          score -= ( MaxPawnColorBins[ 0 ] << 3 );
+          score -= MaxPawnColorBins[ 0 ] * Weights[ WEIGHT_BAD_BISHOP_PAWN ];
         else
-          score -= ( MaxPawnColorBins[ 1 ] << 3 );
+          score -= MaxPawnColorBins[ 1 ] * Weights[ WEIGHT_BAD_BISHOP_PAWN ];
 
         // Use the bitboard erasure trick to avoid looking for additional
         // bishops once they have all been seen
@@ -395,70 +560,71 @@ public class jcBoardEvaluator
     // so we assign a minor penalty
     for( int bin = 0; bin < 8; bin++ )
       if ( MaxPawnFileBins[ bin ] > 1 )
-        score -= 8;
+        score -= Weights[ WEIGHT_DOUBLED_PAWN ];
 
     // Now, look for an isolated pawn, i.e., one which has no neighbor pawns
     // capable of protecting it from attack at some point in the future
     if ( ( MaxPawnFileBins[ 0 ] > 0 ) && ( MaxPawnFileBins[ 1 ] == 0 ) )
-      score -= 15;
+      score -= Weights[ WEIGHT_ISOLATED_PAWN ];
     if ( ( MaxPawnFileBins[ 7 ] > 0 ) && ( MaxPawnFileBins[ 6 ] == 0 ) )
-      score -= 15;
+      score -= Weights[ WEIGHT_ISOLATED_PAWN ];
     for( int bin = 1; bin < 7; bin++ )
     {
       if ( ( MaxPawnFileBins[ bin ] > 0 ) && ( MaxPawnFileBins[ bin - 1 ] == 0 )
            && ( MaxPawnFileBins[ bin + 1 ] == 0 ) )
-        score -= 15;
+        score -= Weights[ WEIGHT_ISOLATED_PAWN ];
     }
 
     // Assign a small penalty to positions in which Max still has all of his
     // pawns; this incites a single pawn trade (to open a file), but not by
     // much
     if ( MaxTotalPawns == 8 )
-      score -= 10;
+      score -= Weights[ WEIGHT_ALL_PAWNS ];
 
     // Penalize pawn rams, because they restrict movement
-    score -= 8 * PawnRams;
+    score -= Weights[ WEIGHT_PAWN_RAM ] * PawnRams;
 
     // Finally, look for a passed pawn; i.e., a pawn which can no longer be
     // blocked or attacked by a rival pawn
     if ( fromWhosePerspective == jcPlayer.SIDE_WHITE )
     {
       if ( MaxMostAdvanced[ 0 ] < Math.min( MinMostBackward[ 0 ], MinMostBackward[ 1 ] ) )
-        score += ( 8 - ( MaxMostAdvanced[ 0 ] >> 3 ) ) *
-                 ( 8 - ( MaxMostAdvanced[ 0 ] >> 3 ) );
+        score += PassedPawnBonus( ( 8 - ( MaxMostAdvanced[ 0 ] >> 3 ) ) );
       if ( MaxMostAdvanced[ 7 ] < Math.min( MinMostBackward[ 7 ], MinMostBackward[ 6 ] ) )
-        score += ( 8 - ( MaxMostAdvanced[ 7 ] >> 3 ) ) *
-                 ( 8 - ( MaxMostAdvanced[ 7 ] >> 3 ) );
+        score += PassedPawnBonus( ( 8 - ( MaxMostAdvanced[ 7 ] >> 3 ) ) );
       for( int i = 1; i < 7; i++ )
       {
         if ( ( MaxMostAdvanced[ i ] < MinMostBackward[ i ] ) &&
              ( MaxMostAdvanced[ i ] < MinMostBackward[ i - 1 ] ) &&
              ( MaxMostAdvanced[ i ] < MinMostBackward[ i + 1 ] ) )
-          score += ( 8 - ( MaxMostAdvanced[ i ] >> 3 ) ) *
-                   ( 8 - ( MaxMostAdvanced[ i ] >> 3 ) );
+          score += PassedPawnBonus( ( 8 - ( MaxMostAdvanced[ i ] >> 3 ) ) );
       }
     }
     else // from Black's perspective
     {
       if ( MaxMostAdvanced[ 0 ] > Math.max( MinMostBackward[ 0 ], MinMostBackward[ 1 ] ) )
-        score += ( MaxMostAdvanced[ 0 ] >> 3 ) *
-                 ( MaxMostAdvanced[ 0 ] >> 3 );
+        score += PassedPawnBonus( ( MaxMostAdvanced[ 0 ] >> 3 ) );
       if ( MaxMostAdvanced[ 7 ] > Math.max( MinMostBackward[ 7 ], MinMostBackward[ 6 ] ) )
-        score += ( MaxMostAdvanced[ 7 ] >> 3 ) *
-                 ( MaxMostAdvanced[ 7 ] >> 3 );
+        score += PassedPawnBonus( ( MaxMostAdvanced[ 7 ] >> 3 ) );
       for( int i = 1; i < 7; i++ )
       {
         if ( ( MaxMostAdvanced[ i ] > MinMostBackward[ i ] ) &&
              ( MaxMostAdvanced[ i ] > MinMostBackward[ i - 1 ] ) &&
              ( MaxMostAdvanced[ i ] > MinMostBackward[ i + 1 ] ) )
-          score += ( MaxMostAdvanced[ i ] >> 3 ) *
-                   ( MaxMostAdvanced[ i ] >> 3 );
+          score += PassedPawnBonus( ( MaxMostAdvanced[ i ] >> 3 ) );
       }
     }
 
     return score;
   }
 
+  // private PassedPawnBonus
+  // A passed pawn's bonus grows with the square of its advancement
+  private int PassedPawnBonus( int advancement )
+  {
+    return ( Weights[ WEIGHT_PASSED_PAWN ] * advancement * advancement ) >> 2;
+  }
+
   // private AnalyzePawnStructure
   // Look at pawn positions to be able to detect features such as doubled,
   // isolated or passed pawns
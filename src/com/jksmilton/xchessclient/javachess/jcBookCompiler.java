@@ -0,0 +1,571 @@
+/****************************************************************************
+ * jcBookCompiler - Builds binary opening books from game collections
+ *
+ * A command-line tool, meant to be run on a workstation rather than on the
+ * device: it replays every game of a set of PGN files (or of the old book
+ * format, lines of square-number pairs ending with END) and counts, for each
+ * (position, move) pair of the opening phase, how often it was played and
+ * how many points it earned.  The result is written as a sorted book in the
+ * layout read by jcOpeningBook.
+ *
+ * The number of occurrences can be far larger than the memory available, so
+ * they are gathered in a fixed-size buffer which, when full, is sorted,
+ * merged and spilled to a temporary "run" file; the runs are then merged
+ * together in one pass.
+ *
+ * Usage:
+ *   jcBookCompiler [options] output.bin input1.pgn input2.txt ...
+ * Options:
+ *   -maxply N     only use the first N plies of each game (default 30)
+ *   -mingames N   drop moves played in fewer than N games (default 1)
+ *   -minscore P   drop moves which scored less than P percent (default 0)
+ *   -buffer N     occurrences held in memory before spilling (default 1M)
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.StreamTokenizer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+
+/*****************************************************************************
+ * PUBLIC class jcBookCompiler
+ ****************************************************************************/
+
+public class jcBookCompiler
+{
+  // Points earned by a move, from the point of view of the side playing it;
+  // games without a known result count as draws
+  private static final int POINTS_WIN = 2;
+  private static final int POINTS_DRAW = 1;
+  private static final int POINTS_LOSS = 0;
+
+  // Game results, from White's point of view
+  private static final int RESULT_UNKNOWN = -1;
+  private static final int RESULT_BLACK_WINS = 0;
+  private static final int RESULT_DRAW = 1;
+  private static final int RESULT_WHITE_WINS = 2;
+
+  // Options
+  private int MaxPly = 30;
+  private int MinGames = 1;
+  private int MinScore = 0;
+
+  // The in-memory buffer of occurrences: position key, move, and points
+  private long BufferKeys[];
+  private int BufferMoves[];
+  private int BufferPoints[];
+  private int BufferCount;
+
+  // The sorted runs spilled to disk so far
+  private ArrayList<File> Runs;
+
+  // Replay state
+  private boolean Started;
+  private jcBoard Board;
+  private jcMoveListGenerator Successors;
+  private long GameKeys[];
+  private int GameMoves[];
+  private int GamePlies;
+
+  // Statistics
+  private int NumGames, NumSkipped;
+  private long NumOccurrences;
+
+  // Construction
+  public jcBookCompiler( int bufferSize )
+  {
+    BufferKeys = new long[ bufferSize ];
+    BufferMoves = new int[ bufferSize ];
+    BufferPoints = new int[ bufferSize ];
+    Runs = new ArrayList<File>();
+    Board = new jcBoard();
+    Successors = new jcMoveListGenerator();
+    GameKeys = new long[ 1024 ];
+    GameMoves = new int[ 1024 ];
+  }
+
+  public static void main( String args[] ) throws Exception
+  {
+    int bufferSize = 1 << 20;
+    int maxPly = 30, minGames = 1, minScore = 0;
+    int arg = 0;
+    while ( arg < args.length && args[ arg ].startsWith( "-" ) )
+    {
+      String option = args[ arg++ ];
+      if ( arg >= args.length )
+        Usage();
+      int value = Integer.parseInt( args[ arg++ ] );
+      if ( option.equals( "-maxply" ) )
+        maxPly = value;
+      else if ( option.equals( "-mingames" ) )
+        minGames = value;
+      else if ( option.equals( "-minscore" ) )
+        minScore = value;
+      else if ( option.equals( "-buffer" ) )
+        bufferSize = value;
+      else
+        Usage();
+    }
+    if ( args.length - arg < 2 )
+      Usage();
+
+    jcBookCompiler compiler = new jcBookCompiler( bufferSize );
+    compiler.SetLimits( maxPly, minGames, minScore );
+    for( int i = arg + 1; i < args.length; i++ )
+    {
+      File input = new File( args[ i ] );
+      if ( input.getName().toLowerCase().endsWith( ".pgn" ) )
+        compiler.AddPGN( input );
+      else
+        compiler.AddMoveList( input );
+    }
+    int entries = compiler.Write( new File( args[ arg ] ) );
+    System.out.println( compiler.NumGames + " games (" + compiler.NumSkipped + " skipped), " +
+                        compiler.NumOccurrences + " moves, " + entries + " book entries" );
+  }
+
+  // Accessor
+  public void SetLimits( int maxPly, int minGames, int minScore )
+  {
+    MaxPly = maxPly;
+    MinGames = minGames;
+    MinScore = minScore;
+  }
+
+  // public void AddMoveList
+  // Read the old book format: the number of lines, then each line as pairs
+  // of square numbers terminated by END.  These are not games, so every move
+  // is scored as a draw
+  public void AddMoveList( File fileName ) throws Exception
+  {
+    BufferedReader fr = new BufferedReader( new FileReader( fileName ) );
+    StreamTokenizer tok = new StreamTokenizer( fr );
+    tok.eolIsSignificant( false );
+    tok.lowerCaseMode( false );
+
+    tok.nextToken();
+    int numLines = (int) tok.nval;
+    for( int wak = 0; wak < numLines; wak++ )
+    {
+      StartGame();
+      while( true )
+      {
+        if( ( tok.nextToken() == StreamTokenizer.TT_WORD ) && ( tok.sval.equalsIgnoreCase( "END" ) ) )
+          break;
+        int source = (int) tok.nval;
+        tok.nextToken();
+        int destination = (int) tok.nval;
+
+        Successors.ComputeStrictlyLegalMoves( Board );
+        jcMove mov = Successors.FindMoveForSquares( source, destination );
+        if ( mov == null )
+        {
+          fr.close();
+          throw new Exception( fileName + ": illegal move " + source + " " + destination + " in line " + ( wak + 1 ) );
+        }
+        PlayMove( mov );
+      }
+      EndGame( RESULT_UNKNOWN );
+    }
+    fr.close();
+  }
+
+  // public void AddPGN
+  // Read a PGN file.  Tags other than Result and FEN are ignored, and so are
+  // comments, variations and annotation glyphs; games which start from a set
+  // up position, or contain a move which cannot be read, are skipped
+  public void AddPGN( File fileName ) throws Exception
+  {
+    BufferedReader fr = new BufferedReader( new FileReader( fileName ), 1 << 16 );
+    int result = RESULT_UNKNOWN;
+    boolean inGame = false;     // Moves have been seen since the last tags
+    boolean skipping = false;   // The current game is being ignored
+    int commentDepth = 0;       // Inside {...}
+    int variationDepth = 0;     // Inside (...)
+    String line;
+    while ( ( line = fr.readLine() ) != null )
+    {
+      int pos = 0;
+      int length = line.length();
+
+      // Tag pairs and escapes are only recognized at the start of a line
+      if ( commentDepth == 0 && length > 0 && line.charAt( 0 ) == '%' )
+        continue;
+      if ( commentDepth == 0 && variationDepth == 0 && line.startsWith( "[" ) )
+      {
+        // A game without a termination marker ends at the next tags
+        if ( inGame )
+        {
+          EndGame( result, skipping );
+          inGame = false;
+        }
+        if ( !Started )
+        {
+          StartGame();
+          result = RESULT_UNKNOWN;
+          skipping = false;
+        }
+        if ( line.startsWith( "[Result " ) )
+          result = ParseResult( TagValue( line ) );
+        else if ( line.startsWith( "[FEN " ) || line.startsWith( "[SetUp \"1\"" ) )
+          skipping = true;
+        continue;
+      }
+
+      while ( pos < length )
+      {
+        char c = line.charAt( pos );
+        if ( commentDepth > 0 )
+        {
+          if ( c == '}' )
+            commentDepth = 0;
+          pos++;
+          continue;
+        }
+        if ( c == '{' ) { commentDepth = 1; pos++; continue; }
+        if ( c == ';' ) break;
+        if ( c == '(' ) { variationDepth++; pos++; continue; }
+        if ( c == ')' ) { if ( variationDepth > 0 ) variationDepth--; pos++; continue; }
+        if ( Character.isWhitespace( c ) || c == '.' ) { pos++; continue; }
+
+        // A token: a move number, a glyph, a result or a move
+        int start = pos;
+        while ( pos < length && !Character.isWhitespace( line.charAt( pos ) ) &&
+                "{};().".indexOf( line.charAt( pos ) ) < 0 )
+          pos++;
+        String token = line.substring( start, pos );
+        if ( variationDepth > 0 || token.startsWith( "$" ) )
+          continue;
+        if ( Character.isDigit( token.charAt( 0 ) ) && IsMoveNumber( token ) )
+          continue;
+        if ( token.equals( "*" ) || token.equals( "1-0" ) || token.equals( "0-1" ) || token.equals( "1/2-1/2" ) )
+        {
+          // End of the game's movetext; the marker wins over the tag
+          if ( Started )
+            EndGame( ParseResult( token ) != RESULT_UNKNOWN ? ParseResult( token ) : result, skipping );
+          inGame = false;
+          continue;
+        }
+
+        if ( !Started )
+        {
+          StartGame();
+          result = RESULT_UNKNOWN;
+          skipping = false;
+        }
+        inGame = true;
+        if ( skipping || GamePlies >= MaxPly )
+          continue;
+        jcMove mov = jcNotation.ParseSAN( Board, token );
+        if ( mov == null )
+          skipping = true;
+        else
+          PlayMove( mov );
+      }
+    }
+    if ( inGame )
+      EndGame( result, skipping );
+    fr.close();
+  }
+
+  // public int Write
+  // Merge everything gathered so far into a book file; return the number of
+  // entries written
+  public int Write( File fileName ) throws Exception
+  {
+    Spill();
+    PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+    for( int i = 0; i < Runs.size(); i++ )
+    {
+      RunReader reader = new RunReader( Runs.get( i ) );
+      if ( reader.Advance() )
+        queue.add( reader );
+    }
+
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream( new FileOutputStream( fileName ), 1 << 16 ) );
+    ByteBuffer entry = ByteBuffer.allocate( jcOpeningBook.ENTRY_SIZE );
+    int entries = 0;
+    long key = 0;
+    int move = -1, games = 0, points = 0;
+    while ( !queue.isEmpty() )
+    {
+      RunReader reader = queue.poll();
+      if ( move >= 0 && reader.Key == key && reader.Move == move )
+      {
+        games += reader.Games;
+        points += reader.Points;
+      }
+      else
+      {
+        if ( move >= 0 && WriteEntry( out, entry, key, move, games, points ) )
+          entries++;
+        key = reader.Key;
+        move = reader.Move;
+        games = reader.Games;
+        points = reader.Points;
+      }
+      if ( reader.Advance() )
+        queue.add( reader );
+      else
+        reader.Close();
+    }
+    if ( move >= 0 && WriteEntry( out, entry, key, move, games, points ) )
+      entries++;
+    out.close();
+
+    for( int i = 0; i < Runs.size(); i++ )
+      Runs.get( i ).delete();
+    Runs.clear();
+    return entries;
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  private static void Usage()
+  {
+    System.err.println( "Usage: jcBookCompiler [-maxply N] [-mingames N] [-minscore P] [-buffer N] " +
+                        "output.bin input.pgn|input.txt ..." );
+    System.exit( 1 );
+  }
+
+  // Replaying one game: the moves are remembered until the result is known
+  private void StartGame()
+  {
+    Board.StartingBoard();
+    GamePlies = 0;
+    Started = true;
+  }
+
+  private void PlayMove( jcMove mov ) throws Exception
+  {
+    if ( GamePlies < MaxPly )
+    {
+      if ( GamePlies == GameKeys.length )
+      {
+        GameKeys = Arrays.copyOf( GameKeys, GamePlies << 1 );
+        GameMoves = Arrays.copyOf( GameMoves, GamePlies << 1 );
+      }
+      GameKeys[ GamePlies ] = Board.BookKey();
+      GameMoves[ GamePlies ] = jcOpeningBook.EncodeMove( mov );
+    }
+    GamePlies++;
+    Board.ApplyMove( mov );
+  }
+
+  private void EndGame( int result ) throws Exception
+  {
+    EndGame( result, false );
+  }
+
+  private void EndGame( int result, boolean skipped ) throws Exception
+  {
+    Started = false;
+    if ( skipped )
+    {
+      NumSkipped++;
+      GamePlies = 0;
+      return;
+    }
+    NumGames++;
+    int plies = Math.min( GamePlies, MaxPly );
+    for( int ply = 0; ply < plies; ply++ )
+    {
+      // White plays the even plies
+      int points;
+      if ( result == RESULT_UNKNOWN || result == RESULT_DRAW )
+        points = POINTS_DRAW;
+      else if ( ( result == RESULT_WHITE_WINS ) == ( ( ply & 1 ) == 0 ) )
+        points = POINTS_WIN;
+      else
+        points = POINTS_LOSS;
+      Add( GameKeys[ ply ], GameMoves[ ply ], points );
+    }
+    GamePlies = 0;
+  }
+
+  private void Add( long key, int move, int points ) throws Exception
+  {
+    if ( BufferCount == BufferKeys.length )
+      Spill();
+    BufferKeys[ BufferCount ] = key;
+    BufferMoves[ BufferCount ] = move;
+    BufferPoints[ BufferCount ] = points;
+    BufferCount++;
+    NumOccurrences++;
+  }
+
+  // Sort the buffer, merge equal (key, move) pairs and write them as a run
+  // of (key, move, games, points) records
+  private void Spill() throws Exception
+  {
+    if ( BufferCount == 0 )
+      return;
+    Sort( 0, BufferCount - 1 );
+    File run = File.createTempFile( "jcbook", ".run" );
+    run.deleteOnExit();
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream( new FileOutputStream( run ), 1 << 16 ) );
+    int i = 0;
+    while ( i < BufferCount )
+    {
+      int j = i;
+      int points = 0;
+      while ( j < BufferCount && BufferKeys[ j ] == BufferKeys[ i ] && BufferMoves[ j ] == BufferMoves[ i ] )
+        points += BufferPoints[ j++ ];
+      out.writeLong( BufferKeys[ i ] );
+      out.writeShort( BufferMoves[ i ] );
+      out.writeInt( j - i );
+      out.writeInt( points );
+      i = j;
+    }
+    out.close();
+    Runs.add( run );
+    BufferCount = 0;
+  }
+
+  // Quicksort of the three parallel buffer arrays, by unsigned key then move
+  private void Sort( int low, int high )
+  {
+    while ( low < high )
+    {
+      int mid = ( low + high ) >>> 1;
+      long pivotKey = BufferKeys[ mid ];
+      int pivotMove = BufferMoves[ mid ];
+      int i = low, j = high;
+      while ( i <= j )
+      {
+        while ( Compare( BufferKeys[ i ], BufferMoves[ i ], pivotKey, pivotMove ) < 0 ) i++;
+        while ( Compare( BufferKeys[ j ], BufferMoves[ j ], pivotKey, pivotMove ) > 0 ) j--;
+        if ( i <= j )
+        {
+          long k = BufferKeys[ i ]; BufferKeys[ i ] = BufferKeys[ j ]; BufferKeys[ j ] = k;
+          int m = BufferMoves[ i ]; BufferMoves[ i ] = BufferMoves[ j ]; BufferMoves[ j ] = m;
+          int p = BufferPoints[ i ]; BufferPoints[ i ] = BufferPoints[ j ]; BufferPoints[ j ] = p;
+          i++;
+          j--;
+        }
+      }
+      // Recurse into the smaller half, loop on the larger one
+      if ( j - low < high - i )
+      {
+        Sort( low, j );
+        low = i;
+      }
+      else
+      {
+        Sort( i, high );
+        high = j;
+      }
+    }
+  }
+
+  private static int Compare( long keyA, int moveA, long keyB, int moveB )
+  {
+    int result = jcOpeningBook.CompareKeys( keyA, keyB );
+    return ( result != 0 ) ? result : ( moveA - moveB );
+  }
+
+  // Write one book entry, unless the move is filtered out.  The weight is
+  // the number of points earned by the move; the learning field holds the
+  // number of games in its upper 16 bits and the score, in hundredths of a
+  // percent, in its lower 16 bits
+  private boolean WriteEntry( DataOutputStream out, ByteBuffer entry, long key, int move,
+                              int games, int points ) throws Exception
+  {
+    int score = (int) ( 10000L * points / ( POINTS_WIN * (long) games ) );
+    if ( games < MinGames || score < MinScore * 100 || points == 0 )
+      return false;
+    jcOpeningBook.WriteEntry( entry, 0, key, move, Math.min( 0xFFFF, points ),
+                              ( Math.min( 0xFFFF, games ) << 16 ) | score );
+    out.write( entry.array() );
+    return true;
+  }
+
+  private static int ParseResult( String result )
+  {
+    if ( result.equals( "1-0" ) )
+      return RESULT_WHITE_WINS;
+    if ( result.equals( "0-1" ) )
+      return RESULT_BLACK_WINS;
+    if ( result.equals( "1/2-1/2" ) )
+      return RESULT_DRAW;
+    return RESULT_UNKNOWN;
+  }
+
+  private static String TagValue( String line )
+  {
+    int start = line.indexOf( '"' );
+    int end = line.lastIndexOf( '"' );
+    return ( start >= 0 && end > start ) ? line.substring( start + 1, end ) : "";
+  }
+
+  private static boolean IsMoveNumber( String token )
+  {
+    for( int i = 0; i < token.length(); i++ )
+    {
+      if ( !Character.isDigit( token.charAt( i ) ) )
+        return false;
+    }
+    return true;
+  }
+
+  /***************************************************************************
+   * PRIVATE class RunReader
+   * Sequential access to one sorted run, for the final merge
+   **************************************************************************/
+
+  private static class RunReader implements Comparable<RunReader>
+  {
+    DataInputStream In;
+    long Key;
+    int Move, Games, Points;
+
+    RunReader( File run ) throws Exception
+    {
+      In = new DataInputStream( new BufferedInputStream( new FileInputStream( run ), 1 << 16 ) );
+    }
+
+    boolean Advance() throws Exception
+    {
+      try
+      {
+        Key = In.readLong();
+        Move = In.readShort() & 0xFFFF;
+        Games = In.readInt();
+        Points = In.readInt();
+        return true;
+      }
+      catch( EOFException e )
+      {
+        return false;
+      }
+    }
+
+    void Close() throws Exception
+    {
+      In.close();
+    }
+
+    public int compareTo( RunReader other )
+    {
+      return Compare( Key, Move, other.Key, other.Move );
+    }
+  }
+}
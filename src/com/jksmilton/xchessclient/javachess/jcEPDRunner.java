@@ -0,0 +1,478 @@
+/****************************************************************************
+ * jcEPDRunner - Test suite runner
+ *
+ * Purpose:
+ * Measures the tactical strength and speed of the search by running it on
+ * test suites in Extended Position Description format, the usual way of
+ * distributing chess problems.  Each record is a position (the first four
+ * fields of a FEN) followed by operations; this runner understands
+ *   bm  the best move(s): the position is solved if the search picks one
+ *   am  the move(s) to avoid: solved if the search picks none of them
+ *   id  the name of the position, for the report
+ * and ignores the others.  Moves are written in SAN.
+ *
+ * The positions are solved on a thread pool, each with its own search agent
+ * and the same time, node or depth budget.  A position's time to solution
+ * is the time at which the search settled on a correct move for good, i.e.
+ * the end of the first iteration after which it never changed its mind
+ * again.  The results are written as JSON, so that they can be compared
+ * from one version of the engine to the next.
+ *
+ * Usage:
+ *   jcEPDRunner [options] suite.epd...
+ * Options:
+ *   -time MS      search each position for at most MS milliseconds
+ *   -nodes N      or for at most N nodes
+ *   -depth N      or to depth N (default: -time 5000)
+ *   -threads N    positions searched at once (default: number of cores)
+ *   -hash MB      transposition table size per search (default 6)
+ *   -json file    where to write the report (default: standard output)
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+
+public class jcEPDRunner
+{
+  /***************************************************************************
+   * DATA MEMBERS
+   **************************************************************************/
+
+  // The search budget for each position
+  private int MaxDepth;
+  private long MaxNodes;
+  private long MaxTime;
+  private int HashSize;
+
+  /***************************************************************************
+   * PUBLIC class Position
+   * One record of a test suite
+   **************************************************************************/
+  public static class Position
+  {
+    public String Id;
+    public String FEN;
+    public List<String> BestMoves = new ArrayList<String>();
+    public List<String> AvoidMoves = new ArrayList<String>();
+  }
+
+  /***************************************************************************
+   * PUBLIC class Result
+   * What the search made of one position
+   **************************************************************************/
+  public static class Result
+  {
+    public String Id;
+    @SerializedName( "fen" )
+    public String FEN;
+    public List<String> BestMoves;
+    public List<String> AvoidMoves;
+    public String Move;
+    public boolean Solved;
+    // Time at which the search settled on a correct move, or -1
+    public long TimeToSolutionMillis = -1;
+    public int Depth;
+    public int Score;
+    public long Nodes;
+    public long TimeMillis;
+    public long NodesPerSecond;
+    // Why the position could not be searched, if it could not
+    public String Error;
+  }
+
+  /***************************************************************************
+   * PUBLIC class Report
+   * The whole run, as written in JSON
+   **************************************************************************/
+  public static class Report
+  {
+    public List<String> Suites = new ArrayList<String>();
+    public int MaxDepth;
+    public long MaxNodes;
+    public long MaxTimeMillis;
+    public int Threads;
+    public int Positions;
+    public int Solved;
+    public double SolveRate;
+    public double AverageTimeToSolutionMillis;
+    public long TotalNodes;
+    public long TotalTimeMillis;
+    public long NodesPerSecond;
+    public long WallTimeMillis;
+    public List<Result> Results = new ArrayList<Result>();
+  }
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // Construction
+  public jcEPDRunner( int maxDepth, long maxNodes, long maxTime, int hashSize )
+  {
+    MaxDepth = maxDepth;
+    MaxNodes = maxNodes;
+    MaxTime = maxTime;
+    HashSize = hashSize;
+  }
+
+  public static void main( String args[] ) throws Exception
+  {
+    int depth = 0, threads = Runtime.getRuntime().availableProcessors(), hash = 6;
+    long nodes = 0, time = 0;
+    String jsonFile = null;
+    List<String> suites = new ArrayList<String>();
+    for( int i = 0; i < args.length; i++ )
+    {
+      String option = args[ i ];
+      if ( !option.startsWith( "-" ) )
+      {
+        suites.add( option );
+        continue;
+      }
+      if ( i + 1 >= args.length )
+        Usage();
+      String value = args[ ++i ];
+      if ( option.equals( "-time" ) )
+        time = Long.parseLong( value );
+      else if ( option.equals( "-nodes" ) )
+        nodes = Long.parseLong( value );
+      else if ( option.equals( "-depth" ) )
+        depth = Integer.parseInt( value );
+      else if ( option.equals( "-threads" ) )
+        threads = Integer.parseInt( value );
+      else if ( option.equals( "-hash" ) )
+        hash = Integer.parseInt( value );
+      else if ( option.equals( "-json" ) )
+        jsonFile = value;
+      else
+        Usage();
+    }
+    if ( suites.isEmpty() )
+      Usage();
+    if ( depth == 0 && nodes == 0 && time == 0 )
+      time = 5000;
+
+    PrintStream out = System.out;
+
+    List<Position> positions = new ArrayList<Position>();
+    for( int i = 0; i < suites.size(); i++ )
+      positions.addAll( Load( suites.get( i ) ) );
+
+    jcEPDRunner runner = new jcEPDRunner( depth, nodes, time, hash );
+    Report report = runner.Run( positions, Math.max( 1, threads ), System.err );
+    report.Suites.addAll( suites );
+
+    Gson gson = new GsonBuilder().setPrettyPrinting()
+                                 .setFieldNamingPolicy( FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES )
+                                 .create();
+    Writer json = ( jsonFile != null ) ? new FileWriter( jsonFile ) : new OutputStreamWriter( out );
+    gson.toJson( report, json );
+    json.write( '\n' );
+    json.flush();
+    if ( jsonFile != null )
+      json.close();
+    System.err.println( report.Solved + " of " + report.Positions + " solved" );
+  }
+
+  // public static List<Position> Load
+  // Read the records of a suite; blank lines and lines beginning with # are
+  // ignored
+  public static List<Position> Load( String fileName ) throws Exception
+  {
+    List<Position> positions = new ArrayList<Position>();
+    BufferedReader in = new BufferedReader( new FileReader( fileName ) );
+    String line;
+    int lineNumber = 0;
+    while ( ( line = in.readLine() ) != null )
+    {
+      lineNumber++;
+      line = line.trim();
+      if ( line.length() == 0 || line.startsWith( "#" ) )
+        continue;
+      Position pos = Parse( line );
+      if ( pos == null )
+      {
+        in.close();
+        throw new Exception( fileName + ":" + lineNumber + ": malformed EPD record" );
+      }
+      if ( pos.Id == null )
+        pos.Id = fileName + ":" + lineNumber;
+      positions.add( pos );
+    }
+    in.close();
+    return positions;
+  }
+
+  // public static Position Parse
+  // Split an EPD record into its position and the operations we care about;
+  // null if there are not even four position fields
+  public static Position Parse( String line )
+  {
+    // The position: four fields separated by spaces
+    int end = 0;
+    for( int field = 0; field < 4; field++ )
+    {
+      while ( end < line.length() && line.charAt( end ) == ' ' )
+        end++;
+      if ( end >= line.length() )
+        return null;
+      while ( end < line.length() && line.charAt( end ) != ' ' )
+        end++;
+    }
+    Position pos = new Position();
+    pos.FEN = line.substring( 0, end ).trim();
+
+    // Then operations, each an opcode and operands ended by a semicolon;
+    // string operands are quoted and may contain semicolons
+    int i = end;
+    while ( i < line.length() )
+    {
+      StringBuffer operation = new StringBuffer();
+      boolean quoted = false;
+      while ( i < line.length() && ( quoted || line.charAt( i ) != ';' ) )
+      {
+        if ( line.charAt( i ) == '"' )
+          quoted = !quoted;
+        operation.append( line.charAt( i++ ) );
+      }
+      i++;
+      String text = operation.toString().trim();
+      if ( text.length() == 0 )
+        continue;
+      int space = text.indexOf( ' ' );
+      String opcode = ( space < 0 ) ? text : text.substring( 0, space );
+      String operands = ( space < 0 ) ? "" : text.substring( space + 1 ).trim();
+      if ( opcode.equals( "bm" ) || opcode.equals( "am" ) )
+      {
+        StringTokenizer moves = new StringTokenizer( operands );
+        while ( moves.hasMoreTokens() )
+          ( opcode.equals( "bm" ) ? pos.BestMoves : pos.AvoidMoves ).add( moves.nextToken() );
+      }
+      else if ( opcode.equals( "id" ) )
+      {
+        if ( operands.startsWith( "\"" ) && operands.endsWith( "\"" ) && operands.length() >= 2 )
+          operands = operands.substring( 1, operands.length() - 1 );
+        pos.Id = operands;
+      }
+    }
+    return pos;
+  }
+
+  // public Report Run
+  // Search every position, several at once, and gather the results in
+  // suite order
+  public Report Run( List<Position> positions, int threads, final PrintStream progress ) throws Exception
+  {
+    Report report = new Report();
+    report.MaxDepth = MaxDepth;
+    report.MaxNodes = MaxNodes;
+    report.MaxTimeMillis = MaxTime;
+    report.Threads = threads;
+
+    long start = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool( threads );
+    List<Future<Result>> futures = new ArrayList<Future<Result>>();
+    try
+    {
+      for( int i = 0; i < positions.size(); i++ )
+      {
+        final Position pos = positions.get( i );
+        futures.add( pool.submit( new Callable<Result>()
+        {
+          public Result call()
+          {
+            Result result = Solve( pos );
+            if ( progress != null )
+            {
+              synchronized( progress )
+              {
+                progress.println( result.Id + ": " + ( result.Error != null ? result.Error :
+                                  result.Move + ( result.Solved ? " solved in " + result.TimeToSolutionMillis + " ms" : " not solved" ) ) );
+              }
+            }
+            return result;
+          }
+        } ) );
+      }
+      for( int i = 0; i < futures.size(); i++ )
+        report.Results.add( futures.get( i ).get() );
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+    report.WallTimeMillis = System.currentTimeMillis() - start;
+
+    // Totals
+    long solutionTime = 0;
+    for( int i = 0; i < report.Results.size(); i++ )
+    {
+      Result result = report.Results.get( i );
+      report.Positions++;
+      report.TotalNodes += result.Nodes;
+      report.TotalTimeMillis += result.TimeMillis;
+      if ( result.Solved )
+      {
+        report.Solved++;
+        solutionTime += result.TimeToSolutionMillis;
+      }
+    }
+    if ( report.Positions > 0 )
+      report.SolveRate = (double) report.Solved / report.Positions;
+    if ( report.Solved > 0 )
+      report.AverageTimeToSolutionMillis = (double) solutionTime / report.Solved;
+    report.NodesPerSecond = report.TotalNodes * 1000 / Math.max( 1, report.TotalTimeMillis );
+    return report;
+  }
+
+  // public Result Solve
+  // Search one position with a fresh agent
+  public Result Solve( Position pos )
+  {
+    Result result = new Result();
+    result.Id = pos.Id;
+    result.FEN = pos.FEN;
+    result.BestMoves = pos.BestMoves;
+    result.AvoidMoves = pos.AvoidMoves;
+
+    jcBoard board = new jcBoard();
+    if ( !board.FromFEN( pos.FEN ) )
+    {
+      result.Error = "bad position";
+      return result;
+    }
+    if ( pos.BestMoves.isEmpty() && pos.AvoidMoves.isEmpty() )
+    {
+      result.Error = "no bm or am operation";
+      return result;
+    }
+    final List<jcMove> best = ParseMoves( board, pos.BestMoves );
+    final List<jcMove> avoid = ParseMoves( board, pos.AvoidMoves );
+    if ( best == null || avoid == null )
+    {
+      result.Error = "illegal move in bm or am operation";
+      return result;
+    }
+
+    // Follow the iterations, to find out when the search last changed its
+    // mind from a wrong move to a right one
+    final jcSearchInfo settled[] = new jcSearchInfo[ 1 ];
+    final jcSearchInfo last[] = new jcSearchInfo[ 1 ];
+    jcAISearchAgent agent = jcAISearchAgent.MakeNewAgent( jcAISearchAgent.AISEARCH_MTDF, null, HashSize );
+    agent.SetSearchLimits( MaxDepth, MaxNodes, MaxTime );
+    agent.SetSearchListener( new jcSearchListener()
+    {
+      public void SearchProgress( jcSearchInfo info )
+      {
+        last[ 0 ] = info;
+        if ( !IsCorrect( info.GetBestMove(), best, avoid ) )
+          settled[ 0 ] = null;
+        else if ( settled[ 0 ] == null )
+          settled[ 0 ] = info;
+      }
+
+      public void SearchFinished( jcSearchInfo info )
+      {
+      }
+    } );
+
+    long start = System.currentTimeMillis();
+    jcMove mov = agent.PickBestMove( board );
+    result.TimeMillis = System.currentTimeMillis() - start;
+    result.Nodes = agent.GetNodesSearched();
+    result.NodesPerSecond = result.Nodes * 1000 / Math.max( 1, result.TimeMillis );
+    if ( last[ 0 ] != null )
+    {
+      result.Depth = last[ 0 ].Depth;
+      result.Score = last[ 0 ].Score;
+    }
+
+    if ( mov == null || mov.MoveType == jcMove.MOVE_RESIGN || mov.MoveType == jcMove.MOVE_STALEMATE )
+    {
+      result.Move = "none";
+      return result;
+    }
+    result.Move = jcNotation.ToSAN( board, mov );
+    result.Solved = IsCorrect( mov, best, avoid );
+    if ( result.Solved )
+    {
+      // The last iteration is normally the one which chose the move; if the
+      // search was cut short before one completed, the whole time counts
+      boolean lastAgrees = ( last[ 0 ] != null ) && SameMove( last[ 0 ].GetBestMove(), mov );
+      result.TimeToSolutionMillis = ( lastAgrees && settled[ 0 ] != null ) ? settled[ 0 ].TimeMillis : result.TimeMillis;
+    }
+    return result;
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  private static void Usage()
+  {
+    System.err.println( "Usage: jcEPDRunner [-time MS | -nodes N | -depth N] [-threads N] [-hash MB] " +
+                        "[-json file] suite.epd..." );
+    System.exit( 1 );
+  }
+
+  // The moves written in SAN, or null if one of them is not legal here
+  private static List<jcMove> ParseMoves( jcBoard board, List<String> sans )
+  {
+    List<jcMove> moves = new ArrayList<jcMove>();
+    for( int i = 0; i < sans.size(); i++ )
+    {
+      jcMove mov = jcNotation.ParseSAN( board, sans.get( i ) );
+      if ( mov == null )
+        return null;
+      moves.add( mov );
+    }
+    return moves;
+  }
+
+  // Whether a move is one of the best moves, if any are given, and none of
+  // the moves to avoid
+  private static boolean IsCorrect( jcMove mov, List<jcMove> best, List<jcMove> avoid )
+  {
+    if ( mov == null )
+      return false;
+    for( int i = 0; i < avoid.size(); i++ )
+    {
+      if ( SameMove( mov, avoid.get( i ) ) )
+        return false;
+    }
+    if ( best.isEmpty() )
+      return true;
+    for( int i = 0; i < best.size(); i++ )
+    {
+      if ( SameMove( mov, best.get( i ) ) )
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean SameMove( jcMove a, jcMove b )
+  {
+    return ( a != null ) && ( b != null ) &&
+           ( a.SourceSquare == b.SourceSquare ) &&
+           ( a.DestinationSquare == b.DestinationSquare ) &&
+           ( a.MoveType == b.MoveType );
+  }
+}
@@ -0,0 +1,274 @@
+/****************************************************************************
+ * jcEngineExecutor - Runs the engine's searches in the background
+ *
+ * Purpose:
+ * A search takes far too long to run on a user interface thread, and it
+ * must outlive whoever asked for it: an Android activity is destroyed and
+ * created anew when the screen rotates, while the search it started goes
+ * on.  This process-wide executor owns the search threads; each search is a
+ * job filed under a key chosen by the caller (one per game, say).
+ *
+ * Whoever submits a job attaches a callback to it, which receives the
+ * progress of the search after every iteration and the news that it is
+ * over.  The callback may be detached and another attached at any time, so
+ * that a new activity can take over the job of the one it replaces; a
+ * result which arrives while nobody is attached waits for the next callback.
+ * Submitting the same position under the same key again attaches to the
+ * running job instead of starting a duplicate search.
+ *
+ * The callbacks are called on the search thread (or, when attaching to a
+ * finished job, on the attaching thread), so user interfaces must hand them
+ * over to their own thread.  The result is collected with TakeResult, which
+ * gives it out only once.
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class jcEngineExecutor
+{
+  /***************************************************************************
+   * NESTED TYPES
+   **************************************************************************/
+
+  // What the owner of a job hears about it
+  public interface Callback
+  {
+    // Called each time an iteration of the search completes
+    public void SearchProgress( Job job, jcSearchInfo info );
+
+    // Called once the move is known; collect it with TakeResult
+    public void SearchCompleted( Job job );
+  }
+
+  // A search submitted to the executor
+  public static class Job
+  {
+    private String Key;
+    private jcPlayerAI Player;
+    private jcBoard Position;
+    private long PositionKey;
+    private volatile jcSearchInfo Progress;
+    private jcMove Result;
+    private boolean Completed;
+    private boolean Cancelled;
+    private Callback Listener;
+    private Future<?> Task;
+
+    Job( String key, jcPlayerAI player, jcBoard position )
+    {
+      Key = key;
+      Player = player;
+      Position = new jcBoard();
+      Position.Clone( position );
+      PositionKey = position.BookKey();
+    }
+
+    // Accessors
+    public String GetKey() { return Key; }
+    public jcPlayerAI GetPlayer() { return Player; }
+    public jcSearchInfo GetProgress() { return Progress; }
+
+    // boolean IsFor( jcBoard position )
+    // Whether the job searches a given position
+    public boolean IsFor( jcBoard position )
+    {
+      return ( position.BookKey() == PositionKey );
+    }
+  }
+
+  /***************************************************************************
+   * DATA MEMBERS
+   **************************************************************************/
+
+  private static jcEngineExecutor Instance;
+
+  // The search threads, and the jobs which have not been collected yet
+  private ExecutorService Workers;
+  private HashMap<String, Job> Jobs;
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // jcEngineExecutor GetInstance()
+  // The process-wide executor, created on first use
+  public static synchronized jcEngineExecutor GetInstance()
+  {
+    if ( Instance == null )
+      Instance = new jcEngineExecutor();
+    return Instance;
+  }
+
+  // Job Submit( String key, jcPlayerAI player, jcBoard position, Callback callback )
+  // Have a player search a position in the background.  If the job filed
+  // under this key already searches the same position, the callback is
+  // attached to it; otherwise, any job under this key is cancelled first
+  public synchronized Job Submit( String key, jcPlayerAI player, jcBoard position, Callback callback )
+  {
+    Job job = Jobs.get( key );
+    if ( job != null && job.IsFor( position ) && job.Player == player )
+    {
+      Attach( key, position, callback );
+      return job;
+    }
+    Cancel( key );
+
+    final Job created = new Job( key, player, position );
+    created.Listener = callback;
+    Jobs.put( key, created );
+    created.Task = Workers.submit( new Runnable()
+    {
+      public void run()
+      {
+        Search( created );
+      }
+    } );
+    return created;
+  }
+
+  // Job Attach( String key, jcBoard position, Callback callback )
+  // Take over the job filed under a key, provided it searches the given
+  // position; returns null if there is no such job.  If the job is already
+  // over, the callback hears about it at once
+  public Job Attach( String key, jcBoard position, Callback callback )
+  {
+    Job job;
+    synchronized( this )
+    {
+      job = Jobs.get( key );
+      if ( job == null || !job.IsFor( position ) )
+        return null;
+      job.Listener = callback;
+      if ( !job.Completed )
+        return job;
+    }
+    if ( callback != null )
+      callback.SearchCompleted( job );
+    return job;
+  }
+
+  // void Detach( String key, Callback callback )
+  // Stop sending news of a job to a callback, which is about to go away;
+  // the search itself goes on
+  public synchronized void Detach( String key, Callback callback )
+  {
+    Job job = Jobs.get( key );
+    if ( job != null && job.Listener == callback )
+      job.Listener = null;
+  }
+
+  // boolean Cancel( String key )
+  // Abandon the job filed under a key; its result, if any, is lost.  False
+  // if there was no such job
+  public synchronized boolean Cancel( String key )
+  {
+    Job job = Jobs.remove( key );
+    if ( job == null )
+      return false;
+    job.Cancelled = true;
+    job.Listener = null;
+    if ( !job.Completed )
+    {
+      job.Player.GetSearchAgent().Stop();
+      // A search which never began will not consume the stop request
+      if ( job.Task.cancel( false ) )
+        job.Player.GetSearchAgent().CancelStop();
+    }
+    return true;
+  }
+
+  // jcMove TakeResult( Job job )
+  // The move found by a completed job, handed out once; null if the job is
+  // not over, was cancelled or has already been collected
+  public synchronized jcMove TakeResult( Job job )
+  {
+    if ( !job.Completed || Jobs.get( job.Key ) != job )
+      return null;
+    Jobs.remove( job.Key );
+    return job.Result;
+  }
+
+  // Job Find( String key )
+  // The job filed under a key, or null
+  public synchronized Job Find( String key )
+  {
+    return Jobs.get( key );
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  // Construction: a single search thread, since the searches are CPU-bound
+  // and each one uses all the memory of its transposition table; it runs a
+  // notch below normal priority so that the user interface stays fluid
+  private jcEngineExecutor()
+  {
+    Jobs = new HashMap<String, Job>();
+    Workers = Executors.newSingleThreadExecutor( new ThreadFactory()
+    {
+      public Thread newThread( Runnable r )
+      {
+        Thread thread = new Thread( r, "jcEngineExecutor" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.NORM_PRIORITY - 1 );
+        return thread;
+      }
+    } );
+  }
+
+  // Run a job on a search thread
+  private void Search( final Job job )
+  {
+    jcAISearchAgent agent = job.Player.GetSearchAgent();
+    agent.SetSearchListener( new jcSearchListener()
+    {
+      public void SearchProgress( jcSearchInfo info )
+      {
+        job.Progress = info;
+        Callback callback;
+        synchronized( jcEngineExecutor.this )
+        {
+          callback = job.Listener;
+        }
+        if ( callback != null )
+          callback.SearchProgress( job, info );
+      }
+
+      public void SearchFinished( jcSearchInfo info )
+      {
+      }
+    } );
+
+    jcMove mov = null;
+    try
+    {
+      mov = job.Player.GetMove( job.Position );
+    }
+    finally
+    {
+      agent.SetSearchListener( null );
+    }
+
+    Callback callback;
+    synchronized( this )
+    {
+      job.Result = mov;
+      job.Completed = true;
+      if ( job.Cancelled )
+      {
+        agent.CancelStop();
+        return;
+      }
+      callback = job.Listener;
+    }
+    if ( callback != null )
+      callback.SearchCompleted( job );
+  }
+}
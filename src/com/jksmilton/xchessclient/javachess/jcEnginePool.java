@@ -0,0 +1,365 @@
+/****************************************************************************
+ * jcEnginePool - Search agents shared by many concurrent games
+ *
+ * Purpose:
+ * A server hosting thousands of games against the machine cannot give each
+ * one its own search agent: the transposition tables alone would exhaust
+ * the memory.  This pool owns a bounded number of agents, as many as a
+ * memory budget allows, and leases them to games one move at a time.
+ *
+ * An agent returning to the pool keeps what it learned, and is handed back
+ * to the same game if that game asks again before anyone else needs the
+ * agent; otherwise it is reset for its new game, which costs next to nothing
+ * (see jcTranspositionTable.Clear).  When every agent is busy, the requests
+ * wait in line, and the line is served one game at a time in turn, so that
+ * a game asking for many searches cannot starve the others.
+ *
+ * The opening book and endgame tables are read-only, so all the agents
+ * share them.  The pool keeps statistics on the time spent waiting for an
+ * agent and searching with it, and on the memory used.
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class jcEnginePool
+{
+  /***************************************************************************
+   * NESTED TYPES
+   **************************************************************************/
+
+  // A snapshot of the pool's statistics; times are in milliseconds
+  public static class Metrics
+  {
+    // Agents: how many the budget allows, how many exist, how many are
+    // leased right now, and how many requests wait for one
+    public int MaxAgents;
+    public int Agents;
+    public int BusyAgents;
+    public int WaitingRequests;
+
+    // Leases granted, and how many went to an agent which had served the
+    // same game last, and so needed no reset
+    public long Leases;
+    public long WarmLeases;
+
+    // Time from request to lease, and from lease to release
+    public double AverageWaitMillis;
+    public double MaxWaitMillis;
+    public double AverageSearchMillis;
+    public double MaxSearchMillis;
+
+    // Memory held by one agent and by the whole pool, in bytes
+    public long BytesPerAgent;
+    public long TotalBytes;
+  }
+
+  // An agent and what the pool knows about it; the agent is null while it
+  // is being built
+  private static class Slot
+  {
+    jcAISearchAgent Agent;
+    String LastGame;
+    boolean Busy;
+    long LeasedAt;
+  }
+
+  // A request waiting for an agent
+  private static class Waiter
+  {
+    String Game;
+    Slot Granted;
+  }
+
+  /***************************************************************************
+   * DATA MEMBERS
+   **************************************************************************/
+
+  // What an agent costs besides its transposition table: the history table
+  // and a few small objects
+  private static final long AGENT_OVERHEAD_BYTES = 2 * 64 * 64 * 4 + 4096;
+
+  // Agents and their configuration
+  private int MaxAgents;
+  private int HashMegabytes;
+  private long BytesPerAgent;
+  private jcOpeningBook Book;
+  private jcBitbase Bitbases;
+  private ArrayList<Slot> Slots;
+  private ArrayList<Slot> Idle;
+  private IdentityHashMap<jcAISearchAgent, Slot> SlotOf;
+
+  // The limits applied to each leased agent (0 meaning no limit)
+  private int MaxDepth;
+  private long MaxNodes;
+  private long MaxTime;
+
+  // Waiting requests, one queue per game, the games in the order in which
+  // they will be served
+  private LinkedHashMap<String, ArrayDeque<Waiter>> Waiting;
+  private int NumWaiting;
+
+  // Statistics
+  private long NumLeases, NumWarmLeases;
+  private long TotalWaitNanos, MaxWaitNanos;
+  private long TotalSearchNanos, MaxSearchNanos, NumSearches;
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // Construction: the pool creates agents with transposition tables of the
+  // given size as they are needed, as many as the memory budget allows (at
+  // least one).  The book and bitbases may be null
+  public jcEnginePool( long memoryBudget, int hashMegabytes, jcOpeningBook book, jcBitbase bitbases )
+  {
+    HashMegabytes = Math.max( 1, hashMegabytes );
+    BytesPerAgent = (long) jcAISearchAgent.HashEntries( HashMegabytes ) * jcTranspositionTable.ENTRY_BYTES +
+                    AGENT_OVERHEAD_BYTES;
+    MaxAgents = (int) Math.max( 1, Math.min( Integer.MAX_VALUE, memoryBudget / BytesPerAgent ) );
+    Book = book;
+    Bitbases = bitbases;
+    Slots = new ArrayList<Slot>();
+    Idle = new ArrayList<Slot>();
+    SlotOf = new IdentityHashMap<jcAISearchAgent, Slot>();
+    Waiting = new LinkedHashMap<String, ArrayDeque<Waiter>>();
+  }
+
+  // boolean SetSearchLimits( int maxDepth, long maxNodes, long maxTime )
+  // The effort each leased agent may spend on a move, as in
+  // jcAISearchAgent.SetSearchLimits; all zeroes lets the agents decide
+  public synchronized boolean SetSearchLimits( int maxDepth, long maxNodes, long maxTime )
+  {
+    MaxDepth = maxDepth;
+    MaxNodes = maxNodes;
+    MaxTime = maxTime;
+    return true;
+  }
+
+  // jcAISearchAgent Lease( String game )
+  // An agent for one move of a game, waiting for one to be free if needed.
+  // The agent is reset unless it served this game last, and has the pool's
+  // search limits; it must be given back with Release
+  public jcAISearchAgent Lease( String game ) throws InterruptedException
+  {
+    long start = System.nanoTime();
+    Slot slot;
+    boolean warm;
+    int maxDepth;
+    long maxNodes, maxTime;
+    synchronized( this )
+    {
+      slot = ( NumWaiting == 0 ) ? TakeIdle( game ) : null;
+      if ( slot == null )
+      {
+        Waiter waiter = new Waiter();
+        waiter.Game = game;
+        ArrayDeque<Waiter> queue = Waiting.get( game );
+        if ( queue == null )
+        {
+          queue = new ArrayDeque<Waiter>();
+          Waiting.put( game, queue );
+        }
+        queue.add( waiter );
+        NumWaiting++;
+        try
+        {
+          while ( waiter.Granted == null )
+            wait();
+        }
+        catch( InterruptedException e )
+        {
+          // Give the agent to someone else if it arrived in the meantime
+          if ( waiter.Granted != null )
+            Give( waiter.Granted );
+          else
+            Withdraw( waiter );
+          throw e;
+        }
+        slot = waiter.Granted;
+      }
+
+      warm = game.equals( slot.LastGame );
+      slot.LastGame = game;
+      slot.LeasedAt = System.nanoTime();
+      long waited = slot.LeasedAt - start;
+      NumLeases++;
+      if ( warm )
+        NumWarmLeases++;
+      TotalWaitNanos += waited;
+      MaxWaitNanos = Math.max( MaxWaitNanos, waited );
+      maxDepth = MaxDepth;
+      maxNodes = MaxNodes;
+      maxTime = MaxTime;
+    }
+
+    // Outside the lock: nobody else can touch a leased agent.  A new agent is
+    // built here too, since allocating its transposition table takes a while
+    if ( slot.Agent == null )
+      BuildAgent( slot );
+    if ( !warm )
+      slot.Agent.Reset();
+    if ( maxDepth > 0 || maxNodes > 0 || maxTime > 0 )
+      slot.Agent.SetSearchLimits( maxDepth, maxNodes, maxTime );
+    else
+      slot.Agent.ClearSearchLimits();
+    return slot.Agent;
+  }
+
+  // boolean Release( jcAISearchAgent agent )
+  // Give a leased agent back to the pool
+  public synchronized boolean Release( jcAISearchAgent agent )
+  {
+    Slot slot = SlotOf.get( agent );
+    if ( slot == null || !slot.Busy )
+      return false;
+    long held = System.nanoTime() - slot.LeasedAt;
+    NumSearches++;
+    TotalSearchNanos += held;
+    MaxSearchNanos = Math.max( MaxSearchNanos, held );
+    slot.Agent.SetSearchListener( null );
+    Give( slot );
+    return true;
+  }
+
+  // jcMove PickBestMove( String game, jcBoard theBoard )
+  // Lease an agent, search a position of a game with it and give it back
+  public jcMove PickBestMove( String game, jcBoard theBoard ) throws InterruptedException
+  {
+    jcAISearchAgent agent = Lease( game );
+    try
+    {
+      return agent.PickBestMove( theBoard );
+    }
+    finally
+    {
+      Release( agent );
+    }
+  }
+
+  // Metrics GetMetrics()
+  // The statistics so far
+  public synchronized Metrics GetMetrics()
+  {
+    Metrics metrics = new Metrics();
+    metrics.MaxAgents = MaxAgents;
+    metrics.Agents = Slots.size();
+    metrics.BusyAgents = Slots.size() - Idle.size();
+    metrics.WaitingRequests = NumWaiting;
+    metrics.Leases = NumLeases;
+    metrics.WarmLeases = NumWarmLeases;
+    metrics.AverageWaitMillis = ( NumLeases > 0 ) ? TotalWaitNanos / 1e6 / NumLeases : 0;
+    metrics.MaxWaitMillis = MaxWaitNanos / 1e6;
+    metrics.AverageSearchMillis = ( NumSearches > 0 ) ? TotalSearchNanos / 1e6 / NumSearches : 0;
+    metrics.MaxSearchMillis = MaxSearchNanos / 1e6;
+    metrics.BytesPerAgent = Slots.isEmpty() ? 0 : BytesPerAgent;
+    metrics.TotalBytes = metrics.BytesPerAgent * Slots.size();
+    return metrics;
+  }
+
+  // boolean Forget( String game )
+  // A game is over: its agents may be reset for anyone without favoring it
+  public synchronized boolean Forget( String game )
+  {
+    for( int i = 0; i < Slots.size(); i++ )
+    {
+      if ( game.equals( Slots.get( i ).LastGame ) )
+        Slots.get( i ).LastGame = null;
+    }
+    return true;
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  // An idle agent for a game, preferably the one which served it last, else
+  // the one idle the longest, else a slot for a new one if the budget allows,
+  // which the caller must fill with BuildAgent; null if every agent is busy.
+  // Must be called with the lock held
+  private Slot TakeIdle( String game )
+  {
+    Slot slot = null;
+    for( int i = 0; i < Idle.size() && slot == null; i++ )
+    {
+      if ( game.equals( Idle.get( i ).LastGame ) )
+        slot = Idle.remove( i );
+    }
+    if ( slot == null && !Idle.isEmpty() )
+      slot = Idle.remove( 0 );
+    if ( slot == null && Slots.size() < MaxAgents )
+    {
+      slot = new Slot();
+      Slots.add( slot );
+    }
+    if ( slot != null )
+      slot.Busy = true;
+    return slot;
+  }
+
+  // Build the agent of a slot reserved by TakeIdle, with its transposition
+  // table at the pool's size from the start.  Must be called without the
+  // lock; the slot is given up if the agent cannot be built
+  private void BuildAgent( Slot slot )
+  {
+    jcAISearchAgent agent = null;
+    try
+    {
+      agent = jcAISearchAgent.MakeNewAgent( jcAISearchAgent.AISEARCH_MTDF, Book, HashMegabytes );
+      if ( Bitbases != null )
+        agent.AttachBitbases( Bitbases );
+    }
+    finally
+    {
+      synchronized( this )
+      {
+        if ( agent != null )
+        {
+          slot.Agent = agent;
+          SlotOf.put( agent, slot );
+        }
+        else
+          Slots.remove( slot );
+      }
+    }
+  }
+
+  // Hand a free agent to the next game in line, or put it back among the
+  // idle ones.  The game served goes to the back of the line.  Must be
+  // called with the lock held
+  private void Give( Slot slot )
+  {
+    slot.Busy = false;
+    Idle.add( slot );
+    if ( NumWaiting == 0 )
+      return;
+
+    Iterator<String> games = Waiting.keySet().iterator();
+    String game = games.next();
+    ArrayDeque<Waiter> queue = Waiting.remove( game );
+    Waiter waiter = queue.poll();
+    if ( !queue.isEmpty() )
+      Waiting.put( game, queue );
+    NumWaiting--;
+    waiter.Granted = TakeIdle( waiter.Game );
+    notifyAll();
+  }
+
+  // Remove a request which gave up waiting.  Must be called with the lock
+  // held
+  private void Withdraw( Waiter waiter )
+  {
+    ArrayDeque<Waiter> queue = Waiting.get( waiter.Game );
+    if ( queue != null && queue.remove( waiter ) )
+    {
+      NumWaiting--;
+      if ( queue.isEmpty() )
+        Waiting.remove( waiter.Game );
+    }
+  }
+}
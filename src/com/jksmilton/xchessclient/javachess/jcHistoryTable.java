@@ -30,24 +30,12 @@ public class jcHistoryTable
    **********************************************************************/
 
   // the table itself; a separate set of cutoff counters exists for each
-  // side
+  // side.  Each search agent owns its table: the counters are updated during
+  // the search, so agents searching on different threads (for example in
+  // self-play matches) must not share one
   int History[][][];
   int CurrentHistory[][];
 
-  // This is a singleton class; the same history can be shared by two AI's
-  private static jcHistoryTable theInstance;
-
-  // A comparator, used to sort the moves
-
-
-  /***********************************************************************
-   * STATIC BLOCK
-   ***********************************************************************/
-  static
-  {
-    theInstance = new jcHistoryTable();
-  }
-
   /***********************************************************************
    *  jcMoveComparator - Inner class used in sorting moves
    **********************************************************************/
@@ -56,9 +44,9 @@ public class jcHistoryTable
      public int compare( jcMove mov1, jcMove mov2 )
      {
        
-    	 if(CurrentHistory[mov2.SourceSquare][mov2.DestinationSquare] > CurrentHistory[mov1.SourceSquare][mov2.DestinationSquare])
+    	 if(CurrentHistory[mov2.SourceSquare][mov2.DestinationSquare] > CurrentHistory[mov1.SourceSquare][mov1.DestinationSquare])
     		 return 1;
-    	 else if(CurrentHistory[mov2.SourceSquare][mov2.DestinationSquare] < CurrentHistory[mov1.SourceSquare][mov2.DestinationSquare])
+    	 else if(CurrentHistory[mov2.SourceSquare][mov2.DestinationSquare] < CurrentHistory[mov1.SourceSquare][mov1.DestinationSquare])
     		 return -1;
     	 else
     		 return 0;
@@ -76,7 +64,9 @@ public class jcHistoryTable
      // member, so we have to use an intermediate.  Annoying and not too clean,
      // but it works...
      Collections.sort( theList.GetMoveList(), new jcMoveComparator() );
-     
+
+     // Sorting invalidates the list's iterator on newer class libraries
+     theList.ResetIterator();
      return true;
    }
 
@@ -85,12 +75,6 @@ public class jcHistoryTable
    * PUBLIC METHODS
    ***********************************************************************/
 
-  // Accessor
-  public static jcHistoryTable GetInstance()
-  {
-    return theInstance;
-  }
-
   // Sort a list of moves, using the Java "Arrays" class as a helper
 
 
@@ -114,10 +98,8 @@ public class jcHistoryTable
     return true;
   }
 
-  /************************************************************************
-   * PRIVATE METHODS
-   ***********************************************************************/
-  private jcHistoryTable()
+  // Construction
+  public jcHistoryTable()
   {
     History = new int[ 2 ][ 64 ][ 64 ];
   }
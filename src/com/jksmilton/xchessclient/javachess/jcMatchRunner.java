@@ -0,0 +1,561 @@
+/****************************************************************************
+ * jcMatchRunner - Self-play matches between two engine configurations
+ *
+ * Purpose:
+ * Plays two configurations of the computer player against each other, many
+ * games at once on a thread pool, to tell whether a change to the engine is
+ * an improvement.  Each game builds its own pair of jcPlayerAI objects (and
+ * therefore its own search agents, transposition and history tables), so
+ * nothing is shared between games running at the same time.
+ *
+ * The games start from a rotating set of openings, each played twice with
+ * the colors swapped, so that an unbalanced opening favors nobody.  Games are
+ * adjudicated on mate, stalemate, the fifty-move rule, threefold repetition,
+ * insufficient material and a maximum length.  They are written as PGN, with
+ * the time and node count of every engine move in a comment, and the match
+ * ends with the score and Elo difference of the first configuration, with a
+ * 95% confidence interval.
+ *
+ * Usage:
+ *   jcMatchRunner [options]
+ * Options:
+ *   -a spec / -b spec   the two configurations, as comma-separated key=value
+ *                       pairs: name, depth, nodes, time (ms per move), hash
+ *                       (MB), bitbases (directory), weights (evaluation
+ *                       weights file)
+ *   -games N            number of games (default 100, rounded up to pairs)
+ *   -concurrency N      games played at once (default: number of cores)
+ *   -openings file      one opening per line: a FEN, or SAN moves from the
+ *                       initial position (default: a small built-in set)
+ *   -maxplies N         adjudicate a draw after N plies (default 400)
+ *   -pgn file           where to write the games (default: none)
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class jcMatchRunner
+{
+  /***************************************************************************
+   * DATA MEMBERS
+   **************************************************************************/
+
+  // Game results
+  public static final int RESULT_WHITE_WINS = 0;
+  public static final int RESULT_BLACK_WINS = 1;
+  public static final int RESULT_DRAW = 2;
+  private static final String ResultStrings[] = { "1-0", "0-1", "1/2-1/2" };
+
+  // Openings used when none are given: a few mainstream lines, a couple of
+  // moves deep
+  private static final String DefaultOpenings[] = {
+    "e4 e5 Nf3 Nc6", "e4 c5 Nf3 d6", "e4 e6 d4 d5", "e4 c6 d4 d5",
+    "d4 d5 c4 e6", "d4 Nf6 c4 g6", "c4 e5 Nc3 Nf6", "Nf3 d5 g3 Nf6" };
+
+  // The two configurations, and the match parameters
+  private EngineConfig ConfigA, ConfigB;
+  private List<String> Openings;
+  private int MaxPlies;
+  private PrintWriter Pgn;
+
+  // Results, from the point of view of configuration A
+  private int Wins, Draws, Losses;
+
+  /***************************************************************************
+   * PUBLIC class EngineConfig
+   * How one side of the match plays
+   **************************************************************************/
+  public static class EngineConfig
+  {
+    public String Name = "engine";
+    public int Depth;
+    public long Nodes;
+    public long TimeMillis;
+    public int HashMegabytes = 6;
+    public String BitbasePath = "";
+    public String WeightsFile = "";
+
+    // Parse "name=x,depth=4,..." into a configuration
+    public static EngineConfig Parse( String spec )
+    {
+      EngineConfig config = new EngineConfig();
+      StringTokenizer pairs = new StringTokenizer( spec, "," );
+      while ( pairs.hasMoreTokens() )
+      {
+        String pair = pairs.nextToken();
+        int equals = pair.indexOf( '=' );
+        if ( equals < 0 )
+          throw new IllegalArgumentException( "Bad engine option " + pair );
+        String key = pair.substring( 0, equals ).trim();
+        String value = pair.substring( equals + 1 ).trim();
+        if ( key.equals( "name" ) )
+          config.Name = value;
+        else if ( key.equals( "depth" ) )
+          config.Depth = Integer.parseInt( value );
+        else if ( key.equals( "nodes" ) )
+          config.Nodes = Long.parseLong( value );
+        else if ( key.equals( "time" ) )
+          config.TimeMillis = Long.parseLong( value );
+        else if ( key.equals( "hash" ) )
+          config.HashMegabytes = Integer.parseInt( value );
+        else if ( key.equals( "bitbases" ) )
+          config.BitbasePath = value;
+        else if ( key.equals( "weights" ) )
+          config.WeightsFile = value;
+        else
+          throw new IllegalArgumentException( "Unknown engine option " + key );
+      }
+      return config;
+    }
+
+    // Build a computer player following this configuration
+    public jcPlayerAI MakePlayer( int side ) throws Exception
+    {
+      // The table is allocated once, at its final size
+      jcAISearchAgent agent = jcAISearchAgent.MakeNewAgent( jcAISearchAgent.AISEARCH_MTDF, null, HashMegabytes );
+      jcPlayerAI player = new jcPlayerAI( side, agent );
+      if ( Depth > 0 || Nodes > 0 || TimeMillis > 0 )
+        agent.SetSearchLimits( Depth, Nodes, TimeMillis );
+      if ( BitbasePath.length() > 0 )
+      {
+        jcBitbase tables = new jcBitbase();
+        tables.Open( new File( BitbasePath ) );
+        player.AttachBitbases( tables );
+      }
+      if ( WeightsFile.length() > 0 )
+      {
+        jcBoardEvaluator evaluator = new jcBoardEvaluator();
+        FileInputStream in = new FileInputStream( WeightsFile );
+        try
+        {
+          evaluator.LoadWeights( in );
+        }
+        finally
+        {
+          in.close();
+        }
+        agent.AttachEvaluator( evaluator );
+      }
+      return player;
+    }
+  }
+
+  /***************************************************************************
+   * PUBLIC class GameRecord
+   * The outcome of one game
+   **************************************************************************/
+  public static class GameRecord
+  {
+    public int Round;
+    public String White, Black;
+    public String StartFEN;
+    public int Result;
+    public String Termination;
+    public String MoveText;
+  }
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // Construction
+  public jcMatchRunner( EngineConfig a, EngineConfig b, List<String> openings, int maxPlies, PrintWriter pgn )
+  {
+    ConfigA = a;
+    ConfigB = b;
+    Openings = openings;
+    MaxPlies = maxPlies;
+    Pgn = pgn;
+  }
+
+  public static void main( String args[] ) throws Exception
+  {
+    EngineConfig a = EngineConfig.Parse( "name=A,depth=3" );
+    EngineConfig b = EngineConfig.Parse( "name=B,depth=3" );
+    int games = 100;
+    int concurrency = Runtime.getRuntime().availableProcessors();
+    int maxPlies = 400;
+    String openingFile = null, pgnFile = null;
+    for( int i = 0; i < args.length; i++ )
+    {
+      if ( i + 1 >= args.length )
+        Usage();
+      String option = args[ i ];
+      String value = args[ ++i ];
+      if ( option.equals( "-a" ) )
+        a = EngineConfig.Parse( value );
+      else if ( option.equals( "-b" ) )
+        b = EngineConfig.Parse( value );
+      else if ( option.equals( "-games" ) )
+        games = Integer.parseInt( value );
+      else if ( option.equals( "-concurrency" ) )
+        concurrency = Integer.parseInt( value );
+      else if ( option.equals( "-openings" ) )
+        openingFile = value;
+      else if ( option.equals( "-maxplies" ) )
+        maxPlies = Integer.parseInt( value );
+      else if ( option.equals( "-pgn" ) )
+        pgnFile = value;
+      else
+        Usage();
+    }
+
+    PrintStream report = System.out;
+
+    List<String> openings = ( openingFile != null ) ? LoadOpenings( new File( openingFile ) ) : null;
+    if ( openings == null || openings.isEmpty() )
+    {
+      openings = new ArrayList<String>();
+      for( int i = 0; i < DefaultOpenings.length; i++ )
+        openings.add( DefaultOpenings[ i ] );
+    }
+    PrintWriter pgn = ( pgnFile != null ) ? new PrintWriter( new FileWriter( pgnFile ) ) : null;
+
+    jcMatchRunner runner = new jcMatchRunner( a, b, openings, maxPlies, pgn );
+    long start = System.currentTimeMillis();
+    runner.Run( games, concurrency, report );
+    if ( pgn != null )
+      pgn.close();
+    report.println( runner.Summary() );
+    report.println( "Elapsed: " + ( System.currentTimeMillis() - start ) / 1000.0 + " s" );
+  }
+
+  // public void Run
+  // Play the match: games are played in pairs, one pair per opening in
+  // turn, with the colors swapped within the pair
+  public void Run( int numGames, int concurrency, final PrintStream progress ) throws Exception
+  {
+    int pairs = ( numGames + 1 ) / 2;
+    ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, concurrency ) );
+    List<Future<GameRecord>> results = new ArrayList<Future<GameRecord>>();
+    for( int game = 0; game < pairs * 2; game++ )
+    {
+      final int round = game + 1;
+      final String opening = Openings.get( ( game / 2 ) % Openings.size() );
+      final boolean aIsWhite = ( game % 2 ) == 0;
+      results.add( pool.submit( new Callable<GameRecord>()
+      {
+        public GameRecord call() throws Exception
+        {
+          GameRecord record = PlayGame( round, opening, aIsWhite );
+          Record( record, aIsWhite, progress );
+          return record;
+        }
+      } ) );
+    }
+    try
+    {
+      for( int i = 0; i < results.size(); i++ )
+        results.get( i ).get();
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  // public GameRecord PlayGame
+  // Play one game from an opening; every object used here belongs to this
+  // game alone, so games may be played on several threads at once
+  public GameRecord PlayGame( int round, String opening, boolean aIsWhite ) throws Exception
+  {
+    EngineConfig white = aIsWhite ? ConfigA : ConfigB;
+    EngineConfig black = aIsWhite ? ConfigB : ConfigA;
+    jcPlayerAI players[] = { white.MakePlayer( jcPlayer.SIDE_WHITE ), black.MakePlayer( jcPlayer.SIDE_BLACK ) };
+
+    GameRecord record = new GameRecord();
+    record.Round = round;
+    record.White = white.Name;
+    record.Black = black.Name;
+    StringBuffer moveText = new StringBuffer();
+
+    // Set up the opening
+    jcBoard board = new jcBoard();
+    HashMap<Long, Integer> repetitions = new HashMap<Long, Integer>();
+    if ( opening.indexOf( '/' ) >= 0 )
+    {
+      if ( !board.FromFEN( opening ) )
+        throw new Exception( "Bad opening FEN " + opening );
+      record.StartFEN = board.ToFEN();
+    }
+    else
+    {
+      board.StartingBoard();
+      StringTokenizer moves = new StringTokenizer( opening );
+      while ( moves.hasMoreTokens() )
+      {
+        String san = moves.nextToken();
+        jcMove mov = jcNotation.ParseSAN( board, san );
+        if ( mov == null )
+          throw new Exception( "Bad opening move " + san + " in " + opening );
+        AppendMove( moveText, board, mov, "book" );
+        board.ApplyMove( mov );
+      }
+    }
+    CountRepetition( repetitions, board );
+
+    // And play
+    int plies = 0;
+    jcMoveListGenerator successors = new jcMoveListGenerator();
+    while ( true )
+    {
+      // Generating the moves on the game board itself also removes the
+      // phantom kings left by the side to move's castling, if any
+      int side = board.GetCurrentPlayer();
+      if ( !successors.ComputeStrictlyLegalMoves( board ) )
+      {
+        if ( jcNotation.IsInCheck( board ) )
+          Finish( record, ( side == jcPlayer.SIDE_WHITE ) ? RESULT_BLACK_WINS : RESULT_WHITE_WINS, "checkmate" );
+        else
+          Finish( record, RESULT_DRAW, "stalemate" );
+        break;
+      }
+      if ( board.GetHalfMoveClock() >= 100 )
+      {
+        Finish( record, RESULT_DRAW, "fifty-move rule" );
+        break;
+      }
+      if ( IsInsufficientMaterial( board ) )
+      {
+        Finish( record, RESULT_DRAW, "insufficient material" );
+        break;
+      }
+      if ( plies >= MaxPlies )
+      {
+        Finish( record, RESULT_DRAW, "adjudicated after " + MaxPlies + " plies" );
+        break;
+      }
+
+      // Ask the engine, on a copy of the board so that it cannot disturb
+      // the game's own
+      jcAISearchAgent agent = players[ side ].GetSearchAgent();
+      jcBoard position = new jcBoard();
+      position.Clone( board );
+      long start = System.nanoTime();
+      jcMove answer = players[ side ].GetMove( position );
+      long elapsed = System.nanoTime() - start;
+
+      // Resignations, and moves which are not legal, lose the game
+      jcMove mov = null;
+      if ( answer != null && answer.MoveType != jcMove.MOVE_RESIGN && answer.MoveType != jcMove.MOVE_STALEMATE )
+      {
+        successors.ResetIterator();
+        jcMove candidate;
+        while( ( candidate = successors.Next() ) != null )
+        {
+          if ( candidate.SourceSquare == answer.SourceSquare &&
+               candidate.DestinationSquare == answer.DestinationSquare &&
+               candidate.MoveType == answer.MoveType )
+            mov = candidate;
+        }
+      }
+      if ( mov == null )
+      {
+        String name = ( side == jcPlayer.SIDE_WHITE ) ? record.White : record.Black;
+        boolean resigned = ( answer != null ) &&
+          ( answer.MoveType == jcMove.MOVE_RESIGN || answer.MoveType == jcMove.MOVE_STALEMATE );
+        Finish( record, ( side == jcPlayer.SIDE_WHITE ) ? RESULT_BLACK_WINS : RESULT_WHITE_WINS,
+                name + ( resigned ? " resigns" : " played an illegal move" ) );
+        break;
+      }
+
+      AppendMove( moveText, board, mov,
+                  String.format( "%.3fs, %d nodes", elapsed / 1e9, agent.GetNodesSearched() ) );
+      board.ApplyMove( mov );
+      plies++;
+      if ( CountRepetition( repetitions, board ) >= 3 )
+      {
+        Finish( record, RESULT_DRAW, "threefold repetition" );
+        break;
+      }
+    }
+    moveText.append( ResultStrings[ record.Result ] );
+    record.MoveText = moveText.toString();
+    return record;
+  }
+
+  // public String Summary
+  // Score and Elo difference of configuration A against configuration B
+  public synchronized String Summary()
+  {
+    int games = Wins + Draws + Losses;
+    StringBuffer summary = new StringBuffer();
+    summary.append( ConfigA.Name + " vs " + ConfigB.Name + ": +" + Wins + " =" + Draws + " -" + Losses );
+    if ( games == 0 )
+      return summary.toString();
+    double score = ( Wins + 0.5 * Draws ) / games;
+    summary.append( String.format( " (%.1f%%)", 100 * score ) );
+
+    // The standard error of the score, from the spread of the game results,
+    // turned into an interval on the Elo scale
+    double variance = ( Wins * Math.pow( 1 - score, 2 ) + Draws * Math.pow( 0.5 - score, 2 ) +
+                        Losses * Math.pow( score, 2 ) ) / games;
+    double margin = 1.96 * Math.sqrt( variance / games );
+    summary.append( String.format( "; Elo difference %s [%s, %s] (95%%)",
+                                   FormatElo( Elo( score ) ), FormatElo( Elo( score - margin ) ),
+                                   FormatElo( Elo( score + margin ) ) ) );
+    return summary.toString();
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  private static void Usage()
+  {
+    System.err.println( "Usage: jcMatchRunner [-a spec] [-b spec] [-games N] [-concurrency N] " +
+                        "[-openings file] [-maxplies N] [-pgn file]" );
+    System.err.println( "  spec: name=X,depth=N,nodes=N,time=MS,hash=MB,bitbases=DIR,weights=FILE" );
+    System.exit( 1 );
+  }
+
+  // Read an opening file: one FEN or SAN move list per line; blank lines and
+  // lines beginning with # are ignored
+  private static List<String> LoadOpenings( File fileName ) throws Exception
+  {
+    List<String> openings = new ArrayList<String>();
+    BufferedReader in = new BufferedReader( new FileReader( fileName ) );
+    String line;
+    while ( ( line = in.readLine() ) != null )
+    {
+      line = line.trim();
+      if ( line.length() > 0 && !line.startsWith( "#" ) )
+        openings.add( line );
+    }
+    in.close();
+    return openings;
+  }
+
+  // Add a finished game to the totals and to the PGN file
+  private synchronized void Record( GameRecord record, boolean aIsWhite, PrintStream progress )
+  {
+    if ( record.Result == RESULT_DRAW )
+      Draws++;
+    else if ( ( record.Result == RESULT_WHITE_WINS ) == aIsWhite )
+      Wins++;
+    else
+      Losses++;
+
+    if ( Pgn != null )
+    {
+      Pgn.println( "[Event \"Self-play match\"]" );
+      Pgn.println( "[Round \"" + record.Round + "\"]" );
+      Pgn.println( "[White \"" + record.White + "\"]" );
+      Pgn.println( "[Black \"" + record.Black + "\"]" );
+      Pgn.println( "[Result \"" + ResultStrings[ record.Result ] + "\"]" );
+      if ( record.StartFEN != null )
+      {
+        Pgn.println( "[SetUp \"1\"]" );
+        Pgn.println( "[FEN \"" + record.StartFEN + "\"]" );
+      }
+      Pgn.println( "[Termination \"" + record.Termination + "\"]" );
+      Pgn.println();
+      Pgn.println( WrapLines( record.MoveText, 79 ) );
+      Pgn.println();
+      Pgn.flush();
+    }
+    if ( progress != null )
+      progress.println( "Game " + record.Round + ": " + record.White + " - " + record.Black + " " +
+                        ResultStrings[ record.Result ] + " (" + record.Termination + "); " + Summary() );
+  }
+
+  private static void Finish( GameRecord record, int result, String termination )
+  {
+    record.Result = result;
+    record.Termination = termination;
+  }
+
+  // Write a move in SAN, preceded by its number when needed, and followed
+  // by a comment
+  private static void AppendMove( StringBuffer moveText, jcBoard board, jcMove mov, String comment )
+  {
+    if ( board.GetCurrentPlayer() == jcPlayer.SIDE_WHITE )
+      moveText.append( board.GetFullMoveNumber() ).append( ". " );
+    else if ( moveText.length() == 0 || moveText.charAt( moveText.length() - 2 ) == '}' )
+      moveText.append( board.GetFullMoveNumber() ).append( "... " );
+    moveText.append( jcNotation.ToSAN( board, mov ) );
+    moveText.append( " {" ).append( comment ).append( "} " );
+  }
+
+  // Count one more occurrence of a position; castling rights, the side to
+  // move and en passant possibilities are all part of the book key
+  static int CountRepetition( HashMap<Long, Integer> repetitions, jcBoard board )
+  {
+    Long key = board.BookKey();
+    Integer count = repetitions.get( key );
+    int newCount = ( count == null ) ? 1 : count + 1;
+    repetitions.put( key, newCount );
+    return newCount;
+  }
+
+  // Bare kings, or a lone minor piece against a bare king
+  static boolean IsInsufficientMaterial( jcBoard board )
+  {
+    long all = board.GetBitBoard( jcBoard.ALL_WHITE_PIECES ) | board.GetBitBoard( jcBoard.ALL_BLACK_PIECES );
+    int count = Long.bitCount( all );
+    if ( count == 2 )
+      return true;
+    if ( count != 3 )
+      return false;
+    long minors = board.GetBitBoard( jcBoard.WHITE_KNIGHT ) | board.GetBitBoard( jcBoard.BLACK_KNIGHT ) |
+                  board.GetBitBoard( jcBoard.WHITE_BISHOP ) | board.GetBitBoard( jcBoard.BLACK_BISHOP );
+    return minors != 0;
+  }
+
+  private static double Elo( double score )
+  {
+    if ( score <= 0 )
+      return Double.NEGATIVE_INFINITY;
+    if ( score >= 1 )
+      return Double.POSITIVE_INFINITY;
+    return -400 * Math.log10( 1 / score - 1 );
+  }
+
+  private static String FormatElo( double elo )
+  {
+    if ( Double.isInfinite( elo ) )
+      return ( elo > 0 ) ? "+inf" : "-inf";
+    // Adding zero turns -0.0 into 0.0
+    return String.format( "%+.1f", elo + 0.0 );
+  }
+
+  // Break PGN movetext into lines of limited length
+  private static String WrapLines( String text, int width )
+  {
+    StringBuffer result = new StringBuffer();
+    int lineLength = 0;
+    StringTokenizer words = new StringTokenizer( text, " " );
+    while ( words.hasMoreTokens() )
+    {
+      String word = words.nextToken();
+      if ( lineLength > 0 && lineLength + 1 + word.length() > width )
+      {
+        result.append( '\n' );
+        lineLength = 0;
+      }
+      else if ( lineLength > 0 )
+      {
+        result.append( ' ' );
+        lineLength++;
+      }
+      result.append( word );
+      lineLength += word.length();
+    }
+    return result.toString();
+  }
+}
@@ -26,6 +26,15 @@ public class jcMoveListGenerator
   ArrayList Moves;
   Iterator MovesIt;
 
+  // Set when the last call to ComputeLegalMoves found that the side to move
+  // could capture the enemy king, as opposed to having no moves at all
+  boolean KingCapture;
+
+  // Scratch objects used to weed out moves which leave the king in check;
+  // only allocated if ComputeStrictlyLegalMoves is ever called
+  private jcBoard Scratch;
+  private jcMoveListGenerator Replies;
+
   /**************************************************************************
    * PUBLIC METHODS
    *************************************************************************/
@@ -54,6 +63,7 @@ public class jcMoveListGenerator
   // Accessors
   public ArrayList<jcMove> GetMoveList() { return Moves; }
   public int Size() { return Moves.size(); }
+  public boolean FoundKingCapture() { return KingCapture; }
 
   // public boolean Find( jcMove mov )
   // Look for a specific move in the list; if it is there, return true
@@ -104,6 +114,7 @@ public class jcMoveListGenerator
   {
     // First, clean up the old list of moves, if any
     Moves.clear();
+    KingCapture = false;
 
     // Now, compute the moves, one piece type at a time
     if ( theBoard.GetCurrentPlayer() == jcPlayer.SIDE_WHITE )
@@ -117,12 +128,12 @@ public class jcMoveListGenerator
       // Check for white moves, one piece type at a time
       // if any one type can capture the king, stop the work immediately
       // because the board position is illegal
-      if ( !ComputeWhiteQueenMoves( theBoard ) ) return false;
-      if ( !ComputeWhiteKingMoves( theBoard ) ) return false;
-      if ( !ComputeWhiteRookMoves( theBoard, jcBoard.WHITE_ROOK ) ) return false;
-      if ( !ComputeWhiteBishopMoves( theBoard, jcBoard.WHITE_BISHOP ) ) return false;
-      if ( !ComputeWhiteKnightMoves( theBoard ) ) return false;
-      if ( !ComputeWhitePawnMoves( theBoard ) ) return false;
+      if ( !ComputeWhiteQueenMoves( theBoard ) ) return FlagKingCapture();
+      if ( !ComputeWhiteKingMoves( theBoard ) ) return FlagKingCapture();
+      if ( !ComputeWhiteRookMoves( theBoard, jcBoard.WHITE_ROOK ) ) return FlagKingCapture();
+      if ( !ComputeWhiteBishopMoves( theBoard, jcBoard.WHITE_BISHOP ) ) return FlagKingCapture();
+      if ( !ComputeWhiteKnightMoves( theBoard ) ) return FlagKingCapture();
+      if ( !ComputeWhitePawnMoves( theBoard ) ) return FlagKingCapture();
     }
     else  // Compute Black's moves
     {
@@ -130,12 +141,12 @@ public class jcMoveListGenerator
       {
         theBoard.ClearExtraKings( jcPlayer.SIDE_BLACK );
       }
-      if ( !ComputeBlackQueenMoves( theBoard ) ) return false;
-      if ( !ComputeBlackKingMoves( theBoard ) ) return false;
-      if ( !ComputeBlackRookMoves( theBoard, jcBoard.BLACK_ROOK ) ) return false;
-      if ( !ComputeBlackBishopMoves( theBoard, jcBoard.BLACK_BISHOP ) ) return false;
-      if ( !ComputeBlackKnightMoves( theBoard ) ) return false;
-      if ( !ComputeBlackPawnMoves( theBoard ) ) return false;
+      if ( !ComputeBlackQueenMoves( theBoard ) ) return FlagKingCapture();
+      if ( !ComputeBlackKingMoves( theBoard ) ) return FlagKingCapture();
+      if ( !ComputeBlackRookMoves( theBoard, jcBoard.BLACK_ROOK ) ) return FlagKingCapture();
+      if ( !ComputeBlackBishopMoves( theBoard, jcBoard.BLACK_BISHOP ) ) return FlagKingCapture();
+      if ( !ComputeBlackKnightMoves( theBoard ) ) return FlagKingCapture();
+      if ( !ComputeBlackPawnMoves( theBoard ) ) return FlagKingCapture();
     }
 
     // And finally, if there are no pseudo-legal moves at all, we have an
@@ -150,6 +161,34 @@ public class jcMoveListGenerator
   }
 
 
+  // public boolean ComputeStrictlyLegalMoves
+  // Like ComputeLegalMoves, but also remove the moves which would leave the
+  // moving side's king in check, including castling through or out of check
+  // (which the phantom kings reveal).  This is too slow for the search, but
+  // needed wherever moves must be matched against a human's or another
+  // program's notation.  Returns false if the position is illegal or the
+  // side to move has no legal move at all
+  public boolean ComputeStrictlyLegalMoves( jcBoard theBoard )
+  {
+    if ( !ComputeLegalMoves( theBoard ) )
+      return false;
+    if ( Scratch == null )
+    {
+      Scratch = new jcBoard();
+      Replies = new jcMoveListGenerator();
+    }
+    for( int i = Moves.size() - 1; i >= 0; i-- )
+    {
+      Scratch.Clone( theBoard );
+      Scratch.ApplyMove( (jcMove) Moves.get( i ) );
+      Replies.ComputeLegalMoves( Scratch );
+      if ( Replies.KingCapture )
+        Moves.remove( i );
+    }
+    ResetIterator();
+    return( Moves.size() > 0 );
+  }
+
   // public boolean ComputeQuiescenceMoves
   // Find only the moves which are relevant to quiescence search; i.e., captures
   public boolean ComputeQuiescenceMoves( jcBoard theBoard )
@@ -184,6 +223,14 @@ public class jcMoveListGenerator
    * For move generation
    *************************************************************************/
 
+   // private boolean FlagKingCapture
+   // Note that the position is illegal, and tell the caller to stop working
+   private boolean FlagKingCapture()
+   {
+     KingCapture = true;
+     return false;
+   }
+
    private boolean ComputeWhiteQueenMoves( jcBoard theBoard )
    {
      if ( !ComputeWhiteBishopMoves( theBoard, jcBoard.WHITE_QUEEN ) ) return false;
@@ -612,6 +659,8 @@ public class jcMoveListGenerator
            if ( dest < 8 )
              mov.MoveType += jcMove.MOVE_PROMOTION_QUEEN;
            mov.CapturedPiece = theBoard.FindBlackPiece( dest );
+           if ( mov.CapturedPiece == jcBoard.BLACK_KING )
+             return false;
            Moves.add( mov );
 
            // Other promotion captures
@@ -666,6 +715,8 @@ public class jcMoveListGenerator
              mov.MoveType += jcMove.MOVE_PROMOTION_QUEEN;
            mov.MovingPiece = jcBoard.WHITE_PAWN;
            mov.CapturedPiece = theBoard.FindBlackPiece( dest );
+           if ( mov.CapturedPiece == jcBoard.BLACK_KING )
+             return false;
            Moves.add( mov );
            // Other promotion captures
            if ( dest < 8 )
@@ -719,6 +770,8 @@ public class jcMoveListGenerator
            if ( dest < 8 )
              mov.MoveType += jcMove.MOVE_PROMOTION_QUEEN;
            mov.CapturedPiece = theBoard.FindBlackPiece( dest );
+           if ( mov.CapturedPiece == jcBoard.BLACK_KING )
+             return false;
            Moves.add( mov );
 
            // Other promotion captures
@@ -770,6 +823,8 @@ public class jcMoveListGenerator
              mov.MoveType += jcMove.MOVE_PROMOTION_QUEEN;
            mov.MovingPiece = jcBoard.WHITE_PAWN;
            mov.CapturedPiece = theBoard.FindBlackPiece( dest );
+           if ( mov.CapturedPiece == jcBoard.BLACK_KING )
+             return false;
            Moves.add( mov );
            // Other promotion captures
            if ( dest < 8 )
@@ -1247,6 +1302,8 @@ public class jcMoveListGenerator
            if ( dest >= 56 )
              mov.MoveType += jcMove.MOVE_PROMOTION_QUEEN;
            mov.CapturedPiece = theBoard.FindWhitePiece( dest );
+           if ( mov.CapturedPiece == jcBoard.WHITE_KING )
+             return false;
            Moves.add( mov );
 
            // Other promotion captures
@@ -1301,6 +1358,8 @@ public class jcMoveListGenerator
              mov.MoveType += jcMove.MOVE_PROMOTION_QUEEN;
            mov.MovingPiece = jcBoard.BLACK_PAWN;
            mov.CapturedPiece = theBoard.FindWhitePiece( dest );
+           if ( mov.CapturedPiece == jcBoard.WHITE_KING )
+             return false;
            Moves.add( mov );
            // Other promotion captures
            if ( dest >= 56 )
@@ -1354,6 +1413,8 @@ public class jcMoveListGenerator
            if ( dest >= 56 )
              mov.MoveType += jcMove.MOVE_PROMOTION_QUEEN;
            mov.CapturedPiece = theBoard.FindWhitePiece( dest );
+           if ( mov.CapturedPiece == jcBoard.WHITE_KING )
+             return false;
            Moves.add( mov );
            // Other promotion captures
            if ( dest >= 56 )
@@ -1404,6 +1465,8 @@ public class jcMoveListGenerator
            if ( dest >= 56 )
              mov.MoveType += jcMove.MOVE_PROMOTION_QUEEN;
            mov.CapturedPiece = theBoard.FindWhitePiece( dest );
+           if ( mov.CapturedPiece == jcBoard.WHITE_KING )
+             return false;
            Moves.add( mov );
            // Other promotion captures
            if ( dest >= 56 )
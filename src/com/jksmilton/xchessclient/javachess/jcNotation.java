@@ -0,0 +1,290 @@
+/****************************************************************************
+ * jcNotation - Reading and writing moves in the usual chess notations
+ *
+ * The engine only knows squares by number (0 is a8, 63 is h1), but the rest
+ * of the world speaks algebraic notation: standard "short" algebraic (SAN)
+ * in game scores, such as "Nbd7" or "exf8=Q+", and pure coordinate notation,
+ * such as "e2e4" or "e7e8q", between programs.  This class translates both
+ * to and from jcMove objects, by matching them against the list of legal
+ * moves in a given position.
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+
+
+/*****************************************************************************
+ * PUBLIC class jcNotation
+ * Static conversions between jcMove objects and text
+ ****************************************************************************/
+
+public class jcNotation
+{
+  // Piece letters, in the order of jcBoard's piece types divided by 2
+  private static final String PieceLetters = "PNBRQK";
+
+  // Promotion suffixes in coordinate notation
+  private static final String PromotionLetters = "nbrq";
+
+  private jcNotation() {}
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // public static String SquareName
+  // The algebraic name of a square: 0 is "a8", 63 is "h1"
+  public static String SquareName( int square )
+  {
+    return "" + (char) ( 'a' + ( square & 7 ) ) + (char) ( '8' - ( square >> 3 ) );
+  }
+
+  // public static int ParseSquare
+  // The square named by the two characters at a given position of a string,
+  // or -1 if they are not a square name
+  public static int ParseSquare( String text, int pos )
+  {
+    if ( pos < 0 || pos + 2 > text.length() )
+      return -1;
+    int file = text.charAt( pos ) - 'a';
+    int rank = text.charAt( pos + 1 ) - '1';
+    if ( file < 0 || file > 7 || rank < 0 || rank > 7 )
+      return -1;
+    return ( ( 7 - rank ) << 3 ) + file;
+  }
+
+  // public static String ToCoordinate
+  // Write a move as "e2e4", with a lowercase suffix for promotions; castling
+  // is written as the king's move, "e1g1"
+  public static String ToCoordinate( jcMove theMove )
+  {
+    String result = SquareName( theMove.SourceSquare ) + SquareName( theMove.DestinationSquare );
+    switch( theMove.MoveType & jcMove.PROMOTION_MASK )
+    {
+      case jcMove.MOVE_PROMOTION_KNIGHT: return result + "n";
+      case jcMove.MOVE_PROMOTION_BISHOP: return result + "b";
+      case jcMove.MOVE_PROMOTION_ROOK: return result + "r";
+      case jcMove.MOVE_PROMOTION_QUEEN: return result + "q";
+      default: return result;
+    }
+  }
+
+  // public static jcMove ParseCoordinate
+  // Find the legal move written in coordinate notation, or null if the text
+  // does not describe a legal move in this position
+  public static jcMove ParseCoordinate( jcBoard theBoard, String text )
+  {
+    int source = ParseSquare( text, 0 );
+    int destination = ParseSquare( text, 2 );
+    if ( source < 0 || destination < 0 )
+      return null;
+    int promotionType = 0;
+    if ( text.length() > 4 )
+    {
+      int promotion = PromotionLetters.indexOf( Character.toLowerCase( text.charAt( 4 ) ) );
+      if ( promotion < 0 )
+        return null;
+      promotionType = jcMove.MOVE_PROMOTION_KNIGHT << promotion;
+    }
+
+    jcMoveListGenerator successors = LegalMoves( theBoard );
+    if ( successors == null )
+      return null;
+    jcMove mov;
+    while( ( mov = successors.Next() ) != null )
+    {
+      if ( ( mov.SourceSquare == source ) && ( mov.DestinationSquare == destination ) &&
+           ( ( mov.MoveType & jcMove.PROMOTION_MASK ) == promotionType ) )
+        return mov;
+    }
+    return null;
+  }
+
+  // public static jcMove ParseSAN
+  // Find the legal move written in standard algebraic notation.  Check and
+  // annotation marks are ignored, "0-0" is accepted for "O-O", and the "="
+  // before a promotion piece is optional.  Return null if the text does not
+  // describe exactly one legal move in this position
+  public static jcMove ParseSAN( jcBoard theBoard, String san )
+  {
+    // Strip the decorations
+    int end = san.length();
+    while ( end > 0 && "+#!?".indexOf( san.charAt( end - 1 ) ) >= 0 )
+      end--;
+    String text = san.substring( 0, end ).replace( '0', 'O' );
+
+    jcMoveListGenerator successors = LegalMoves( theBoard );
+    if ( successors == null )
+      return null;
+
+    // Castling
+    if ( text.equals( "O-O" ) || text.equals( "O-O-O" ) )
+    {
+      int castlingType = text.equals( "O-O" ) ? jcMove.MOVE_CASTLING_KINGSIDE : jcMove.MOVE_CASTLING_QUEENSIDE;
+      jcMove mov;
+      while( ( mov = successors.Next() ) != null )
+      {
+        if ( mov.MoveType == castlingType )
+          return mov;
+      }
+      return null;
+    }
+
+    // Promotion suffix
+    int promotionType = 0;
+    if ( end >= 3 && PieceLetters.indexOf( text.charAt( text.length() - 1 ) ) > 0 )
+    {
+      int piece = PieceLetters.indexOf( text.charAt( text.length() - 1 ) );
+      if ( piece > 4 )
+        return null;
+      promotionType = jcMove.MOVE_PROMOTION_KNIGHT << ( piece - 1 );
+      text = text.substring( 0, text.length() - 1 );
+      if ( text.endsWith( "=" ) )
+        text = text.substring( 0, text.length() - 1 );
+    }
+
+    // Moving piece type
+    int pieceType = jcBoard.PAWN;
+    int pos = 0;
+    if ( text.length() > 0 && PieceLetters.indexOf( text.charAt( 0 ) ) > 0 )
+    {
+      pieceType = 2 * PieceLetters.indexOf( text.charAt( 0 ) );
+      pos = 1;
+    }
+
+    // Destination square, and whatever disambiguation comes before it
+    int destination = ParseSquare( text, text.length() - 2 );
+    if ( destination < 0 || text.length() - 2 < pos )
+      return null;
+    int sourceFile = -1;
+    int sourceRank = -1;
+    for( int i = pos; i < text.length() - 2; i++ )
+    {
+      char c = text.charAt( i );
+      if ( c >= 'a' && c <= 'h' )
+        sourceFile = c - 'a';
+      else if ( c >= '1' && c <= '8' )
+        sourceRank = 7 - ( c - '1' );
+      else if ( c != 'x' && c != '-' && c != ':' )
+        return null;
+    }
+
+    jcMove found = null;
+    jcMove mov;
+    while( ( mov = successors.Next() ) != null )
+    {
+      if ( ( mov.DestinationSquare != destination ) ||
+           ( ( mov.MovingPiece & ~1 ) != pieceType ) ||
+           ( ( mov.MoveType & jcMove.PROMOTION_MASK ) != promotionType ) )
+        continue;
+      if ( sourceFile >= 0 && ( mov.SourceSquare & 7 ) != sourceFile )
+        continue;
+      if ( sourceRank >= 0 && ( mov.SourceSquare >> 3 ) != sourceRank )
+        continue;
+      if ( found != null )
+        return null;
+      found = mov;
+    }
+    return found;
+  }
+
+  // public static String ToSAN
+  // Write a legal move in standard algebraic notation, with the minimal
+  // disambiguation and a check or mate mark, as in PGN game scores
+  public static String ToSAN( jcBoard theBoard, jcMove theMove )
+  {
+    StringBuffer result = new StringBuffer();
+    int moveWithoutPromotion = theMove.MoveType & jcMove.NO_PROMOTION_MASK;
+    if ( moveWithoutPromotion == jcMove.MOVE_CASTLING_KINGSIDE )
+      result.append( "O-O" );
+    else if ( moveWithoutPromotion == jcMove.MOVE_CASTLING_QUEENSIDE )
+      result.append( "O-O-O" );
+    else
+    {
+      int pieceType = theMove.MovingPiece & ~1;
+      boolean capture = ( theMove.CapturedPiece != jcBoard.EMPTY_SQUARE ) ||
+                        ( moveWithoutPromotion == jcMove.MOVE_CAPTURE_EN_PASSANT );
+      if ( pieceType == jcBoard.PAWN )
+      {
+        if ( capture )
+          result.append( (char) ( 'a' + ( theMove.SourceSquare & 7 ) ) );
+      }
+      else
+      {
+        result.append( PieceLetters.charAt( pieceType >> 1 ) );
+
+        // Is there another piece of the same type which could go there?
+        boolean ambiguous = false, sameFile = false, sameRank = false;
+        jcMoveListGenerator successors = LegalMoves( theBoard );
+        jcMove mov;
+        while( successors != null && ( mov = successors.Next() ) != null )
+        {
+          if ( ( mov.MovingPiece != theMove.MovingPiece ) ||
+               ( mov.DestinationSquare != theMove.DestinationSquare ) ||
+               ( mov.SourceSquare == theMove.SourceSquare ) )
+            continue;
+          ambiguous = true;
+          sameFile |= ( ( mov.SourceSquare & 7 ) == ( theMove.SourceSquare & 7 ) );
+          sameRank |= ( ( mov.SourceSquare >> 3 ) == ( theMove.SourceSquare >> 3 ) );
+        }
+        if ( ambiguous )
+        {
+          String from = SquareName( theMove.SourceSquare );
+          if ( !sameFile )
+            result.append( from.charAt( 0 ) );
+          else if ( !sameRank )
+            result.append( from.charAt( 1 ) );
+          else
+            result.append( from );
+        }
+      }
+      if ( capture )
+        result.append( 'x' );
+      result.append( SquareName( theMove.DestinationSquare ) );
+      int promotion = theMove.MoveType & jcMove.PROMOTION_MASK;
+      if ( promotion != 0 )
+        result.append( '=' ).append( PieceLetters.charAt( 1 + Integer.numberOfTrailingZeros( promotion >> 5 ) ) );
+    }
+
+    // Check or mate?
+    jcBoard after = new jcBoard();
+    after.Clone( theBoard );
+    after.ApplyMove( theMove );
+    if ( IsInCheck( after ) )
+    {
+      jcMoveListGenerator replies = new jcMoveListGenerator();
+      result.append( replies.ComputeStrictlyLegalMoves( after ) ? '+' : '#' );
+    }
+    return result.toString();
+  }
+
+  // public static boolean IsInCheck
+  // Whether the side to move is in check, which is to say whether the other
+  // side could capture its king if it were allowed to move twice
+  public static boolean IsInCheck( jcBoard theBoard )
+  {
+    jcBoard scratch = new jcBoard();
+    scratch.Clone( theBoard );
+    scratch.SwitchSides();
+    jcMoveListGenerator replies = new jcMoveListGenerator();
+    replies.ComputeLegalMoves( scratch );
+    return replies.FoundKingCapture();
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  // The strictly legal moves in a position, computed on a copy of the board
+  // since the move generator may clean up phantom kings; null if there are
+  // none
+  private static jcMoveListGenerator LegalMoves( jcBoard theBoard )
+  {
+    jcBoard scratch = new jcBoard();
+    scratch.Clone( theBoard );
+    jcMoveListGenerator successors = new jcMoveListGenerator();
+    if ( !successors.ComputeStrictlyLegalMoves( scratch ) )
+      return null;
+    return successors;
+  }
+}
@@ -1,10 +1,17 @@
 /****************************************************************************
- * jcOpeningBook - A hash table of well-known positions and moves
+ * jcOpeningBook - A library of well-known positions and moves
  *
  * Chess programs are notoriously bad at deciding what to do with complicated
  * positions, so everyone "cheats" by giving them a library of opening positions
- * taken from the ECO or something like that.  This one is very primitive and
- * contains very little, but it gets the job done.
+ * taken from the ECO or something like that.
+ *
+ * The book is a sorted array of 16-byte entries: a 64-bit position key (see
+ * jcBoard.BookKey), a 16-bit move, a 16-bit weight and 32 bits of learning
+ * data, all big-endian.  The keys are our own, so only books written by
+ * jcBookCompiler can be read.  Since the entries are sorted
+ * by key, a position is found by binary search directly in the file image,
+ * which is memory-mapped or held in a direct buffer; nothing needs to be
+ * replayed or hashed when the book is opened, however large it is.
  *
  * History:
  * 19.09.00 Creation
@@ -12,182 +19,250 @@
  ****************************************************************************/
 
 package com.jksmilton.xchessclient.javachess;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.StreamTokenizer;
-
-
-/****************************************************************************
- * PRIVATE class jcOpeningBookEntry
- * A signature for a board position, and the best moves for White and Black
- * in that position.
- ***************************************************************************/
-
-class jcOpeningBookEntry
-{
-  // A signature for the board position stored in the entry
-  int theLock;
-
-  // Moves
-  jcMove WhiteMove;
-  jcMove BlackMove;
-
-  // A sentinel indicating that a move is invalid
-  public static final int NO_MOVE = -1;
-
-  // Construction
-  jcOpeningBookEntry()
-  {
-    theLock = 0;
-    WhiteMove = new jcMove();
-    WhiteMove.MoveType = NO_MOVE;
-    BlackMove = new jcMove();
-    BlackMove.MoveType = NO_MOVE;
-  }
-}
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
 
 
 /*****************************************************************************
  * PUBLIC class jcOpeningBook
- * A hash table containing a certain number of slots for well-known positions
+ * A read-only view of a sorted binary opening book
  ****************************************************************************/
 
 public class jcOpeningBook
 {
-  // The hash table itself
-  private static final int TABLE_SIZE = 1024;
-  private jcOpeningBookEntry Table[];
-
-  // Construction
+  // Size of a book entry, in bytes
+  public static final int ENTRY_SIZE = 16;
+
+  // Promotion codes used in the book's move encoding
+  private static final int BOOK_PROMOTION_NONE = 0;
+  private static final int BOOK_PROMOTION_KNIGHT = 1;
+  private static final int BOOK_PROMOTION_BISHOP = 2;
+  private static final int BOOK_PROMOTION_ROOK = 3;
+  private static final int BOOK_PROMOTION_QUEEN = 4;
+
+  // The book image and the number of entries it contains
+  private ByteBuffer Book;
+  private int NumEntries;
+
+  // Used to pick among several moves for the same position
+  private Random Rnd;
+
+  // Scratch objects for DecodeMove, reused from one query to the next; a
+  // book may be shared by several engines, so they are used under the
+  // book's lock
+  private jcBoard ScratchBoard;
+  private jcMoveListGenerator ScratchMoves;
+
+  // Construction: an empty book, which never finds anything until one of
+  // the loading methods is called
   public jcOpeningBook()
   {
-    Table = new jcOpeningBookEntry[ TABLE_SIZE ];
-    for ( int i = 0; i < TABLE_SIZE; i++ )
-    {
-      Table[ i ] = new jcOpeningBookEntry();
-    }
+    Rnd = new Random();
+    ScratchBoard = new jcBoard();
+    ScratchMoves = new jcMoveListGenerator();
+    Wrap( ByteBuffer.allocate( 0 ) );
   }
 
+  // Accessor
+  public int Size() { return NumEntries; }
+
   // public jcMove Query
-  // Querying the table for a ready-made move to play.  Return null if there
-  // is none
+  // Querying the book for a ready-made move to play.  If the book knows
+  // several moves for the position, one of them is picked at random, with a
+  // probability proportional to its weight.  Return null if there is none
   public jcMove Query( jcBoard theBoard )
   {
-    // First, look for a match in the table
-    int key = Math.abs( theBoard.HashKey() % TABLE_SIZE );
-    int lock = theBoard.HashLock();
-
-    // If the hash lock doesn't match the one for our position, get out
-    if ( Table[ key ].theLock != lock )
+    long key = theBoard.BookKey();
+    int first = FindFirstEntry( key );
+    if ( first < 0 )
       return null;
 
-    // If there is an entry for this board in the table, verify that it
-    // contains a move for the current side
-    if ( theBoard.GetCurrentPlayer() == jcPlayer.SIDE_BLACK )
+    // Sum the weights of all the entries for this position
+    int total = 0;
+    int last = first;
+    while ( ( last < NumEntries ) && ( Book.getLong( last * ENTRY_SIZE ) == key ) )
     {
-      if ( Table[ key ].BlackMove.MoveType != jcOpeningBookEntry.NO_MOVE )
-        return Table[ key ].BlackMove;
+      total += GetWeight( last );
+      last++;
     }
-    else
+    if ( total == 0 )
+      return null;
+
+    // And draw one of them
+    int pick = Rnd.nextInt( total );
+    int entry = first;
+    while ( pick >= GetWeight( entry ) )
     {
-      if ( Table[ key ].WhiteMove.MoveType != jcOpeningBookEntry.NO_MOVE )
-        return Table[ key ].WhiteMove;
+      pick -= GetWeight( entry );
+      entry++;
     }
-
-    // If we haven't found anything useful, quit
-    return null;
+    return DecodeMove( theBoard, Book.getShort( entry * ENTRY_SIZE + 8 ) & 0xFFFF );
   }
 
-  // Loading the table from a file
-  public boolean Load( InputStream stream ) throws Exception
+  // Opening a book file.  The file is mapped in memory rather than read, so
+  // the cost of opening a book does not depend on its size
+  public boolean Open( File fileName ) throws Exception
   {
-    // Open the file as a Java tokenizer
-    InputStreamReader reader = new InputStreamReader(stream);
-    BufferedReader fr = new BufferedReader( reader );
-    StreamTokenizer tok = new StreamTokenizer( fr );
-    tok.eolIsSignificant( false );
-    tok.lowerCaseMode( false );
-
-    // Create a game board on which to "play" the opening sequences stored in
-    // the book, so that we know which position to associate with which move
-    jcBoard board = new jcBoard();
-    jcMove mov = new jcMove();
-    jcMoveListGenerator successors = new jcMoveListGenerator();
-
-    // How many lines of play do we have in the book?
-    tok.nextToken();
-    int numLines = (int) tok.nval;
-
-    for( int wak = 0; wak < numLines; wak++ )
+    RandomAccessFile raf = new RandomAccessFile( fileName, "r" );
+    try
     {
-      // Begin the line of play with a clean board
-      board.StartingBoard();
-
-      // Load the continuation
-      while( true )
-      {
-        successors.ComputeLegalMoves( board );
-
-        // Is the token an end-of-continuation marker?
-        // If so, go on to the next continuation
-        if( ( tok.nextToken() == StreamTokenizer.TT_WORD ) && ( tok.sval.equalsIgnoreCase( "END" ) ) )
-        {
-          break;
-        }
+      FileChannel channel = raf.getChannel();
+      return Wrap( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ) );
+    }
+    finally
+    {
+      // The mapping remains valid once the file is closed
+      raf.close();
+    }
+  }
 
-        if ( tok.ttype == StreamTokenizer.TT_EOL )
-          tok.nextToken();
+  // Loading a book image from a stream, for books which cannot be mapped
+  // directly (such as application resources)
+  public boolean Load( InputStream stream ) throws Exception
+  {
+    ByteArrayOutputStream image = new ByteArrayOutputStream( 1 << 16 );
+    byte chunk[] = new byte[ 8192 ];
+    int read;
+    while ( ( read = stream.read( chunk ) ) > 0 )
+      image.write( chunk, 0, read );
+    stream.close();
+
+    ByteBuffer direct = ByteBuffer.allocateDirect( image.size() );
+    direct.put( image.toByteArray() );
+    direct.flip();
+    return Wrap( direct );
+  }
 
-        // If not, gather the source and destination squares of the next move
-        int source = (int) tok.nval;
-        tok.nextToken();
-        int destination = (int) tok.nval;
+  // Use an existing book image, such as a buffer filled by the caller
+  public boolean Wrap( ByteBuffer image )
+  {
+    if ( ( image.limit() % ENTRY_SIZE ) != 0 )
+      throw new IllegalArgumentException( "Book image is not a whole number of entries" );
+    Book = image.duplicate();
+    Book.order( ByteOrder.BIG_ENDIAN );
+    NumEntries = image.limit() / ENTRY_SIZE;
+    return true;
+  }
 
-        // Make a jcMove structure out of the source and destination squares;
-        // this determines whether there is a capture involved, a castling, etc.
-        mov = successors.FindMoveForSquares( source, destination );
+  // public static int EncodeMove
+  // Convert a move to the book's 16-bit encoding: destination square in bits
+  // 0-5, source square in bits 6-11 (both numbered from a1) and promotion
+  // piece in bits 12-14.  Castling is written as "king takes own rook"
+  public static int EncodeMove( jcMove theMove )
+  {
+    int source = theMove.SourceSquare;
+    int destination = theMove.DestinationSquare;
+    int moveWithoutPromotion = theMove.MoveType & jcMove.NO_PROMOTION_MASK;
+    if ( moveWithoutPromotion == jcMove.MOVE_CASTLING_KINGSIDE )
+      destination = source + 3;
+    else if ( moveWithoutPromotion == jcMove.MOVE_CASTLING_QUEENSIDE )
+      destination = source - 4;
+
+    int promotion = BOOK_PROMOTION_NONE;
+    switch( theMove.MoveType & jcMove.PROMOTION_MASK )
+    {
+      case jcMove.MOVE_PROMOTION_KNIGHT: promotion = BOOK_PROMOTION_KNIGHT; break;
+      case jcMove.MOVE_PROMOTION_BISHOP: promotion = BOOK_PROMOTION_BISHOP; break;
+      case jcMove.MOVE_PROMOTION_ROOK: promotion = BOOK_PROMOTION_ROOK; break;
+      case jcMove.MOVE_PROMOTION_QUEEN: promotion = BOOK_PROMOTION_QUEEN; break;
+      default: break;
+    }
+    return ( destination ^ 56 ) | ( ( source ^ 56 ) << 6 ) | ( promotion << 12 );
+  }
 
-        // And now, store the move in the table
-        StoreMove( board, mov );
+  // public synchronized jcMove DecodeMove
+  // Find the move of theBoard's legal move list which matches a move in the
+  // book's encoding, or null if there is none (a corrupt book, or a key
+  // collision)
+  public synchronized jcMove DecodeMove( jcBoard theBoard, int bookMove )
+  {
+    int destination = ( bookMove & 63 ) ^ 56;
+    int source = ( ( bookMove >> 6 ) & 63 ) ^ 56;
+    int promotion = ( bookMove >> 12 ) & 7;
 
-        // Finally, apply the move and get ready for the next one
-        board.ApplyMove( mov );
+    // "King takes own rook" is a castling move
+    int piece = theBoard.FindPiece( source );
+    if ( ( piece == jcBoard.WHITE_KING ) || ( piece == jcBoard.BLACK_KING ) )
+    {
+      if ( destination == source + 3 )
+        destination = source + 2;
+      else if ( destination == source - 4 )
+        destination = source - 2;
+    }
 
-      }
+    int promotionType = 0;
+    switch( promotion )
+    {
+      case BOOK_PROMOTION_KNIGHT: promotionType = jcMove.MOVE_PROMOTION_KNIGHT; break;
+      case BOOK_PROMOTION_BISHOP: promotionType = jcMove.MOVE_PROMOTION_BISHOP; break;
+      case BOOK_PROMOTION_ROOK: promotionType = jcMove.MOVE_PROMOTION_ROOK; break;
+      case BOOK_PROMOTION_QUEEN: promotionType = jcMove.MOVE_PROMOTION_QUEEN; break;
+      default: break;
     }
 
-    fr.close();
-    return true;
+    ScratchBoard.Clone( theBoard );
+    if ( !ScratchMoves.ComputeLegalMoves( ScratchBoard ) )
+      return null;
+    jcMove mov;
+    while( ( mov = ScratchMoves.Next() ) != null )
+    {
+      if ( ( mov.SourceSquare == source ) && ( mov.DestinationSquare == destination ) &&
+           ( ( mov.MoveType & jcMove.PROMOTION_MASK ) == promotionType ) )
+        return mov;
+    }
+    return null;
   }
 
+  // static void WriteEntry
+  // Store one book entry at a given byte offset of a book image
+  static void WriteEntry( ByteBuffer image, int offset, long key, int move, int weight, int learn )
+  {
+    image.putLong( offset, key );
+    image.putShort( offset + 8, (short) move );
+    image.putShort( offset + 10, (short) weight );
+    image.putInt( offset + 12, learn );
+  }
 
-  // private StoreMove( jcBoard, jcMov )
-  private boolean StoreMove( jcBoard theBoard, jcMove theMove )
+  // static int CompareKeys
+  // Book keys are sorted as unsigned 64-bit numbers
+  static int CompareKeys( long a, long b )
   {
-    // Where should we store this data?
-    int key = Math.abs( theBoard.HashKey() % TABLE_SIZE );
-    int lock = theBoard.HashLock();
+    a ^= Long.MIN_VALUE;
+    b ^= Long.MIN_VALUE;
+    return ( a < b ) ? -1 : ( ( a == b ) ? 0 : 1 );
+  }
 
-    // Is there already an entry for a different board position where we
-    // want to put this?  If so, mark it deleted
-    if ( Table[ key ].theLock != lock )
-    {
-      Table[ key ].BlackMove.MoveType = jcOpeningBookEntry.NO_MOVE;
-      Table[ key ].WhiteMove.MoveType = jcOpeningBookEntry.NO_MOVE;
-    }
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
 
-    // And store the new move
-    Table[ key ].theLock = lock;
-    if ( theBoard.GetCurrentPlayer() == jcPlayer.SIDE_BLACK )
-    {
-      Table[ key ].BlackMove.Copy( theMove );
-    }
-    else
+  // private int FindFirstEntry
+  // Binary search for the first entry filed under a given key, or -1
+  private int FindFirstEntry( long key )
+  {
+    int low = 0;
+    int high = NumEntries;
+    while ( low < high )
     {
-      Table[ key ].WhiteMove.Copy( theMove );
+      int mid = ( low + high ) >>> 1;
+      if ( CompareKeys( Book.getLong( mid * ENTRY_SIZE ), key ) < 0 )
+        low = mid + 1;
+      else
+        high = mid;
     }
+    if ( ( low < NumEntries ) && ( Book.getLong( low * ENTRY_SIZE ) == key ) )
+      return low;
+    return -1;
+  }
 
-    return true;
+  private int GetWeight( int entry )
+  {
+    return Book.getShort( entry * ENTRY_SIZE + 10 ) & 0xFFFF;
   }
-}
\ No newline at end of file
+}
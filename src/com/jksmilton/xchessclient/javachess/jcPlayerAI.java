@@ -6,6 +6,15 @@
  * Purpose: This object allows a computer player to play JavaChess.  Its only
  * real job is to query an AI Search Agent for his move.
  *
+ * It can also think on the opponent's time: after playing, it guesses the
+ * reply and searches the position it would lead to in the background, with
+ * the same effort as a normal search.  If the guess was right, GetMove only
+ * has to wait for that search to end (or not at all); if it was wrong, the
+ * search is stopped and a new one begins.  The new search only inherits the
+ * transposition table, which shares little with a position reached by
+ * another move: the time spent pondering a wrong guess is mostly lost, so
+ * that each miss costs up to one search more than not pondering at all.
+ *
  * History:
  * 11.06.00 Creation
  * 07.08.00 Association with the search agent
@@ -25,6 +34,10 @@ public class jcPlayerAI extends jcPlayer
   // The search agent in charge of the moves
   jcAISearchAgent Agent;
 
+  // Pondering: the search running in the background, if any.  Guarded by
+  // the player's lock, since StopPondering may be called from any thread
+  private PonderSearch Ponder;
+
   /***********************************************************************
    * PUBLIC METHODS
    **********************************************************************/
@@ -36,6 +49,15 @@ public class jcPlayerAI extends jcPlayer
     Agent = jcAISearchAgent.MakeNewAgent( whichType, ref );
   }
 
+  // Constructor around a search agent built by the caller, for instance
+  // with its transposition table at its final size, so that no default
+  // agent is built only to be replaced
+  public jcPlayerAI( int whichPlayer, jcAISearchAgent theAgent )
+  {
+    this.SetSide( whichPlayer );
+    AttachSearchAgent( theAgent );
+  }
+
   // Attach a search agent to the AI player
   public boolean AttachSearchAgent( jcAISearchAgent theAgent )
   {
@@ -43,9 +65,138 @@ public class jcPlayerAI extends jcPlayer
     return true;
   }
 
+  // Accessor
+  public jcAISearchAgent GetSearchAgent() { return Agent; }
+
+  // Give the search agent access to endgame tables
+  public boolean AttachBitbases( jcBitbase tables )
+  {
+    return Agent.AttachBitbases( tables );
+  }
+
   // Getting a move from the machine
   public jcMove GetMove( jcBoard theBoard )
   {
+    jcMove mov = FinishPondering( theBoard );
+    if ( mov != null )
+      return mov;
     return( Agent.PickBestMove( theBoard ) );
   }
+
+  // Start thinking on the opponent's time, in the position reached after
+  // the machine's move; false if there is nothing to guess, or if GetMove
+  // is still waiting for the previous background search
+  public synchronized boolean StartPondering( jcBoard theBoard )
+  {
+    StopPondering();
+    if ( Ponder != null )
+      return false;
+    jcMove reply = Agent.GuessReply( theBoard );
+    if ( reply == null )
+      return false;
+
+    jcBoard position = new jcBoard();
+    position.Clone( theBoard );
+    position.ApplyMove( reply );
+    Ponder = new PonderSearch( position );
+    Ponder.start();
+    return true;
+  }
+
+  // Abandon the background search, if any.  This may be called from any
+  // thread; once GetMove has taken over the pondering search, there is
+  // nothing left to abandon
+  public synchronized void StopPondering()
+  {
+    if ( ( Ponder == null ) || Ponder.Claimed )
+      return;
+    Agent.Stop();
+    JoinPonderThread( Ponder );
+    Agent.CancelStop();
+    Ponder = null;
+  }
+
+  // Accessor
+  public synchronized boolean IsPondering() { return( ( Ponder != null ) && !Ponder.Claimed ); }
+
+  /***********************************************************************
+   * PRIVATE METHODS
+   **********************************************************************/
+
+  // A background search, with the position it examines (the guessed reply
+  // already played) and, once it is over, the move it found
+  private class PonderSearch extends Thread
+  {
+    final jcBoard Position;
+    jcMove Result;
+
+    // Set when GetMove waits for the search, which is then no longer
+    // StopPondering's to abandon
+    boolean Claimed;
+
+    PonderSearch( jcBoard position )
+    {
+      super( "jcPlayerAI ponder" );
+      Position = position;
+      setDaemon( true );
+    }
+
+    public void run()
+    {
+      jcBoard board = new jcBoard();
+      board.Clone( Position );
+      Result = Agent.PickBestMove( board );
+    }
+  }
+
+  // On a ponder hit, the move found by the background search, waiting for
+  // it to end if needed; otherwise null, after stopping the search.  The
+  // wait happens outside the lock, so that StopPondering never blocks for
+  // the length of a search; the search stays in Ponder meanwhile, so that
+  // no other one is started on the same agent
+  private jcMove FinishPondering( jcBoard theBoard )
+  {
+    PonderSearch search;
+    synchronized( this )
+    {
+      if ( ( Ponder == null ) || Ponder.Claimed )
+        return null;
+      if ( ( Ponder.Position.BookKey() != theBoard.BookKey() ) ||
+           ( Ponder.Position.GetCurrentPlayer() != theBoard.GetCurrentPlayer() ) )
+      {
+        StopPondering();
+        return null;
+      }
+      search = Ponder;
+      search.Claimed = true;
+    }
+    JoinPonderThread( search );
+    synchronized( this )
+    {
+      if ( Ponder == search )
+        Ponder = null;
+    }
+    // The join makes the result of the search visible here
+    return search.Result;
+  }
+
+  private void JoinPonderThread( Thread thread )
+  {
+    try
+    {
+      thread.join();
+    }
+    catch( InterruptedException e )
+    {
+      // Nobody else may use the agent before the search is over
+      Agent.Stop();
+      while ( thread.isAlive() )
+      {
+        try { thread.join(); }
+        catch( InterruptedException again ) {}
+      }
+      Agent.CancelStop();
+      Thread.currentThread().interrupt();
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+/****************************************************************************
+ * jcSearchInfo - A snapshot of a search in progress
+ *
+ * Purpose:
+ * Gathers what a search agent knows after completing an iteration: how deep
+ * it went, what it thinks of the position and why (the principal variation),
+ * how much work it took and how efficiently the work was done.  Like jcMove,
+ * this is a plain data holder with public fields.
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.util.ArrayList;
+
+public class jcSearchInfo
+{
+  // Nominal depth of the completed iteration, and the greatest distance from
+  // the root reached by the iteration, quiescence search included
+  public int Depth;
+  public int SelDepth;
+
+  // Rank of this line among the root moves in a MultiPV search, 1 being
+  // the best (and the only one in a normal search)
+  public int MultiPV;
+
+  // Evaluation of the position, from the moving side's perspective; if a
+  // mate has been found, MateIn is the number of moves to it (negative if
+  // the moving side is the one getting mated), otherwise 0
+  public int Score;
+  public int MateIn;
+
+  // Effort: nodes visited since the search began, elapsed time in
+  // milliseconds, and the resulting speed
+  public long Nodes;
+  public long TimeMillis;
+  public long NodesPerSecond;
+
+  // Transposition table usage, in parts per thousand
+  public int HashFull;
+
+  // The iteration on its own: full-width and quiescence nodes, time in
+  // milliseconds, and the ratio of its nodes to the previous iteration's
+  // (the effective branching factor; 0 for the first iteration)
+  public long RegularNodes;
+  public long QuiescenceNodes;
+  public long IterationMillis;
+  public double BranchingFactor;
+
+  // Search efficiency during the iteration: the fraction of nodes answered
+  // by the transposition table, the fraction of full-width nodes ending in
+  // a cutoff, and the fraction of those cutoffs caused by the first move
+  // searched, which tells how good the move ordering is
+  public double TTHitRate;
+  public double CutoffRate;
+  public double FirstMoveCutoffRate;
+
+  // Positions answered by the endgame bitbases
+  public long BitbaseHits;
+
+  // The expected line of play, beginning with the best move
+  public ArrayList<jcMove> PrincipalVariation;
+
+  // Construction
+  public jcSearchInfo()
+  {
+    MultiPV = 1;
+    PrincipalVariation = new ArrayList<jcMove>();
+  }
+
+  public jcSearchInfo( jcSearchInfo other )
+  {
+    MultiPV = other.MultiPV;
+    Depth = other.Depth;
+    SelDepth = other.SelDepth;
+    Score = other.Score;
+    MateIn = other.MateIn;
+    Nodes = other.Nodes;
+    TimeMillis = other.TimeMillis;
+    NodesPerSecond = other.NodesPerSecond;
+    HashFull = other.HashFull;
+    RegularNodes = other.RegularNodes;
+    QuiescenceNodes = other.QuiescenceNodes;
+    IterationMillis = other.IterationMillis;
+    BranchingFactor = other.BranchingFactor;
+    TTHitRate = other.TTHitRate;
+    CutoffRate = other.CutoffRate;
+    FirstMoveCutoffRate = other.FirstMoveCutoffRate;
+    BitbaseHits = other.BitbaseHits;
+    PrincipalVariation = new ArrayList<jcMove>( other.PrincipalVariation );
+  }
+
+  // jcMove GetBestMove()
+  // The first move of the principal variation, or null if there is none
+  public jcMove GetBestMove()
+  {
+    return PrincipalVariation.isEmpty() ? null : PrincipalVariation.get( 0 );
+  }
+}
@@ -0,0 +1,24 @@
+/****************************************************************************
+ * jcSearchListener - Receives progress reports from a search agent
+ *
+ * Purpose:
+ * A search may run for a long time on a worker thread; whoever started it
+ * (a user interface, a protocol front end, a test harness) can follow its
+ * progress by attaching a listener to the agent.  The listener is called on
+ * the searching thread, so it should return quickly.
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+
+public interface jcSearchListener
+{
+  // Called each time an iteration of the search completes
+  public void SearchProgress( jcSearchInfo info );
+
+  // Called once when the search is over, whether it ran to its end or was
+  // stopped: the last completed iteration, with the totals for the whole
+  // search (or, if no iteration completed, just the totals and the move
+  // played)
+  public void SearchFinished( jcSearchInfo info );
+}
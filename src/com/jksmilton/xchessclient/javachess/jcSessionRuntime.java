@@ -0,0 +1,510 @@
+/****************************************************************************
+ * jcSessionRuntime - Hosts many games against the machine at once
+ *
+ * Purpose:
+ * Running each game's control loop (get a move, apply it, save the game,
+ * tell the players) on a thread of its own does not scale to the thousands
+ * of games a server hosts for bot opponents or batch self-play: most games
+ * spend most of their time waiting for a person, and every waiting thread
+ * holds a stack.  Here a game is a session object moved along by events
+ * instead, so a session waiting for a move costs only its board.
+ *
+ * Two thread pools do all the work.  A single control thread runs every
+ * step of every session (checking for the end of the game, applying and
+ * validating moves, saving, notifying); since nothing else touches the
+ * sessions, they need no locks, and the steps are short.  The searches,
+ * which are CPU-bound, run on a bounded pool sized to the cores, with
+ * agents leased from a jcEnginePool; when a search ends, its move goes back
+ * to the control thread as a new event.  Moves made by people arrive the
+ * same way, through SubmitMove.
+ *
+ * Games end on mate, stalemate, the fifty-move rule, threefold repetition,
+ * insufficient material, a maximum length, or the engine resigning, as in
+ * jcMatchRunner.
+ *
+ * Usage (benchmark):
+ *   jcSessionRuntime [options]
+ * Options:
+ *   -games N      engine-against-engine games to play (default 200)
+ *   -idle N       sessions kept waiting for a person meanwhile (default 10000)
+ *   -depth N      search depth per move (default 2)
+ *   -threads N    search threads (default: number of cores)
+ *   -hash MB      transposition table per agent (default 2)
+ *   -maxplies N   adjudicate a draw after N plies (default 200)
+ * and reports games and moves per second, and the memory used by a session
+ * waiting for a move.
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class jcSessionRuntime
+{
+  /***************************************************************************
+   * NESTED TYPES
+   **************************************************************************/
+
+  // Where the games go; the methods are called on the control thread, so
+  // they should be quick, and must not wait for another session
+  public interface Listener
+  {
+    // A move was played and the game saved (or SaveFailed was called first)
+    public void MovePlayed( Session session, jcMove mov );
+
+    // The game is over; see GetResult and GetTermination
+    public void GameOver( Session session );
+
+    // The store could not save the game; the session goes on regardless
+    public void SaveFailed( Session session, Exception e );
+  }
+
+  // Saves a session after each move, on the control thread (may be null)
+  public interface Store
+  {
+    public void Save( Session session ) throws Exception;
+  }
+
+  // One game.  Its state belongs to the control thread: the accessors are
+  // meant for the listener and the store
+  public static class Session
+  {
+    private String Id;
+    private jcBoard Board;
+    private boolean Engine[];
+    private HashMap<Long, Integer> Repetitions;
+    private int Plies;
+    private int State;
+    private String Result;
+    private String Termination;
+
+    Session( String id, jcBoard position, boolean whiteIsEngine, boolean blackIsEngine )
+    {
+      Id = id;
+      Board = new jcBoard();
+      Board.Clone( position );
+      Engine = new boolean[] { whiteIsEngine, blackIsEngine };
+      Repetitions = new HashMap<Long, Integer>();
+      jcMatchRunner.CountRepetition( Repetitions, Board );
+      State = STATE_WAITING;
+    }
+
+    // Accessors
+    public String GetId() { return Id; }
+    public jcBoard GetBoard() { return Board; }
+    public int GetPlies() { return Plies; }
+    public boolean IsOver() { return State == STATE_OVER; }
+    public String GetResult() { return Result; }
+    public String GetTermination() { return Termination; }
+  }
+
+  /***************************************************************************
+   * DATA MEMBERS
+   **************************************************************************/
+
+  // Session states: waiting for a person's move, waiting for a search, over
+  private static final int STATE_WAITING = 0;
+  private static final int STATE_SEARCHING = 1;
+  private static final int STATE_OVER = 2;
+
+  private jcEnginePool Engines;
+  private ExecutorService Control;
+  private ExecutorService Searchers;
+  private Store Persistence;
+  private Listener Observer;
+  private int MaxPlies;
+
+  // The sessions which are not over yet
+  private ConcurrentHashMap<String, Session> Sessions;
+
+  // Statistics
+  private AtomicLong MovesPlayed;
+  private AtomicLong GamesFinished;
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // Construction: searches run on "searchThreads" threads (the number of
+  // cores if 0) with agents from the given pool, which should allow at least
+  // as many agents as there are threads
+  public jcSessionRuntime( jcEnginePool engines, int searchThreads, Store store, Listener listener )
+  {
+    Engines = engines;
+    Persistence = store;
+    Observer = listener;
+    MaxPlies = 400;
+    Sessions = new ConcurrentHashMap<String, Session>();
+    MovesPlayed = new AtomicLong();
+    GamesFinished = new AtomicLong();
+    Control = Executors.newSingleThreadExecutor( MakeThreadFactory( "jcSessionRuntime control" ) );
+    Searchers = Executors.newFixedThreadPool(
+      ( searchThreads > 0 ) ? searchThreads : Runtime.getRuntime().availableProcessors(),
+      MakeThreadFactory( "jcSessionRuntime search" ) );
+  }
+
+  public static void main( String args[] ) throws Exception
+  {
+    int games = 200, idle = 10000, depth = 2, maxPlies = 200, hash = 2;
+    int threads = Runtime.getRuntime().availableProcessors();
+    for( int i = 0; i < args.length; i++ )
+    {
+      if ( i + 1 >= args.length )
+        Usage();
+      String option = args[ i ];
+      int value = Integer.parseInt( args[ ++i ] );
+      if ( option.equals( "-games" ) )
+        games = value;
+      else if ( option.equals( "-idle" ) )
+        idle = value;
+      else if ( option.equals( "-depth" ) )
+        depth = value;
+      else if ( option.equals( "-threads" ) )
+        threads = value;
+      else if ( option.equals( "-hash" ) )
+        hash = value;
+      else if ( option.equals( "-maxplies" ) )
+        maxPlies = value;
+      else
+        Usage();
+    }
+
+    PrintStream report = System.out;
+
+    final CountDownLatch finished = new CountDownLatch( games );
+    jcEnginePool engines = new jcEnginePool( (long) threads * ( ( hash + 1 ) << 20 ), hash, null, null );
+    engines.SetSearchLimits( depth, 0, 0 );
+    jcSessionRuntime runtime = new jcSessionRuntime( engines, threads, null, new Listener()
+    {
+      public void MovePlayed( Session session, jcMove mov ) {}
+      public void GameOver( Session session ) { finished.countDown(); }
+      public void SaveFailed( Session session, Exception e ) {}
+    } );
+    runtime.SetMaxPlies( maxPlies );
+
+    // Sessions waiting for a person: what does one cost?
+    jcBoard start = new jcBoard();
+    start.StartingBoard();
+    long before = UsedMemory();
+    for( int i = 0; i < idle; i++ )
+      runtime.Start( "idle" + i, start, false, true );
+    runtime.Flush();
+    long after = UsedMemory();
+    if ( idle > 0 )
+      report.println( idle + " waiting sessions: " + ( after - before ) / idle + " bytes each" );
+
+    // Engine games, all started at once
+    long begin = System.nanoTime();
+    for( int i = 0; i < games; i++ )
+      runtime.Start( "game" + i, start, true, true );
+    finished.await();
+    double seconds = ( System.nanoTime() - begin ) / 1e9;
+    report.println( String.format( "%d games, %d moves in %.2f s: %.2f games/s, %.0f moves/s (%d search threads)",
+                                   games, runtime.GetMovesPlayed(), seconds, games / seconds,
+                                   runtime.GetMovesPlayed() / seconds, threads ) );
+    jcEnginePool.Metrics metrics = engines.GetMetrics();
+    report.println( String.format( "Engine pool: %d agents, %d KB each, %.2f ms average wait, %.2f ms average search",
+                                   metrics.Agents, metrics.BytesPerAgent >> 10,
+                                   metrics.AverageWaitMillis, metrics.AverageSearchMillis ) );
+    runtime.Shutdown();
+  }
+
+  // boolean SetMaxPlies( int maxPlies )
+  // Adjudicate a draw after so many plies
+  public boolean SetMaxPlies( int maxPlies )
+  {
+    MaxPlies = maxPlies;
+    return true;
+  }
+
+  // Session Start( String id, jcBoard position, boolean whiteIsEngine, boolean blackIsEngine )
+  // Begin a game from a position; the engine plays the sides so marked, and
+  // the others wait for SubmitMove.  Returns null if the id is taken
+  public Session Start( String id, jcBoard position, boolean whiteIsEngine, boolean blackIsEngine )
+  {
+    final Session session = new Session( id, position, whiteIsEngine, blackIsEngine );
+    if ( Sessions.putIfAbsent( id, session ) != null )
+      return null;
+    Control.execute( new Runnable()
+    {
+      public void run()
+      {
+        Step( session );
+      }
+    } );
+    return session;
+  }
+
+  // Future<Boolean> SubmitMove( String id, jcMove mov )
+  // A person's move in a game; the answer tells whether it was accepted,
+  // i.e. whether the game exists, it was that side's turn and the move is
+  // legal (only its squares, and the piece chosen for a promotion, need to
+  // be filled in)
+  public Future<Boolean> SubmitMove( final String id, final jcMove mov )
+  {
+    return Control.submit( new Callable<Boolean>()
+    {
+      public Boolean call()
+      {
+        Session session = Sessions.get( id );
+        if ( session == null || session.State != STATE_WAITING )
+          return false;
+        jcMove legal = FindLegalMove( session.Board, mov );
+        if ( legal == null )
+          return false;
+        Play( session, legal );
+        return true;
+      }
+    } );
+  }
+
+  // boolean Abandon( String id )
+  // Forget a game without finishing it; a search in progress for it is
+  // wasted
+  public boolean Abandon( final String id )
+  {
+    Control.execute( new Runnable()
+    {
+      public void run()
+      {
+        Session session = Sessions.remove( id );
+        if ( session != null )
+        {
+          session.State = STATE_OVER;
+          Engines.Forget( id );
+        }
+      }
+    } );
+    return true;
+  }
+
+  // Accessors
+  public Session GetSession( String id ) { return Sessions.get( id ); }
+  public int GetActiveSessions() { return Sessions.size(); }
+  public long GetMovesPlayed() { return MovesPlayed.get(); }
+  public long GetGamesFinished() { return GamesFinished.get(); }
+
+  // void Flush()
+  // Wait until the control thread has handled every event submitted so far
+  public void Flush() throws Exception
+  {
+    Control.submit( new Runnable() { public void run() {} } ).get();
+  }
+
+  // void Shutdown()
+  // Stop both thread pools; the games in progress are left as they are
+  public void Shutdown() throws InterruptedException
+  {
+    Searchers.shutdownNow();
+    Control.shutdown();
+    Control.awaitTermination( 10, TimeUnit.SECONDS );
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  private static void Usage()
+  {
+    System.err.println( "Usage: jcSessionRuntime [-games N] [-idle N] [-depth N] [-threads N] [-hash MB] [-maxplies N]" );
+    System.exit( 1 );
+  }
+
+  private static long UsedMemory() throws InterruptedException
+  {
+    Runtime runtime = Runtime.getRuntime();
+    for( int i = 0; i < 3; i++ )
+    {
+      System.gc();
+      Thread.sleep( 50 );
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static ThreadFactory MakeThreadFactory( final String name )
+  {
+    return new ThreadFactory()
+    {
+      public Thread newThread( Runnable r )
+      {
+        Thread thread = new Thread( r, name );
+        thread.setDaemon( true );
+        return thread;
+      }
+    };
+  }
+
+  // Control thread: see whether the game is over, and otherwise who must
+  // move; an engine's move is searched for on the search pool
+  private void Step( final Session session )
+  {
+    if ( session.State == STATE_OVER )
+      return;
+
+    // Generating the moves on the game board itself also removes the
+    // phantom kings left by the side to move's castling, if any
+    jcBoard board = session.Board;
+    int side = board.GetCurrentPlayer();
+    jcMoveListGenerator successors = new jcMoveListGenerator();
+    if ( !successors.ComputeStrictlyLegalMoves( board ) )
+    {
+      if ( jcNotation.IsInCheck( board ) )
+        Finish( session, ( side == jcPlayer.SIDE_WHITE ) ? "0-1" : "1-0", "checkmate" );
+      else
+        Finish( session, "1/2-1/2", "stalemate" );
+      return;
+    }
+    if ( board.GetHalfMoveClock() >= 100 )
+    {
+      Finish( session, "1/2-1/2", "fifty-move rule" );
+      return;
+    }
+    if ( jcMatchRunner.IsInsufficientMaterial( board ) )
+    {
+      Finish( session, "1/2-1/2", "insufficient material" );
+      return;
+    }
+    if ( session.Plies >= MaxPlies )
+    {
+      Finish( session, "1/2-1/2", "adjudicated after " + MaxPlies + " plies" );
+      return;
+    }
+
+    if ( !session.Engine[ side ] )
+    {
+      session.State = STATE_WAITING;
+      return;
+    }
+
+    // Search on a copy of the board, so that the game's own is never
+    // touched outside the control thread
+    session.State = STATE_SEARCHING;
+    final jcBoard position = new jcBoard();
+    position.Clone( board );
+    Searchers.execute( new Runnable()
+    {
+      public void run()
+      {
+        jcMove answer;
+        try
+        {
+          answer = Engines.PickBestMove( session.Id, position );
+        }
+        catch( InterruptedException e )
+        {
+          return;
+        }
+        catch( RuntimeException e )
+        {
+          answer = null;
+        }
+        final jcMove found = answer;
+        Control.execute( new Runnable()
+        {
+          public void run()
+          {
+            EngineMoved( session, found );
+          }
+        } );
+      }
+    } );
+  }
+
+  // Control thread: an engine's search is over
+  private void EngineMoved( Session session, jcMove answer )
+  {
+    if ( session.State != STATE_SEARCHING )
+      return;
+    int side = session.Board.GetCurrentPlayer();
+    String loss = ( side == jcPlayer.SIDE_WHITE ) ? "0-1" : "1-0";
+    if ( answer == null )
+    {
+      Finish( session, loss, "engine failure" );
+      return;
+    }
+    if ( answer.MoveType == jcMove.MOVE_RESIGN || answer.MoveType == jcMove.MOVE_STALEMATE )
+    {
+      Finish( session, loss, "engine resigns" );
+      return;
+    }
+    jcMove legal = FindLegalMove( session.Board, answer );
+    if ( legal == null )
+    {
+      Finish( session, loss, "engine played an illegal move" );
+      return;
+    }
+    Play( session, legal );
+  }
+
+  // Control thread: apply a legal move, save, notify, and go on
+  private void Play( Session session, jcMove mov )
+  {
+    session.Board.ApplyMove( mov );
+    session.Plies++;
+    MovesPlayed.incrementAndGet();
+    boolean repeated = ( jcMatchRunner.CountRepetition( session.Repetitions, session.Board ) >= 3 );
+    Save( session );
+    if ( Observer != null )
+      Observer.MovePlayed( session, mov );
+    if ( repeated )
+      Finish( session, "1/2-1/2", "threefold repetition" );
+    else
+      Step( session );
+  }
+
+  // Control thread: the game is over
+  private void Finish( Session session, String result, String termination )
+  {
+    session.State = STATE_OVER;
+    session.Result = result;
+    session.Termination = termination;
+    Sessions.remove( session.Id );
+    Engines.Forget( session.Id );
+    GamesFinished.incrementAndGet();
+    Save( session );
+    if ( Observer != null )
+      Observer.GameOver( session );
+  }
+
+  private void Save( Session session )
+  {
+    if ( Persistence == null )
+      return;
+    try
+    {
+      Persistence.Save( session );
+    }
+    catch( Exception e )
+    {
+      if ( Observer != null )
+        Observer.SaveFailed( session, e );
+    }
+  }
+
+  // The legal move of a position going from and to a move's squares, with
+  // the same promotion if any, or null
+  private static jcMove FindLegalMove( jcBoard board, jcMove wanted )
+  {
+    jcMoveListGenerator successors = new jcMoveListGenerator();
+    if ( !successors.ComputeStrictlyLegalMoves( board ) )
+      return null;
+    jcMove mov;
+    while( ( mov = successors.Next() ) != null )
+    {
+      if ( mov.SourceSquare == wanted.SourceSquare && mov.DestinationSquare == wanted.DestinationSquare &&
+           ( mov.MoveType & jcMove.PROMOTION_MASK ) == ( wanted.MoveType & jcMove.PROMOTION_MASK ) )
+        return mov;
+    }
+    return null;
+  }
+}
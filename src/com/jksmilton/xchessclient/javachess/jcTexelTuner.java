@@ -0,0 +1,409 @@
+/****************************************************************************
+ * jcTexelTuner - Evaluation weight tuning
+ *
+ * Purpose:
+ * Adjusts the weights of jcBoardEvaluator so that its opinion of a position
+ * predicts the outcome of the games in which the position was reached, the
+ * method known as "Texel tuning".  An evaluation q (in centipawns, from
+ * White's point of view) is turned into an expected score by the sigmoid
+ *   s(q) = 1 / ( 1 + 10^( -K q / 400 ) )
+ * and the tuner minimizes the mean squared difference between s(q) and the
+ * actual results (1, 1/2 or 0) over a large set of quiet positions.  K is
+ * fitted first, with the starting weights, and then left alone; the weights
+ * are then improved by local search, one weight at a time, with a step size
+ * halved each time no weight can be improved.
+ *
+ * The positions are kept in a compact binary file: each record is the
+ * board's 32-byte jcBoard.Encode image followed by one result byte (0 for a
+ * Black win, 1 for a draw, 2 for a White win), so that millions of them fit
+ * in memory at once.  Such a file is made from labeled EPD, as distributed
+ * for this purpose: a position followed by the game's result, either as a
+ * c9 operation ( c9 "1-0"; ) or as a bare result or [1.0] / [0.5] / [0.0]
+ * marker.  Positions in which the side to move is in check are not quiet
+ * and are left out.
+ *
+ * Every evaluation of the error is spread over a thread pool, each worker
+ * scoring its own slice of the positions with its own board and evaluator.
+ *
+ * Usage:
+ *   jcTexelTuner -convert positions.epd positions.bin
+ *   jcTexelTuner [-threads N] [-weights start.txt] [-out tuned.txt]
+ *                [-step N] positions.bin
+ * The tuned weights are written after each pass, in the format read by
+ * jcBoardEvaluator.LoadWeights.
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class jcTexelTuner
+{
+  /***************************************************************************
+   * DATA MEMBERS
+   **************************************************************************/
+
+  // Size of a position record: a board image and a result
+  public static final int RECORD_SIZE = jcBoard.ENCODED_SIZE + 1;
+  public static final int RESULT_BLACK_WINS = 0;
+  public static final int RESULT_DRAW = 1;
+  public static final int RESULT_WHITE_WINS = 2;
+
+  // The positions, one record after the other
+  private byte Positions[];
+  private int NumPositions;
+
+  // The sigmoid's scaling constant
+  private double K;
+
+  // The workers, each responsible for a slice of the positions
+  private ExecutorService Pool;
+  private List<Shard> Shards;
+
+  // Where to report progress
+  private PrintStream Log;
+
+  /***************************************************************************
+   * PRIVATE class Shard
+   * Sums the squared errors over a range of positions; each shard has its
+   * own board and evaluator, since evaluators are not thread-safe
+   **************************************************************************/
+  private class Shard implements Callable<Double>
+  {
+    private int First, Last;
+    private jcBoard Board = new jcBoard();
+    private jcBoardEvaluator Evaluator = new jcBoardEvaluator();
+    private int Weights[];
+
+    public Shard( int first, int last )
+    {
+      First = first;
+      Last = last;
+    }
+
+    public Double call()
+    {
+      Evaluator.SetWeights( Weights );
+      double sum = 0;
+      for( int i = First; i < Last; i++ )
+      {
+        int offset = i * RECORD_SIZE;
+        Board.Decode( Positions, offset );
+        int side = Board.GetCurrentPlayer();
+        int q = Evaluator.EvaluateUnrounded( Board, side );
+        if ( side == jcPlayer.SIDE_BLACK )
+          q = -q;
+        double expected = Sigmoid( q );
+        double actual = Positions[ offset + jcBoard.ENCODED_SIZE ] * 0.5;
+        sum += ( actual - expected ) * ( actual - expected );
+      }
+      return sum;
+    }
+  }
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // Construction
+  public jcTexelTuner( PrintStream log )
+  {
+    Log = log;
+    K = 1.0;
+  }
+
+  public static void main( String args[] ) throws Exception
+  {
+    if ( args.length == 3 && args[ 0 ].equals( "-convert" ) )
+    {
+      int count = Convert( new File( args[ 1 ] ), new File( args[ 2 ] ) );
+      System.err.println( count + " positions written to " + args[ 2 ] );
+      return;
+    }
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    int step = 8;
+    String startFile = null, outFile = "weights.txt", dataFile = null;
+    for( int i = 0; i < args.length; i++ )
+    {
+      if ( !args[ i ].startsWith( "-" ) )
+      {
+        dataFile = args[ i ];
+        continue;
+      }
+      if ( i + 1 >= args.length )
+        Usage();
+      String option = args[ i ];
+      String value = args[ ++i ];
+      if ( option.equals( "-threads" ) )
+        threads = Integer.parseInt( value );
+      else if ( option.equals( "-weights" ) )
+        startFile = value;
+      else if ( option.equals( "-out" ) )
+        outFile = value;
+      else if ( option.equals( "-step" ) )
+        step = Integer.parseInt( value );
+      else
+        Usage();
+    }
+    if ( dataFile == null )
+      Usage();
+
+    jcBoardEvaluator start = new jcBoardEvaluator();
+    if ( startFile != null )
+    {
+      FileInputStream in = new FileInputStream( startFile );
+      try
+      {
+        start.LoadWeights( in );
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+
+    jcTexelTuner tuner = new jcTexelTuner( System.err );
+    tuner.Load( new File( dataFile ) );
+    tuner.Start( Math.max( 1, threads ) );
+    try
+    {
+      tuner.FitScale( start.GetWeights() );
+      tuner.Tune( start.GetWeights(), Math.max( 1, step ), new File( outFile ) );
+    }
+    finally
+    {
+      tuner.Stop();
+    }
+  }
+
+  // public static int Convert
+  // Turn labeled EPD into a position file; return the number of positions
+  // written
+  public static int Convert( File epdFile, File binFile ) throws Exception
+  {
+    BufferedReader in = new BufferedReader( new FileReader( epdFile ), 1 << 16 );
+    OutputStream out = new BufferedOutputStream( new FileOutputStream( binFile ), 1 << 16 );
+    byte record[] = new byte[ RECORD_SIZE ];
+    jcBoard board = new jcBoard();
+    int count = 0;
+    try
+    {
+      String line;
+      while ( ( line = in.readLine() ) != null )
+      {
+        jcEPDRunner.Position pos = jcEPDRunner.Parse( line.trim() );
+        int result = ParseResult( line );
+        if ( pos == null || result < 0 || !board.FromFEN( pos.FEN ) )
+          continue;
+        if ( jcNotation.IsInCheck( board ) || !board.Encode( record, 0 ) )
+          continue;
+        record[ jcBoard.ENCODED_SIZE ] = (byte) result;
+        out.write( record );
+        count++;
+      }
+    }
+    finally
+    {
+      in.close();
+      out.close();
+    }
+    return count;
+  }
+
+  // public void Load
+  // Read a position file into memory
+  public void Load( File fileName ) throws Exception
+  {
+    long length = fileName.length();
+    if ( length % RECORD_SIZE != 0 || length / RECORD_SIZE > Integer.MAX_VALUE / RECORD_SIZE )
+      throw new Exception( fileName + " is not a position file, or is too large" );
+    Positions = new byte[ (int) length ];
+    NumPositions = (int) ( length / RECORD_SIZE );
+    DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( fileName ), 1 << 16 ) );
+    try
+    {
+      in.readFully( Positions );
+    }
+    finally
+    {
+      in.close();
+    }
+    Log.println( NumPositions + " positions loaded" );
+  }
+
+  // public void Start
+  // Create the thread pool, and split the positions between its workers; a
+  // few more slices than threads, so that an unlucky slice does not hold
+  // everybody up
+  public void Start( int threads )
+  {
+    Pool = Executors.newFixedThreadPool( threads );
+    Shards = new ArrayList<Shard>();
+    int slices = ( threads == 1 ) ? 1 : threads * 4;
+    for( int i = 0; i < slices; i++ )
+    {
+      int first = (int) ( (long) NumPositions * i / slices );
+      int last = (int) ( (long) NumPositions * ( i + 1 ) / slices );
+      if ( last > first )
+        Shards.add( new Shard( first, last ) );
+    }
+  }
+
+  // public void Stop
+  public void Stop()
+  {
+    Pool.shutdown();
+  }
+
+  // public double Error
+  // Mean squared error of the predictions made with a set of weights
+  public double Error( int weights[] ) throws Exception
+  {
+    List<Future<Double>> parts = new ArrayList<Future<Double>>();
+    for( int i = 0; i < Shards.size(); i++ )
+    {
+      Shards.get( i ).Weights = weights;
+      parts.add( Pool.submit( Shards.get( i ) ) );
+    }
+    double sum = 0;
+    for( int i = 0; i < parts.size(); i++ )
+      sum += parts.get( i ).get();
+    return sum / Math.max( 1, NumPositions );
+  }
+
+  // public double FitScale
+  // Find the K which minimizes the error for a set of weights, by golden
+  // section search, and keep it
+  public double FitScale( int weights[] ) throws Exception
+  {
+    final double ratio = ( Math.sqrt( 5 ) - 1 ) / 2;
+    double low = 0.05, high = 3.0;
+    double x1 = high - ratio * ( high - low ), x2 = low + ratio * ( high - low );
+    K = x1;
+    double e1 = Error( weights );
+    K = x2;
+    double e2 = Error( weights );
+    while ( high - low > 0.001 )
+    {
+      if ( e1 < e2 )
+      {
+        high = x2;
+        x2 = x1;
+        e2 = e1;
+        x1 = high - ratio * ( high - low );
+        K = x1;
+        e1 = Error( weights );
+      }
+      else
+      {
+        low = x1;
+        x1 = x2;
+        e1 = e2;
+        x2 = low + ratio * ( high - low );
+        K = x2;
+        e2 = Error( weights );
+      }
+    }
+    K = ( low + high ) / 2;
+    Log.println( "K = " + K + ", error " + Error( weights ) );
+    return K;
+  }
+
+  // public int[] Tune
+  // Local search: try moving each weight up and down by the step, keep any
+  // change which lowers the error, and halve the step when a whole pass
+  // brings nothing.  The best weights so far are saved after each pass
+  public int[] Tune( int start[], int step, File outFile ) throws Exception
+  {
+    int best[] = start.clone();
+    double bestError = Error( best );
+    Log.println( "Starting error " + bestError );
+    int pass = 0;
+    while ( step > 0 )
+    {
+      boolean improved = false;
+      for( int which = 0; which < jcBoardEvaluator.NUM_WEIGHTS; which++ )
+      {
+        int trial[] = best.clone();
+        trial[ which ] = best[ which ] + step;
+        double error = Error( trial );
+        if ( error >= bestError )
+        {
+          trial[ which ] = best[ which ] - step;
+          error = Error( trial );
+        }
+        if ( error < bestError )
+        {
+          best = trial;
+          bestError = error;
+          improved = true;
+        }
+      }
+      pass++;
+      Log.println( "Pass " + pass + ", step " + step + ": error " + bestError );
+      Save( best, outFile );
+      if ( !improved )
+        step /= 2;
+    }
+    return best;
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  private static void Usage()
+  {
+    System.err.println( "Usage: jcTexelTuner -convert positions.epd positions.bin" );
+    System.err.println( "       jcTexelTuner [-threads N] [-weights start.txt] [-out tuned.txt] [-step N] positions.bin" );
+    System.exit( 1 );
+  }
+
+  private double Sigmoid( int q )
+  {
+    return 1.0 / ( 1.0 + Math.pow( 10.0, -K * q / 400.0 ) );
+  }
+
+  // The game result recorded on an EPD line, or -1 if there is none
+  private static int ParseResult( String line )
+  {
+    if ( line.indexOf( "1/2-1/2" ) >= 0 || line.indexOf( "[0.5]" ) >= 0 )
+      return RESULT_DRAW;
+    if ( line.indexOf( "1-0" ) >= 0 || line.indexOf( "[1.0]" ) >= 0 )
+      return RESULT_WHITE_WINS;
+    if ( line.indexOf( "0-1" ) >= 0 || line.indexOf( "[0.0]" ) >= 0 )
+      return RESULT_BLACK_WINS;
+    return -1;
+  }
+
+  private static void Save( int weights[], File outFile ) throws Exception
+  {
+    jcBoardEvaluator evaluator = new jcBoardEvaluator();
+    evaluator.SetWeights( weights );
+    FileOutputStream out = new FileOutputStream( outFile );
+    try
+    {
+      evaluator.SaveWeights( out );
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+}
@@ -23,69 +23,60 @@
  * introduce errors in the search process.  Memory being dirt cheap these days,
  * this isn't much of an issue.
  *
+ * The entries are kept "column-wise", in a few parallel arrays of ints rather
+ * than as one small object each: a large table costs a handful of allocations
+ * instead of hundreds of thousands, takes less than half the memory, and can
+ * be emptied in constant time by starting a new generation, since entries
+ * written by an older generation are treated as empty.  This matters when
+ * many agents are created, or reused for unrelated games.
+ *
  * History
  * 14.08.00 Creation
  ****************************************************************************/
 
 package com.jksmilton.xchessclient.javachess;
 
+import java.util.Arrays;
 import com.jksmilton.xchessclient.javachess.jcBoard;
 
-/***************************************************************************
- * A small internal class containing an AB value for a given position, and
- * a "hash lock" signature used to identify collisions between board positions
- * with the same basic hashing values.
- *
- * Note that there is no need to store the actual move leading to this value,
- * for two reasons: first, by the time we check on the transposition table, the
- * move has already been applied; second, our version of alphabeta only handles
- * moves themselves at the top level of the search, so this information would
- * be passed to non one!
- ***************************************************************************/
-class jcTranspositionEntry
-{
-  // Data fields, beginning with the actual value of the board and whether this
-  // value represents an accurate evaluation or only a boundary
-  public int theEvalType;
-  public int theEval;
-
-  // This value was obtained through a search to what depth?  0 means that
-  // it was obtained during quiescence search (which is always effectively
-  // of infinite depth but only within the quiescence domain; full-width
-  // search of depth 1 is still more valuable than whatever Qsearch result)
-  public int theDepth;
-
-  // Board position signature, used to detect collisions
-  public long theLock;
-
-  // What this entry stored so long ago that it may no longer be useful?
-  // Without this, the table will slowly become clogged with old, deep search
-  // results for positions with no chance of happening again, and new positions
-  // (specifically the 0-depth quiescence search positions) will never be
-  // stored!
-  public int timeStamp;
-
-  public static final int NULL_ENTRY = -1;
-
-  // construction
-  jcTranspositionEntry()
-  {
-    theEvalType = NULL_ENTRY;
-  }
-}
-
-
 public class jcTranspositionTable
 {
   /***************************************************************************
    * DATA MEMBERS
    **************************************************************************/
 
-  // The size of a transposition table, in entries
-  private static final int TABLE_SIZE = 131072;
+  // The default size of a transposition table, in entries
+  public static final int DEFAULT_SIZE = 131072;
+
+  // The memory used by one entry, for converting memory budgets into table
+  // sizes: five ints
+  public static final int ENTRY_BYTES = 20;
+
+  // Entry layout.  Info packs, from the high bits down, the generation which
+  // wrote the entry (0 for never), the evaluation type and the depth of the
+  // search (0 for quiescence search, which is always effectively of infinite
+  // depth but only within the quiescence domain; full-width search of depth
+  // 1 is still more valuable than whatever Qsearch result).  Locks holds the
+  // board position signature, used to detect collisions; Evals the value of
+  // the board; Stamps the move counter at the time, so that old, deep search
+  // results for positions with no chance of happening again can be replaced
+  // (without this, new positions, specifically the 0-depth quiescence search
+  // positions, would never be stored!); and Moves the best move found from
+  // the position, if any: source, destination and type packed together
+  private static final int GENERATION_SHIFT = 24;
+  private static final int EVALTYPE_SHIFT = 16;
+  private static final int DEPTH_MASK = 0xFFFF;
+  private static final int MAX_GENERATION = 255;
+  private static final int NO_MOVE = -1;
 
   // Data
-  private jcTranspositionEntry Table[];
+  private int Info[];
+  private int Locks[];
+  private int Evals[];
+  private int Stamps[];
+  private int Moves[];
+  private int TableSize;
+  private int Generation;
 
   /**************************************************************************
    * PUBLIC METHODS
@@ -94,11 +85,49 @@ public class jcTranspositionTable
   // Construction
   public jcTranspositionTable()
   {
-    Table = new jcTranspositionEntry[ TABLE_SIZE ];
-    for ( int i = 0; i < TABLE_SIZE; i++ )
+    this( DEFAULT_SIZE );
+  }
+
+  public jcTranspositionTable( int numEntries )
+  {
+    TableSize = Math.max( 1, numEntries );
+    Info = new int[ TableSize ];
+    Locks = new int[ TableSize ];
+    Evals = new int[ TableSize ];
+    Stamps = new int[ TableSize ];
+    Moves = new int[ TableSize ];
+    Generation = 1;
+  }
+
+  // Accessors
+  public int Size() { return TableSize; }
+  public long GetMemoryBytes() { return (long) TableSize * ENTRY_BYTES; }
+
+  // boolean Clear()
+  // Forget every entry, in constant time except once every few hundred calls
+  public boolean Clear()
+  {
+    if ( ++Generation > MAX_GENERATION )
+    {
+      Arrays.fill( Info, 0 );
+      Generation = 1;
+    }
+    return true;
+  }
+
+  // int GetHashFull( int timeStamp )
+  // How full the table is with entries of the current search, in parts per
+  // thousand, estimated from a sample of its first thousand entries
+  public int GetHashFull( int timeStamp )
+  {
+    int sample = Math.min( 1000, TableSize );
+    int used = 0;
+    for ( int i = 0; i < sample; i++ )
     {
-      Table[ i ] = new jcTranspositionEntry();
+      if ( IsUsed( i ) && ( Stamps[ i ] == timeStamp ) )
+        used++;
     }
+    return used * 1000 / sample;
   }
 
   // boolean LookupBoard( jcBoard theBoard, jcMove theMove )
@@ -107,23 +136,39 @@ public class jcTranspositionTable
   // output parameter
   public boolean LookupBoard( jcBoard theBoard, jcMove theMove )
   {
-    // Find the board's hash position in Table
-    int key = Math.abs( theBoard.HashKey() % TABLE_SIZE );
-    jcTranspositionEntry entry = Table[ key ];
+    // Find the board's hash position in the table
+    int key = Math.abs( theBoard.HashKey() % TableSize );
 
     // If the entry is an empty placeholder, we don't have a match
-    if ( entry.theEvalType == -1 ) // jcTranspositionEntry.NULL_ENTRY )
+    if ( !IsUsed( key ) )
       return false;
 
     // Check for a hashing collision!
-    if ( entry.theLock != theBoard.HashLock() )
+    if ( Locks[ key ] != theBoard.HashLock() )
       return false;
 
     // Now, we know that we have a match!  Copy it into the output parameter
     // and return
-    theMove.MoveEvaluation = entry.theEval;
-    theMove.MoveEvaluationType = entry.theEvalType;
-    theMove.SearchDepth = entry.theDepth;
+    int info = Info[ key ];
+    theMove.MoveEvaluation = Evals[ key ];
+    theMove.MoveEvaluationType = ( info >>> EVALTYPE_SHIFT ) & 0xFF;
+    theMove.SearchDepth = info & DEPTH_MASK;
+    return true;
+  }
+
+  // boolean LookupBestMove( jcBoard theBoard, jcMove theMove )
+  // Like LookupBoard, but only succeeds if a best move was stored with the
+  // evaluation, in which case its squares and type are copied as well
+  public boolean LookupBestMove( jcBoard theBoard, jcMove theMove )
+  {
+    if ( !LookupBoard( theBoard, theMove ) )
+      return false;
+    int packed = Moves[ Math.abs( theBoard.HashKey() % TableSize ) ];
+    if ( packed == NO_MOVE )
+      return false;
+    theMove.SourceSquare = packed & 63;
+    theMove.DestinationSquare = ( packed >>> 6 ) & 63;
+    theMove.MoveType = packed >>> 12;
     return true;
   }
 
@@ -131,21 +176,42 @@ public class jcTranspositionTable
   // Store a good evaluation found through alphabeta for a certain board position
   public boolean StoreBoard( jcBoard theBoard, int eval, int evalType, int depth, int timeStamp )
   {
-    int key = Math.abs( theBoard.HashKey() % TABLE_SIZE );
+    return StoreBoard( theBoard, eval, evalType, depth, timeStamp, null );
+  }
+
+  // public StoreBoard( theBoard, eval, evalType, depth, timeStamp, bestMove )
+  // Same, remembering the move which produced the evaluation (may be null)
+  public boolean StoreBoard( jcBoard theBoard, int eval, int evalType, int depth, int timeStamp,
+                             jcMove bestMove )
+  {
+    int key = Math.abs( theBoard.HashKey() % TableSize );
 
     // Would we erase a more useful (i.e., higher) position if we stored this
     // one?  If so, don't bother!
-    if ( ( Table[ key ].theEvalType != jcTranspositionEntry.NULL_ENTRY ) &&
-         ( Table[ key ].theDepth > depth ) &&
-         ( Table[ key ].timeStamp >= timeStamp ) )
+    if ( IsUsed( key ) &&
+         ( ( Info[ key ] & DEPTH_MASK ) > depth ) &&
+         ( Stamps[ key ] >= timeStamp ) )
       return true;
 
     // And now, do the actual work
-    Table[ key ].theLock = theBoard.HashLock();
-    Table[ key ].theEval = eval;
-    Table[ key ].theDepth = depth;
-    Table[ key ].theEvalType = evalType;
-    Table[ key ].timeStamp = timeStamp;
+    Info[ key ] = ( Generation << GENERATION_SHIFT ) | ( evalType << EVALTYPE_SHIFT ) | ( depth & DEPTH_MASK );
+    Locks[ key ] = theBoard.HashLock();
+    Evals[ key ] = eval;
+    Stamps[ key ] = timeStamp;
+    if ( bestMove != null )
+      Moves[ key ] = bestMove.SourceSquare | ( bestMove.DestinationSquare << 6 ) | ( bestMove.MoveType << 12 );
+    else
+      Moves[ key ] = NO_MOVE;
     return true;
   }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  // Whether an entry was written during the current generation
+  private boolean IsUsed( int key )
+  {
+    return ( ( Info[ key ] >>> GENERATION_SHIFT ) == Generation );
+  }
 }
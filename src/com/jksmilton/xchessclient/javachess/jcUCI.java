@@ -0,0 +1,497 @@
+/****************************************************************************
+ * jcUCI - Universal Chess Interface front end
+ *
+ * Purpose:
+ * Lets the engine be driven through standard input and output by any program
+ * which speaks UCI: tournament managers, graphical interfaces, test scripts.
+ * The commands are read on the main thread, and each search runs on a worker
+ * thread, so that "stop" (or "quit") interrupts it at once; progress is
+ * reported as "info" lines after every completed iteration.
+ *
+ * Supported commands: uci, isready, setoption, ucinewgame, position, go
+ * (depth, nodes, movetime, wtime, btime, winc, binc, movestogo, infinite),
+ * stop and quit.  Options: Hash, MultiPV, OwnBook, BookFile, BitbasePath and
+ * EvalWeights (a file written by jcTexelTuner).
+ *
+ ****************************************************************************/
+
+package com.jksmilton.xchessclient.javachess;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.StringTokenizer;
+
+public class jcUCI implements jcSearchListener
+{
+  /***************************************************************************
+   * DATA MEMBERS
+   **************************************************************************/
+
+  private static final String ENGINE_NAME = "JavaChess";
+  private static final String ENGINE_AUTHOR = "F.D. Laramee";
+
+  // Transposition table size, in megabytes
+  private static final int DEFAULT_HASH = 6;
+  private static final int MAX_HASH = 1024;
+
+  // Number of analysis lines
+  private static final int MAX_MULTIPV = 64;
+
+  // Time management: when the interface does not say how many moves remain
+  // until the next time control, assume this many
+  private static final int DEFAULT_MOVES_TO_GO = 30;
+  // Safety margin kept on the clock for communication delays, in ms
+  private static final int TIME_MARGIN = 50;
+
+  // Where the protocol goes
+  private PrintStream Out;
+
+  // The position set by the last "position" command
+  private jcBoard Board;
+
+  // The engine, created on demand with the current options
+  private jcAISearchAgent Agent;
+
+  // Options
+  private int HashSize;
+  private int MultiPV;
+  private boolean OwnBook;
+  private String BookFile;
+  private String BitbasePath;
+  private String EvalWeights;
+
+  // The search in progress, if any, and what we know about it
+  private Thread Searcher;
+  private boolean Infinite;
+  private boolean StopReceived;
+  private jcSearchInfo LastInfo;
+
+  /***************************************************************************
+   * PUBLIC METHODS
+   **************************************************************************/
+
+  // Construction
+  public jcUCI( PrintStream out )
+  {
+    Out = out;
+    Board = new jcBoard();
+    Board.StartingBoard();
+    HashSize = DEFAULT_HASH;
+    MultiPV = 1;
+    BookFile = "";
+    BitbasePath = "";
+    EvalWeights = "";
+  }
+
+  public static void main( String args[] ) throws Exception
+  {
+    jcUCI uci = new jcUCI( System.out );
+    uci.Run( new BufferedReader( new InputStreamReader( System.in ) ) );
+    System.exit( 0 );
+  }
+
+  // public void Run
+  // Process commands until "quit" or the end of the input
+  public void Run( BufferedReader in ) throws Exception
+  {
+    String line;
+    while ( ( line = in.readLine() ) != null )
+    {
+      if ( !HandleCommand( line.trim() ) )
+        break;
+    }
+    StopSearch();
+  }
+
+  // public boolean HandleCommand
+  // Process one command line; return false when it is time to quit
+  public boolean HandleCommand( String line ) throws Exception
+  {
+    StringTokenizer tokens = new StringTokenizer( line );
+    if ( !tokens.hasMoreTokens() )
+      return true;
+    String command = tokens.nextToken();
+
+    if ( command.equals( "uci" ) )
+    {
+      Send( "id name " + ENGINE_NAME );
+      Send( "id author " + ENGINE_AUTHOR );
+      Send( "option name Hash type spin default " + DEFAULT_HASH + " min 1 max " + MAX_HASH );
+      Send( "option name MultiPV type spin default 1 min 1 max " + MAX_MULTIPV );
+      Send( "option name OwnBook type check default false" );
+      Send( "option name BookFile type string default <empty>" );
+      Send( "option name BitbasePath type string default <empty>" );
+      Send( "option name EvalWeights type string default <empty>" );
+      Send( "uciok" );
+    }
+    else if ( command.equals( "isready" ) )
+    {
+      if ( Searcher == null )
+        GetAgent();
+      Send( "readyok" );
+    }
+    else if ( command.equals( "setoption" ) )
+    {
+      StopSearch();
+      SetOption( line );
+    }
+    else if ( command.equals( "ucinewgame" ) )
+    {
+      StopSearch();
+      Agent = null;
+    }
+    else if ( command.equals( "position" ) )
+    {
+      StopSearch();
+      SetPosition( tokens );
+    }
+    else if ( command.equals( "go" ) )
+    {
+      StopSearch();
+      Go( tokens );
+    }
+    else if ( command.equals( "stop" ) )
+    {
+      StopSearch();
+    }
+    else if ( command.equals( "quit" ) )
+    {
+      StopSearch();
+      return false;
+    }
+    else
+      Send( "info string unknown command " + command );
+    return true;
+  }
+
+  // public void SearchProgress
+  // Turn the agent's progress reports into "info" lines
+  public void SearchProgress( jcSearchInfo info )
+  {
+    if ( info.MultiPV == 1 )
+      LastInfo = info;
+    StringBuffer line = new StringBuffer( "info depth " + info.Depth + " seldepth " + info.SelDepth );
+    if ( MultiPV > 1 )
+      line.append( " multipv " + info.MultiPV );
+    if ( info.MateIn != 0 )
+      line.append( " score mate " + info.MateIn );
+    else
+      line.append( " score cp " + info.Score );
+    line.append( " nodes " + info.Nodes + " nps " + info.NodesPerSecond );
+    line.append( " hashfull " + info.HashFull + " time " + info.TimeMillis );
+    if ( !info.PrincipalVariation.isEmpty() )
+    {
+      line.append( " pv" );
+      for( int i = 0; i < info.PrincipalVariation.size(); i++ )
+        line.append( ' ' ).append( jcNotation.ToCoordinate( info.PrincipalVariation.get( i ) ) );
+    }
+    Send( line.toString() );
+  }
+
+  // public void SearchFinished
+  // The totals for the whole search, so that the GUI's counters do not stop
+  // at the last completed iteration
+  public void SearchFinished( jcSearchInfo info )
+  {
+    Send( "info nodes " + info.Nodes + " nps " + info.NodesPerSecond +
+          " hashfull " + info.HashFull + " time " + info.TimeMillis );
+  }
+
+  /***************************************************************************
+   * PRIVATE METHODS
+   **************************************************************************/
+
+  private void Send( String line )
+  {
+    synchronized( Out )
+    {
+      Out.println( line );
+      Out.flush();
+    }
+  }
+
+  // The search agent, created with the current options if needed
+  private jcAISearchAgent GetAgent()
+  {
+    if ( Agent != null )
+      return Agent;
+
+    jcOpeningBook book = null;
+    if ( OwnBook && BookFile.length() > 0 )
+    {
+      try
+      {
+        book = new jcOpeningBook();
+        book.Open( new File( BookFile ) );
+      }
+      catch( Exception e )
+      {
+        Send( "info string cannot open book " + BookFile + ": " + e.getMessage() );
+        book = null;
+      }
+    }
+    Agent = jcAISearchAgent.MakeNewAgent( jcAISearchAgent.AISEARCH_MTDF, book, HashSize );
+    Agent.SetSearchListener( this );
+    if ( BitbasePath.length() > 0 )
+    {
+      jcBitbase tables = new jcBitbase();
+      tables.Open( new File( BitbasePath ) );
+      for( int i = 0; i < tables.GetProblems().size(); i++ )
+        Send( "info string cannot open bitbase " + tables.GetProblems().get( i ) );
+      Agent.AttachBitbases( tables );
+    }
+    if ( EvalWeights.length() > 0 )
+    {
+      try
+      {
+        jcBoardEvaluator evaluator = new jcBoardEvaluator();
+        FileInputStream in = new FileInputStream( EvalWeights );
+        try
+        {
+          evaluator.LoadWeights( in );
+        }
+        finally
+        {
+          in.close();
+        }
+        Agent.AttachEvaluator( evaluator );
+      }
+      catch( Exception e )
+      {
+        Send( "info string cannot load evaluation weights " + EvalWeights + ": " + e.getMessage() );
+      }
+    }
+    return Agent;
+  }
+
+  // setoption name <id> [value <x>]
+  private void SetOption( String line )
+  {
+    int nameAt = line.indexOf( " name " );
+    if ( nameAt < 0 )
+      return;
+    int valueAt = line.indexOf( " value ", nameAt );
+    String name = ( valueAt < 0 ) ? line.substring( nameAt + 6 ).trim() : line.substring( nameAt + 6, valueAt ).trim();
+    String value = ( valueAt < 0 ) ? "" : line.substring( valueAt + 7 ).trim();
+    if ( value.equals( "<empty>" ) )
+      value = "";
+
+    if ( name.equalsIgnoreCase( "Hash" ) )
+    {
+      try
+      {
+        HashSize = Math.max( 1, Math.min( MAX_HASH, Integer.parseInt( value ) ) );
+      }
+      catch( NumberFormatException e )
+      {
+        Send( "info string bad Hash value " + value );
+      }
+    }
+    else if ( name.equalsIgnoreCase( "MultiPV" ) )
+    {
+      try
+      {
+        MultiPV = Math.max( 1, Math.min( MAX_MULTIPV, Integer.parseInt( value ) ) );
+      }
+      catch( NumberFormatException e )
+      {
+        Send( "info string bad MultiPV value " + value );
+      }
+      return;
+    }
+    else if ( name.equalsIgnoreCase( "OwnBook" ) )
+      OwnBook = value.equalsIgnoreCase( "true" );
+    else if ( name.equalsIgnoreCase( "BookFile" ) )
+      BookFile = value;
+    else if ( name.equalsIgnoreCase( "BitbasePath" ) )
+      BitbasePath = value;
+    else if ( name.equalsIgnoreCase( "EvalWeights" ) )
+      EvalWeights = value;
+    else
+    {
+      Send( "info string unknown option " + name );
+      return;
+    }
+
+    // The agent will be rebuilt with the new option on the next search
+    Agent = null;
+  }
+
+  // position [startpos | fen <fen>] [moves <move1> ... <moveN>]
+  private void SetPosition( StringTokenizer tokens )
+  {
+    if ( !tokens.hasMoreTokens() )
+      return;
+    String kind = tokens.nextToken();
+    String token = null;
+    if ( kind.equals( "startpos" ) )
+    {
+      Board.StartingBoard();
+      token = tokens.hasMoreTokens() ? tokens.nextToken() : null;
+    }
+    else if ( kind.equals( "fen" ) )
+    {
+      StringBuffer fen = new StringBuffer();
+      while ( tokens.hasMoreTokens() )
+      {
+        token = tokens.nextToken();
+        if ( token.equals( "moves" ) )
+          break;
+        fen.append( token ).append( ' ' );
+        token = null;
+      }
+      if ( !Board.FromFEN( fen.toString().trim() ) )
+      {
+        Send( "info string bad FEN " + fen.toString().trim() );
+        Board.StartingBoard();
+        return;
+      }
+    }
+    else
+      return;
+
+    if ( token == null || !token.equals( "moves" ) )
+      return;
+    while ( tokens.hasMoreTokens() )
+    {
+      String text = tokens.nextToken();
+      jcMove mov = jcNotation.ParseCoordinate( Board, text );
+      if ( mov == null )
+      {
+        Send( "info string illegal move " + text );
+        return;
+      }
+      Board.ApplyMove( mov );
+    }
+  }
+
+  // go [depth N] [nodes N] [movetime N] [wtime N] [btime N] [winc N]
+  //    [binc N] [movestogo N] [infinite]
+  private void Go( StringTokenizer tokens )
+  {
+    int depth = 0;
+    long nodes = 0, moveTime = 0;
+    long whiteTime = -1, blackTime = -1, whiteInc = 0, blackInc = 0;
+    int movesToGo = DEFAULT_MOVES_TO_GO;
+    boolean infinite = false;
+    try
+    {
+      while ( tokens.hasMoreTokens() )
+      {
+        String token = tokens.nextToken();
+        if ( token.equals( "infinite" ) )
+          infinite = true;
+        else if ( !tokens.hasMoreTokens() )
+          break;
+        else if ( token.equals( "depth" ) )
+          depth = Integer.parseInt( tokens.nextToken() );
+        else if ( token.equals( "nodes" ) )
+          nodes = Long.parseLong( tokens.nextToken() );
+        else if ( token.equals( "movetime" ) )
+          moveTime = Long.parseLong( tokens.nextToken() );
+        else if ( token.equals( "wtime" ) )
+          whiteTime = Long.parseLong( tokens.nextToken() );
+        else if ( token.equals( "btime" ) )
+          blackTime = Long.parseLong( tokens.nextToken() );
+        else if ( token.equals( "winc" ) )
+          whiteInc = Long.parseLong( tokens.nextToken() );
+        else if ( token.equals( "binc" ) )
+          blackInc = Long.parseLong( tokens.nextToken() );
+        else if ( token.equals( "movestogo" ) )
+          movesToGo = Math.max( 1, Integer.parseInt( tokens.nextToken() ) );
+      }
+    }
+    catch( NumberFormatException e )
+    {
+      Send( "info string bad go parameter" );
+    }
+
+    // Turn the clock into a time budget for this move
+    long clock = ( Board.GetCurrentPlayer() == jcPlayer.SIDE_WHITE ) ? whiteTime : blackTime;
+    long increment = ( Board.GetCurrentPlayer() == jcPlayer.SIDE_WHITE ) ? whiteInc : blackInc;
+    if ( moveTime == 0 && clock >= 0 && !infinite )
+    {
+      moveTime = clock / movesToGo + increment * 3 / 4;
+      moveTime = Math.max( 1, Math.min( moveTime, clock - TIME_MARGIN ) );
+    }
+    if ( infinite )
+    {
+      depth = 0;
+      nodes = 0;
+      moveTime = 0;
+    }
+
+    final jcAISearchAgent agent = GetAgent();
+    agent.SetSearchLimits( depth, nodes, moveTime );
+    agent.SetMultiPV( MultiPV );
+    final jcBoard position = new jcBoard();
+    position.Clone( Board );
+    Infinite = infinite;
+    StopReceived = false;
+    LastInfo = null;
+    Searcher = new Thread( new Runnable()
+    {
+      public void run()
+      {
+        jcMove best = agent.PickBestMove( position );
+
+        // In infinite mode, the answer must wait for "stop"
+        synchronized( jcUCI.this )
+        {
+          while ( Infinite && !StopReceived )
+          {
+            try { jcUCI.this.wait(); }
+            catch( InterruptedException e ) { break; }
+          }
+        }
+        SendBestMove( position, best );
+      }
+    }, "jcUCI search" );
+    Searcher.start();
+  }
+
+  // Interrupt the search in progress, if any, and wait for its answer
+  private void StopSearch() throws InterruptedException
+  {
+    if ( Searcher == null )
+      return;
+    Agent.Stop();
+    synchronized( this )
+    {
+      StopReceived = true;
+      notifyAll();
+    }
+    Searcher.join();
+    Searcher = null;
+  }
+
+  // bestmove <move> [ponder <move>]; the engine's resignations and
+  // stalemate claims are not part of UCI, so some legal move is played
+  // instead, or the null move if there is none
+  private void SendBestMove( jcBoard position, jcMove best )
+  {
+    if ( best != null && ( best.MoveType == jcMove.MOVE_RESIGN || best.MoveType == jcMove.MOVE_STALEMATE ) )
+      best = null;
+    if ( best == null )
+    {
+      jcBoard scratch = new jcBoard();
+      scratch.Clone( position );
+      jcMoveListGenerator successors = new jcMoveListGenerator();
+      if ( successors.ComputeStrictlyLegalMoves( scratch ) )
+        best = successors.Next();
+    }
+    if ( best == null )
+    {
+      Send( "bestmove 0000" );
+      return;
+    }
+
+    String answer = "bestmove " + jcNotation.ToCoordinate( best );
+    jcSearchInfo info = LastInfo;
+    if ( info != null && info.PrincipalVariation.size() > 1 && info.GetBestMove().Equals( best ) )
+      answer += " ponder " + jcNotation.ToCoordinate( info.PrincipalVariation.get( 1 ) );
+    Send( answer );
+  }
+}
@@ -8,9 +8,6 @@ import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
-import android.view.View;
-import android.widget.AdapterView;
-import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 import android.widget.Toast;
 
@@ -18,28 +15,33 @@ import com.jksmilton.xchessclient.R;
 import com.jksmilton.xchessclient.exceptions.MoveException;
 import com.jksmilton.xchessclient.javachess.jcBoard;
 import com.jksmilton.xchessclient.javachess.jcMove;
+import com.jksmilton.xchessclient.javachess.jcPlayer;
 import com.jksmilton.xchessclient.javachess.jcPlayerHuman;
-import com.jksmilton.xchessclient.model.PostURLAccessor;
-import com.jksmilton.xchessclient.model.TileAdapter;
+import com.jksmilton.xchessclient.model.BoardView;
+import com.jksmilton.xchessclient.model.MoveOutbox;
 import com.jksmilton.xchessclient.model.TranscriptAdapter;
 
-public class TileClickHandler implements OnItemClickListener, CreatesPawnPromotion {
+public class TileClickHandler implements BoardView.OnSquareClickListener, CreatesPawnPromotion {
 
 	private int previousPosition = -1;
 	private String player;
+	private int side;
 	private jcBoard board;
 	private FragmentActivity activity;
-	private TileAdapter gridAdapter;
+	private BoardView boardView;
 	private jcMove move;
 	private String playerKey;
 	private long game;
+	private int ply = 0;
 	
 	public TileClickHandler(boolean isWhite, jcBoard theBoard, FragmentActivity parent, String key, long crnt){
 		
 		if(isWhite){
 			player="white";
+			side = jcPlayer.SIDE_WHITE;
 		} else {
 			player="black";
+			side = jcPlayer.SIDE_BLACK;
 		}
 		
 		board = theBoard;
@@ -49,29 +51,41 @@ public class TileClickHandler implements OnItemClickListener, CreatesPawnPromoti
 		
 	}
 	
+	public void setBoard(jcBoard theBoard){
+		
+		board = theBoard;
+		
+	}
+	
+	// The number of moves played in the game on the board
+	public void setPly(int moves){
+		
+		ply = moves;
+		
+	}
+	
 	@Override
-	public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+	public void onSquareClick(BoardView view, int position) {
 		
-		gridAdapter = (TileAdapter) parent.getAdapter();
+		boardView = view;
 		
-		String piece = (String) gridAdapter.getItem(position);
+		int piece = boardView.getPiece(position);
 		
 		if((player.equals("white") && board.GetCurrentPlayer() == 1) || (player.equals("black") && board.GetCurrentPlayer() == 0)){
 			
 			Toast.makeText(view.getContext(), "Not your turn", Toast.LENGTH_SHORT).show();
 			
-		} else if(piece.startsWith(player)){
+		} else if(piece != jcBoard.EMPTY_SQUARE && piece % 2 == side){
 			
 			previousPosition = position;
-			gridAdapter.setSelected(position);
-			gridAdapter.notifyDataSetChanged();
+			boardView.setSelected(position);
 			
 			
 		} else if(previousPosition >= 0){
 			
 			move = getMove(previousPosition, position);
-			piece = (String) gridAdapter.getItem(previousPosition);
-			if(piece.endsWith("pawn") && position < 8){
+			piece = boardView.getPiece(previousPosition);
+			if((piece == jcBoard.WHITE_PAWN || piece == jcBoard.BLACK_PAWN) && position < 8){
 				
 				PromotePawn pawnDialog = new PromotePawn();
 				pawnDialog.set(move, this);
@@ -114,7 +128,7 @@ public class TileClickHandler implements OnItemClickListener, CreatesPawnPromoti
 	}
 	private String convertMove(int square){
 		
-		int[] tile = TileAdapter.convertDimToCoord(square);
+		int[] tile = BoardView.convertDimToCoord(square);
 		
 		
 		
@@ -236,8 +250,6 @@ public class TileClickHandler implements OnItemClickListener, CreatesPawnPromoti
 		@Override
         protected void onPostExecute(jcMove result){
 			
-			PostMove urlPostMove = new PostMove();
-			
 			String start = convertMove(result.SourceSquare), end = convertMove(result.DestinationSquare), promotion = convertPromote(result.MoveType);
 			
 			String url = activity.getResources().getString(R.string.jksmilton_submit_move) + playerKey + "/" + game
@@ -246,7 +258,12 @@ public class TileClickHandler implements OnItemClickListener, CreatesPawnPromoti
 			
 			if(result.MoveType != jcMove.NULL_MOVE){
 				
-				urlPostMove.execute(url);
+				// The outbox sends it when it can; the board shows it meanwhile
+				String moveStr = start + " " + end + " " + promotion;
+				MoveOutbox.getInstance(activity).enqueue(game, ply, moveStr, url);
+				ply++;
+				
+				applyLocally(result, moveStr);
 				
 			} 
 			
@@ -257,74 +274,59 @@ public class TileClickHandler implements OnItemClickListener, CreatesPawnPromoti
 		
 	}
 	
-	private class PostMove extends PostURLAccessor {
-
+	private void applyLocally(jcMove move, String moveStr){
 		
-		@Override
-		protected void onPostExecute(Object result) {
+		int start, end;
+		start = move.SourceSquare;
+		end = move.DestinationSquare;
+		
+		if(!player.equals("white")){
+			
+			start = 63- start;
+			end = 63 - end;
 			
-			Toast.makeText(activity, (String) result, Toast.LENGTH_SHORT).show();
-			String moveStr = convertMove(move.SourceSquare) + " " + convertMove(move.DestinationSquare) + " " + convertPromote(move.MoveType);
+		} 
+		
+		board.ApplyMove(move);
+		boardView.movePiece(start, end);
+		
+		if(move.MoveType > jcMove.NO_PROMOTION_MASK){
+			boardView.promotePawn(move.MoveType, end);
+		}
+		
+		if(move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
+			board.ClearExtraKings(1 - board.GetCurrentPlayer());
 			
-			if(result.equals("Success")){
+			if(player.equals("white")){
 				
-				int start, end;
-				start = move.SourceSquare;
-				end = move.DestinationSquare;
+				boardView.movePiece(63, 63 - 2);
 				
-				if(!player.equals("white")){
-					
-					start = 63- start;
-					end = 63 - end;
-					
-				} 
+			} else {
 				
-				board.ApplyMove(move);
-				gridAdapter.movePiece(start, end);
+				boardView.movePiece(63-7, 63-5);
 				
-				if(move.MoveType > jcMove.NO_PROMOTION_MASK){
-					gridAdapter.promotePawn(move.MoveType, end);
-				}
+			}
+			
+		} else if (move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE) {
+			board.ClearExtraKings(1 - board.GetCurrentPlayer());
+			
+			if(player.equals("white")){
 				
-				if(move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
-					board.ClearExtraKings(1 - board.GetCurrentPlayer());
-					
-					if(player.equals("white")){
-						
-						gridAdapter.movePiece(63, 63 - 2);
-						
-					} else {
-						
-						gridAdapter.movePiece(63-7, 63-5);
-						
-					}
-					
-				} else if (move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE) {
-					board.ClearExtraKings(1 - board.GetCurrentPlayer());
-					
-					if(player.equals("white")){
-						
-						gridAdapter.movePiece(63 - 7, 63 - 4);
-						
-					} else {
-						
-						gridAdapter.movePiece(63, 63 - 3);
-						
-					}
-					
-				}
+				boardView.movePiece(63 - 7, 63 - 4);
 				
-				gridAdapter.setSelected(-1);
-				previousPosition = -1;
-				gridAdapter.notifyDataSetChanged();
-				TranscriptAdapter adapter = (TranscriptAdapter) ((ListView) activity.findViewById(R.id.transcript)).getAdapter(); 
+			} else {
 				
-				adapter.addItem(moveStr);
+				boardView.movePiece(63, 63 - 3);
 				
 			}
 			
 		}
 		
+		boardView.setSelected(-1);
+		previousPosition = -1;
+		TranscriptAdapter adapter = (TranscriptAdapter) ((ListView) activity.findViewById(R.id.transcript)).getAdapter(); 
+		
+		adapter.addItem(moveStr);
 		
 	}
 	
@@ -0,0 +1,308 @@
+package com.jksmilton.xchessclient.model;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
+import android.view.View;
+
+import com.jksmilton.xchessclient.javachess.jcBoard;
+import com.jksmilton.xchessclient.javachess.jcMove;
+
+/**
+ * The chess board, drawn square by square on a single canvas.
+ *
+ * Squares are numbered from 0, the top left square as the player sees the
+ * board, to 63, the bottom right one, and hold the piece codes of jcBoard,
+ * jcBoard.EMPTY_SQUARE for none. A move only redraws the squares it changed,
+ * with the images of the {@link PieceAtlas} for the screen density.
+ */
+public class BoardView extends View {
+
+	/**
+	 * Hears the squares the player touches.
+	 */
+	public interface OnSquareClickListener {
+
+		public void onSquareClick(BoardView board, int position);
+
+	}
+
+	// The space between two squares
+	private static final int GAP_DP = 5;
+
+	private byte[] pieces = new byte[64];
+	private int selected = -1;
+	private OnSquareClickListener listener;
+
+	private PieceAtlas atlas;
+	private Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private Rect square = new Rect();
+	private Rect clip = new Rect();
+	private int gap;
+	private int cell;
+	private int left;
+	private int top;
+
+	public BoardView(Context context) {
+		super(context);
+		init();
+	}
+
+	public BoardView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+
+	public BoardView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+		init();
+	}
+
+	private void init(){
+
+		for(int i = 0; i < 64; i++){
+			pieces[i] = jcBoard.EMPTY_SQUARE;
+		}
+
+		gap = Math.round(GAP_DP * getResources().getDisplayMetrics().density);
+		atlas = PieceAtlas.get(getResources());
+
+	}
+
+	public void setOnSquareClickListener(OnSquareClickListener listener){
+		this.listener = listener;
+	}
+
+	/**
+	 * Show another position; the board keeps the array, which movePiece and
+	 * promotePawn change.
+	 */
+	public void setBoard(byte[] board){
+
+		pieces = board;
+		invalidate();
+
+	}
+
+	public int getPiece(int position){
+		return pieces[position];
+	}
+
+	public void movePiece(int start, int end){
+
+		pieces[end] = pieces[start];
+		pieces[start] = jcBoard.EMPTY_SQUARE;
+		invalidateSquare(start);
+		invalidateSquare(end);
+
+	}
+
+	public void setSelected(int select){
+
+		if(selected == select){
+			return;
+		}
+
+		if(selected >= 0){
+			invalidateSquare(selected);
+		}
+
+		selected = select;
+
+		if(selected >= 0){
+			invalidateSquare(selected);
+		}
+
+	}
+
+	public void promotePawn(int promotion, int position){
+
+		pieces[position] = (byte) promotedPiece(pieces[position], promotion);
+		invalidateSquare(position);
+
+	}
+
+	/**
+	 * The piece a pawn becomes with a promotion move type, of the pawn's
+	 * colour; the pawn itself for other move types.
+	 */
+	public static int promotedPiece(int pawn, int promotion){
+
+		int side = pawn % 2;
+
+		switch(promotion){
+		case jcMove.MOVE_PROMOTION_QUEEN: return jcBoard.QUEEN + side;
+		case jcMove.MOVE_PROMOTION_BISHOP: return jcBoard.BISHOP + side;
+		case jcMove.MOVE_PROMOTION_ROOK: return jcBoard.ROOK + side;
+		case jcMove.MOVE_PROMOTION_KNIGHT: return jcBoard.KNIGHT + side;
+		default: return pawn;
+		}
+
+	}
+
+	public static int convertCoordToDim(int x, int y){
+
+		int toReturn = 0;
+
+		toReturn+= 8 * (7 - y);
+
+		toReturn += x;
+
+		return toReturn;
+
+	}
+
+	public static int[] convertDimToCoord(int pos){
+
+		int[] coords = new int[2];
+
+		coords[1] = pos % 8;
+
+		coords[0] = (int) Math.floor((double) pos / 8.0) + 1;
+
+		coords[0] = 8 - coords[0];
+
+		return coords;
+
+	}
+
+	// The board is as high as it is wide, unless it is given less room
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+
+		int width = getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec);
+		int side = width - getPaddingLeft() - getPaddingRight();
+		int height = resolveSize(side + getPaddingTop() + getPaddingBottom(), heightMeasureSpec);
+
+		setMeasuredDimension(width, height);
+
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+
+		int width = w - getPaddingLeft() - getPaddingRight();
+		int height = h - getPaddingTop() - getPaddingBottom();
+
+		cell = Math.max(0, (Math.min(width, height) - 7 * gap) / 8);
+		left = getPaddingLeft() + (width - 8 * cell - 7 * gap) / 2;
+		top = getPaddingTop();
+
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+
+		// Only the squares which were invalidated are drawn again
+		canvas.getClipBounds(clip);
+
+		for(int position = 0; position < 64; position++){
+
+			squareBounds(position, square);
+
+			if(!Rect.intersects(clip, square)){
+				continue;
+			}
+
+			int background;
+
+			if(selected == position){
+				background = PieceAtlas.SELECTED_SQUARE;
+			} else if((position / 8 + position % 8) % 2 == 0){
+				background = PieceAtlas.WHITE_SQUARE;
+			} else {
+				background = PieceAtlas.BLACK_SQUARE;
+			}
+
+			atlas.drawSquare(canvas, background, square, paint);
+
+			int piece = pieces[position];
+
+			if(piece != jcBoard.EMPTY_SQUARE){
+				atlas.drawPiece(canvas, piece, square, paint);
+			}
+
+		}
+
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+
+		switch(event.getActionMasked()){
+		case MotionEvent.ACTION_DOWN:
+			return true;
+		case MotionEvent.ACTION_UP:{
+
+			int position = squareAt(event.getX(), event.getY());
+
+			if(position >= 0 && listener != null){
+
+				performClick();
+				listener.onSquareClick(this, position);
+
+			}
+
+			return true;
+
+		}
+		}
+
+		return super.onTouchEvent(event);
+
+	}
+
+	// A touch on a square is a click, for accessibility services as much as
+	// for the click sound, which the view only plays itself for a click
+	// listener
+	@Override
+	public boolean performClick() {
+
+		if(!super.performClick()){
+			playSoundEffect(SoundEffectConstants.CLICK);
+		}
+
+		return true;
+
+	}
+
+	// The square under a point, the gap after a square counting as part of
+	// it; -1 off the board
+	private int squareAt(float x, float y){
+
+		if(cell == 0 || x < left || y < top){
+			return -1;
+		}
+
+		int column = (int) ((x - left) / (cell + gap));
+		int row = (int) ((y - top) / (cell + gap));
+
+		if(column > 7 || row > 7){
+			return -1;
+		}
+
+		return row * 8 + column;
+
+	}
+
+	private void squareBounds(int position, Rect bounds){
+
+		int x = left + (position % 8) * (cell + gap);
+		int y = top + (position / 8) * (cell + gap);
+		bounds.set(x, y, x + cell, y + cell);
+
+	}
+
+	private void invalidateSquare(int position){
+
+		squareBounds(position, square);
+		invalidate(square);
+
+	}
+
+}
@@ -1,7 +1,11 @@
 package com.jksmilton.xchessclient.model;
 
+import java.io.IOException;
 import java.util.List;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
 public class ChessUser {
 
 	private String authString;
@@ -12,7 +16,46 @@ public class ChessUser {
 	private List<String> friends;
 	private List<Game> games;
 	
-	private ChessUser(){}
+	ChessUser(){}
+	
+	/**
+	 * Read a user from the JSON object the server sends for it.
+	 */
+	public static ChessUser read(JsonReader reader) throws IOException {
+		
+		ChessUser user = new ChessUser();
+		reader.beginObject();
+		
+		while(reader.hasNext()){
+			
+			String name = reader.nextName();
+			
+			if(reader.peek() == JsonToken.NULL){
+				reader.nextNull();
+			} else if(name.equals("authString")){
+				user.authString = reader.nextString();
+			} else if(name.equals("xauth")){
+				user.xauth = reader.nextString();
+			} else if(name.equals("email")){
+				user.email = reader.nextString();
+			} else if(name.equals("handle")){
+				user.handle = reader.nextString();
+			} else if(name.equals("authSecret")){
+				user.authSecret = reader.nextString();
+			} else if(name.equals("friends")){
+				user.friends = JsonPayloads.readStrings(reader);
+			} else if(name.equals("games")){
+				user.games = JsonPayloads.readGames(reader);
+			} else {
+				reader.skipValue();
+			}
+			
+		}
+		
+		reader.endObject();
+		return user;
+		
+	}
 
 	public String getAuthString() {
 		return authString;
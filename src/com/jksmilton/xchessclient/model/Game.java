@@ -1,5 +1,10 @@
 package com.jksmilton.xchessclient.model;
 
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
 public class Game {
 
 	private Long id;
@@ -40,6 +45,39 @@ public class Game {
 
 	public Game(){}
 	
+	/**
+	 * Read a game from the JSON object the server sends for it.
+	 */
+	public static Game read(JsonReader reader) throws IOException {
+		
+		Game game = new Game();
+		reader.beginObject();
+		
+		while(reader.hasNext()){
+			
+			String name = reader.nextName();
+			
+			if(reader.peek() == JsonToken.NULL){
+				reader.nextNull();
+			} else if(name.equals("id")){
+				game.id = reader.nextLong();
+			} else if(name.equals("white")){
+				game.white = reader.nextString();
+			} else if(name.equals("black")){
+				game.black = reader.nextString();
+			} else if(name.equals("turn")){
+				game.turn = reader.nextInt();
+			} else {
+				reader.skipValue();
+			}
+			
+		}
+		
+		reader.endObject();
+		return game;
+		
+	}
+	
 	public String toString(){
 		
 		String vs;
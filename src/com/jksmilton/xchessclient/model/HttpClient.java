@@ -0,0 +1,404 @@
+package com.jksmilton.xchessclient.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+/**
+ * The connection to the server shared by every request of the application.
+ *
+ * Connections are kept alive and reused between requests, which is why the
+ * response bodies are always read to the end before they are closed. Responses
+ * are asked for compressed, and decompressed here. The bodies of GET responses
+ * which carry an ETag or a Last-Modified date are kept, and the next GET of the
+ * same URL asks whether they changed: if not, the server answers 304 without a
+ * body, and the kept one is handed out again. An error status is thrown as a
+ * {@link StatusException}, with the answer the server gave.
+ */
+public class HttpClient {
+
+	private static final int READ_TIMEOUT = 10000; /* milliseconds */
+	private static final int CONNECT_TIMEOUT = 15000; /* milliseconds */
+	private static final int MAX_CONNECTIONS = 5;
+	private static final int CACHE_BYTES = 512 * 1024;
+
+	private static HttpClient instance;
+
+	// Kept bodies by URL, the least recently used first
+	private LinkedHashMap<String, CachedBody> cache = new LinkedHashMap<String, CachedBody>(16, 0.75f, true);
+	private int cacheBytes = 0;
+	private int maxCacheBytes;
+
+	public static synchronized HttpClient getInstance(){
+
+		if(instance == null){
+			instance = new HttpClient(CACHE_BYTES);
+		}
+
+		return instance;
+
+	}
+
+	HttpClient(int maxCacheBytes){
+
+		this.maxCacheBytes = maxCacheBytes;
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", "" + MAX_CONNECTIONS);
+
+	}
+
+	public Response get(String url) throws IOException {
+		return execute(url, "GET", null);
+	}
+
+	public Response post(String url) throws IOException {
+		return execute(url, "POST", null);
+	}
+
+	/**
+	 * A POST which may be sent again if its answer is lost: every attempt
+	 * carries the same key, in an Idempotency-Key header.
+	 */
+	public Response post(String url, String idempotencyKey) throws IOException {
+		return execute(url, "POST", idempotencyKey);
+	}
+
+	/**
+	 * Forget the kept bodies, so that the next requests fetch everything.
+	 */
+	public synchronized void clearCache(){
+
+		cache.clear();
+		cacheBytes = 0;
+
+	}
+
+	private Response execute(String address, String method, String idempotencyKey) throws IOException {
+
+		URL url = new URL(address);
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setRequestMethod(method);
+		conn.setDoInput(true);
+		conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+		if(idempotencyKey != null){
+			conn.setRequestProperty("Idempotency-Key", idempotencyKey);
+		}
+
+		boolean get = method.equals("GET");
+		CachedBody cached = get ? lookUp(address) : null;
+
+		if(cached != null && cached.etag != null){
+			conn.setRequestProperty("If-None-Match", cached.etag);
+		}
+		if(cached != null && cached.lastModified != null){
+			conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+		}
+
+		// Starts the query
+		conn.connect();
+		int code = conn.getResponseCode();
+		Log.d("Acessing " + address, "The response is: " + code);
+
+		if(code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null){
+
+			// Nothing to read, but the connection only goes back to the pool
+			// once its stream is closed
+			InputStream empty = conn.getInputStream();
+			if(empty != null){
+				empty.close();
+			}
+			return new Response(code, true, new ByteArrayInputStream(cached.body));
+
+		}
+
+		if(code >= HttpURLConnection.HTTP_BAD_REQUEST){
+
+			if(cached != null){
+				forget(address);
+			}
+
+			throw new StatusException(code, readError(conn));
+
+		}
+
+		InputStream body = decode(conn.getInputStream(), conn.getContentEncoding());
+		String etag = conn.getHeaderField("ETag");
+		String lastModified = conn.getHeaderField("Last-Modified");
+
+		if(get && code == HttpURLConnection.HTTP_OK && (etag != null || lastModified != null)){
+			body = new CachingInputStream(body, address, etag, lastModified);
+		} else if(cached != null){
+			forget(address);
+		}
+
+		return new Response(code, false, body);
+
+	}
+
+	// The body of an error answer, read to the end so that the connection can
+	// be reused
+	private static String readError(HttpURLConnection conn) throws IOException {
+
+		InputStream stream = conn.getErrorStream();
+
+		if(stream == null){
+			return "";
+		}
+
+		Response error = new Response(conn.getResponseCode(), false, decode(stream, conn.getContentEncoding()));
+
+		try {
+			return error.readText();
+		} finally {
+			error.close();
+		}
+
+	}
+
+	private static InputStream decode(InputStream stream, String encoding) throws IOException {
+
+		if("gzip".equalsIgnoreCase(encoding)){
+			return new GZIPInputStream(stream);
+		} else if("deflate".equalsIgnoreCase(encoding)){
+			return new InflaterInputStream(stream);
+		}
+
+		return stream;
+
+	}
+
+	private synchronized CachedBody lookUp(String url){
+		return cache.get(url);
+	}
+
+	private synchronized void forget(String url){
+
+		CachedBody previous = cache.remove(url);
+
+		if(previous != null){
+			cacheBytes -= previous.body.length;
+		}
+
+	}
+
+	private synchronized void store(String url, CachedBody entry){
+
+		forget(url);
+
+		if(entry.body.length > maxCacheBytes / 4){
+			return;
+		}
+
+		cache.put(url, entry);
+		cacheBytes += entry.body.length;
+
+		Iterator<CachedBody> oldest = cache.values().iterator();
+
+		while(cacheBytes > maxCacheBytes){
+			cacheBytes -= oldest.next().body.length;
+			oldest.remove();
+		}
+
+	}
+
+	/**
+	 * The server answered with an error status: 4xx when it refused the
+	 * request, 5xx when it failed to carry it out.
+	 */
+	public static class StatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private int code;
+		private String answer;
+
+		StatusException(int code, String answer){
+
+			super("The server answered " + code);
+			this.code = code;
+			this.answer = answer;
+
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		// Whether sending the same request again could not do better
+		public boolean isRefusal() {
+			return code < HttpURLConnection.HTTP_INTERNAL_ERROR;
+		}
+
+		public String getAnswer() {
+			return answer;
+		}
+
+	}
+
+	/**
+	 * A response of the server. Its body must be closed once read, which also
+	 * reads what is left of it so that the connection can be reused.
+	 */
+	public static class Response {
+
+		private int code;
+		private boolean notModified;
+		private InputStream body;
+
+		Response(int code, boolean notModified, InputStream body){
+
+			this.code = code;
+			this.notModified = notModified;
+			this.body = new DrainingInputStream(body);
+
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		// Whether the body is the one kept from an earlier response, the
+		// server having answered that it did not change
+		public boolean isNotModified() {
+			return notModified;
+		}
+
+		public InputStream getBody() {
+			return body;
+		}
+
+		public String readText() throws IOException {
+
+			Reader reader = new InputStreamReader(body, "UTF-8");
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[1024];
+			int read;
+
+			while((read = reader.read(buffer)) >= 0){
+				text.append(buffer, 0, read);
+			}
+
+			return text.toString();
+
+		}
+
+		public void close() throws IOException {
+			body.close();
+		}
+
+	}
+
+	// The validators and body of a GET response
+	private static class CachedBody {
+
+		private String etag;
+		private String lastModified;
+		private byte[] body;
+
+	}
+
+	// Reads the rest of a stream when closed
+	private static class DrainingInputStream extends FilterInputStream {
+
+		DrainingInputStream(InputStream in){
+			super(in);
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			try {
+				byte[] rest = new byte[1024];
+				while(read(rest, 0, rest.length) >= 0);
+			} finally {
+				super.close();
+			}
+
+		}
+
+	}
+
+	// Keeps a copy of a body as it is read, and stores it once read to the end
+	private class CachingInputStream extends FilterInputStream {
+
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		private String url;
+		private CachedBody entry = new CachedBody();
+
+		CachingInputStream(InputStream in, String url, String etag, String lastModified){
+
+			super(in);
+			this.url = url;
+			entry.etag = etag;
+			entry.lastModified = lastModified;
+
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			int b = super.read();
+
+			if(b < 0){
+				finish();
+			} else {
+				copy.write(b);
+			}
+
+			return b;
+
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+
+			int read = super.read(buffer, offset, length);
+
+			if(read < 0){
+				finish();
+			} else {
+				copy.write(buffer, offset, read);
+			}
+
+			return read;
+
+		}
+
+		// Skipped bytes must be copied too
+		@Override
+		public long skip(long n) throws IOException {
+
+			byte[] skipped = new byte[(int) Math.min(n, 1024)];
+			int read = read(skipped, 0, skipped.length);
+			return Math.max(read, 0);
+
+		}
+
+		private void finish(){
+
+			if(copy != null){
+				entry.body = copy.toByteArray();
+				copy = null;
+				store(url, entry);
+			}
+
+		}
+
+	}
+
+}
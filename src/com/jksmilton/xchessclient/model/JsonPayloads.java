@@ -0,0 +1,66 @@
+package com.jksmilton.xchessclient.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Readers for the JSON payloads of the server which are not model objects of
+ * their own: lists, and the two forms of a game transcript.
+ */
+public class JsonPayloads {
+
+	private JsonPayloads(){}
+
+	public static List<String> readStrings(JsonReader reader) throws IOException {
+
+		List<String> strings = new ArrayList<String>();
+		reader.beginArray();
+
+		while(reader.hasNext()){
+
+			if(reader.peek() == JsonToken.NULL){
+				reader.nextNull();
+				strings.add(null);
+			} else {
+				strings.add(reader.nextString());
+			}
+
+		}
+
+		reader.endArray();
+		return strings;
+
+	}
+
+	public static List<Game> readGames(JsonReader reader) throws IOException {
+
+		List<Game> games = new ArrayList<Game>();
+		reader.beginArray();
+
+		while(reader.hasNext()){
+			games.add(Game.read(reader));
+		}
+
+		reader.endArray();
+		return games;
+
+	}
+
+	/**
+	 * A transcript: the list of all the moves, or a {@link TranscriptDelta}.
+	 */
+	public static Object readTranscript(JsonReader reader) throws IOException {
+
+		if(reader.peek() == JsonToken.BEGIN_OBJECT){
+			return TranscriptDelta.read(reader);
+		}
+
+		return readStrings(reader);
+
+	}
+
+}
@@ -0,0 +1,498 @@
+package com.jksmilton.xchessclient.model;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * The user, their games and their friends, kept on the device between runs.
+ *
+ * Each game and friend is a row of its own, the games keyed by id, so that a
+ * refresh only writes the ones which changed, and a game can be looked up
+ * without loading the others. Writes happen on a background thread, in the
+ * order they were asked for; until they are done, reads are answered from the
+ * last user saved, so that they always see the latest data.
+ */
+public class LocalStore extends SQLiteOpenHelper {
+
+	private static final String DATABASE = "xchess.db";
+	private static final int VERSION = 2;
+
+	private static LocalStore instance;
+
+	private ExecutorService writer = Executors.newSingleThreadExecutor();
+
+	// The last user saved in this process, with their games and friends
+	private ChessUser saved;
+
+	// What the database holds, as far as the writer knows; only touched on the
+	// writer thread
+	private Map<Long, Game> writtenGames;
+	private Set<String> writtenFriends;
+
+	public static synchronized LocalStore getInstance(Context context){
+
+		if(instance == null){
+			instance = new LocalStore(context.getApplicationContext());
+		}
+
+		return instance;
+
+	}
+
+	private LocalStore(Context context){
+		super(context, DATABASE, null, VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+
+		db.execSQL("CREATE TABLE user (id INTEGER PRIMARY KEY, handle TEXT, email TEXT, xauth TEXT, auth_string TEXT, auth_secret TEXT)");
+		db.execSQL("CREATE TABLE games (id INTEGER PRIMARY KEY, white TEXT, black TEXT, turn INTEGER)");
+		db.execSQL("CREATE TABLE friends (handle TEXT PRIMARY KEY)");
+		createOutbox(db);
+
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+		if(oldVersion < 2){
+			createOutbox(db);
+		}
+
+	}
+
+	// The moves waiting to be sent, in the order they were played
+	private static void createOutbox(SQLiteDatabase db){
+
+		db.execSQL("CREATE TABLE outbox (seq INTEGER PRIMARY KEY AUTOINCREMENT, key TEXT UNIQUE, game INTEGER, ply INTEGER, move TEXT, url TEXT, attempts INTEGER)");
+
+	}
+
+	/**
+	 * The user, without their games and friends, which loadGames and
+	 * loadFriends read when they are needed; null if no user was ever saved.
+	 */
+	public ChessUser loadUser(){
+
+		synchronized(this){
+
+			if(saved != null){
+				ChessUser user = copyOf(saved);
+				user.setGames(new ArrayList<Game>());
+				user.setFriends(new ArrayList<String>());
+				return user;
+			}
+
+		}
+
+		Cursor cursor = getReadableDatabase().query("user", null, null, null, null, null, null);
+
+		try {
+
+			if(!cursor.moveToFirst()){
+				return null;
+			}
+
+			ChessUser user = new ChessUser();
+			user.setHandle(cursor.getString(cursor.getColumnIndex("handle")));
+			user.setEmail(cursor.getString(cursor.getColumnIndex("email")));
+			user.setXauth(cursor.getString(cursor.getColumnIndex("xauth")));
+			user.setAuthString(cursor.getString(cursor.getColumnIndex("auth_string")));
+			user.setAuthSecret(cursor.getString(cursor.getColumnIndex("auth_secret")));
+			user.setGames(new ArrayList<Game>());
+			user.setFriends(new ArrayList<String>());
+			return user;
+
+		} finally {
+			cursor.close();
+		}
+
+	}
+
+	public List<Game> loadGames(){
+
+		synchronized(this){
+
+			if(saved != null){
+				return new ArrayList<Game>(saved.getGames());
+			}
+
+		}
+
+		List<Game> games = new ArrayList<Game>();
+		Cursor cursor = getReadableDatabase().query("games", null, null, null, null, null, "id");
+
+		try {
+
+			while(cursor.moveToNext()){
+				games.add(readGame(cursor));
+			}
+
+		} finally {
+			cursor.close();
+		}
+
+		return games;
+
+	}
+
+	public List<String> loadFriends(){
+
+		synchronized(this){
+
+			if(saved != null){
+				return new ArrayList<String>(saved.getFriends());
+			}
+
+		}
+
+		List<String> friends = new ArrayList<String>();
+		Cursor cursor = getReadableDatabase().query("friends", null, null, null, null, null, "handle");
+
+		try {
+
+			while(cursor.moveToNext()){
+				friends.add(cursor.getString(0));
+			}
+
+		} finally {
+			cursor.close();
+		}
+
+		return friends;
+
+	}
+
+	/**
+	 * A game of the user, or null.
+	 */
+	public Game loadGame(long id){
+
+		synchronized(this){
+
+			if(saved != null){
+
+				for(Game game : saved.getGames()){
+					if(game.getId() != null && game.getId() == id)
+						return game;
+				}
+
+				return null;
+
+			}
+
+		}
+
+		Cursor cursor = getReadableDatabase().query("games", null, "id = ?", new String[]{ "" + id }, null, null, null);
+
+		try {
+			return cursor.moveToFirst() ? readGame(cursor) : null;
+		} finally {
+			cursor.close();
+		}
+
+	}
+
+	/**
+	 * Save a user with their games and friends, in the background.
+	 */
+	public void saveUser(ChessUser user){
+
+		queueWrite(user);
+
+	}
+
+	/**
+	 * Save a user from the JSON the server sent for them, as the login does;
+	 * false if it could not be read.
+	 */
+	public boolean saveUser(String json){
+
+		ChessUser user = readUser(json);
+
+		if(user == null){
+			return false;
+		}
+
+		queueWrite(user);
+		return true;
+
+	}
+
+	/**
+	 * Save a user from their JSON and wait until the database holds them;
+	 * false if it could not be read or written. Not for the main thread.
+	 */
+	public boolean saveUserAndWait(String json){
+
+		ChessUser user = readUser(json);
+
+		if(user == null){
+			return false;
+		}
+
+		try {
+
+			queueWrite(user).get();
+			return true;
+
+		} catch (ExecutionException e) {
+			Log.d("Local store", "user not written: " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		return false;
+
+	}
+
+	private Future<?> queueWrite(ChessUser user){
+
+		final ChessUser copy = copyOf(user);
+
+		synchronized(this){
+			saved = copy;
+		}
+
+		return writer.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				write(copy);
+			}
+
+		});
+
+	}
+
+	private static ChessUser readUser(String json){
+
+		try {
+
+			return ChessUser.read(new JsonReader(new StringReader(json)));
+
+		} catch (IOException e) {
+			Log.d("Local store", "unreadable user: " + e.getMessage());
+		} catch (IllegalStateException e) {
+			Log.d("Local store", "unreadable user: " + e.getMessage());
+		}
+
+		return null;
+
+	}
+
+	List<PendingMove> loadPendingMoves(){
+
+		List<PendingMove> moves = new ArrayList<PendingMove>();
+		Cursor cursor = getReadableDatabase().query("outbox", new String[]{ "key", "game", "ply", "move", "url", "attempts" }, null, null, null, null, "seq");
+
+		try {
+
+			while(cursor.moveToNext()){
+				moves.add(new PendingMove(cursor.getString(0), cursor.getLong(1), cursor.getInt(2), cursor.getString(3), cursor.getString(4), cursor.getInt(5)));
+			}
+
+		} finally {
+			cursor.close();
+		}
+
+		return moves;
+
+	}
+
+	void savePendingMove(PendingMove move){
+
+		ContentValues row = new ContentValues();
+		row.put("key", move.getKey());
+		row.put("game", move.getGame());
+		row.put("ply", move.getPly());
+		row.put("move", move.getMove());
+		row.put("url", move.getUrl());
+		row.put("attempts", move.getAttempts());
+
+		SQLiteDatabase db = getWritableDatabase();
+
+		if(db.update("outbox", row, "key = ?", new String[]{ move.getKey() }) == 0){
+			db.insert("outbox", null, row);
+		}
+
+	}
+
+	void deletePendingMove(PendingMove move){
+
+		getWritableDatabase().delete("outbox", "key = ?", new String[]{ move.getKey() });
+
+	}
+
+	// Write what changed since the last write; runs on the writer thread
+	private void write(ChessUser user){
+
+		SQLiteDatabase db = getWritableDatabase();
+
+		if(writtenGames == null){
+			readWritten(db);
+		}
+
+		db.beginTransaction();
+
+		try {
+
+			ContentValues row = new ContentValues();
+			row.put("id", 0);
+			row.put("handle", user.getHandle());
+			row.put("email", user.getEmail());
+			row.put("xauth", user.getXauth());
+			row.put("auth_string", user.getAuthString());
+			row.put("auth_secret", user.getAuthSecret());
+			db.insertWithOnConflict("user", null, row, SQLiteDatabase.CONFLICT_REPLACE);
+
+			Map<Long, Game> games = new HashMap<Long, Game>();
+
+			for(Game game : user.getGames()){
+
+				if(game.getId() == null)
+					continue;
+
+				games.put(game.getId(), game);
+
+				if(!sameGame(game, writtenGames.get(game.getId()))){
+
+					row = new ContentValues();
+					row.put("id", game.getId());
+					row.put("white", game.getWhite());
+					row.put("black", game.getBlack());
+					row.put("turn", game.getTurn());
+					db.insertWithOnConflict("games", null, row, SQLiteDatabase.CONFLICT_REPLACE);
+
+				}
+
+			}
+
+			for(Long id : writtenGames.keySet()){
+				if(!games.containsKey(id))
+					db.delete("games", "id = ?", new String[]{ "" + id });
+			}
+
+			Set<String> friends = new HashSet<String>(user.getFriends());
+
+			for(String friend : friends){
+
+				if(friend != null && !writtenFriends.contains(friend)){
+
+					row = new ContentValues();
+					row.put("handle", friend);
+					db.insertWithOnConflict("friends", null, row, SQLiteDatabase.CONFLICT_REPLACE);
+
+				}
+
+			}
+
+			for(String friend : writtenFriends){
+				if(!friends.contains(friend))
+					db.delete("friends", "handle = ?", new String[]{ friend });
+			}
+
+			db.setTransactionSuccessful();
+			writtenGames = games;
+			writtenFriends = friends;
+
+		} finally {
+			db.endTransaction();
+		}
+
+	}
+
+	// Learn what the database holds, before the first write
+	private void readWritten(SQLiteDatabase db){
+
+		writtenGames = new HashMap<Long, Game>();
+		writtenFriends = new HashSet<String>();
+
+		Cursor cursor = db.query("games", null, null, null, null, null, null);
+
+		try {
+
+			while(cursor.moveToNext()){
+				Game game = readGame(cursor);
+				writtenGames.put(game.getId(), game);
+			}
+
+		} finally {
+			cursor.close();
+		}
+
+		cursor = db.query("friends", null, null, null, null, null, null);
+
+		try {
+
+			while(cursor.moveToNext()){
+				writtenFriends.add(cursor.getString(0));
+			}
+
+		} finally {
+			cursor.close();
+		}
+
+	}
+
+	private static Game readGame(Cursor cursor){
+
+		Game game = new Game();
+		game.setId(cursor.getLong(cursor.getColumnIndex("id")));
+		game.setWhite(cursor.getString(cursor.getColumnIndex("white")));
+		game.setBlack(cursor.getString(cursor.getColumnIndex("black")));
+		game.setTurn(cursor.getInt(cursor.getColumnIndex("turn")));
+		return game;
+
+	}
+
+	private static boolean sameGame(Game a, Game b){
+
+		if(b == null){
+			return false;
+		}
+
+		return a.getTurn() == b.getTurn() && equal(a.getWhite(), b.getWhite()) && equal(a.getBlack(), b.getBlack());
+
+	}
+
+	private static boolean equal(String a, String b){
+		return a == null ? b == null : a.equals(b);
+	}
+
+	// A user whose lists the caller may change freely
+	private static ChessUser copyOf(ChessUser user){
+
+		ChessUser copy = new ChessUser();
+		copy.setHandle(user.getHandle());
+		copy.setEmail(user.getEmail());
+		copy.setXauth(user.getXauth());
+		copy.setAuthString(user.getAuthString());
+		copy.setAuthSecret(user.getAuthSecret());
+		copy.setGames(user.getGames() == null ? new ArrayList<Game>() : new ArrayList<Game>(user.getGames()));
+		copy.setFriends(user.getFriends() == null ? new ArrayList<String>() : new ArrayList<String>(user.getFriends()));
+		return copy;
+
+	}
+
+}
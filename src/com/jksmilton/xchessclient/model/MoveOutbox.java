@@ -0,0 +1,428 @@
+package com.jksmilton.xchessclient.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The moves the user played which the server has not taken yet.
+ *
+ * A move is written to the local store before it is sent, so that it survives
+ * a lost connection or the app being closed, and the game screen shows it on
+ * the board straight away. Moves are sent one at a time, in the order they
+ * were played. When the server cannot be reached, the outbox tries again after
+ * a delay which doubles with each failure, up to five minutes, with a random
+ * part so that devices which lost the connection together do not all come
+ * back at once; an error of the server itself counts as a failure, but a move
+ * it rejects with a 4xx status is refused. Each move carries its own
+ * idempotency key, so a move whose answer was lost is not played twice when
+ * it is sent again.
+ *
+ * A move leaves the outbox when the server takes it, when it refuses it, or
+ * when the game transcript shows it was played; see {@link #acknowledge}.
+ */
+public class MoveOutbox {
+
+	/**
+	 * Hears what became of the moves sent, on the main thread.
+	 */
+	public interface Listener {
+
+		public void onMoveSent(PendingMove move);
+
+		// The server refused the move, with the given answer; the moves played
+		// after it in the same game were dropped along with it
+		public void onMoveRefused(PendingMove move, String answer);
+
+	}
+
+	private static final long FIRST_DELAY = 2000;
+	private static final long MAX_DELAY = 5 * 60 * 1000;
+
+	private static MoveOutbox instance;
+
+	private LocalStore store;
+	private List<PendingMove> pending = new ArrayList<PendingMove>();
+	// Whether the moves stored by an earlier run were read into pending
+	private boolean loaded;
+	private ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor();
+	private ScheduledFuture<?> retry;
+	// Whether a drain is queued, running, or waiting out its delay in retry;
+	// there is never more than one
+	private boolean draining;
+	private Handler main = new Handler(Looper.getMainLooper());
+	private Random random = new Random();
+	private Listener listener;
+
+	public static synchronized MoveOutbox getInstance(Context context){
+
+		if(instance == null){
+			instance = new MoveOutbox(LocalStore.getInstance(context));
+		}
+
+		return instance;
+
+	}
+
+	private MoveOutbox(final LocalStore store){
+
+		this.store = store;
+
+		// The moves left by an earlier run are read on the sender thread, so
+		// before any drain, and ahead of the moves enqueued meanwhile
+		sender.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				List<PendingMove> stored = store.loadPendingMoves();
+				boolean start;
+
+				synchronized(MoveOutbox.this){
+
+					stored.addAll(pending);
+					pending = stored;
+					loaded = true;
+					MoveOutbox.this.notifyAll();
+
+					start = !pending.isEmpty() && !draining;
+					if(start)
+						draining = true;
+
+				}
+
+				if(start){
+					drain.run();
+				}
+
+			}
+
+		});
+
+	}
+
+	public synchronized void setListener(Listener listener){
+		this.listener = listener;
+	}
+
+	public synchronized void removeListener(Listener listener){
+
+		if(this.listener == listener){
+			this.listener = null;
+		}
+
+	}
+
+	/**
+	 * Queue a move to be sent to the given addMove URL; ply is the number of
+	 * moves played in the game before it, and move the move as the transcript
+	 * writes it.
+	 */
+	public PendingMove enqueue(long game, int ply, String move, String url){
+
+		final PendingMove pendingMove = new PendingMove(UUID.randomUUID().toString(), game, ply, move, url, 0);
+		boolean start;
+
+		synchronized(this){
+
+			pending.add(pendingMove);
+			start = !draining;
+			draining = true;
+
+		}
+
+		sender.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				store.savePendingMove(pendingMove);
+			}
+
+		});
+
+		// The drain under way, or waiting to retry, sends this one in its turn
+		if(start){
+			sender.execute(drain);
+		}
+
+		return pendingMove;
+
+	}
+
+	/**
+	 * The moves of a game still to be taken by the server, oldest first. The
+	 * first call may wait for the stored moves to be read, which starts when
+	 * the outbox is created.
+	 */
+	public synchronized List<PendingMove> getPending(long game){
+
+		while(!loaded){
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+		}
+
+		List<PendingMove> moves = new ArrayList<PendingMove>();
+
+		for(PendingMove move : pending){
+			if(move.getGame() == game)
+				moves.add(move);
+		}
+
+		return moves;
+
+	}
+
+	/**
+	 * Drop a move the transcript shows was played; an answer to it still on
+	 * the way is ignored.
+	 */
+	public void acknowledge(PendingMove move){
+
+		remove(move, false);
+
+	}
+
+	/**
+	 * Drop a move the transcript shows was not played, with the moves played
+	 * after it in the same game, which depended on it.
+	 */
+	public void discard(PendingMove move){
+
+		remove(move, true);
+
+	}
+
+	/**
+	 * Send the waiting moves now rather than when the current delay is over,
+	 * when there is a reason to think the connection is back.
+	 */
+	public void retryNow(){
+
+		synchronized(this){
+
+			if(draining){
+
+				// A drain queued or running already sends the moves
+				if(retry == null || !retry.cancel(false)){
+					return;
+				}
+
+				retry = null;
+
+			}
+
+			draining = true;
+
+		}
+
+		sender.execute(drain);
+
+	}
+
+	// Remove a move, and the moves of its game after it if "following"
+	private void remove(PendingMove move, boolean following){
+
+		final List<PendingMove> removed = new ArrayList<PendingMove>();
+
+		synchronized(this){
+
+			boolean found = false;
+			Iterator<PendingMove> it = pending.iterator();
+
+			while(it.hasNext()){
+
+				PendingMove next = it.next();
+
+				if(next == move || (found && following && next.getGame() == move.getGame())){
+					found = true;
+					removed.add(next);
+					it.remove();
+				}
+
+			}
+
+		}
+
+		sender.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				for(PendingMove move : removed){
+					store.deletePendingMove(move);
+				}
+
+			}
+
+		});
+
+	}
+
+	// The oldest move, or none, in which case the drain is over
+	private synchronized PendingMove first(){
+
+		if(pending.isEmpty()){
+			draining = false;
+			return null;
+		}
+
+		return pending.get(0);
+
+	}
+
+	// Send the waiting moves in turn, until there are none or the server
+	// cannot be reached; runs on the sender thread
+	private Runnable drain = new Runnable() {
+
+		@Override
+		public void run() {
+
+			PendingMove move;
+
+			synchronized(MoveOutbox.this){
+				retry = null;
+			}
+
+			while((move = first()) != null){
+
+				String answer;
+
+				try {
+
+					answer = send(move);
+
+				} catch (IOException e) {
+
+					if(waitToRetry(move, e))
+						return;
+
+					continue;
+
+				}
+
+				synchronized(MoveOutbox.this){
+					if(!pending.contains(move))
+						continue;
+				}
+
+				if(answer.equals("Success")){
+
+					remove(move, false);
+					deliver(move, null);
+
+				} else {
+
+					Log.d("Move refused", move.getMove() + ": " + answer);
+					remove(move, true);
+					deliver(move, answer);
+
+				}
+
+			}
+
+		}
+
+	};
+
+	// The answer of the server to a move; a refusal by status is answered
+	// like any other, a failure to answer throws
+	private String send(PendingMove move) throws IOException {
+
+		HttpClient.Response response;
+
+		try {
+
+			response = HttpClient.getInstance().post(move.getUrl(), move.getKey());
+
+		} catch (HttpClient.StatusException e) {
+
+			if(!e.isRefusal())
+				throw e;
+
+			return e.getAnswer().length() > 0 ? e.getAnswer() : e.getMessage();
+
+		}
+
+		try {
+			return response.readText();
+		} finally {
+			response.close();
+		}
+
+	}
+
+	// Try again later, unless the move was acknowledged while it was sent, in
+	// which case the moves behind it may go now; returns whether it waits
+	private boolean waitToRetry(PendingMove move, IOException e){
+
+		synchronized(this){
+			if(!pending.contains(move))
+				return false;
+		}
+
+		move.setAttempts(move.getAttempts() + 1);
+		store.savePendingMove(move);
+
+		// Half the delay is fixed, the other half random
+		long delay = FIRST_DELAY << Math.min(move.getAttempts() - 1, 16);
+		delay = Math.min(delay, MAX_DELAY);
+		delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+
+		Log.d("Move not sent", move.getMove() + ", attempt " + move.getAttempts() + ": " + e.getMessage() + "; retrying in " + delay + " ms");
+
+		synchronized(this){
+			retry = sender.schedule(drain, delay, TimeUnit.MILLISECONDS);
+		}
+
+		return true;
+
+	}
+
+	private void deliver(final PendingMove move, final String refusal){
+
+		main.post(new Runnable() {
+
+			@Override
+			public void run() {
+
+				Listener current;
+
+				synchronized(MoveOutbox.this){
+					current = listener;
+				}
+
+				if(current == null){
+					return;
+				}
+
+				if(refusal == null){
+					current.onMoveSent(move);
+				} else {
+					current.onMoveRefused(move, refusal);
+				}
+
+			}
+
+		});
+
+	}
+
+}
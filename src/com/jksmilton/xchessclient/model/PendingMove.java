@@ -0,0 +1,58 @@
+package com.jksmilton.xchessclient.model;
+
+/**
+ * A move played on the device which the server has not confirmed yet.
+ */
+public class PendingMove {
+
+	private String key;
+	private long game;
+	private int ply;
+	private String move;
+	private String url;
+	private int attempts;
+
+	PendingMove(String key, long game, int ply, String move, String url, int attempts){
+
+		this.key = key;
+		this.game = game;
+		this.ply = ply;
+		this.move = move;
+		this.url = url;
+		this.attempts = attempts;
+
+	}
+
+	// The idempotency key sent with each attempt, so that the server can tell
+	// a retry from a new move
+	public String getKey() {
+		return key;
+	}
+
+	public long getGame() {
+		return game;
+	}
+
+	// The number of moves played in the game before this one
+	public int getPly() {
+		return ply;
+	}
+
+	// The move as the transcript writes it
+	public String getMove() {
+		return move;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+}
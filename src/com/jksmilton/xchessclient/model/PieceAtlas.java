@@ -0,0 +1,164 @@
+package com.jksmilton.xchessclient.model;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.jksmilton.xchessclient.R;
+import com.jksmilton.xchessclient.javachess.jcBoard;
+
+/**
+ * The squares and pieces a board is drawn with, decoded into a single bitmap.
+ *
+ * An atlas is decoded the first time a board is shown at a screen density,
+ * and kept for the boards shown after it, whatever they are: the AI game, a
+ * multiplayer game, or a thumbnail. Atlases live in a cache of bounded size,
+ * so that moving between densities, as a screen change may do, does not keep
+ * the old ones forever.
+ */
+public class PieceAtlas {
+
+	public static final int WHITE_SQUARE = 0;
+	public static final int BLACK_SQUARE = 1;
+	public static final int SELECTED_SQUARE = 2;
+
+	private static final int SQUARES = 3;
+
+	private static final int[] SQUARE_DRAWABLES = {
+		R.drawable.white_square, R.drawable.black_square, R.drawable.selected_square
+	};
+
+	// Indexed by piece code
+	private static final int[] PIECE_DRAWABLES = new int[jcBoard.ALL_PIECES];
+
+	static {
+
+		PIECE_DRAWABLES[jcBoard.WHITE_PAWN] = R.drawable.white_pawn;
+		PIECE_DRAWABLES[jcBoard.WHITE_KNIGHT] = R.drawable.white_knight;
+		PIECE_DRAWABLES[jcBoard.WHITE_BISHOP] = R.drawable.white_bishop;
+		PIECE_DRAWABLES[jcBoard.WHITE_ROOK] = R.drawable.white_rook;
+		PIECE_DRAWABLES[jcBoard.WHITE_QUEEN] = R.drawable.white_queen;
+		PIECE_DRAWABLES[jcBoard.WHITE_KING] = R.drawable.white_king;
+		PIECE_DRAWABLES[jcBoard.BLACK_PAWN] = R.drawable.black_pawn;
+		PIECE_DRAWABLES[jcBoard.BLACK_KNIGHT] = R.drawable.black_knight;
+		PIECE_DRAWABLES[jcBoard.BLACK_BISHOP] = R.drawable.black_bishop;
+		PIECE_DRAWABLES[jcBoard.BLACK_ROOK] = R.drawable.black_rook;
+		PIECE_DRAWABLES[jcBoard.BLACK_QUEEN] = R.drawable.black_queen;
+		PIECE_DRAWABLES[jcBoard.BLACK_KING] = R.drawable.black_king;
+
+	}
+
+	// An eighth of the memory the app may use, and no more than 4 MB
+	private static final int CACHE_BYTES = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 4 * 1024 * 1024);
+
+	// Atlases by density; one a board still draws with stays alive after it
+	// leaves the cache, so they are never recycled here
+	private static final LruCache<Integer, PieceAtlas> atlases = new LruCache<Integer, PieceAtlas>(CACHE_BYTES){
+
+		@Override
+		protected int sizeOf(Integer density, PieceAtlas atlas) {
+			return atlas.getByteCount();
+		}
+
+	};
+
+	private int density;
+	private Bitmap bitmap;
+	private Rect[] tiles;
+	private long decodeMillis;
+
+	/**
+	 * The atlas for the density of the given resources, decoded if it is not
+	 * in the cache.
+	 */
+	public static synchronized PieceAtlas get(Resources res){
+
+		int density = res.getDisplayMetrics().densityDpi;
+		PieceAtlas atlas = atlases.get(density);
+
+		if(atlas == null){
+
+			atlas = new PieceAtlas(res, density);
+			atlases.put(density, atlas);
+
+		}
+
+		return atlas;
+
+	}
+
+	private PieceAtlas(Resources res, int density){
+
+		this.density = density;
+		long start = System.nanoTime();
+
+		Bitmap[] decoded = new Bitmap[SQUARES + PIECE_DRAWABLES.length];
+		int tile = 0;
+
+		for(int i = 0; i < decoded.length; i++){
+
+			int drawable = i < SQUARES ? SQUARE_DRAWABLES[i] : PIECE_DRAWABLES[i - SQUARES];
+			decoded[i] = BitmapFactory.decodeResource(res, drawable);
+			tile = Math.max(tile, Math.max(decoded[i].getWidth(), decoded[i].getHeight()));
+
+		}
+
+		// One row of tiles, each image scaled to fill its own
+		bitmap = Bitmap.createBitmap(tile * decoded.length, tile, Bitmap.Config.ARGB_8888);
+		tiles = new Rect[decoded.length];
+		Canvas canvas = new Canvas(bitmap);
+		Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+		for(int i = 0; i < decoded.length; i++){
+
+			tiles[i] = new Rect(i * tile, 0, (i + 1) * tile, tile);
+			canvas.drawBitmap(decoded[i], null, tiles[i], paint);
+			decoded[i].recycle();
+
+		}
+
+		decodeMillis = (System.nanoTime() - start) / 1000000;
+
+		Log.d("Piece atlas", decoded.length + " images of " + tile + " px for " + density + " dpi in " + decodeMillis + " ms, "
+				+ getByteCount() / 1024 + " KB");
+
+	}
+
+	/**
+	 * Draw one of WHITE_SQUARE, BLACK_SQUARE and SELECTED_SQUARE.
+	 */
+	public void drawSquare(Canvas canvas, int square, Rect bounds, Paint paint){
+
+		canvas.drawBitmap(bitmap, tiles[square], bounds, paint);
+
+	}
+
+	/**
+	 * Draw a piece, by its jcBoard code.
+	 */
+	public void drawPiece(Canvas canvas, int piece, Rect bounds, Paint paint){
+
+		canvas.drawBitmap(bitmap, tiles[SQUARES + piece], bounds, paint);
+
+	}
+
+	public int getDensity() {
+		return density;
+	}
+
+	// The memory the atlas takes, in bytes
+	public int getByteCount() {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	// The time it took to decode the images and build the atlas
+	public long getDecodeMillis() {
+		return decodeMillis;
+	}
+
+}
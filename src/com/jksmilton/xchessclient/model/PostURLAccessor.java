@@ -1,40 +1,24 @@
 package com.jksmilton.xchessclient.model;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
-import java.net.URL;
 
 import android.content.res.Resources.NotFoundException;
-import android.util.Log;
 
 public abstract class PostURLAccessor extends URLAccessor {
 
 	@Override
 	protected Object doInBackground(Object... params){
 		
-		InputStream is = null;
-		String returnStr = "Fail";
+		HttpClient.Response response = null;
+		Object returnStr = "Fail";
 		
 		try {
-	        URL url = new URL((String) params[0]);
-	        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-	        conn.setReadTimeout(10000 /* milliseconds */);
-	        conn.setConnectTimeout(15000 /* milliseconds */);
-	        conn.setRequestMethod("POST");
-	        
-	        conn.setDoInput(true);
-	        // Starts the query
-	        conn.connect();
-	        int response = conn.getResponseCode();
-	        Log.d("Acessing ", (String) params[0]);
-	        Log.d("The response is: ", ""+ response);
-	        is = conn.getInputStream();
+	        response = HttpClient.getInstance().post((String) params[0]);
 
-	        // Convert the InputStream into a string
-	        returnStr = readIt(is);
+	        // Convert the InputStream into the result
+	        returnStr = timedRead((String) params[0], response.getBody());
 	        
 	       
 	        
@@ -52,9 +36,9 @@ public abstract class PostURLAccessor extends URLAccessor {
 		} catch (IOException e) {
 			returnStr = "IO Exception: " + e.getMessage();
 		} finally {
-	        if (is != null) {
+	        if (response != null) {
 	            try {
-					is.close();
+					response.close();
 				} catch (IOException e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
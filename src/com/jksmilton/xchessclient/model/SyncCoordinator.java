@@ -0,0 +1,116 @@
+package com.jksmilton.xchessclient.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.os.AsyncTask;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Fetches the data the screens refresh from the server.
+ *
+ * A fetch of a URL which is already being fetched joins it rather than sending
+ * another request, and its result goes to everyone who asked for it. Fetches
+ * of different URLs run side by side, rather than one after the other as
+ * AsyncTask.execute would run them, so that a refresh of several resources
+ * takes as long as the slowest of them.
+ *
+ * Fetches are started, and their results delivered, on the main thread.
+ */
+public class SyncCoordinator {
+
+	/**
+	 * Builds the result of a fetch from the response.
+	 */
+	public interface Parser {
+
+		public Object parse(JsonReader reader) throws IOException;
+
+	}
+
+	/**
+	 * Receives the result of a fetch: what the parser built, or the error
+	 * message of URLAccessor if the fetch failed.
+	 */
+	public interface Listener {
+
+		public void onResult(Object result);
+
+	}
+
+	private static SyncCoordinator instance;
+
+	private HashMap<String, Call> inFlight = new HashMap<String, Call>();
+
+	public static SyncCoordinator getInstance(){
+
+		if(instance == null){
+			instance = new SyncCoordinator();
+		}
+
+		return instance;
+
+	}
+
+	private SyncCoordinator(){}
+
+	public void fetch(String url, Parser parser, Listener listener){
+
+		Call call = inFlight.get(url);
+
+		if(call != null){
+
+			call.listeners.add(listener);
+			return;
+
+		}
+
+		call = new Call(url, parser);
+		call.listeners.add(listener);
+		inFlight.put(url, call);
+		call.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, url);
+
+	}
+
+	public boolean isFetching(String url){
+		return inFlight.containsKey(url);
+	}
+
+	private class Call extends URLAccessor {
+
+		private String url;
+		private Parser parser;
+		private List<Listener> listeners = new ArrayList<Listener>();
+
+		Call(String url, Parser parser){
+
+			this.url = url;
+			this.parser = parser;
+
+		}
+
+		@Override
+		protected Object readResponse(InputStream stream) throws IOException {
+
+			return parser.parse(jsonReader(stream));
+
+		}
+
+		@Override
+		protected void onPostExecute(Object result) {
+
+			inFlight.remove(url);
+
+			for(Listener listener : listeners){
+				listener.onResult(result);
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.jksmilton.xchessclient.model;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The moves of a game past a given ply, as sent by the server when asked for
+ * the transcript with the "from" and "key" parameters:
+ *
+ * {"from": 12, "key": -1842315510, "moves": ["B1 C1 NA", ...]}
+ *
+ * The "key" is a checksum of the transcript prefix the moves follow: the first
+ * "from" entries of the transcript, hashed as java.util.List.hashCode hashes a
+ * list of strings. It is not a hash of the position. Two move orders reaching
+ * the same position have different checksums, and it only tells the client
+ * whether the history it holds is, as far as 32 bits can tell, the one the
+ * moves follow. A server which does not know these parameters sends the whole
+ * transcript as a plain array instead.
+ */
+public class TranscriptDelta {
+
+	private int from;
+	private int prefixChecksum;
+	private List<String> moves;
+
+	private TranscriptDelta(){}
+
+	public static TranscriptDelta read(JsonReader reader) throws IOException {
+
+		TranscriptDelta delta = new TranscriptDelta();
+		reader.beginObject();
+
+		while(reader.hasNext()){
+
+			String name = reader.nextName();
+
+			if(reader.peek() == JsonToken.NULL){
+				reader.nextNull();
+			} else if(name.equals("from")){
+				delta.from = reader.nextInt();
+			} else if(name.equals("key")){
+				delta.prefixChecksum = reader.nextInt();
+			} else if(name.equals("moves")){
+				delta.moves = JsonPayloads.readStrings(reader);
+			} else {
+				reader.skipValue();
+			}
+
+		}
+
+		reader.endObject();
+		return delta;
+
+	}
+
+	public int getFrom() {
+		return from;
+	}
+
+	public void setFrom(int from) {
+		this.from = from;
+	}
+
+	// The "key" of the payload: the checksum of the transcript prefix the
+	// moves follow
+	public int getPrefixChecksum() {
+		return prefixChecksum;
+	}
+
+	public void setPrefixChecksum(int prefixChecksum) {
+		this.prefixChecksum = prefixChecksum;
+	}
+
+	public List<String> getMoves() {
+		return moves;
+	}
+
+	public void setMoves(List<String> moves) {
+		this.moves = moves;
+	}
+
+}
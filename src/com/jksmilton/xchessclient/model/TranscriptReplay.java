@@ -0,0 +1,376 @@
+package com.jksmilton.xchessclient.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.jksmilton.xchessclient.exceptions.MoveException;
+import com.jksmilton.xchessclient.javachess.jcBoard;
+import com.jksmilton.xchessclient.javachess.jcMove;
+import com.jksmilton.xchessclient.javachess.jcPlayer;
+import com.jksmilton.xchessclient.javachess.jcPlayerHuman;
+
+/**
+ * The position reached by replaying a game transcript, kept between refreshes
+ * so that only the moves which arrived since the last one have to be applied.
+ */
+public class TranscriptReplay {
+
+	private boolean isWhite;
+	private jcBoard engBoard = new jcBoard();
+	private byte[][] pieces = new byte[8][8];
+	private jcPlayerHuman player = new jcPlayerHuman(0);
+	private int ply = 0;
+	private int prefixChecksum = 1;
+	private boolean over = false;
+	private List<String> lines = new ArrayList<String>();
+	private List<String> moves = new ArrayList<String>();
+
+	public TranscriptReplay(boolean isWhite){
+
+		this.isWhite = isWhite;
+		engBoard.StartingBoard();
+		setUpStartBoard();
+
+	}
+
+	public boolean isWhite(){
+		return isWhite;
+	}
+
+	public int getPly(){
+		return ply;
+	}
+
+	/**
+	 * The checksum of the transcript prefix replayed so far, the moves hashed
+	 * as java.util.List.hashCode would hash them; sent as the "key" of a delta
+	 * request. It identifies the history, not the position; see
+	 * TranscriptDelta.
+	 */
+	public int getPrefixChecksum(){
+		return prefixChecksum;
+	}
+
+	public jcBoard getBoard(){
+		return engBoard;
+	}
+
+	/**
+	 * The transcript lines shown so far, oldest first; besides the moves, they
+	 * include notes such as resignations.
+	 */
+	public List<String> getLines(){
+		return lines;
+	}
+
+	/**
+	 * The transcript entries replayed so far, one for each ply.
+	 */
+	public List<String> getMoves(){
+		return moves;
+	}
+
+	/**
+	 * A replay of the same game, further on by the given moves; this one is
+	 * left as it is.
+	 */
+	public TranscriptReplay withMoves(List<String> next){
+
+		TranscriptReplay copy = new TranscriptReplay(isWhite);
+		copy.engBoard.Clone(engBoard);
+
+		for(int i = 0; i < 8; i++){
+			copy.pieces[i] = pieces[i].clone();
+		}
+
+		copy.ply = ply;
+		copy.prefixChecksum = prefixChecksum;
+		copy.over = over;
+		copy.lines.addAll(lines);
+		copy.moves.addAll(moves);
+		copy.advance(next, ply);
+		return copy;
+
+	}
+
+	/**
+	 * Whether a transcript continues the one replayed so far, rather than
+	 * rewriting its past; the whole transcript is at hand, so its moves are
+	 * compared rather than checksums.
+	 */
+	public boolean follows(List<String> transcript){
+
+		if(transcript.size() < ply){
+			return false;
+		}
+
+		return transcript.subList(0, ply).equals(moves);
+
+	}
+
+	/**
+	 * Whether the moves of a delta follow the transcript replayed so far.
+	 */
+	public boolean follows(TranscriptDelta delta){
+
+		return delta.getMoves() != null && delta.getFrom() == ply && delta.getPrefixChecksum() == prefixChecksum;
+
+	}
+
+	/**
+	 * Apply the moves of a transcript past the ones already replayed, and return
+	 * the lines to add to the transcript view, oldest first.
+	 */
+	public List<String> advance(List<String> transcript){
+
+		return advance(transcript, 0);
+
+	}
+
+	/**
+	 * Apply the moves of a delta which follows the position replayed so far.
+	 */
+	public List<String> advance(TranscriptDelta delta){
+
+		return advance(delta.getMoves(), delta.getFrom());
+
+	}
+
+	// Apply the moves past the current ply, the first of the given moves being
+	// the one played at ply "first"
+	private List<String> advance(List<String> moves, int first){
+
+		List<String> added = new ArrayList<String>();
+		jcMove move = null;
+
+		while(ply - first < moves.size() && !over){
+
+			String s = moves.get(ply - first);
+			ply++;
+			prefixChecksum = 31 * prefixChecksum + s.hashCode();
+			this.moves.add(s);
+			added.add(s);
+
+			if(s.equals("RESIG")){
+
+				added.add(engBoard.GetCurrentPlayer() == 0 ? "White Resigned" : "Black Resigned");
+				over = true;
+
+			} else {
+
+				move = applyMove(s);
+
+			}
+
+		}
+
+		if(move != null && move.MoveType == jcMove.MOVE_STALEMATE){
+
+			added.add("STALEMATE");
+			over = true;
+
+		}
+
+		lines.addAll(added);
+		return added;
+
+	}
+
+	public byte[] convertToDimBoard(){
+		byte[] dimBoard = new byte[64];
+		for(int i = 0; i<8; i++){
+			for(int j = 0; j < 8; j++){
+
+				int dim = BoardView.convertCoordToDim(j, i);
+				dimBoard[dim] = pieces[i][j];
+
+			}
+		}
+		return dimBoard;
+	}
+
+	private jcMove applyMove(String s){
+
+		jcMove move = new jcMove();
+		move.MoveType = jcMove.MOVE_NORMAL;
+		int[] startPos, endPos;
+
+		String[] sections = s.split(" ");
+		startPos = parsePos(sections[0]);
+		endPos = parsePos(sections[1]);
+
+		move.SourceSquare = BoardView.convertCoordToDim(startPos[1], startPos[0]);
+		move.DestinationSquare = BoardView.convertCoordToDim(endPos[1], endPos[0]);
+
+		if(!isWhite){
+
+			startPos[0] = 7 - startPos[0];
+			startPos[1] = 7 - startPos[1];
+			endPos[0] = 7 - endPos[0];
+			endPos[1] = 7 - endPos[1];
+
+		}
+
+		byte piece = pieces[startPos[0]][startPos[1]];
+
+		if(sections[2].equals("Q")){
+
+			move.MoveType = jcMove.MOVE_PROMOTION_QUEEN;
+
+		} else if(sections[2].equals("B")){
+
+			move.MoveType = jcMove.MOVE_PROMOTION_BISHOP;
+
+		} else if(sections[2].equals("K")){
+
+			move.MoveType = jcMove.MOVE_PROMOTION_KNIGHT;
+
+		} else if(sections[2].equals("R")){
+
+			move.MoveType = jcMove.MOVE_PROMOTION_ROOK;
+
+		}
+
+		piece = (byte) BoardView.promotedPiece(piece, move.MoveType);
+
+		// One player object serves both sides: its side only matters for the
+		// prompt it prints
+		try {
+			move = player.GetMove(engBoard, move, move.MoveType);
+		} catch (MoveException e) {
+
+			e.printStackTrace();
+		}
+
+		engBoard.ApplyMove(move);
+
+		pieces[endPos[0]][endPos[1]] = piece;
+		pieces[startPos[0]][startPos[1]] = jcBoard.EMPTY_SQUARE;
+
+		Log.d("Applied move from", "start: " + startPos[0] + ";" + startPos[1]);
+		Log.d("Applied move to", "end: " + endPos[0] + ";" + endPos[1]);
+
+		if((isWhite && engBoard.GetCurrentPlayer() == 1) && move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
+
+			pieces[0][5] = pieces[0][7];
+			pieces[0][7] = jcBoard.EMPTY_SQUARE;
+
+		} else if((isWhite && engBoard.GetCurrentPlayer() == 1) && move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
+
+			pieces[0][3] = pieces[0][0];
+			pieces[0][0] = jcBoard.EMPTY_SQUARE;
+
+		} else if((isWhite && engBoard.GetCurrentPlayer() != 1) && move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
+
+			pieces[7][5] = pieces[7][7];
+			pieces[7][7] = jcBoard.EMPTY_SQUARE;
+
+		} else if((isWhite && engBoard.GetCurrentPlayer() != 1) && move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
+
+			pieces[7][3] = pieces[7][0];
+			pieces[7][0] = jcBoard.EMPTY_SQUARE;
+
+		} else if((!isWhite && engBoard.GetCurrentPlayer() ==1) && move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
+
+			pieces[7][2] = pieces[7][0];
+			pieces[7][0] = jcBoard.EMPTY_SQUARE;
+
+		} else if((!isWhite && engBoard.GetCurrentPlayer() == 1) && move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
+
+			pieces[7][5] = pieces[7][0];
+			pieces[7][7] = jcBoard.EMPTY_SQUARE;
+
+		} else if((!isWhite && engBoard.GetCurrentPlayer() != 1) && move.MoveType == jcMove.MOVE_CASTLING_KINGSIDE){
+
+			pieces[0][2] = pieces[0][0];
+			pieces[0][0] = jcBoard.EMPTY_SQUARE;
+
+		} else if((!isWhite && engBoard.GetCurrentPlayer() != 1) && move.MoveType == jcMove.MOVE_CASTLING_QUEENSIDE){
+
+			pieces[0][5] = pieces[0][7];
+			pieces[0][7] = jcBoard.EMPTY_SQUARE;
+
+		}
+
+		return move;
+
+	}
+
+	private void setUpStartBoard(){
+
+		int nearSideCol, farSideCol, leftUnique, rightUnique;
+
+		if(isWhite){
+			nearSideCol= jcPlayer.SIDE_WHITE;
+			farSideCol = jcPlayer.SIDE_BLACK;
+			leftUnique = jcBoard.QUEEN;
+			rightUnique = jcBoard.KING;
+		} else {
+			farSideCol= jcPlayer.SIDE_WHITE;
+			nearSideCol = jcPlayer.SIDE_BLACK;
+			leftUnique = jcBoard.KING;
+			rightUnique = jcBoard.QUEEN;
+		}
+
+		for(int i = 2; i < 6; i++){
+
+			for(int j = 0; j<8; j++){
+
+				pieces[i][j] = jcBoard.EMPTY_SQUARE;
+
+			}
+
+		}
+
+		for (int i = 0; i< 8; i++){
+
+			pieces[1][i] = (byte) (jcBoard.PAWN + nearSideCol);
+			pieces[6][i] = (byte) (jcBoard.PAWN + farSideCol);
+
+		}
+
+		pieces[0][0] = (byte) (jcBoard.ROOK + nearSideCol);
+		pieces[0][1] = (byte) (jcBoard.KNIGHT + nearSideCol);
+		pieces[0][2] = (byte) (jcBoard.BISHOP + nearSideCol);
+
+		pieces[0][3] = (byte) (leftUnique + nearSideCol);
+		pieces[0][4] = (byte) (rightUnique + nearSideCol);
+
+		pieces[0][5] = (byte) (jcBoard.BISHOP + nearSideCol);
+		pieces[0][6] = (byte) (jcBoard.KNIGHT + nearSideCol);
+		pieces[0][7] = (byte) (jcBoard.ROOK + nearSideCol);
+
+		pieces[7][0] = (byte) (jcBoard.ROOK + farSideCol);
+		pieces[7][1] = (byte) (jcBoard.KNIGHT + farSideCol);
+		pieces[7][2] = (byte) (jcBoard.BISHOP + farSideCol);
+
+		pieces[7][3] = (byte) (leftUnique + farSideCol);
+		pieces[7][4] = (byte) (rightUnique + farSideCol);
+
+		pieces[7][5] = (byte) (jcBoard.BISHOP + farSideCol);
+		pieces[7][6] = (byte) (jcBoard.KNIGHT + farSideCol);
+		pieces[7][7] = (byte) (jcBoard.ROOK + farSideCol);
+
+
+	}
+
+	private int[] parsePos(String move){
+
+		int pos[] = {-1,-1};
+		char[] chars = move.toCharArray();
+
+		pos[1] = Integer.parseInt(new String("" + chars[1])) - 1;
+
+		if(chars[0] >= 'A' && chars[0] <= 'H'){
+
+			pos[0] = chars[0] - 'A';
+
+		}
+
+		return pos;
+
+	}
+
+}
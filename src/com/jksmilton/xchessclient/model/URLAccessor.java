@@ -1,90 +1,168 @@
 package com.jksmilton.xchessclient.model;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
-import java.net.URL;
 
 import android.content.res.Resources.NotFoundException;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
+
 public abstract class URLAccessor extends AsyncTask<Object, Object, Object> {
-						
+
+			private long bytesRead = 0;
+			private long parseMillis = 0;
+			private boolean notModified = false;
+
 			public String readIt(InputStream stream) throws IOException, UnsupportedEncodingException {
-			    Reader reader = null;
-			    reader = new InputStreamReader(stream, "UTF-8");        
-			    boolean ready = true;
-			    String output = "";
-			    while(ready){
-			    	
-			    	int read = reader.read();
-			    	
-			    	if(read < 0)
-			    		ready = false;
-			    	else
-			    		output+= (char) read;
-			    	
+			    Reader reader = new InputStreamReader(stream, "UTF-8");
+			    StringBuilder output = new StringBuilder();
+			    char[] buffer = new char[4096];
+			    int read;
+
+			    while((read = reader.read(buffer)) >= 0){
+
+			    	output.append(buffer, 0, read);
+
 			    }
-			    
-			    return output;
+
+			    return output.toString();
+			}
+
+			/**
+			 * Turn a response into the result handed to onPostExecute; the text of
+			 * the response unless overridden. Accessors expecting JSON override it
+			 * to build their model objects straight from the stream, with
+			 * {@link #jsonReader(InputStream)}.
+			 */
+			protected Object readResponse(InputStream stream) throws IOException {
+				return readIt(stream);
+			}
+
+			protected JsonReader jsonReader(InputStream stream) throws UnsupportedEncodingException {
+				return new JsonReader(new InputStreamReader(stream, "UTF-8"));
+			}
+
+			/**
+			 * Read a response with readResponse, and record its size and the time
+			 * it took to read and parse.
+			 */
+			protected Object timedRead(String url, InputStream stream) throws IOException {
+
+				CountingInputStream counter = new CountingInputStream(stream);
+				long start = System.nanoTime();
+
+				try {
+					return readResponse(counter);
+				} finally {
+					parseMillis = (System.nanoTime() - start) / 1000000;
+					bytesRead = counter.count;
+					Log.d("Read " + url, bytesRead + (notModified ? " unchanged" : "") + " bytes in " + parseMillis + " ms");
+				}
+
+			}
+
+			// The size of the last response, in bytes
+			public long getBytesRead() {
+				return bytesRead;
+			}
+
+			// The time spent reading and parsing the last response
+			public long getParseMillis() {
+				return parseMillis;
+			}
+
+			// Whether the server answered that the response did not change since
+			// the last time it was read
+			public boolean isNotModified() {
+				return notModified;
 			}
 
 
 			@Override
 			protected Object doInBackground(Object... params) {
-				InputStream is = null;
-				String returnStr = "Fail";
-				
+				HttpClient.Response response = null;
+				Object returnStr = "Fail";
+
 				try {
-			        URL url = new URL((String) params[0]);
-			        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-			        conn.setReadTimeout(10000 /* milliseconds */);
-			        conn.setConnectTimeout(15000 /* milliseconds */);
-			        conn.setRequestMethod("GET");
-			        conn.setDoInput(true);
-			        // Starts the query
-			        conn.connect();
-			        int response = conn.getResponseCode();
-			        Log.d("Acessing " + params[0], "The response is: " + response);
-			        is = conn.getInputStream();
-
-			        // Convert the InputStream into a string
-			        returnStr = readIt(is);
-			        
-			       
-			        
+			        response = HttpClient.getInstance().get((String) params[0]);
+			        notModified = response.isNotModified();
+
+			        // Convert the InputStream into the result
+			        returnStr = timedRead((String) params[0], response.getBody());
+
+
+
 			    // Makes sure that the InputStream is closed after the app is
 			    // finished using it.
 			    } catch (MalformedURLException e) {
-					
+
 					returnStr = "malformed URL";
 				} catch (NotFoundException e) {
-					
+
 					returnStr = "not found";
 				} catch (ProtocolException e) {
-					
+
 					returnStr = "protocol exception";
 				} catch (IOException e) {
 					returnStr = "IO Exception: " + e.getMessage();
+				} catch (IllegalStateException e) {
+					// JSON of an unexpected shape
+					returnStr = "parse exception: " + e.getMessage();
 				} finally {
-			        if (is != null) {
+			        if (response != null) {
 			            try {
-							is.close();
+							response.close();
 						} catch (IOException e) {
 							// TODO Auto-generated catch block
 							e.printStackTrace();
 						}
-			        } 
+			        }
 			    }
 				return returnStr;
 			}
-		
+
 			@Override
 	        protected abstract void onPostExecute(Object result);
-		
-		}
\ No newline at end of file
+
+			// Counts the bytes read through it
+			private static class CountingInputStream extends FilterInputStream {
+
+				private long count = 0;
+
+				CountingInputStream(InputStream in) {
+					super(in);
+				}
+
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if(b >= 0)
+						count++;
+					return b;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					int read = super.read(buffer, offset, length);
+					if(read > 0)
+						count += read;
+					return read;
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+					long skipped = super.skip(n);
+					count += skipped;
+					return skipped;
+				}
+
+			}
+
+		}
@@ -0,0 +1,315 @@
+package com.jksmilton.xchessclient.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.jksmilton.xchessclient.model.HttpClient;
+
+/**
+ * The shared HttpClient against a stub server: connection reuse, compressed
+ * bodies, conditional requests answered from the kept bodies, and the bound
+ * on the memory those bodies take.
+ */
+public class HttpClientTest extends TestCase {
+
+	// The client keeps at most this much, and no body over a quarter of it
+	private static final int CACHE_BYTES = 512 * 1024;
+
+	private HttpClient client;
+	private ResourceServer server;
+
+	// Serves generated bodies, each path with its own validators and
+	// encoding, answering 304 when the client's validator matches
+	private static class ResourceServer extends StubServer {
+
+		Map<String, String> etags = new HashMap<String, String>();
+		Map<String, String> dates = new HashMap<String, String>();
+		Map<String, String> encodings = new HashMap<String, String>();
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		Map<String, Integer> statuses = new HashMap<String, Integer>();
+
+		@Override
+		protected Response respond(Request request) throws IOException {
+
+			Integer status = statuses.get(request.path);
+
+			if(status != null){
+				return new Response(status, "Refused " + request.path);
+			}
+
+			String etag = etags.get(request.path);
+			String date = dates.get(request.path);
+
+			if((etag != null && etag.equals(request.header("If-None-Match")))
+					|| (date != null && date.equals(request.header("If-Modified-Since")))){
+				return new Response(304, "");
+			}
+
+			Integer size = sizes.get(request.path);
+			Response response = new Response(200, "");
+			byte[] body = body(request.path, size == null ? 64 : size);
+			String encoding = encodings.get(request.path);
+
+			if(encoding != null){
+				body = compress(body, encoding);
+				response.headers.put("Content-Encoding", encoding);
+			}
+
+			if(etag != null){
+				response.headers.put("ETag", etag);
+			}
+			if(date != null){
+				response.headers.put("Last-Modified", date);
+			}
+
+			response.body = body;
+			return response;
+
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		client = HttpClient.getInstance();
+		client.clearCache();
+		server = new ResourceServer();
+		server.start();
+
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		server.stop();
+		client.clearCache();
+		super.tearDown();
+
+	}
+
+	public void testConnectionIsKeptAlive() throws IOException {
+
+		for(int i = 0; i < 5; i++){
+			assertTrue(Arrays.equals(body("/plain", 64), fetch("/plain")));
+		}
+
+		List<StubServer.Request> requests = server.getRequests();
+		assertEquals(5, requests.size());
+		assertEquals(1, server.getConnectionCount());
+
+		for(StubServer.Request request : requests){
+			assertEquals(0, request.connection);
+		}
+
+	}
+
+	public void testGzipBodyIsDecoded() throws IOException {
+
+		server.encodings.put("/gzip", "gzip");
+		server.sizes.put("/gzip", 20000);
+
+		assertTrue(Arrays.equals(body("/gzip", 20000), fetch("/gzip")));
+		assertTrue(server.getRequests().get(0).header("Accept-Encoding").contains("gzip"));
+
+	}
+
+	public void testDeflateBodyIsDecoded() throws IOException {
+
+		server.encodings.put("/deflate", "deflate");
+		server.sizes.put("/deflate", 20000);
+
+		assertTrue(Arrays.equals(body("/deflate", 20000), fetch("/deflate")));
+		assertTrue(server.getRequests().get(0).header("Accept-Encoding").contains("deflate"));
+
+	}
+
+	public void testNotModifiedByEtagServesKeptBody() throws IOException {
+
+		server.etags.put("/etag", "\"v1\"");
+		server.encodings.put("/etag", "gzip");
+
+		byte[] first = fetch("/etag");
+		HttpClient.Response response = client.get(server.url("/etag"));
+		byte[] second = readAll(response);
+
+		assertTrue(response.isNotModified());
+		assertEquals(304, response.getCode());
+		assertTrue(Arrays.equals(first, second));
+		assertEquals("\"v1\"", server.getRequests().get(1).header("If-None-Match"));
+
+	}
+
+	public void testNotModifiedByDateServesKeptBody() throws IOException {
+
+		String date = "Sat, 01 Jun 2013 10:00:00 GMT";
+		server.dates.put("/dated", date);
+
+		byte[] first = fetch("/dated");
+		HttpClient.Response response = client.get(server.url("/dated"));
+		byte[] second = readAll(response);
+
+		assertTrue(response.isNotModified());
+		assertTrue(Arrays.equals(first, second));
+		assertEquals(date, server.getRequests().get(1).header("If-Modified-Since"));
+
+	}
+
+	public void testChangedResourceReplacesKeptBody() throws IOException {
+
+		server.etags.put("/changing", "\"v1\"");
+		fetch("/changing");
+
+		server.etags.put("/changing", "\"v2\"");
+		server.sizes.put("/changing", 100);
+		HttpClient.Response response = client.get(server.url("/changing"));
+		byte[] second = readAll(response);
+
+		assertFalse(response.isNotModified());
+		assertTrue(Arrays.equals(body("/changing", 100), second));
+
+		// The new version is the one kept now
+		fetch("/changing");
+		assertEquals("\"v2\"", server.getRequests().get(2).header("If-None-Match"));
+
+	}
+
+	public void testLeastRecentlyUsedBodiesAreEvicted() throws IOException {
+
+		// Five bodies of a little under a quarter of the cache: only four fit
+		int size = CACHE_BYTES / 4 - 1024;
+
+		for(int i = 0; i < 5; i++){
+
+			String path = "/big" + i;
+			server.etags.put(path, "\"" + i + "\"");
+			server.sizes.put(path, size);
+			fetch(path);
+
+			// Keep the first one recently used
+			if(i > 0){
+				fetch("/big0");
+			}
+
+		}
+
+		int before = server.getRequests().size();
+		HttpClient.Response first = client.get(server.url("/big0"));
+		readAll(first);
+		HttpClient.Response second = client.get(server.url("/big1"));
+		readAll(second);
+
+		// The body used last of all is still kept, the least recent one is not
+		assertTrue(first.isNotModified());
+		assertFalse(second.isNotModified());
+
+		List<StubServer.Request> requests = server.getRequests();
+		assertEquals("\"0\"", requests.get(before).header("If-None-Match"));
+		assertNull(requests.get(before + 1).header("If-None-Match"));
+
+	}
+
+	public void testBodyOverAQuarterOfTheCacheIsNotKept() throws IOException {
+
+		server.etags.put("/huge", "\"h\"");
+		server.sizes.put("/huge", CACHE_BYTES / 4 + 1);
+
+		fetch("/huge");
+		fetch("/huge");
+
+		assertNull(server.getRequests().get(1).header("If-None-Match"));
+
+	}
+
+	public void testErrorStatusIsThrownWithTheAnswer() throws IOException {
+
+		server.statuses.put("/refused", 409);
+		server.statuses.put("/failed", 503);
+
+		HttpClient.StatusException refused = post("/refused");
+		assertEquals(409, refused.getCode());
+		assertTrue(refused.isRefusal());
+		assertEquals("Refused /refused", refused.getAnswer());
+
+		HttpClient.StatusException failed = post("/failed");
+		assertEquals(503, failed.getCode());
+		assertFalse(failed.isRefusal());
+
+		// The error bodies were read, so the connection is still the first one
+		assertTrue(Arrays.equals(body("/plain", 64), fetch("/plain")));
+		assertEquals(1, server.getConnectionCount());
+
+	}
+
+	private HttpClient.StatusException post(String path) throws IOException {
+
+		try {
+			client.post(server.url(path), "key").close();
+		} catch (HttpClient.StatusException e) {
+			return e;
+		}
+
+		fail("No error status for " + path);
+		return null;
+
+	}
+
+	private byte[] fetch(String path) throws IOException {
+
+		return readAll(client.get(server.url(path)));
+
+	}
+
+	private static byte[] readAll(HttpClient.Response response) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+
+		try {
+			while((read = response.getBody().read(buffer)) >= 0){
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			response.close();
+		}
+
+		return out.toByteArray();
+
+	}
+
+	// A body which differs from path to path, and compresses well
+	private static byte[] body(String path, int size){
+
+		byte[] body = new byte[size];
+		int seed = path.hashCode();
+
+		for(int i = 0; i < size; i++){
+			body[i] = (byte) ('a' + ((seed + i / 64) % 26 + 26) % 26);
+		}
+
+		return body;
+
+	}
+
+	private static byte[] compress(byte[] body, String encoding) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream compressor = encoding.equals("gzip") ? new GZIPOutputStream(out) : new DeflaterOutputStream(out);
+		compressor.write(body);
+		compressor.close();
+		return out.toByteArray();
+
+	}
+
+}
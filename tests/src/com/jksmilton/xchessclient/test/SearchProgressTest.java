@@ -0,0 +1,66 @@
+package com.jksmilton.xchessclient.test;
+
+import junit.framework.TestCase;
+
+import com.jksmilton.xchessclient.javachess.jcAISearchAgent;
+import com.jksmilton.xchessclient.javachess.jcBoard;
+import com.jksmilton.xchessclient.javachess.jcSearchInfo;
+import com.jksmilton.xchessclient.javachess.jcSearchListener;
+
+/**
+ * The progress a search reports to its listener: the distance to a mate,
+ * whichever side is to be mated.
+ */
+public class SearchProgressTest extends TestCase {
+
+	// The search goes deeper than the mate, which must not count the
+	// plies after it
+	private static final int DEPTH = 4;
+
+	private static class LastInfo implements jcSearchListener {
+
+		jcSearchInfo progress;
+
+		@Override
+		public void SearchProgress(jcSearchInfo info) {
+			progress = info;
+		}
+
+		@Override
+		public void SearchFinished(jcSearchInfo info) {
+		}
+
+	}
+
+	public void testMateInOneForTheSideToMove() throws Exception {
+
+		// 1. Ra1#
+		assertEquals(1, search("k7/2K5/8/8/8/8/8/7R w - -").MateIn);
+
+	}
+
+	public void testMatedInOneForTheSideToMove() throws Exception {
+
+		// 1... Ka7 2. Ra1#, with the side to mate not to move
+		assertEquals(-1, search("k7/2K5/8/8/8/8/8/1R6 b - -").MateIn);
+
+	}
+
+	private static jcSearchInfo search(String fen) throws Exception {
+
+		jcBoard board = new jcBoard();
+		assertTrue(board.FromFEN(fen));
+
+		jcAISearchAgent agent = jcAISearchAgent.MakeNewAgent(jcAISearchAgent.AISEARCH_MTDF, null, 1);
+		LastInfo listener = new LastInfo();
+		agent.SetSearchListener(listener);
+		agent.SetSearchLimits(DEPTH, 0, 0);
+		agent.PickBestMove(board);
+
+		assertNotNull(listener.progress);
+		assertEquals(DEPTH, listener.progress.Depth);
+		return listener.progress;
+
+	}
+
+}
@@ -0,0 +1,267 @@
+package com.jksmilton.xchessclient.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface, standing in for the
+ * game server in tests.
+ *
+ * Each connection is served on a thread of its own, one request after the
+ * other for as long as the client keeps it open, so that tests can tell
+ * whether connections are reused. Subclasses answer the requests.
+ */
+public abstract class StubServer {
+
+	/**
+	 * A request as the server received it.
+	 */
+	public static class Request {
+
+		public String method;
+		public String path;
+		public Map<String, String> query = new HashMap<String, String>();
+		public Map<String, String> headers = new HashMap<String, String>();
+		public int connection;
+
+		public String header(String name){
+			return headers.get(name.toLowerCase());
+		}
+
+	}
+
+	/**
+	 * An answer to a request.
+	 */
+	public static class Response {
+
+		public int code = 200;
+		public Map<String, String> headers = new LinkedHashMap<String, String>();
+		public byte[] body = new byte[0];
+
+		public Response(){}
+
+		public Response(int code, String body){
+
+			this.code = code;
+
+			try {
+				this.body = body.getBytes("UTF-8");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+
+		}
+
+	}
+
+	private ServerSocket socket;
+	private Thread acceptor;
+	private List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+	private List<Socket> connections = Collections.synchronizedList(new ArrayList<Socket>());
+
+	/**
+	 * The answer to a request; called on the thread of its connection.
+	 */
+	protected abstract Response respond(Request request) throws IOException;
+
+	public void start() throws IOException {
+
+		socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					while(true){
+
+						final Socket client = socket.accept();
+						final int number = connections.size();
+						connections.add(client);
+
+						new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								serve(client, number);
+							}
+
+						}).start();
+
+					}
+
+				} catch (IOException e) {
+					// Closed by stop()
+				}
+
+			}
+
+		});
+
+		acceptor.start();
+
+	}
+
+	public void stop() throws IOException {
+
+		socket.close();
+
+		synchronized(connections){
+			for(Socket client : connections){
+				client.close();
+			}
+		}
+
+	}
+
+	public String url(String path){
+		return "http://127.0.0.1:" + socket.getLocalPort() + path;
+	}
+
+	public List<Request> getRequests(){
+
+		synchronized(requests){
+			return new ArrayList<Request>(requests);
+		}
+
+	}
+
+	public int getConnectionCount(){
+		return connections.size();
+	}
+
+	private void serve(Socket client, int number){
+
+		try {
+
+			InputStream in = client.getInputStream();
+			OutputStream out = client.getOutputStream();
+			Request request;
+
+			while((request = readRequest(in, number)) != null){
+
+				requests.add(request);
+				Response response = respond(request);
+				writeResponse(out, request, response);
+
+				if("close".equalsIgnoreCase(request.header("Connection"))){
+					break;
+				}
+
+			}
+
+			client.close();
+
+		} catch (IOException e) {
+			// The client went away
+		}
+
+	}
+
+	private static Request readRequest(InputStream in, int connection) throws IOException {
+
+		String line = readLine(in);
+
+		if(line == null || line.length() == 0){
+			return null;
+		}
+
+		Request request = new Request();
+		request.connection = connection;
+		String[] parts = line.split(" ");
+		request.method = parts[0];
+		String target = parts[1];
+		int question = target.indexOf('?');
+
+		if(question >= 0){
+
+			for(String pair : target.substring(question + 1).split("&")){
+				int equals = pair.indexOf('=');
+				if(equals > 0)
+					request.query.put(pair.substring(0, equals), pair.substring(equals + 1));
+			}
+
+			target = target.substring(0, question);
+
+		}
+
+		request.path = target;
+
+		while((line = readLine(in)) != null && line.length() > 0){
+
+			int colon = line.indexOf(':');
+			request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+
+		}
+
+		// The requests of the client carry no body worth keeping
+		String length = request.header("Content-Length");
+
+		if(length != null){
+			for(int i = Integer.parseInt(length); i > 0; i--){
+				in.read();
+			}
+		}
+
+		return request;
+
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+
+		while((b = in.read()) >= 0 && b != '\n'){
+			if(b != '\r')
+				line.write(b);
+		}
+
+		if(b < 0 && line.size() == 0){
+			return null;
+		}
+
+		return line.toString("ISO-8859-1");
+
+	}
+
+	private static void writeResponse(OutputStream out, Request request, Response response) throws IOException {
+
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(response.code).append(" Stub\r\n");
+
+		for(Map.Entry<String, String> header : response.headers.entrySet()){
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+
+		// A 304 has no body, and says nothing of its length
+		if(response.code != 304){
+			head.append("Content-Length: ").append(response.body.length).append("\r\n");
+		}
+
+		head.append("\r\n");
+		out.write(head.toString().getBytes("ISO-8859-1"));
+
+		if(response.code != 304 && !request.method.equals("HEAD")){
+			out.write(response.body);
+		}
+
+		out.flush();
+
+	}
+
+}
@@ -0,0 +1,238 @@
+package com.jksmilton.xchessclient.test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.gson.stream.JsonReader;
+import com.jksmilton.xchessclient.model.HttpClient;
+import com.jksmilton.xchessclient.model.JsonPayloads;
+import com.jksmilton.xchessclient.model.TranscriptDelta;
+import com.jksmilton.xchessclient.model.TranscriptReplay;
+
+/**
+ * Brings a TranscriptReplay up to date from a stub server the way the game
+ * screen does: asking for the moves past its ply with its prefix checksum,
+ * and falling back on the whole transcript when the history diverged.
+ */
+public class TranscriptSyncTest extends TestCase {
+
+	// 1. e4 e5 2. Nf3 Nc6 3. Bc4, in the transcript notation: the rank
+	// letter first, then the file number
+	private static final List<String> GAME = Arrays.asList(
+			"B5 D5 NA", "G5 E5 NA", "A7 C6 NA", "H2 F3 NA", "A6 D3 NA");
+
+	// The same game rewritten from its third ply: 2. d4 exd4
+	private static final List<String> REWRITTEN = Arrays.asList(
+			"B5 D5 NA", "G5 E5 NA", "B4 D4 NA", "E5 D4 NA");
+
+	private TranscriptServer server;
+
+	// Serves the transcript it holds, as a delta when asked for one if it
+	// knows how
+	private static class TranscriptServer extends StubServer {
+
+		volatile List<String> transcript;
+		volatile boolean deltas;
+
+		@Override
+		protected Response respond(Request request) throws IOException {
+
+			List<String> moves = transcript;
+			String from = request.query.get("from");
+			StringBuilder json = new StringBuilder();
+
+			if(deltas && from != null && request.query.get("key") != null && Integer.parseInt(from) <= moves.size()){
+
+				int ply = Integer.parseInt(from);
+				json.append("{\"from\": ").append(ply);
+				json.append(", \"key\": ").append(moves.subList(0, ply).hashCode());
+				json.append(", \"moves\": ");
+				appendArray(json, moves.subList(ply, moves.size()));
+				json.append("}");
+
+			} else {
+
+				appendArray(json, moves);
+
+			}
+
+			return new Response(200, json.toString());
+
+		}
+
+		private static void appendArray(StringBuilder json, List<String> moves){
+
+			json.append("[");
+
+			for(int i = 0; i < moves.size(); i++){
+				json.append(i > 0 ? ", \"" : "\"").append(moves.get(i)).append("\"");
+			}
+
+			json.append("]");
+
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		HttpClient.getInstance().clearCache();
+		server = new TranscriptServer();
+		server.start();
+
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		server.stop();
+		super.tearDown();
+
+	}
+
+	public void testChecksumIsListHashCodeOfThePrefix(){
+
+		TranscriptReplay replay = new TranscriptReplay(true);
+		assertEquals(new ArrayList<String>().hashCode(), replay.getPrefixChecksum());
+
+		replay.advance(GAME.subList(0, 3));
+		assertEquals(GAME.subList(0, 3).hashCode(), replay.getPrefixChecksum());
+
+	}
+
+	public void testFullTranscriptFromServerWithoutDeltas() throws IOException {
+
+		server.transcript = GAME.subList(0, 3);
+		TranscriptReplay replay = sync(new TranscriptReplay(true), false);
+		server.transcript = GAME;
+		replay = sync(replay, false);
+
+		assertSameReplay(replay(GAME, true), replay);
+
+	}
+
+	public void testDeltaFollowsReplay() throws IOException {
+
+		server.deltas = true;
+		server.transcript = GAME.subList(0, 3);
+		TranscriptReplay replay = sync(new TranscriptReplay(false), false);
+		int checksum = replay.getPrefixChecksum();
+
+		server.transcript = GAME;
+		TranscriptReplay synced = sync(replay, false);
+
+		assertSame(replay, synced);
+		assertSameReplay(replay(GAME, false), synced);
+
+		List<StubServer.Request> requests = server.getRequests();
+		assertEquals(2, requests.size());
+		assertEquals("3", requests.get(1).query.get("from"));
+		assertEquals("" + checksum, requests.get(1).query.get("key"));
+
+	}
+
+	public void testDivergentDeltaFallsBackOnWholeTranscript() throws IOException {
+
+		server.deltas = true;
+		server.transcript = GAME.subList(0, 4);
+		TranscriptReplay replay = sync(new TranscriptReplay(true), false);
+
+		server.transcript = REWRITTEN;
+		TranscriptReplay synced = sync(replay, false);
+
+		assertSameReplay(replay(REWRITTEN, true), synced);
+
+		// The replay of the old history is left as it was
+		assertEquals(GAME.subList(0, 4), replay.getMoves());
+
+		List<StubServer.Request> requests = server.getRequests();
+		assertEquals(3, requests.size());
+		assertEquals("4", requests.get(1).query.get("from"));
+		assertNull(requests.get(2).query.get("from"));
+
+	}
+
+	public void testDivergentWholeTranscriptStartsOver() throws IOException {
+
+		server.transcript = GAME.subList(0, 4);
+		TranscriptReplay replay = sync(new TranscriptReplay(true), false);
+
+		server.transcript = REWRITTEN;
+		TranscriptReplay synced = sync(replay, false);
+
+		assertNotSame(replay, synced);
+		assertSameReplay(replay(REWRITTEN, true), synced);
+
+	}
+
+	// What the game screen does with an answer: a delta which does not follow
+	// the replay asks for the whole transcript, and a whole transcript which
+	// rewrites its past starts a new replay
+	private TranscriptReplay sync(TranscriptReplay replay, boolean full) throws IOException {
+
+		String url = server.url("/transcript");
+
+		if(!full && replay.getPly() > 0){
+			url += "?from=" + replay.getPly() + "&key=" + replay.getPrefixChecksum();
+		}
+
+		HttpClient.Response response = HttpClient.getInstance().get(url);
+		Object result;
+
+		try {
+			result = JsonPayloads.readTranscript(new JsonReader(new InputStreamReader(response.getBody(), "UTF-8")));
+		} finally {
+			response.close();
+		}
+
+		if(result instanceof TranscriptDelta){
+
+			TranscriptDelta delta = (TranscriptDelta) result;
+
+			if(!replay.follows(delta)){
+				return sync(replay, true);
+			}
+
+			replay.advance(delta);
+			return replay;
+
+		}
+
+		@SuppressWarnings("unchecked")
+		List<String> transcript = (List<String>) result;
+
+		if(!replay.follows(transcript)){
+			replay = new TranscriptReplay(replay.isWhite());
+		}
+
+		replay.advance(transcript);
+		return replay;
+
+	}
+
+	private static TranscriptReplay replay(List<String> transcript, boolean isWhite){
+
+		TranscriptReplay replay = new TranscriptReplay(isWhite);
+		replay.advance(transcript);
+		return replay;
+
+	}
+
+	private static void assertSameReplay(TranscriptReplay expected, TranscriptReplay actual){
+
+		assertEquals(expected.getMoves(), actual.getMoves());
+		assertEquals(expected.getPly(), actual.getPly());
+		assertEquals(expected.getPrefixChecksum(), actual.getPrefixChecksum());
+		assertEquals(expected.getBoard().BookKey(), actual.getBoard().BookKey());
+		assertTrue(Arrays.equals(expected.convertToDimBoard(), actual.convertToDimBoard()));
+
+	}
+
+}